@@ -2,18 +2,60 @@ package com.proxy;
 
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.LoggerContext;
+import com.proxy.cache.HttpCache;
 import com.proxy.handler.HttpRequestHandler;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.socket.SocketChannel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
 public class HttpClient extends TcpClient {
 
     private static final Logger log = LoggerFactory.getLogger(HttpClient.class);
 
+    private static final long MB = 1024 * 1024;
+
+    /**
+     * -Dproxy.http.max-idle设置每个目标每个event loop最多保留的空闲stream，0表示不复用，
+     * -Dproxy.http.idle-timeout设置空闲stream的保留秒数
+     */
+    private final HttpStreamPool streamPool;
+
+    /**
+     * -Dproxy.http.cache=true开启响应缓存，-Dproxy.http.cache.memory、-Dproxy.http.cache.disk设置内存和磁盘文件的大小（MB），
+     * -Dproxy.http.cache.max-entry设置单个响应的最大大小（MB），-Dproxy.http.cache.dir设置磁盘文件的目录。没有开启时为null
+     */
+    private final HttpCache cache;
+
     public HttpClient(String proxyHost, int proxyPort) {
         super(proxyHost, proxyPort);
+        this.streamPool = new HttpStreamPool(Integer.getInteger("proxy.http.max-idle", 8),
+                Integer.getInteger("proxy.http.idle-timeout", 30));
+        if (Boolean.getBoolean("proxy.http.cache")) {
+            File dir = new File(System.getProperty("proxy.http.cache.dir", System.getProperty("java.io.tmpdir")));
+            this.cache = new HttpCache(Integer.getInteger("proxy.http.cache.memory", 64) * MB,
+                    (int) Math.min(Integer.MAX_VALUE, Integer.getInteger("proxy.http.cache.disk", 256) * MB),
+                    (int) Math.min(Integer.MAX_VALUE, Integer.getInteger("proxy.http.cache.max-entry", 8) * MB),
+                    new File(dir, "websocket-proxy-http-cache"));
+        } else {
+            this.cache = null;
+        }
+    }
+
+    public HttpStreamPool getStreamPool() {
+        return streamPool;
+    }
+
+    @Override
+    public void startServer(int... ports) throws Exception {
+        worker.scheduleWithFixedDelay(() -> log.info(streamPool.summary()), 5, 5, TimeUnit.MINUTES);
+        if (cache != null) {
+            worker.scheduleWithFixedDelay(() -> log.info(cache.summary()), 5, 5, TimeUnit.MINUTES);
+        }
+        super.startServer(ports);
     }
 
     public static void main(String[] args) throws Exception {
@@ -46,7 +88,7 @@ public class HttpClient extends TcpClient {
             @Override
             protected void initChannel(SocketChannel ch) {
                 ch.config().setKeepAlive(true);
-                ch.pipeline().addLast(new HttpRequestHandler(HttpClient.this));
+                ch.pipeline().addLast(new HttpRequestHandler(HttpClient.this, streamPool, cache));
             }
         };
     }
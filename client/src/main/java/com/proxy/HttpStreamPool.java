@@ -0,0 +1,100 @@
+package com.proxy;
+
+import io.netty.util.concurrent.FastThreadLocal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * http代理空闲stream的复用，按目标host:port分组。
+ * <p>
+ * 每个event loop有自己的空闲stream，本地连接只复用同一个event loop上的stream，所以stream的状态不需要加锁。
+ * 每组最多保留maxIdle个，空闲超过idleTimeout秒后关闭，目标服务关闭连接时从池中移除。
+ */
+public class HttpStreamPool {
+
+    private static final Logger log = LoggerFactory.getLogger(HttpStreamPool.class);
+
+    private final FastThreadLocal<Map<String, ArrayDeque<HttpTunnelStream>>> idle =
+            new FastThreadLocal<Map<String, ArrayDeque<HttpTunnelStream>>>() {
+                @Override
+                protected Map<String, ArrayDeque<HttpTunnelStream>> initialValue() {
+                    return new HashMap<>();
+                }
+            };
+
+    private final int maxIdle;
+
+    private final long idleTimeoutMillis;
+
+    private final LongAdder opened = new LongAdder();
+
+    private final LongAdder reused = new LongAdder();
+
+    public HttpStreamPool(int maxIdle, int idleTimeout) {
+        this.maxIdle = maxIdle;
+        this.idleTimeoutMillis = TimeUnit.SECONDS.toMillis(idleTimeout);
+    }
+
+    public static String key(String host, int port) {
+        return host + ':' + port;
+    }
+
+    /**
+     * 取一个到host:port的空闲stream，优先使用最近归还的，没有时返回null，在本地连接的event loop中调用
+     */
+    public HttpTunnelStream acquire(String host, int port) {
+        ArrayDeque<HttpTunnelStream> streams = idle.get().get(key(host, port));
+        if (streams != null) {
+            HttpTunnelStream stream;
+            while ((stream = streams.pollLast()) != null) {
+                if (stream.isActive() && stream.getTunnel().isActive()) {
+                    reused.increment();
+                    log.debug("reuse http stream {} to {}", Long.toHexString(stream.getId()), stream.getKey());
+                    return stream;
+                }
+                stream.discard();
+            }
+        }
+        return null;
+    }
+
+    public void opened() {
+        opened.increment();
+    }
+
+    /**
+     * 响应结束后归还stream，池满时返回false，由调用方关闭
+     */
+    public boolean release(HttpTunnelStream stream) {
+        ArrayDeque<HttpTunnelStream> streams = idle.get().computeIfAbsent(stream.getKey(), k -> new ArrayDeque<>());
+        if (streams.size() >= maxIdle) {
+            return false;
+        }
+        streams.addLast(stream);
+        stream.idle(idleTimeoutMillis);
+        return true;
+    }
+
+    /**
+     * stream关闭时从池中移除
+     */
+    public void remove(HttpTunnelStream stream) {
+        Map<String, ArrayDeque<HttpTunnelStream>> map = idle.get();
+        ArrayDeque<HttpTunnelStream> streams = map.get(stream.getKey());
+        if (streams != null && streams.remove(stream) && streams.isEmpty()) {
+            map.remove(stream.getKey());
+        }
+    }
+
+    public String summary() {
+        long o = opened.sum();
+        long r = reused.sum();
+        return String.format("http streams opened: %d, reused: %d (%.1f%%)", o, r, o + r == 0 ? 0.0 : r * 100.0 / (o + r));
+    }
+}
@@ -0,0 +1,290 @@
+package com.proxy;
+
+import com.proxy.cache.CacheExchange;
+import com.proxy.handler.HttpBodyParser;
+import com.proxy.handler.HttpRequestHandler;
+import com.proxy.handler.HttpResponseParser;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * http代理使用的stream，每次转发一个请求，按响应头找到响应的结束位置，结束后可以给其它本地连接复用。
+ * <p>
+ * 服务端的数据在本地连接的event loop中解析，复用这个stream的本地连接都在同一个event loop上，见{@link HttpStreamPool}。
+ * 101响应后变成普通的tcp stream，不再复用。
+ */
+public class HttpTunnelStream extends TunnelStream {
+
+    private enum State {
+        HEAD, BODY, UNTIL_CLOSE, RAW
+    }
+
+    private final TcpClient client;
+
+    private final HttpStreamPool pool;
+
+    private final String key;
+
+    private final EventLoop loop;
+
+    private final HttpResponseParser parser = new HttpResponseParser();
+
+    private final HttpBodyParser body = new HttpBodyParser();
+
+    private State state = State.HEAD;
+
+    /**
+     * 当前请求的本地连接，空闲时为null
+     */
+    private HttpRequestHandler handler;
+
+    /**
+     * 当前请求是HEAD
+     */
+    private boolean headRequest;
+
+    /**
+     * 当前请求可以使用缓存时复制响应，不使用缓存时为null
+     */
+    private CacheExchange exchange;
+
+    /**
+     * 响应头不完整时缓存收到的数据
+     */
+    private ByteBuf head;
+
+    private boolean closed;
+
+    private ScheduledFuture<?> idleTimer;
+
+    public HttpTunnelStream(long id, Channel channel, Channel tunnel, TcpClient client, HttpStreamPool pool, String key) {
+        super(id, channel, tunnel);
+        this.client = client;
+        this.pool = pool;
+        this.key = key;
+        this.loop = channel.eventLoop();
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * 开始转发一个请求，之后服务端的数据写入这个本地连接
+     */
+    public void bind(HttpRequestHandler handler, Channel channel, boolean headRequest, CacheExchange exchange) {
+        if (idleTimer != null) {
+            idleTimer.cancel(false);
+            idleTimer = null;
+        }
+        this.handler = handler;
+        this.headRequest = headRequest;
+        this.exchange = exchange;
+        setChannel(channel);
+    }
+
+    /**
+     * 进入连接池，超时后关闭
+     */
+    void idle(long timeoutMillis) {
+        idleTimer = loop.schedule(() -> {
+            if (handler == null) {
+                discard();
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 关闭stream并通知服务端，不再复用
+     */
+    public void discard() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        handler = null;
+        exchange = null;
+        if (idleTimer != null) {
+            idleTimer.cancel(false);
+        }
+        releaseHead();
+        pool.remove(this);
+        if (!close()) {
+            client.removeStream(this);
+        }
+    }
+
+    @Override
+    public boolean isActive() {
+        return !closed;
+    }
+
+    @Override
+    public void updateAutoRead() {
+        //空闲时不影响之前的本地连接
+        if (handler != null) {
+            super.updateAutoRead();
+        }
+    }
+
+    @Override
+    protected void deliver(ByteBuf out) {
+        if (loop.inEventLoop()) {
+            response(out);
+        } else {
+            loop.execute(() -> response(out));
+        }
+    }
+
+    @Override
+    public void onClose() {
+        if (!loop.inEventLoop()) {
+            loop.execute(this::onClose);
+            return;
+        }
+        //服务端已经移除了stream，不需要再通知
+        closed = true;
+        exchange = null;
+        releaseHead();
+        pool.remove(this);
+        if (idleTimer != null) {
+            idleTimer.cancel(false);
+        }
+        HttpRequestHandler h = handler;
+        handler = null;
+        if (h != null) {
+            h.upstreamClosed();
+        }
+    }
+
+    /**
+     * 目标服务连接失败时按关闭处理，当前请求的本地连接由{@link HttpRequestHandler#upstreamClosed()}决定怎么结束
+     */
+    @Override
+    public void onReset() {
+        onClose();
+    }
+
+    private void response(ByteBuf out) {
+        if (closed) {
+            out.release();
+            return;
+        }
+        ByteBuf buf = out;
+        if (head != null) {
+            buf = head.writeBytes(out);
+            head = null;
+            out.release();
+        }
+        try {
+            process(buf);
+            if (!closed && state == State.HEAD && buf.isReadable()) {
+                head = buf == out ? getChannel().alloc().buffer(buf.readableBytes() * 2).writeBytes(buf) : buf.retain();
+            }
+        } finally {
+            buf.release();
+        }
+    }
+
+    private void process(ByteBuf buf) {
+        while (buf.isReadable()) {
+            if (handler == null) {
+                //没有请求时收到数据，不能再复用
+                discard();
+                return;
+            }
+            if (state == State.HEAD) {
+                HttpResponseParser.State result = parser.parse(buf);
+                if (result == HttpResponseParser.State.INVALID) {
+                    fail();
+                    return;
+                }
+                if (result != HttpResponseParser.State.COMPLETE) {
+                    return;
+                }
+                int status = parser.status();
+                if (exchange != null && status == 304 && exchange.isRevalidation()) {
+                    //缓存的响应仍然有效，代替304返回给客户端
+                    int length = parser.headLength();
+                    deliver(exchange.notModified(buf.readSlice(length)), length);
+                    exchange = null;
+                } else {
+                    ByteBuf responseHead = buf.readRetainedSlice(parser.headLength());
+                    if (exchange != null) {
+                        exchange.head(status, responseHead, parser.contentLength(),
+                                !headRequest && (parser.isChunked() || parser.contentLength() >= 0));
+                    }
+                    super.deliver(responseHead);
+                }
+                if (status == 101) {
+                    //协议升级，之后按tcp转发
+                    state = State.RAW;
+                    handler.upgraded(this);
+                } else if (status >= 100 && status < 200) {
+                    //100 continue等中间响应，后面还有最终响应
+                    parser.reset();
+                    continue;
+                } else if (headRequest || status == 204 || status == 304) {
+                    body.reset(-1, false);
+                    state = State.BODY;
+                } else if (parser.isChunked() || parser.contentLength() >= 0) {
+                    body.reset(parser.contentLength(), parser.isChunked());
+                    state = State.BODY;
+                } else {
+                    //没有长度的响应到连接关闭为止
+                    state = State.UNTIL_CLOSE;
+                }
+            }
+            if (state == State.BODY) {
+                int n = body.consume(buf);
+                if (body.isInvalid()) {
+                    fail();
+                    return;
+                }
+                if (n > 0) {
+                    ByteBuf data = buf.readRetainedSlice(n);
+                    if (exchange != null) {
+                        exchange.body(data);
+                    }
+                    super.deliver(data);
+                }
+                if (body.isComplete()) {
+                    if (exchange != null) {
+                        exchange.complete();
+                        exchange = null;
+                    }
+                    HttpRequestHandler h = handler;
+                    boolean keepAlive = parser.isKeepAlive() && !buf.isReadable();
+                    handler = null;
+                    state = State.HEAD;
+                    parser.reset();
+                    h.responseComplete(this, keepAlive);
+                }
+            } else if (state != State.HEAD) {
+                super.deliver(buf.readRetainedSlice(buf.readableBytes()));
+            }
+        }
+    }
+
+    /**
+     * 响应不合法，关闭stream和本地连接
+     */
+    private void fail() {
+        HttpRequestHandler h = handler;
+        discard();
+        if (h != null) {
+            h.upstreamClosed();
+        }
+    }
+
+    private void releaseHead() {
+        if (head != null) {
+            head.release();
+            head = null;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.proxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个服务端地址和它的状态：平滑的往返时间和连续失败后不再选择的截止时间。
+ * <p>
+ * 往返时间来自隧道上的ping/pong，没有隧道的地址定时探测tcp连接时间；连接失败或者ping连续没有回复算一次失败，
+ * 之后按失败次数翻倍的时间内不选择这个地址，探测或者ping成功后恢复。
+ */
+public class ServerEndpoint {
+
+    /**
+     * 失败后不选择的最长时间
+     */
+    private static final long MAX_DOWN_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final String host;
+
+    private final int port;
+
+    /**
+     * 平滑的往返时间（纳秒），还没有测量时为-1
+     */
+    private volatile long rtt = -1;
+
+    private volatile int failures;
+
+    private volatile long downUntil;
+
+    public ServerEndpoint(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * 解析逗号分隔的 host[:port] 列表，没有端口的使用defaultPort
+     */
+    public static List<ServerEndpoint> parse(String servers, int defaultPort) {
+        List<ServerEndpoint> endpoints = new ArrayList<>();
+        for (String server : servers.split(",")) {
+            server = server.trim();
+            if (server.isEmpty()) {
+                continue;
+            }
+            int colon = server.lastIndexOf(':');
+            if (colon > 0 && server.indexOf(':') == colon) {
+                endpoints.add(new ServerEndpoint(server.substring(0, colon), Integer.parseInt(server.substring(colon + 1))));
+            } else {
+                endpoints.add(new ServerEndpoint(server, defaultPort));
+            }
+        }
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("no proxy server: " + servers);
+        }
+        return endpoints;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * 平滑的往返时间（纳秒），还没有测量时为-1
+     */
+    public long getRtt() {
+        return rtt;
+    }
+
+    /**
+     * 收到一个往返时间样本，按1/8平滑，同时说明这个地址可用
+     */
+    public void onRtt(long nanos) {
+        long current = rtt;
+        rtt = current < 0 ? nanos : current + (nanos - current) / 8;
+        failures = 0;
+        downUntil = 0;
+    }
+
+    /**
+     * 连接失败或者ping超时
+     */
+    public void onFailure() {
+        int n = Math.min(failures + 1, 16);
+        failures = n;
+        downUntil = System.nanoTime() + Math.min(MAX_DOWN_NANOS, TimeUnit.MILLISECONDS.toNanos(500L << n));
+    }
+
+    public boolean isHealthy() {
+        return downUntil == 0 || downUntil - System.nanoTime() <= 0;
+    }
+
+    /**
+     * 选择可用的、往返时间最短的地址，没有测量过的排在测量过的后面，相同时按列表顺序；都不可用时选最早恢复的
+     */
+    public static ServerEndpoint select(List<ServerEndpoint> endpoints) {
+        ServerEndpoint selected = null;
+        for (ServerEndpoint endpoint : endpoints) {
+            if (endpoint.isHealthy() && (selected == null || endpoint.rank() < selected.rank())) {
+                selected = endpoint;
+            }
+        }
+        if (selected != null) {
+            return selected;
+        }
+        for (ServerEndpoint endpoint : endpoints) {
+            if (selected == null || endpoint.downUntil - selected.downUntil < 0) {
+                selected = endpoint;
+            }
+        }
+        return selected;
+    }
+
+    private long rank() {
+        long current = rtt;
+        return current < 0 ? Long.MAX_VALUE : current;
+    }
+
+    @Override
+    public String toString() {
+        long current = rtt;
+        return host + ":" + port + "(rtt: " + (current < 0 ? "-" : TimeUnit.NANOSECONDS.toMicros(current) + "us")
+                + (isHealthy() ? "" : ", down") + ")";
+    }
+}
@@ -2,22 +2,31 @@ package com.proxy;
 
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.LoggerContext;
+import com.proxy.common.CompressionStats;
+import com.proxy.common.FairScheduler;
+import com.proxy.common.RecordCodec;
+import com.proxy.common.Transport;
+import com.proxy.common.TunnelOptions;
+import com.proxy.common.TunnelProtocol;
 import com.proxy.handler.TcpRequestHandler;
 import com.proxy.handler.WebSocketHandler;
+import com.proxy.util.CommonUtil;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.AttributeKey;
 import io.netty.handler.codec.http.DefaultHttpHeaders;
 import io.netty.handler.codec.http.HttpClientCodec;
 import io.netty.handler.codec.http.HttpObjectAggregator;
-import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketClientHandshaker;
 import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
 import io.netty.handler.codec.http.websocketx.WebSocketVersion;
+import io.netty.util.collection.LongObjectHashMap;
+import io.netty.util.collection.LongObjectMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -25,29 +34,136 @@ import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class TcpClient {
 
     private static final Logger log = LoggerFactory.getLogger(TcpClient.class);
 
-    public static final int LENGTH_FIELD_OFFSET = 8;
+    /**
+     * 隧道在{@link #tunnels}中的位置
+     */
+    static final AttributeKey<Integer> TUNNEL_INDEX = AttributeKey.valueOf("proxy.tunnel.index");
 
     private String serverHost;
     private int serverPort;
 
-    private final String proxyHost;
-    private final int proxyPort;
-    private Channel proxy;
-    private final NioEventLoopGroup worker;
-    private final Map<String, Channel> channelMap;
+    /**
+     * 服务端地址列表，proxyHost可以是逗号分隔的多个 host[:port]，新的隧道连接可用的、往返时间最短的地址
+     */
+    private final List<ServerEndpoint> endpoints;
+    /**
+     * 每个隧道连接的地址，断开后保留，重连时优先恢复原来的会话
+     */
+    private final AtomicReferenceArray<ServerEndpoint> tunnelEndpoints;
+    /**
+     * 到服务端的多个websocket隧道，-Dproxy.tunnels设置数量，断开的位置为null
+     */
+    private final AtomicReferenceArray<Channel> tunnels;
+    private final AtomicInteger tunnelSequence;
+    /**
+     * -Dproxy.transport选择auto/nio/epoll/io_uring，见{@link Transport}
+     */
+    private final Transport transport;
+    protected final EventLoopGroup worker;
+    /**
+     * 每个隧道固定的event loop，重连后的隧道仍然在同一个event loop上，断开时留下的stream不用换表
+     */
+    private final EventLoop[] tunnelLoops;
+    /**
+     * 每个隧道上的stream，key为stream id，只在隧道的event loop中读写，不加锁
+     */
+    private final List<LongObjectMap<TunnelStream>> streamMaps;
+    private final TunnelOptions options;
+    private final AtomicInteger streamSequence;
+    /**
+     * 发给服务端的stream报文的调度参数，-Dproxy.schedule.quantum、-Dproxy.schedule.max-stream-queued-bytes、
+     * -Dproxy.schedule.weights，见{@link FairScheduler}
+     */
+    private final int scheduleQuantum;
+    private final int maxStreamQueuedBytes;
+    private final Map<Integer, Integer> streamWeights;
+    /**
+     * 隧道断开后保留stream等待恢复的秒数，-Dproxy.resume.grace设置，0表示不恢复，需要服务端也开启
+     */
+    private final int resumeGrace;
+    /**
+     * 每个隧道的会话标识，重连时带上，服务端还保留着会话时返回相同的标识
+     */
+    private final AtomicReferenceArray<String> sessionTokens;
+    /**
+     * 每个隧道断开或者重连成功时加一，过期检查发现不一致时说明已经恢复或者处理过
+     */
+    private final AtomicIntegerArray epochs;
+    /**
+     * 重连的间隔从-Dproxy.reconnect.min开始按失败次数翻倍，不超过-Dproxy.reconnect.max（毫秒），加上随机抖动，
+     * 避免服务端重启后所有客户端同时重连
+     */
+    private final long reconnectMin;
+    private final long reconnectMax;
+    private final AtomicIntegerArray reconnectAttempts;
+    /**
+     * 每个隧道每-Dproxy.ping.interval毫秒发送一次ping，连续-Dproxy.ping.max-missed次没有收到任何消息时认为服务端已经不可用，
+     * 关闭隧道换一个地址重连，不等tcp超时
+     */
+    private final long pingInterval;
+    private final int maxMissedPings;
+    /**
+     * 连接和websocket握手的超时毫秒数，-Dproxy.connect.timeout设置
+     */
+    private final int connectTimeout;
+    /**
+     * 没有隧道的地址每-Dproxy.probe.interval秒探测一次tcp连接时间，0表示不探测
+     */
+    private final long probeInterval;
+    private long lastProbe;
+    /**
+     * 监听本地端口的channel，{@link #close}关闭后startServer返回
+     */
+    private final List<Channel> listeners = new CopyOnWriteArrayList<>();
 
     public TcpClient(String proxyHost, int proxyPort) {
-        this.proxyHost = proxyHost;
-        this.proxyPort = proxyPort;
-        this.worker = new NioEventLoopGroup();
-        this.channelMap = new ConcurrentHashMap<>();
+        this.endpoints = ServerEndpoint.parse(proxyHost, proxyPort);
+        this.transport = Transport.select(System.getProperty("proxy.transport", "auto"))
+                .setQuickAck(Boolean.getBoolean("proxy.quick-ack"))
+                .setFastOpenConnect(Boolean.getBoolean("proxy.fast-open-connect"))
+                .setFastOpen(Integer.getInteger("proxy.fast-open", 0))
+                .setBusyPoll(Integer.getInteger("proxy.busy-poll", 0))
+                .setNotSentLowat(Integer.getInteger("proxy.notsent-lowat", 0));
+        this.worker = transport.newEventLoopGroup(0);
+        this.options = new TunnelOptions().setWindow(Integer.getInteger("proxy.window", 256 * 1024))
+                .setBatch(Boolean.parseBoolean(System.getProperty("proxy.batch", "true")))
+                .setMaxMessageSize(Integer.getInteger("proxy.max-message", 64 * 1024))
+                .setCompress(Boolean.getBoolean("proxy.compress"))
+                .setVersion(Integer.getInteger("proxy.protocol", TunnelProtocol.VERSION_2));
+        this.streamSequence = new AtomicInteger();
+        this.tunnels = new AtomicReferenceArray<>(Math.max(1, Integer.getInteger("proxy.tunnels", 1)));
+        this.tunnelSequence = new AtomicInteger();
+        this.tunnelLoops = new EventLoop[tunnels.length()];
+        this.streamMaps = new ArrayList<>(tunnels.length());
+        for (int i = 0; i < tunnels.length(); i++) {
+            tunnelLoops[i] = worker.next();
+            streamMaps.add(new LongObjectHashMap<>());
+        }
+        this.scheduleQuantum = Integer.getInteger("proxy.schedule.quantum", 16 * 1024);
+        this.maxStreamQueuedBytes = Integer.getInteger("proxy.schedule.max-stream-queued-bytes", 128 * 1024);
+        this.streamWeights = FairScheduler.parseWeights(System.getProperty("proxy.schedule.weights"));
+        this.resumeGrace = Integer.getInteger("proxy.resume.grace", 0);
+        this.sessionTokens = new AtomicReferenceArray<>(tunnels.length());
+        this.epochs = new AtomicIntegerArray(tunnels.length());
+        this.reconnectMin = Math.max(1, Long.getLong("proxy.reconnect.min", 200));
+        this.reconnectMax = Math.max(reconnectMin, Long.getLong("proxy.reconnect.max", 30000));
+        this.reconnectAttempts = new AtomicIntegerArray(tunnels.length());
+        this.tunnelEndpoints = new AtomicReferenceArray<>(tunnels.length());
+        this.pingInterval = Math.max(100, Long.getLong("proxy.ping.interval", 1000));
+        this.maxMissedPings = Math.max(1, Integer.getInteger("proxy.ping.max-missed", 3));
+        this.connectTimeout = Integer.getInteger("proxy.connect.timeout", 3000);
+        this.probeInterval = TimeUnit.SECONDS.toNanos(Long.getLong("proxy.probe.interval", 10));
     }
 
     public TcpClient(String serverHost, int serverPort, String proxyHost, int proxyPort) {
@@ -56,6 +172,13 @@ public class TcpClient {
         this.serverPort = serverPort;
     }
 
+    /**
+     * 每个隧道一个调度器
+     */
+    public FairScheduler newScheduler() {
+        return new FairScheduler(scheduleQuantum, maxStreamQueuedBytes, streamWeights);
+    }
+
     public String getServerHost() {
         return serverHost;
     }
@@ -65,12 +188,134 @@ public class TcpClient {
     }
 
 
-    public Channel getProxy() {
-        return proxy;
+    /**
+     * 给新的本地连接选择隧道，选发送缓冲区里待发送字节最少的，相同时轮流选择，没有可用的隧道返回null。
+     * 有ping没有回复的隧道只在没有其它隧道时选择。stream打开后一直使用选中的隧道
+     */
+    public Channel nextTunnel() {
+        int size = tunnels.length();
+        int start = (tunnelSequence.getAndIncrement() & Integer.MAX_VALUE) % size;
+        Channel selected = null;
+        boolean selectedSuspect = true;
+        long selectedPending = Long.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            Channel tunnel = tunnels.get((start + i) % size);
+            if (tunnel == null || !tunnel.isActive()) {
+                continue;
+            }
+            WebSocketHandler handler = tunnel.pipeline().get(WebSocketHandler.class);
+            boolean suspect = handler != null && handler.isSuspect();
+            ChannelOutboundBuffer buffer = tunnel.unsafe().outboundBuffer();
+            long pending = buffer == null ? 0 : buffer.totalPendingWriteBytes();
+            if (selected == null || (selectedSuspect && !suspect)
+                    || (suspect == selectedSuspect && pending < selectedPending)) {
+                selected = tunnel;
+                selectedSuspect = suspect;
+                selectedPending = pending;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * 给tunnel上的新stream分配id：v2直接用递增的序号（0留给ping），v1用8个十六进制字符表示，和原来的channel id格式一致
+     */
+    public long nextStreamId(Channel tunnel) {
+        int sequence = streamSequence.incrementAndGet() & Integer.MAX_VALUE;
+        if (sequence == 0) {
+            sequence = streamSequence.incrementAndGet() & Integer.MAX_VALUE;
+        }
+        TunnelOptions negotiated = tunnel.attr(TunnelOptions.KEY).get();
+        if (negotiated != null && negotiated.getVersion() >= TunnelProtocol.VERSION_2) {
+            return sequence;
+        }
+        return CommonUtil.newStreamId(sequence);
+    }
+
+    /**
+     * 第index个隧道的event loop
+     */
+    EventLoop tunnelLoop(int index) {
+        return tunnelLoops[index];
+    }
+
+    /**
+     * 第index个隧道当前的连接，断开时为null
+     */
+    Channel tunnel(int index) {
+        return tunnels.get(index);
+    }
+
+    /**
+     * 配置的服务端地址，按配置的顺序
+     */
+    List<ServerEndpoint> endpoints() {
+        return endpoints;
+    }
+
+    /**
+     * 加入stream所在隧道的表，不在隧道的event loop中时提交给它执行。
+     * 之后从其它线程写到隧道的报文也是提交给这个event loop的任务，排在加入之后，收到服务端的回复时一定能找到stream
+     */
+    public void putStream(TunnelStream stream) {
+        int index = indexOf(stream);
+        EventLoop loop = tunnelLoops[index];
+        if (loop.inEventLoop()) {
+            streamMaps.get(index).put(stream.getId(), stream);
+        } else {
+            loop.execute(() -> streamMaps.get(index).put(stream.getId(), stream));
+        }
+    }
+
+    /**
+     * 查找第index个隧道上的stream，在隧道的event loop中调用
+     */
+    public TunnelStream getStream(int index, long streamId) {
+        return streamMaps.get(index).get(streamId);
+    }
+
+    /**
+     * 移除第index个隧道上的stream，在隧道的event loop中调用
+     */
+    public TunnelStream removeStream(int index, long streamId) {
+        TunnelStream stream = streamMaps.get(index).remove(streamId);
+        if (stream != null) {
+            stream.removed();
+        }
+        return stream;
+    }
+
+    /**
+     * 本地连接一侧移除stream，提交给隧道的event loop执行，期间已经被移除的不再处理
+     */
+    public void removeStream(TunnelStream stream) {
+        int index = indexOf(stream);
+        EventLoop loop = tunnelLoops[index];
+        if (loop.inEventLoop()) {
+            removeIfPresent(index, stream);
+        } else {
+            loop.execute(() -> removeIfPresent(index, stream));
+        }
+    }
+
+    private void removeIfPresent(int index, TunnelStream stream) {
+        if (streamMaps.get(index).get(stream.getId()) == stream) {
+            removeStream(index, stream.getId());
+        }
+    }
+
+    /**
+     * 第index个隧道上的所有stream，在隧道的event loop中调用
+     */
+    public List<TunnelStream> streams(int index) {
+        return new ArrayList<>(streamMaps.get(index).values());
     }
 
-    public Map<String, Channel> getChannelMap() {
-        return channelMap;
+    /**
+     * stream所在隧道的位置，隧道握手成功后才会打开stream
+     */
+    private static int indexOf(TunnelStream stream) {
+        return stream.getTunnel().attr(TUNNEL_INDEX).get();
     }
 
     public static void main(String[] args) throws Exception {
@@ -108,16 +353,29 @@ public class TcpClient {
 
     public void startServer(int... ports) throws Exception {
         if (connectProxy()) {
-            worker.scheduleWithFixedDelay(this::sendPing, 50, 50, TimeUnit.SECONDS);
-            NioEventLoopGroup boss = new NioEventLoopGroup(ports.length);
+            worker.scheduleWithFixedDelay(this::sendPing, pingInterval, pingInterval, TimeUnit.MILLISECONDS);
+            if (options.isCompress()) {
+                worker.scheduleWithFixedDelay(() -> log.info(CompressionStats.summary()), 5, 5, TimeUnit.MINUTES);
+            }
+            ServerBootstrap serverBootstrap = transport.configure(new ServerBootstrap())
+                    .childHandler(getChannelInitializer());
+            //每个端口绑定acceptors次，由内核在多个accept线程之间分配新连接
+            int acceptors = Math.max(1, Integer.getInteger("proxy.acceptors", 1));
+            if (acceptors > 1 && !transport.reusePort(serverBootstrap)) {
+                log.warn("SO_REUSEPORT is not supported by {} transport, bind each port once.", transport.type());
+                acceptors = 1;
+            }
+            EventLoopGroup boss = transport.newEventLoopGroup(ports.length * acceptors);
+            serverBootstrap.group(boss, worker);
             List<ChannelFuture> futures = new ArrayList<>();
             try {
-                ServerBootstrap serverBootstrap = new ServerBootstrap().group(boss, worker)
-                        .channel(NioServerSocketChannel.class)
-                        .childHandler(getChannelInitializer());
                 for (int port : ports) {
-                    futures.add(serverBootstrap.bind(port).sync());
-                    log.info("service started successfully at port: {}.", port);
+                    for (int i = 0; i < acceptors; i++) {
+                        ChannelFuture bound = serverBootstrap.bind(port).sync();
+                        listeners.add(bound.channel());
+                        futures.add(bound);
+                    }
+                    log.info("service started successfully at port: {}, transport: {}, acceptors: {}.", port, transport, acceptors);
                 }
                 for (ChannelFuture channelFuture : futures) {
                     channelFuture.channel().closeFuture().sync();
@@ -131,6 +389,15 @@ public class TcpClient {
         }
     }
 
+    /**
+     * 关闭监听的端口，startServer随后关闭隧道和本地连接并返回
+     */
+    public void close() {
+        for (Channel listener : listeners) {
+            listener.close();
+        }
+    }
+
     protected ChannelInitializer<SocketChannel> getChannelInitializer() {
         return new ChannelInitializer<SocketChannel>() {
             @Override
@@ -141,16 +408,89 @@ public class TcpClient {
         };
     }
 
+    /**
+     * 启动时连接所有隧道，至少有一个连接成功就返回true，失败的隧道稍后重连
+     */
     public boolean connectProxy() {
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < tunnels.length(); i++) {
+            futures.add(connectTunnel(i));
+        }
+        boolean connected = false;
+        for (Future<Void> future : futures) {
+            connected |= future.awaitUninterruptibly().isSuccess();
+        }
+        if (!connected) {
+            log.info("connect to websocket server failed.");
+        }
+        return connected;
+    }
+
+    /**
+     * 连接第index个隧道，握手完成后加入隧道池；一个地址连接失败时马上换下一个可用的地址，都失败时稍后重连
+     */
+    public Future<Void> connectTunnel(int index) {
+        Promise<Void> promise = worker.next().newPromise();
+        connectTunnel(index, promise, endpoints.size());
+        promise.addListener(future -> {
+            if (!future.isSuccess()) {
+                long delay = reconnect(index);
+                log.info("connect to websocket server failed, tunnel: {}, reconnect after {} ms: {}", index, delay, future.cause().getMessage());
+            }
+        });
+        return promise;
+    }
+
+    private void connectTunnel(int index, Promise<Void> promise, int attempts) {
+        ServerEndpoint endpoint = selectEndpoint(index);
+        connectTunnel(index, endpoint).addListener(future -> {
+            if (future.isSuccess()) {
+                promise.setSuccess(null);
+                return;
+            }
+            endpoint.onFailure();
+            if (attempts > 1) {
+                log.info("connect to {} failed, tunnel: {}, try next server: {}", endpoint, index, future.cause().getMessage());
+                connectTunnel(index, promise, attempts - 1);
+            } else {
+                promise.setFailure(future.cause());
+            }
+        });
+    }
+
+    /**
+     * 重连时还在等待恢复的隧道优先连接原来的地址，否则选可用的、往返时间最短的地址
+     */
+    private ServerEndpoint selectEndpoint(int index) {
+        ServerEndpoint previous = tunnelEndpoints.get(index);
+        if (previous != null && sessionTokens.get(index) != null && previous.isHealthy()) {
+            return previous;
+        }
+        return ServerEndpoint.select(endpoints);
+    }
+
+    /**
+     * 连接endpoint上的第index个隧道。
+     * 服务端返回的会话标识和上次相同时，先发恢复报文，断开时留下的stream换到新的隧道上，否则关闭这些stream
+     */
+    private Future<Void> connectTunnel(int index, ServerEndpoint endpoint) {
+        Promise<Void> promise = worker.next().newPromise();
         try {
+            DefaultHttpHeaders headers = new DefaultHttpHeaders();
+            options.toHeaders(headers::set);
+            if (resumeGrace > 0) {
+                //会话只在原来的服务端上恢复
+                String token = endpoint == tunnelEndpoints.get(index) ? sessionTokens.get(index) : null;
+                headers.set(TunnelOptions.SESSION_HEADER, token == null ? TunnelOptions.NEW_SESSION : token);
+            }
             WebSocketClientHandshaker handShaker = WebSocketClientHandshakerFactory.newHandshaker(
-                    new URI("ws://" + proxyHost + ":" + proxyPort + "/temp/ws"),
-                    WebSocketVersion.V13, null, true, new DefaultHttpHeaders(), 1024 * 1024);
+                    new URI("ws://" + endpoint.getHost() + ":" + endpoint.getPort() + "/temp/ws"),
+                    WebSocketVersion.V13, null, true, headers, 1024 * 1024);
 
-            WebSocketHandler clientHandler = new WebSocketHandler(handShaker, this);
-            Bootstrap bootstrap = new Bootstrap().group(worker)
-                    .channel(NioSocketChannel.class)
+            WebSocketHandler clientHandler = new WebSocketHandler(handShaker, this, index, endpoint, maxMissedPings);
+            Bootstrap bootstrap = transport.configure(new Bootstrap().group(tunnelLoops[index]))
                     .option(ChannelOption.SO_KEEPALIVE, true)
+                    .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeout)
                     .handler(new ChannelInitializer<SocketChannel>() {
                         protected void initChannel(SocketChannel socketChannel) {
                             ChannelPipeline p = socketChannel.pipeline();
@@ -159,25 +499,196 @@ public class TcpClient {
                             p.addLast(clientHandler);
                         }
                     });
-            ChannelFuture future = bootstrap.connect(proxyHost, proxyPort).sync();
-            if (future.isSuccess()) {
-                ChannelFuture future1 = clientHandler.handshakeFuture().sync();
-                if (future1.isSuccess()) {
-                    this.proxy = future.channel();
-                    log.info("connect to websocket server success.");
-                    return true;
+            bootstrap.connect(endpoint.getHost(), endpoint.getPort()).addListener((ChannelFutureListener) future -> {
+                if (!future.isSuccess()) {
+                    promise.setFailure(future.cause());
+                    return;
                 }
-            }
+                //tcp连上但是握手没有回复的服务端
+                ScheduledFuture<?> handshakeTimeout = future.channel().eventLoop().schedule(() -> {
+                    future.channel().close();
+                }, connectTimeout, TimeUnit.MILLISECONDS);
+                clientHandler.handshakeFuture().addListener(handshake -> {
+                    handshakeTimeout.cancel(false);
+                    if (handshake.isSuccess()) {
+                        Channel tunnel = future.channel();
+                        tunnel.attr(TUNNEL_INDEX).set(index);
+                        TunnelOptions negotiated = tunnel.attr(TunnelOptions.KEY).get();
+                        String token = negotiated.getSession();
+                        ServerEndpoint previousEndpoint = tunnelEndpoints.getAndSet(index, endpoint);
+                        String previous = sessionTokens.getAndSet(index, token);
+                        //断开期间的过期检查不再处理
+                        epochs.incrementAndGet(index);
+                        if (token != null && token.equals(previous) && previousEndpoint == endpoint) {
+                            sendResume(index, tunnel, negotiated);
+                        } else {
+                            closeDetached(index);
+                        }
+                        tunnels.set(index, tunnel);
+                        reconnectAttempts.set(index, 0);
+                        log.info("connect to websocket server success, tunnel: {}, server: {}, {}.", index, endpoint, negotiated);
+                        promise.setSuccess(null);
+                    } else {
+                        future.channel().close();
+                        promise.setFailure(handshake.cause());
+                    }
+                });
+            });
         } catch (Exception e) {
-            log.error(e.getMessage(), e);
+            promise.setFailure(e);
+        }
+        return promise;
+    }
+
+    /**
+     * 按失败次数计算间隔后重连，返回间隔的毫秒数
+     */
+    private long reconnect(int index) {
+        int attempts = reconnectAttempts.getAndIncrement(index);
+        long delay = Math.min(reconnectMax, reconnectMin << Math.min(attempts, 20));
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        worker.schedule(() -> connectTunnel(index), delay, TimeUnit.MILLISECONDS);
+        return delay;
+    }
+
+    /**
+     * 隧道断开后重连。可以恢复的隧道保留上面的stream，超过等待时间没有恢复再关闭；否则关闭在这个隧道上的本地连接
+     */
+    public void tunnelClosed(int index, Channel tunnel) {
+        if (!tunnels.compareAndSet(index, tunnel, null)) {
+            return;
+        }
+        TunnelOptions negotiated = tunnel.attr(TunnelOptions.KEY).get();
+        if (negotiated != null && negotiated.getSession() != null) {
+            int epoch = epochs.incrementAndGet(index);
+            tunnelLoops[index].schedule(() -> {
+                if (epochs.get(index) == epoch) {
+                    sessionTokens.set(index, null);
+                    closeDetached(index);
+                }
+            }, resumeGrace, TimeUnit.SECONDS);
+            log.info("disconnected from proxy, tunnel: {}, keep streams for {} seconds.", index, resumeGrace);
+        } else {
+            for (TunnelStream stream : streams(index)) {
+                if (stream.getTunnel() == tunnel) {
+                    removeStream(index, stream.getId());
+                    stream.onClose();
+                }
+            }
+            log.info("disconnected from proxy, tunnel: {}.", index);
         }
-        log.info("connect to websocket server failed.");
-        return false;
+        reconnect(index);
     }
 
+    /**
+     * 第index个隧道断开后留下的stream
+     */
+    private List<TunnelStream> detachedStreams(int index) {
+        List<TunnelStream> detached = new ArrayList<>();
+        for (TunnelStream stream : streams(index)) {
+            if (!stream.getTunnel().isActive()) {
+                detached.add(stream);
+            }
+        }
+        return detached;
+    }
+
+    /**
+     * 会话不能恢复，关闭断开时留下的stream
+     */
+    private void closeDetached(int index) {
+        for (TunnelStream stream : detachedStreams(index)) {
+            removeStream(index, stream.getId());
+            stream.onClose();
+        }
+    }
+
+    /**
+     * 在新隧道上发出恢复报文，带上每个留下的stream已经收到的字节数，在新隧道的event loop中调用
+     */
+    private void sendResume(int index, Channel tunnel, TunnelOptions negotiated) {
+        List<TunnelStream> detached = detachedStreams(index);
+        long[] received = new long[detached.size() * 2];
+        for (int i = 0; i < detached.size(); i++) {
+            received[2 * i] = detached.get(i).getId();
+            received[2 * i + 1] = detached.get(i).markResume();
+        }
+        tunnel.writeAndFlush(negotiated.codec().resume(tunnel.alloc(), received));
+    }
+
+    /**
+     * 收到服务端的恢复报文：服务端保留的stream从它收到的位置重发，服务端没有的stream按异常断开处理，
+     * 客户端已经没有的stream通知服务端关闭。在新隧道的event loop中调用
+     */
+    public void resumed(int index, Channel tunnel, LongObjectMap<Long> received) {
+        int resumed = 0;
+        for (TunnelStream stream : detachedStreams(index)) {
+            Long offset = received.remove(stream.getId());
+            if (offset == null) {
+                removeStream(index, stream.getId());
+                stream.onReset();
+                continue;
+            }
+            resumed++;
+            stream.getChannel().eventLoop().execute(() -> {
+                if (!stream.resume(tunnel, offset)) {
+                    removeStream(stream);
+                    stream.onReset();
+                }
+            });
+        }
+        RecordCodec codec = tunnel.attr(TunnelOptions.KEY).get().codec();
+        for (long streamId : received.keySet()) {
+            tunnel.write(codec.close(tunnel.alloc(), streamId));
+        }
+        tunnel.flush();
+        log.info("tunnel {} resumed, streams: {}, closed: {}.", index, resumed, received.size());
+    }
+
+    /**
+     * 每个隧道在自己的event loop中发送ping并检查没有回复的次数，见{@link WebSocketHandler#ping}；
+     * 有多个服务端地址时再探测没有隧道的地址
+     */
     private void sendPing() {
-        if (proxy != null && proxy.isActive()) {
-            proxy.writeAndFlush(new PingWebSocketFrame());
+        List<ServerEndpoint> used = new ArrayList<>();
+        for (int i = 0; i < tunnels.length(); i++) {
+            Channel tunnel = tunnels.get(i);
+            if (tunnel != null && tunnel.isActive()) {
+                WebSocketHandler handler = tunnel.pipeline().get(WebSocketHandler.class);
+                if (handler != null) {
+                    tunnel.eventLoop().execute(handler::ping);
+                }
+                used.add(tunnelEndpoints.get(i));
+            }
         }
+        long now = System.nanoTime();
+        if (endpoints.size() > 1 && probeInterval > 0 && now - lastProbe >= probeInterval) {
+            lastProbe = now;
+            for (ServerEndpoint endpoint : endpoints) {
+                if (!used.contains(endpoint)) {
+                    probe(endpoint);
+                }
+            }
+        }
+    }
+
+    /**
+     * 用tcp连接时间估计没有隧道的地址的往返时间，连接成功后马上关闭；连接失败的地址暂时不选择
+     */
+    private void probe(ServerEndpoint endpoint) {
+        long start = System.nanoTime();
+        transport.configure(new Bootstrap().group(worker))
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeout)
+                .handler(new ChannelInboundHandlerAdapter())
+                .connect(endpoint.getHost(), endpoint.getPort())
+                .addListener((ChannelFutureListener) future -> {
+                    if (future.isSuccess()) {
+                        endpoint.onRtt(System.nanoTime() - start);
+                        future.channel().close();
+                    } else {
+                        endpoint.onFailure();
+                        log.debug("probe {} failed: {}", endpoint, future.cause().getMessage());
+                    }
+                });
     }
 }
@@ -0,0 +1,430 @@
+package com.proxy;
+
+import com.proxy.common.FairScheduler;
+import com.proxy.common.RecordCodec;
+import com.proxy.common.RecordCompressor;
+import com.proxy.common.ReplayBuffer;
+import com.proxy.common.TunnelOptions;
+import com.proxy.common.TunnelProtocol;
+import com.proxy.common.XorCodec;
+import com.proxy.handler.TunnelRecordEncoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+
+/**
+ * 一个本地连接在隧道中对应的stream，报文以ByteBuf写入隧道，由{@link TunnelRecordEncoder}编码成websocket消息
+ * <p>
+ * 协商了流控窗口时，每发送一个字节消耗一个字节的窗口，窗口用完或者隧道不可写时暂停读取本地连接；
+ * 收到的数据写入本地连接后才归还窗口，本地连接读得慢时服务端也会停止读取目标服务。
+ * 窗口和读取状态只在本地连接的event loop中修改。
+ * <p>
+ * 打开、数据和关闭报文按这个stream的发送队列写入隧道，由{@link TunnelRecordEncoder}在多个stream之间轮流发送，
+ * 队列里排队的字节数超过上限时也暂停读取。
+ * <p>
+ * 隧道协商了可以恢复的会话时，发出的数据同时保存在重发缓冲区里，服务端的窗口更新确认后释放。隧道断开后stream保留，
+ * 重连恢复后换到新的隧道上，从服务端收到的位置重发；本地连接关闭后等服务端回复关闭报文再移除。
+ */
+public class TunnelStream {
+
+    private final long id;
+
+    /**
+     * 本地连接，http代理复用的stream每个请求换一次，见{@link HttpTunnelStream}
+     */
+    private Channel channel;
+
+    /**
+     * 所在的隧道，会话恢复后换成新的隧道
+     */
+    private volatile Channel tunnel;
+
+    private final int window;
+
+    /**
+     * 一个报文不能超过服务端的消息长度限制
+     */
+    private final int maxMessageSize;
+
+    /**
+     * 没有协商压缩时为null
+     */
+    private final RecordCompressor compressor;
+
+    /**
+     * 隧道协商的版本对应的报文编码
+     */
+    private final RecordCodec codec;
+
+    /**
+     * 这个stream在隧道调度器中的发送队列，打开时按目标端口创建
+     */
+    private FairScheduler.Flow flow;
+
+    /**
+     * 目标服务的端口，按端口确定调度的权重
+     */
+    private int port;
+
+    /**
+     * 隧道不能恢复时为null
+     */
+    private final ReplayBuffer replay;
+
+    /**
+     * 从服务端收到的数据字节数，在隧道的event loop中更新，恢复时在新隧道的event loop中读取
+     */
+    private volatile long received;
+
+    /**
+     * 恢复报文里报告给服务端的位置，服务端按这个位置重新计算窗口
+     */
+    private volatile long reportedReceived;
+
+    private long consumedTotal;
+
+    /**
+     * 本地连接已经关闭，等服务端的关闭报文
+     */
+    private volatile boolean closing;
+
+    /**
+     * 服务端已经关闭了这个stream
+     */
+    private volatile boolean peerClosed;
+
+    /**
+     * 延迟发出的打开报文的目标地址，见{@link #openLater}
+     */
+    private String openHost;
+
+    private int openPort;
+
+    private int sendWindow;
+
+    /**
+     * 写入本地连接、还没有归还给服务端的字节数，恢复后可能为负数
+     */
+    private int consumed;
+
+    public TunnelStream(long id, Channel channel, Channel tunnel) {
+        this.id = id;
+        this.channel = channel;
+        this.tunnel = tunnel;
+        TunnelOptions options = tunnel.attr(TunnelOptions.KEY).get();
+        this.window = options == null ? 0 : options.getWindow();
+        this.maxMessageSize = options == null ? TunnelProtocol.DEFAULT_MAX_MESSAGE_SIZE : options.messageSizeLimit();
+        this.compressor = options == null ? null : options.newCompressor();
+        this.codec = options == null ? RecordCodec.V1 : options.codec();
+        this.sendWindow = window;
+        this.replay = options == null || options.getSession() == null ? null : new ReplayBuffer(tunnel.alloc());
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public Channel getChannel() {
+        return channel;
+    }
+
+    protected void setChannel(Channel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * 是否还可以接收服务端的数据，不可以时隧道收到这个stream的数据后移除stream
+     */
+    public boolean isActive() {
+        return channel.isActive();
+    }
+
+    public Channel getTunnel() {
+        return tunnel;
+    }
+
+    /**
+     * 隧道可用，或者隧道断开后等待恢复
+     */
+    public boolean isAttached() {
+        return tunnel.isActive() || replay != null;
+    }
+
+    /**
+     * 通知服务端连接目标服务
+     */
+    public void open(String host, int port) {
+        newFlow(port);
+        send(codec.open(tunnel.alloc(), id, host, port));
+        tunnel.flush();
+    }
+
+    /**
+     * 通知服务端连接目标服务，第一段数据放在打开报文里，服务端连接成功后立即写入，在本地连接的event loop中调用。
+     * v1不支持时分成两个报文发送；数据超过一个报文的部分按普通数据发送
+     */
+    public void open(String host, int port, ByteBuf in) {
+        int first = Math.min(in.readableBytes(),
+                maxMessageSize - TunnelProtocol.HEADER_LENGTH - 3 - ByteBufUtil.utf8Bytes(host));
+        if (!codec.openCarriesData() || first <= 0) {
+            open(host, port);
+            if (in.isReadable()) {
+                write(in);
+            }
+            return;
+        }
+        newFlow(port);
+        sendWindow -= first;
+        ByteBuf data = in.readSlice(first);
+        if (replay != null) {
+            replay.append(data);
+        }
+        send(codec.open(tunnel.alloc(), id, host, port, data));
+        if (in.isReadable()) {
+            write(in);
+        } else {
+            tunnel.flush();
+            updateAutoRead();
+        }
+    }
+
+    /**
+     * 先记下目标地址，本地连接已经有数据时第一次{@link #write}和数据一起发出；
+     * 到调用{@link #flushOpen}时还没有数据（比如服务端先发数据的协议）单独发出。v1直接发出
+     */
+    public void openLater(String host, int port) {
+        if (!codec.openCarriesData()) {
+            open(host, port);
+            return;
+        }
+        openHost = host;
+        openPort = port;
+    }
+
+    /**
+     * 发出还没有发出的打开报文
+     */
+    public void flushOpen() {
+        if (openHost != null) {
+            String host = openHost;
+            openHost = null;
+            open(host, openPort);
+        }
+    }
+
+    /**
+     * 把本地连接读到的数据发给服务端，在本地连接的event loop中调用
+     */
+    public void write(ByteBuf in) {
+        if (openHost != null) {
+            String host = openHost;
+            openHost = null;
+            open(host, openPort, in);
+            return;
+        }
+        sendWindow -= in.readableBytes();
+        int writeSize = maxMessageSize - TunnelProtocol.HEADER_LENGTH;
+        while (in.readableBytes() > writeSize) {
+            writeRecord(in.readSlice(writeSize));
+        }
+        writeRecord(in.readSlice(in.readableBytes()));
+        tunnel.flush();
+        updateAutoRead();
+    }
+
+    private void writeRecord(ByteBuf data) {
+        if (replay != null) {
+            replay.append(data);
+        }
+        ByteBuf record = compressor == null ? null : compressor.encode(tunnel.alloc(), codec, id, data);
+        if (record == null) {
+            record = codec.data(tunnel.alloc(), id, data);
+        }
+        send(record);
+    }
+
+    private void newFlow(int port) {
+        if (flow != null) {
+            return;
+        }
+        this.port = port;
+        TunnelRecordEncoder encoder = tunnel.pipeline().get(TunnelRecordEncoder.class);
+        if (encoder != null) {
+            flow = encoder.newFlow(port, () -> channel.eventLoop().execute(this::updateAutoRead));
+        }
+    }
+
+    /**
+     * 按这个stream的发送队列写入隧道，没有调度器时（隧道已经关闭）直接写入
+     */
+    private void send(ByteBuf record) {
+        if (replay != null && !tunnel.isActive()) {
+            //等待恢复，数据在重发缓冲区里
+            record.release();
+            return;
+        }
+        tunnel.write(flow == null ? record : new TunnelRecordEncoder.StreamRecord(flow, record), tunnel.voidPromise());
+    }
+
+    /**
+     * 本地连接关闭，通知服务端。返回true表示stream要等服务端回复关闭报文后再移除，否则由调用方移除
+     */
+    public boolean close() {
+        if (openHost != null) {
+            //服务端还不知道这个stream
+            openHost = null;
+            return false;
+        }
+        if (replay != null) {
+            if (peerClosed) {
+                return false;
+            }
+            closing = true;
+        }
+        if (tunnel.isActive()) {
+            //排在这个stream已经排队的数据后面
+            send(codec.close(tunnel.alloc(), id));
+            tunnel.flush();
+        }
+        return closing;
+    }
+
+    /**
+     * 本地连接已经关闭，等服务端回复关闭报文
+     */
+    public boolean isClosing() {
+        return closing;
+    }
+
+    /**
+     * 可以恢复的隧道上收到服务端的关闭报文，回复关闭报文后服务端才移除这个stream，在隧道的event loop中调用
+     */
+    public void acknowledgeClose() {
+        Channel t = tunnel;
+        if (replay != null && !peerClosed) {
+            peerClosed = true;
+            t.writeAndFlush(codec.close(t.alloc(), id));
+        }
+    }
+
+    /**
+     * 恢复报文里报告收到的位置，在新隧道的event loop中调用
+     */
+    public long markResume() {
+        long offset = received;
+        reportedReceived = offset;
+        return offset;
+    }
+
+    /**
+     * 会话恢复，换到新的隧道上：服务端已经收到offset之前的数据，重发之后的数据，本地连接已经关闭时再发关闭报文。
+     * 在本地连接的event loop中调用，重发缓冲区里已经没有这些数据时返回false
+     */
+    public boolean resume(Channel tunnel, long offset) {
+        if (!replay.canReplay(offset)) {
+            return false;
+        }
+        this.tunnel = tunnel;
+        flow = null;
+        if (port > 0) {
+            newFlow(port);
+        }
+        //服务端按报告的位置重新计算了窗口
+        consumed = (int) (consumedTotal - reportedReceived);
+        replay.ack(offset);
+        sendWindow = (int) (window - replay.size());
+        int writeSize = maxMessageSize - TunnelProtocol.HEADER_LENGTH;
+        replay.forEach(writeSize, data -> send(codec.data(tunnel.alloc(), id, data)));
+        if (closing) {
+            send(codec.close(tunnel.alloc(), id));
+        }
+        tunnel.flush();
+        updateAutoRead();
+        return true;
+    }
+
+    /**
+     * stream从{@link TcpClient}中移除后释放重发缓冲区
+     */
+    public void removed() {
+        if (replay != null) {
+            channel.eventLoop().execute(replay::release);
+        }
+    }
+
+    /**
+     * 收到服务端的数据，在隧道的event loop中调用，data的引用计数由调用方释放
+     */
+    public void onData(ByteBuf data, boolean compressed) {
+        XorCodec.xor(data, XorCodec.getSeed(id));
+        ByteBuf out = compressed ? RecordCompressor.decode(channel.alloc(), data) : data.retain();
+        received += out.readableBytes();
+        deliver(out);
+    }
+
+    /**
+     * 把服务端的数据写入本地连接，写完后归还窗口，调用后out的所有权转移
+     */
+    protected void deliver(ByteBuf out) {
+        deliver(out, out.readableBytes());
+    }
+
+    /**
+     * 写入本地连接的数据和服务端发来的不同时（比如缓存的响应代替304），按收到的字节数credit归还窗口
+     */
+    protected final void deliver(ByteBuf out, int credit) {
+        if (window == 0) {
+            channel.writeAndFlush(out);
+            return;
+        }
+        channel.writeAndFlush(out).addListener(future -> {
+            if (future.isSuccess()) {
+                consumed(credit);
+            }
+        });
+    }
+
+    /**
+     * 目标服务关闭了连接
+     */
+    public void onClose() {
+        channel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    /**
+     * 目标服务连接失败或者异常断开，直接关闭本地连接
+     */
+    public void onReset() {
+        channel.close();
+    }
+
+    public void onWindowUpdate(int increment) {
+        channel.eventLoop().execute(() -> {
+            sendWindow += increment;
+            if (replay != null) {
+                replay.ack(replay.start() + increment);
+            }
+            updateAutoRead();
+        });
+    }
+
+    /**
+     * 根据隧道的可写状态、排队的字节数和剩余窗口决定是否读取本地连接，在本地连接的event loop中调用
+     */
+    public void updateAutoRead() {
+        channel.config().setAutoRead(tunnel.isWritable() && (flow == null || flow.isWritable())
+                && (window == 0 || sendWindow > 0));
+    }
+
+    private void consumed(int bytes) {
+        consumedTotal += bytes;
+        consumed += bytes;
+        //攒够半个窗口再归还，减少窗口更新报文
+        if (consumed >= window / 2 && tunnel.isActive()) {
+            tunnel.writeAndFlush(codec.windowUpdate(tunnel.alloc(), id, consumed));
+            consumed = 0;
+        }
+    }
+}
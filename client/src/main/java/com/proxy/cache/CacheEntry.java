@@ -0,0 +1,98 @@
+package com.proxy.cache;
+
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * 缓存的一个响应，data是响应头（去掉结尾的空行和逐跳的头）加上原样的body，发给客户端时再补上Age头和空行。
+ * <p>
+ * 内容不变，304重新验证后用新的有效期生成新的entry。写入磁盘后内存中只保留没有data的entry。
+ */
+final class CacheEntry {
+
+    final String key;
+
+    /**
+     * 在内存中时是完整的响应，在磁盘上时为null
+     */
+    final byte[] data;
+
+    final int length;
+
+    /**
+     * data中响应头的长度
+     */
+    final int headLength;
+
+    /**
+     * 响应Vary指定的请求头和存储时请求中的值
+     */
+    final String[] varyNames;
+
+    final String[] varyValues;
+
+    final String etag;
+
+    final String lastModified;
+
+    /**
+     * 存储时的本地时间，存储时响应已经存在的时间，有效期，都是毫秒
+     */
+    final long storedAt;
+
+    final long initialAge;
+
+    final long lifetime;
+
+    CacheEntry(String key, byte[] data, int length, int headLength, String[] varyNames, String[] varyValues,
+               String etag, String lastModified, long storedAt, long initialAge, long lifetime) {
+        this.key = key;
+        this.data = data;
+        this.length = length;
+        this.headLength = headLength;
+        this.varyNames = varyNames;
+        this.varyValues = varyValues;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.storedAt = storedAt;
+        this.initialAge = initialAge;
+        this.lifetime = lifetime;
+    }
+
+    CacheEntry withData(byte[] data) {
+        return new CacheEntry(key, data, length, headLength, varyNames, varyValues, etag, lastModified,
+                storedAt, initialAge, lifetime);
+    }
+
+    /**
+     * 重新验证后的entry，内容不变
+     */
+    CacheEntry revalidated(String etag, long now, long initialAge, long lifetime) {
+        return new CacheEntry(key, data, length, headLength, varyNames, varyValues,
+                etag == null ? this.etag : etag, lastModified, now, initialAge, lifetime);
+    }
+
+    long age(long now) {
+        return initialAge + Math.max(0, now - storedAt);
+    }
+
+    boolean isFresh(long now) {
+        return age(now) < lifetime;
+    }
+
+    boolean hasValidator() {
+        return etag != null || lastModified != null;
+    }
+
+    /**
+     * 请求中Vary指定的头和存储时相同
+     */
+    boolean matches(Map<String, String> requestHeaders) {
+        for (int i = 0; i < varyNames.length; i++) {
+            if (!Objects.equals(varyValues[i], requestHeaders.get(varyNames[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,252 @@
+package com.proxy.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * 一个可以使用缓存的请求，由{@link HttpCache#lookup}创建。
+ * <p>
+ * 有效的缓存用{@link #response()}直接返回；否则请求转发给目标服务，过期的缓存有验证器时请求头加上条件，
+ * 响应头和body经过这里时判断是否可以缓存并复制一份，响应结束时存入缓存。在本地连接的event loop中使用。
+ */
+public class CacheExchange {
+
+    /**
+     * 不缓存的逐跳头，Age在返回时重新计算
+     */
+    private static final String[] HOP_BY_HOP = {"connection", "keep-alive", "proxy-connection", "proxy-authenticate",
+            "te", "trailer", "upgrade", "age"};
+
+    private final HttpCache cache;
+
+    private final String key;
+
+    private final Map<String, String> requestHeaders;
+
+    private final boolean keepAlive;
+
+    /**
+     * 命中或者需要重新验证的缓存，没有时为null
+     */
+    private final CacheEntry entry;
+
+    private final boolean fresh;
+
+    /**
+     * 正在复制的响应，不缓存时为null
+     */
+    private byte[] data;
+
+    private int size;
+
+    private int headLength;
+
+    private String[] varyNames;
+
+    private String[] varyValues;
+
+    private String etag;
+
+    private String lastModified;
+
+    private long responseTime;
+
+    private long initialAge;
+
+    private long lifetime;
+
+    CacheExchange(HttpCache cache, String key, Map<String, String> requestHeaders, boolean keepAlive,
+                  CacheEntry entry, boolean fresh) {
+        this.cache = cache;
+        this.key = key;
+        this.requestHeaders = requestHeaders;
+        this.keepAlive = keepAlive;
+        this.entry = entry;
+        this.fresh = fresh;
+    }
+
+    /**
+     * 缓存在有效期内，用{@link #response()}直接返回
+     */
+    public boolean isFresh() {
+        return fresh;
+    }
+
+    /**
+     * 发出的是条件请求，304时用{@link #notModified}返回缓存的响应
+     */
+    public boolean isRevalidation() {
+        return entry != null && !fresh;
+    }
+
+    /**
+     * 命中的缓存，加上Age头
+     */
+    public ByteBuf response() {
+        return response(entry);
+    }
+
+    private ByteBuf response(CacheEntry e) {
+        StringBuilder extra = new StringBuilder(48)
+                .append("Age: ").append(e.age(System.currentTimeMillis()) / 1000).append("\r\n");
+        if (!keepAlive) {
+            extra.append("Connection: close\r\n");
+        }
+        extra.append("\r\n");
+        return Unpooled.wrappedBuffer(Unpooled.wrappedBuffer(e.data, 0, e.headLength),
+                Unpooled.wrappedBuffer(extra.toString().getBytes(StandardCharsets.ISO_8859_1)),
+                Unpooled.wrappedBuffer(e.data, e.headLength, e.length - e.headLength));
+    }
+
+    /**
+     * 发给目标服务的请求头，重新验证时加上If-None-Match和If-Modified-Since，否则原样返回
+     */
+    public ByteBuf request(ByteBuf head) {
+        if (!isRevalidation()) {
+            return head;
+        }
+        int length = head.readableBytes();
+        //去掉结尾的空行
+        int end = length - (head.getByte(head.readerIndex() + length - 2) == '\r' ? 2 : 1);
+        StringBuilder conditions = new StringBuilder();
+        if (entry.etag != null) {
+            conditions.append("If-None-Match: ").append(entry.etag).append("\r\n");
+        }
+        if (entry.lastModified != null) {
+            conditions.append("If-Modified-Since: ").append(entry.lastModified).append("\r\n");
+        }
+        conditions.append("\r\n");
+        byte[] extra = conditions.toString().getBytes(StandardCharsets.ISO_8859_1);
+        byte[] request = new byte[end + extra.length];
+        head.getBytes(head.readerIndex(), request, 0, end);
+        System.arraycopy(extra, 0, request, end, extra.length);
+        return Unpooled.wrappedBuffer(request);
+    }
+
+    /**
+     * 重新验证的响应是304，更新有效期后返回缓存的响应
+     */
+    public ByteBuf notModified(ByteBuf head) {
+        long now = System.currentTimeMillis();
+        Map<String, String> headers = CachePolicy.headers(CachePolicy.lines(head));
+        long lifetime = entry.lifetime;
+        if (headers.containsKey("cache-control") || headers.containsKey("expires")) {
+            lifetime = CachePolicy.lifetime(headers, CachePolicy.directives(headers.get("cache-control")), now);
+        }
+        CacheEntry revalidated = entry.revalidated(headers.get("etag"), now, CachePolicy.age(headers, now), lifetime);
+        cache.put(revalidated);
+        cache.notModified(Math.max(0, entry.length - head.readableBytes()));
+        return response(revalidated);
+    }
+
+    /**
+     * 收到响应头，framed表示响应有Content-Length或者chunked，判断是否可以缓存
+     */
+    public void head(int status, ByteBuf head, long contentLength, boolean framed) {
+        if (status != 200 || !framed || contentLength > cache.maxEntrySize()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        String[] lines = CachePolicy.lines(head);
+        Map<String, String> headers = CachePolicy.headers(lines);
+        Map<String, String> cacheControl = CachePolicy.directives(headers.get("cache-control"));
+        String vary = headers.get("vary");
+        if (cacheControl.containsKey("no-store") || cacheControl.containsKey("private")
+                || headers.containsKey("set-cookie") || vary != null && vary.contains("*")) {
+            return;
+        }
+        etag = headers.get("etag");
+        lastModified = headers.get("last-modified");
+        lifetime = CachePolicy.lifetime(headers, cacheControl, now);
+        if (lifetime <= 0 && etag == null && lastModified == null) {
+            return;
+        }
+        responseTime = now;
+        initialAge = CachePolicy.age(headers, now);
+        varyNames = vary == null ? new String[0] : vary.toLowerCase().split("\\s*,\\s*");
+        varyValues = new String[varyNames.length];
+        for (int i = 0; i < varyNames.length; i++) {
+            varyValues[i] = requestHeaders.get(varyNames[i]);
+        }
+        byte[] storedHead = storedHead(lines, headers.get("connection"));
+        headLength = storedHead.length;
+        data = new byte[(int) Math.min(cache.maxEntrySize(), headLength + Math.max(contentLength, 8192))];
+        append(storedHead, storedHead.length);
+    }
+
+    /**
+     * 去掉逐跳的头和Connection里列出的头，每行以CRLF结尾，不包括最后的空行
+     */
+    private static byte[] storedHead(String[] lines, String connection) {
+        String[] connectionHeaders = connection == null ? new String[0] : connection.toLowerCase().split("\\s*,\\s*");
+        StringBuilder sb = new StringBuilder(lines[0]).append("\r\n");
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            String name = colon <= 0 ? "" : lines[i].substring(0, colon).trim().toLowerCase();
+            if (!name.isEmpty() && !contains(HOP_BY_HOP, name) && !contains(connectionHeaders, name)) {
+                sb.append(lines[i]).append("\r\n");
+            }
+        }
+        return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean contains(String[] names, String name) {
+        for (String n : names) {
+            if (n.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 复制一段body，不改变读写位置，超过单个响应的大小限制后放弃缓存
+     */
+    public void body(ByteBuf buf) {
+        if (data == null) {
+            return;
+        }
+        int length = buf.readableBytes();
+        if (!ensureCapacity(length)) {
+            return;
+        }
+        buf.getBytes(buf.readerIndex(), data, size, length);
+        size += length;
+    }
+
+    private void append(byte[] bytes, int length) {
+        if (ensureCapacity(length)) {
+            System.arraycopy(bytes, 0, data, size, length);
+            size += length;
+        }
+    }
+
+    private boolean ensureCapacity(int length) {
+        long required = (long) size + length;
+        if (required > cache.maxEntrySize()) {
+            data = null;
+            return false;
+        }
+        if (required > data.length) {
+            data = Arrays.copyOf(data, (int) Math.min(cache.maxEntrySize(), Math.max(required, data.length * 2L)));
+        }
+        return true;
+    }
+
+    /**
+     * 响应完整结束，存入缓存
+     */
+    public void complete() {
+        if (data == null) {
+            return;
+        }
+        byte[] stored = size == data.length ? data : Arrays.copyOf(data, size);
+        data = null;
+        cache.store(new CacheEntry(key, stored, size, headLength, varyNames, varyValues, etag, lastModified,
+                responseTime, initialAge, lifetime));
+    }
+}
@@ -0,0 +1,135 @@
+package com.proxy.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.DateFormatter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存用到的请求头和响应头的解析，按RFC 9111计算响应的有效期。只在开启缓存时对GET请求和它的响应解析一次。
+ */
+final class CachePolicy {
+
+    /**
+     * 没有明确有效期时按Last-Modified估算，最多一天
+     */
+    private static final long MAX_HEURISTIC_LIFETIME = TimeUnit.DAYS.toMillis(1);
+
+    private CachePolicy() {
+    }
+
+    /**
+     * 按行拆分消息头，第一行是起始行，不包括结尾的空行
+     */
+    static String[] lines(ByteBuf head) {
+        String text = head.toString(StandardCharsets.ISO_8859_1);
+        return text.trim().split("\r?\n");
+    }
+
+    /**
+     * 头部名称转成小写，同名的头用逗号合并
+     */
+    static Map<String, String> headers(String[] lines) {
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = lines[i].substring(0, colon).trim().toLowerCase();
+            String value = lines[i].substring(colon + 1).trim();
+            headers.merge(name, value, (a, b) -> a + ", " + b);
+        }
+        return headers;
+    }
+
+    /**
+     * Cache-Control的指令，名称转成小写，值去掉引号，没有值的指令值为空字符串
+     */
+    static Map<String, String> directives(String value) {
+        if (value == null || value.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> directives = new HashMap<>();
+        for (String directive : value.split(",")) {
+            int eq = directive.indexOf('=');
+            String name = (eq < 0 ? directive : directive.substring(0, eq)).trim().toLowerCase();
+            String v = eq < 0 ? "" : directive.substring(eq + 1).trim();
+            if (v.length() >= 2 && v.charAt(0) == '"' && v.charAt(v.length() - 1) == '"') {
+                v = v.substring(1, v.length() - 1);
+            }
+            if (!name.isEmpty()) {
+                directives.put(name, v);
+            }
+        }
+        return directives;
+    }
+
+    /**
+     * 秒数，不合法时返回-1
+     */
+    static long seconds(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Math.max(-1, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * http日期的毫秒数，不合法时返回-1
+     */
+    static long date(String value) {
+        Date date = value == null ? null : DateFormatter.parseHttpDate(value);
+        return date == null ? -1 : date.getTime();
+    }
+
+    /**
+     * 共享缓存中响应的有效期（毫秒），按s-maxage、max-age、Expires的顺序，都没有时按Last-Modified估算，
+     * 无法确定时为0，只能重新验证后使用
+     */
+    static long lifetime(Map<String, String> headers, Map<String, String> cacheControl, long now) {
+        if (cacheControl.containsKey("no-cache")) {
+            return 0;
+        }
+        long maxAge = seconds(cacheControl.get("s-maxage"));
+        if (maxAge < 0) {
+            maxAge = seconds(cacheControl.get("max-age"));
+        }
+        if (maxAge >= 0) {
+            return TimeUnit.SECONDS.toMillis(maxAge);
+        }
+        long date = date(headers.get("date"));
+        if (date < 0) {
+            date = now;
+        }
+        if (headers.containsKey("expires")) {
+            //不合法的Expires表示已经过期
+            long expires = date(headers.get("expires"));
+            return Math.max(0, expires - date);
+        }
+        long lastModified = date(headers.get("last-modified"));
+        if (lastModified >= 0 && lastModified < date) {
+            return Math.min(MAX_HEURISTIC_LIFETIME, (date - lastModified) / 10);
+        }
+        return 0;
+    }
+
+    /**
+     * 响应收到时已经存在的时间（毫秒），取Age头和Date到现在的时间中较大的一个
+     */
+    static long age(Map<String, String> headers, long now) {
+        long age = Math.max(0, seconds(headers.get("age")));
+        long date = date(headers.get("date"));
+        long apparent = date < 0 ? 0 : Math.max(0, now - date);
+        return Math.max(apparent, TimeUnit.SECONDS.toMillis(age));
+    }
+}
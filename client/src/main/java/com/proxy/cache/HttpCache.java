@@ -0,0 +1,231 @@
+package com.proxy.cache;
+
+import io.netty.buffer.ByteBuf;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * http代理的共享响应缓存，只缓存HTTP/1.1的GET请求的200响应。
+ * <p>
+ * 按Cache-Control、Expires和Last-Modified计算有效期，有效期内的响应直接在本地返回，不打开stream；
+ * 过期的响应有ETag或者Last-Modified时发条件请求，304时返回缓存的响应。
+ * 内存中按最近使用淘汰，淘汰的响应写入内存映射的磁盘文件，见{@link MappedCacheStore}。
+ * 所有event loop共用一个缓存，读写加锁，锁内只做查找和内存复制。
+ */
+public class HttpCache {
+
+    private static final Logger log = LoggerFactory.getLogger(HttpCache.class);
+
+    private final long memoryLimit;
+
+    private final int maxEntrySize;
+
+    private final LinkedHashMap<String, CacheEntry> memory = new LinkedHashMap<>(64, 0.75f, true);
+
+    private long memoryBytes;
+
+    /**
+     * 没有配置磁盘或者映射失败时为null
+     */
+    private final MappedCacheStore disk;
+
+    private final LongAdder lookups = new LongAdder();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder revalidated = new LongAdder();
+
+    private final LongAdder stored = new LongAdder();
+
+    private final LongAdder diskHits = new LongAdder();
+
+    private final LongAdder bytesSaved = new LongAdder();
+
+    private final LongAdder lookupNanos = new LongAdder();
+
+    /**
+     * @param memoryLimit  内存中缓存的最大字节数
+     * @param diskLimit    磁盘文件的大小，0表示只用内存
+     * @param maxEntrySize 一个响应的最大字节数，更大的不缓存
+     */
+    public HttpCache(long memoryLimit, int diskLimit, int maxEntrySize, File file) {
+        this.memoryLimit = memoryLimit;
+        this.maxEntrySize = (int) Math.min(maxEntrySize, memoryLimit);
+        MappedCacheStore store = null;
+        if (diskLimit > 0) {
+            try {
+                store = new MappedCacheStore(file, diskLimit);
+            } catch (IOException e) {
+                log.warn("can not map http cache file {}, use memory only.", file, e);
+            }
+        }
+        this.disk = store;
+        log.info("http cache enabled, memory: {}B, disk: {}B, max entry: {}B.", memoryLimit,
+                disk == null ? 0 : diskLimit, this.maxEntrySize);
+    }
+
+    /**
+     * 请求头解析完成后调用，请求不能使用缓存时返回null。非GET等会修改资源的请求使对应的缓存失效。
+     *
+     * @param head      完整的请求头
+     * @param hasBody   请求有body
+     * @param keepAlive 请求之后保持连接，决定本地返回的响应是否带Connection: close
+     */
+    public CacheExchange lookup(String host, int port, ByteBuf head, boolean hasBody, boolean keepAlive) {
+        long start = System.nanoTime();
+        String[] lines = CachePolicy.lines(head);
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3) {
+            return null;
+        }
+        String method = requestLine[0];
+        String key = host + ':' + port + path(requestLine[1]);
+        if (!"GET".equals(method)) {
+            if (!"HEAD".equals(method) && !"OPTIONS".equals(method) && !"TRACE".equals(method)) {
+                invalidate(key);
+            }
+            return null;
+        }
+        if (hasBody || !"HTTP/1.1".equals(requestLine[2])) {
+            return null;
+        }
+        Map<String, String> headers = CachePolicy.headers(lines);
+        //带认证、范围和客户端自己的条件请求直接转发
+        if (headers.containsKey("authorization") || headers.containsKey("range")
+                || headers.containsKey("if-none-match") || headers.containsKey("if-modified-since")
+                || headers.containsKey("if-match") || headers.containsKey("if-unmodified-since")
+                || headers.containsKey("if-range")) {
+            return null;
+        }
+        Map<String, String> cacheControl = CachePolicy.directives(headers.get("cache-control"));
+        if (cacheControl.containsKey("no-store")) {
+            return null;
+        }
+        boolean revalidate = cacheControl.containsKey("no-cache") || "0".equals(cacheControl.get("max-age"))
+                || !headers.containsKey("cache-control") && "no-cache".equalsIgnoreCase(headers.get("pragma"));
+        lookups.increment();
+        CacheEntry entry = get(key);
+        if (entry != null && !entry.matches(headers)) {
+            entry = null;
+        }
+        long now = System.currentTimeMillis();
+        boolean fresh = entry != null && !revalidate && entry.isFresh(now);
+        if (fresh) {
+            hits.increment();
+            bytesSaved.add(entry.length);
+        } else if (entry != null && !entry.hasValidator()) {
+            entry = null;
+        }
+        CacheExchange exchange = new CacheExchange(this, key, headers, keepAlive, entry, fresh);
+        lookupNanos.add(System.nanoTime() - start);
+        return exchange;
+    }
+
+    /**
+     * 绝对地址形式的请求行去掉scheme和host，只保留路径和参数
+     */
+    private static String path(String uri) {
+        int scheme = uri.indexOf("://");
+        if (scheme < 0) {
+            return uri;
+        }
+        int slash = uri.indexOf('/', scheme + 3);
+        return slash < 0 ? "/" : uri.substring(slash);
+    }
+
+    int maxEntrySize() {
+        return maxEntrySize;
+    }
+
+    void notModified(long bytes) {
+        revalidated.increment();
+        bytesSaved.add(bytes);
+    }
+
+    /**
+     * 从内存或者磁盘取出响应，磁盘上的读回内存
+     */
+    private synchronized CacheEntry get(String key) {
+        CacheEntry entry = memory.get(key);
+        if (entry == null && disk != null) {
+            entry = disk.take(key);
+            if (entry != null) {
+                diskHits.increment();
+                putMemory(entry);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * 存入新收到的响应
+     */
+    void store(CacheEntry entry) {
+        stored.increment();
+        put(entry);
+    }
+
+    /**
+     * 存入或者替换响应，磁盘上的旧版本移除
+     */
+    synchronized void put(CacheEntry entry) {
+        if (disk != null) {
+            disk.remove(entry.key);
+        }
+        putMemory(entry);
+    }
+
+    private synchronized void invalidate(String key) {
+        CacheEntry old = memory.remove(key);
+        if (old != null) {
+            memoryBytes -= old.length;
+        }
+        if (disk != null) {
+            disk.remove(key);
+        }
+    }
+
+    /**
+     * 放入内存，超过限制时淘汰最久没有使用的响应到磁盘
+     */
+    private void putMemory(CacheEntry entry) {
+        CacheEntry old = memory.put(entry.key, entry);
+        memoryBytes += entry.length - (old == null ? 0 : old.length);
+        Iterator<CacheEntry> it = memory.values().iterator();
+        while (memoryBytes > memoryLimit && it.hasNext()) {
+            CacheEntry eldest = it.next();
+            it.remove();
+            memoryBytes -= eldest.length;
+            if (disk != null) {
+                disk.put(eldest);
+            }
+        }
+    }
+
+    public String summary() {
+        long l = lookups.sum();
+        long h = hits.sum();
+        long r = revalidated.sum();
+        int memoryEntries;
+        long memoryUsed;
+        int diskEntries;
+        long diskUsed;
+        synchronized (this) {
+            memoryEntries = memory.size();
+            memoryUsed = memoryBytes;
+            diskEntries = disk == null ? 0 : disk.size();
+            diskUsed = disk == null ? 0 : disk.bytes();
+        }
+        return String.format("http cache lookups: %d, hits: %d (%.1f%%), revalidated: %d, disk hits: %d, stored: %d, "
+                        + "bytes saved: %d, avg lookup: %dns, memory: %d entries %dB, disk: %d entries %dB",
+                l, h, l == 0 ? 0.0 : h * 100.0 / l, r, diskHits.sum(), stored.sum(), bytesSaved.sum(),
+                l == 0 ? 0 : lookupNanos.sum() / l, memoryEntries, memoryUsed, diskEntries, diskUsed);
+    }
+}
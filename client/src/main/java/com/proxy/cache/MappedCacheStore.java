@@ -0,0 +1,133 @@
+package com.proxy.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 缓存的磁盘层，内存层淘汰的响应写入一个内存映射的文件。
+ * <p>
+ * 文件当作环形日志顺序写入，写到末尾后从头开始，被覆盖的响应按写入顺序淘汰；替换或者移除的响应不立即回收空间，
+ * 等写入位置转回来时再覆盖。索引只在内存中，启动时文件清空。调用方负责加锁。
+ */
+final class MappedCacheStore {
+
+    private static final class Slot {
+
+        final CacheEntry entry;
+
+        final int offset;
+
+        Slot(CacheEntry entry, int offset) {
+            this.entry = entry;
+            this.offset = offset;
+        }
+    }
+
+    private final MappedByteBuffer buffer;
+
+    private final int capacity;
+
+    private final Map<String, Slot> index = new HashMap<>();
+
+    /**
+     * 按写入顺序排列，包括已经被替换的
+     */
+    private final ArrayDeque<Slot> order = new ArrayDeque<>();
+
+    private int position;
+
+    private long bytes;
+
+    MappedCacheStore(File file, int capacity) throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can not create directory " + dir);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            raf.setLength(capacity);
+            //关闭文件后映射仍然有效
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+        file.deleteOnExit();
+        this.capacity = capacity;
+    }
+
+    int size() {
+        return index.size();
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    /**
+     * 写入一个有data的entry，比整个文件还大时返回false
+     */
+    boolean put(CacheEntry entry) {
+        int length = entry.length;
+        if (length > capacity) {
+            return false;
+        }
+        if (position + length > capacity) {
+            //文件末尾放不下，从头开始写，末尾剩下的旧响应一起淘汰
+            evict(position, capacity);
+            position = 0;
+        }
+        evict(position, position + length);
+        ByteBuffer b = buffer.duplicate();
+        b.position(position);
+        b.put(entry.data, 0, length);
+        Slot slot = new Slot(entry.withData(null), position);
+        remove(entry.key);
+        index.put(entry.key, slot);
+        order.addLast(slot);
+        bytes += length;
+        position += length;
+        return true;
+    }
+
+    /**
+     * 移除并读出一个响应，没有时返回null
+     */
+    CacheEntry take(String key) {
+        Slot slot = index.remove(key);
+        if (slot == null) {
+            return null;
+        }
+        bytes -= slot.entry.length;
+        byte[] data = new byte[slot.entry.length];
+        ByteBuffer b = buffer.duplicate();
+        b.position(slot.offset);
+        b.get(data);
+        return slot.entry.withData(data);
+    }
+
+    void remove(String key) {
+        Slot slot = index.remove(key);
+        if (slot != null) {
+            bytes -= slot.entry.length;
+        }
+    }
+
+    /**
+     * 淘汰起始位置在[from, to)中的最早写入的响应。上一圈写入的响应都在写入位置之后，这一圈的在之前，所以只看队列头部
+     */
+    private void evict(int from, int to) {
+        Slot head;
+        while ((head = order.peekFirst()) != null && head.offset >= from && head.offset < to) {
+            order.pollFirst();
+            if (index.get(head.entry.key) == head) {
+                index.remove(head.entry.key);
+                bytes -= head.entry.length;
+            }
+        }
+    }
+}
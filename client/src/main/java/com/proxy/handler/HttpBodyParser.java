@@ -0,0 +1,135 @@
+package com.proxy.handler;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * 找出http消息body的结束位置，按Content-Length或者chunked编码计算，body的内容原样转发不做修改
+ */
+public class HttpBodyParser {
+
+    private enum State {
+        LENGTH, CHUNK_SIZE, CHUNK_EXTENSION, CHUNK_DATA, CHUNK_DATA_END, TRAILER_START, TRAILER, COMPLETE, INVALID
+    }
+
+    private State state = State.COMPLETE;
+
+    /**
+     * 当前body或者chunk剩余的字节数
+     */
+    private long remaining;
+
+    /**
+     * 正在解析的chunk长度是否已经有数字
+     */
+    private boolean sizeDigits;
+
+    /**
+     * contentLength为-1并且不是chunked时没有body
+     */
+    public void reset(long contentLength, boolean chunked) {
+        remaining = 0;
+        sizeDigits = false;
+        if (chunked) {
+            state = State.CHUNK_SIZE;
+        } else if (contentLength > 0) {
+            state = State.LENGTH;
+            remaining = contentLength;
+        } else {
+            state = State.COMPLETE;
+        }
+    }
+
+    public boolean isComplete() {
+        return state == State.COMPLETE;
+    }
+
+    public boolean isInvalid() {
+        return state == State.INVALID;
+    }
+
+    /**
+     * 返回buf可读部分中属于body的字节数，不改变buf的读写位置，body结束后{@link #isComplete()}为true
+     */
+    public int consume(ByteBuf buf) {
+        int index = buf.readerIndex();
+        int limit = buf.writerIndex();
+        while (index < limit) {
+            switch (state) {
+                case LENGTH:
+                case CHUNK_DATA: {
+                    int n = (int) Math.min(remaining, limit - index);
+                    index += n;
+                    remaining -= n;
+                    if (remaining == 0) {
+                        state = state == State.LENGTH ? State.COMPLETE : State.CHUNK_DATA_END;
+                    }
+                    break;
+                }
+                case CHUNK_SIZE: {
+                    byte b = buf.getByte(index++);
+                    int digit = Character.digit(b, 16);
+                    if (digit >= 0) {
+                        if (remaining > Long.MAX_VALUE >> 4) {
+                            state = State.INVALID;
+                            return 0;
+                        }
+                        remaining = remaining << 4 | digit;
+                        sizeDigits = true;
+                    } else if (b == ';' || b == ' ' || b == '\t') {
+                        state = State.CHUNK_EXTENSION;
+                    } else if (b == '\n') {
+                        chunkSizeEnd();
+                    } else if (b != '\r') {
+                        state = State.INVALID;
+                        return 0;
+                    }
+                    break;
+                }
+                case CHUNK_EXTENSION:
+                    if (buf.getByte(index++) == '\n') {
+                        chunkSizeEnd();
+                    }
+                    break;
+                case CHUNK_DATA_END: {
+                    byte b = buf.getByte(index++);
+                    if (b == '\n') {
+                        state = State.CHUNK_SIZE;
+                    } else if (b != '\r') {
+                        state = State.INVALID;
+                        return 0;
+                    }
+                    break;
+                }
+                case TRAILER_START: {
+                    byte b = buf.getByte(index++);
+                    if (b == '\n') {
+                        state = State.COMPLETE;
+                    } else if (b != '\r') {
+                        state = State.TRAILER;
+                    }
+                    break;
+                }
+                case TRAILER:
+                    if (buf.getByte(index++) == '\n') {
+                        state = State.TRAILER_START;
+                    }
+                    break;
+                default:
+                    return index - buf.readerIndex();
+            }
+        }
+        return index - buf.readerIndex();
+    }
+
+    private void chunkSizeEnd() {
+        if (!sizeDigits) {
+            state = State.INVALID;
+        } else if (remaining == 0) {
+            //最后一个chunk，后面是trailer
+            state = State.TRAILER_START;
+        } else {
+            state = State.CHUNK_DATA;
+        }
+        sizeDigits = false;
+    }
+}
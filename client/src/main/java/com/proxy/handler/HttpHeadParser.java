@@ -0,0 +1,261 @@
+package com.proxy.handler;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpConstants;
+import io.netty.handler.codec.http.HttpObjectDecoder;
+import io.netty.util.ByteProcessor;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * http请求头和响应头的增量解析，只取出转发需要的信息：起始行由子类解析，请求头里只看决定消息边界和连接复用的几个。
+ * <p>
+ * 直接在ByteBuf上按行扫描，不生成每一行的字符串；数据不完整时记住已经扫描的位置，调用方把后续数据追加到同一个buffer
+ * （从同一个readerIndex开始）后再次调用，所以起始行和请求头可以在任意位置被拆开。解析不改变buffer的读写位置。
+ */
+public abstract class HttpHeadParser {
+
+    public enum State {
+        START_LINE, HEADERS, COMPLETE, INVALID
+    }
+
+    private static final byte[] CONTENT_LENGTH = "content-length".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] TRANSFER_ENCODING = "transfer-encoding".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] CONNECTION = "connection".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] CHUNKED = "chunked".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] CLOSE = "close".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] KEEP_ALIVE = "keep-alive".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] UPGRADE = "upgrade".getBytes(StandardCharsets.US_ASCII);
+
+    protected static final byte[] HTTP_1_0 = "HTTP/1.0".getBytes(StandardCharsets.US_ASCII);
+
+    protected State state = State.START_LINE;
+
+    /**
+     * 下一行开始的位置，相对于readerIndex
+     */
+    private int position;
+
+    /**
+     * 整个头部的长度，包括结尾的空行
+     */
+    private int headLength;
+
+    private long contentLength = -1;
+
+    private boolean chunked;
+
+    private boolean connectionClose;
+
+    private boolean connectionKeepAlive;
+
+    private boolean connectionUpgrade;
+
+    /**
+     * HTTP/1.0默认不保持连接
+     */
+    protected boolean http10;
+
+    public State state() {
+        return state;
+    }
+
+    public int headLength() {
+        return headLength;
+    }
+
+    /**
+     * 没有Content-Length时为-1
+     */
+    public long contentLength() {
+        return contentLength;
+    }
+
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    public boolean isUpgrade() {
+        return connectionUpgrade;
+    }
+
+    /**
+     * 这个消息之后连接是否继续使用
+     */
+    public boolean isKeepAlive() {
+        return !connectionClose && (!http10 || connectionKeepAlive);
+    }
+
+    /**
+     * 解析下一个消息前调用
+     */
+    public void reset() {
+        state = State.START_LINE;
+        position = 0;
+        headLength = 0;
+        contentLength = -1;
+        chunked = false;
+        connectionClose = false;
+        connectionKeepAlive = false;
+        connectionUpgrade = false;
+        http10 = false;
+    }
+
+    /**
+     * 从上一次停下的位置继续解析buf中可读的数据，头部结束时状态为COMPLETE
+     */
+    public State parse(ByteBuf buf) {
+        int base = buf.readerIndex();
+        int limit = buf.writerIndex();
+        while (state == State.START_LINE || state == State.HEADERS) {
+            int start = base + position;
+            int lf = start < limit ? buf.forEachByte(start, limit - start, ByteProcessor.FIND_LF) : -1;
+            if (lf < 0) {
+                //一行没有结束，检查已经收到的长度
+                if (limit - start > (state == State.START_LINE
+                        ? HttpObjectDecoder.DEFAULT_MAX_INITIAL_LINE_LENGTH : HttpObjectDecoder.DEFAULT_MAX_HEADER_SIZE)) {
+                    state = State.INVALID;
+                }
+                break;
+            }
+            position = lf + 1 - base;
+            if (position > HttpObjectDecoder.DEFAULT_MAX_INITIAL_LINE_LENGTH + HttpObjectDecoder.DEFAULT_MAX_HEADER_SIZE) {
+                state = State.INVALID;
+                break;
+            }
+            int end = lf > start && buf.getByte(lf - 1) == HttpConstants.CR ? lf - 1 : lf;
+            if (state == State.START_LINE) {
+                //起始行之前的空行忽略
+                if (end > start) {
+                    state = startLine(buf, base, start, end) ? State.HEADERS : State.INVALID;
+                }
+            } else if (end == start) {
+                headLength = position;
+                state = headComplete(buf, base) ? State.COMPLETE : State.INVALID;
+            } else {
+                int colon = indexOf(buf, start, end, (byte) ':');
+                if (colon <= start) {
+                    state = State.INVALID;
+                    break;
+                }
+                int valueStart = colon + 1;
+                int valueEnd = end;
+                while (valueStart < valueEnd && isOWS(buf.getByte(valueStart))) {
+                    valueStart++;
+                }
+                while (valueEnd > valueStart && isOWS(buf.getByte(valueEnd - 1))) {
+                    valueEnd--;
+                }
+                if (!header(buf, base, start, colon, valueStart, valueEnd)) {
+                    state = State.INVALID;
+                }
+            }
+        }
+        return state;
+    }
+
+    /**
+     * 解析起始行[start, end)，不合法时返回false
+     */
+    protected abstract boolean startLine(ByteBuf buf, int base, int start, int end);
+
+    /**
+     * 头部结束时调用，不合法时返回false
+     */
+    protected abstract boolean headComplete(ByteBuf buf, int base);
+
+    /**
+     * 解析一个请求头，name为[nameStart, nameEnd)，value为去掉前后空白的[valueStart, valueEnd)，不合法时返回false
+     */
+    protected boolean header(ByteBuf buf, int base, int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        if (equals(buf, nameStart, nameEnd, CONTENT_LENGTH, true)) {
+            long length = parseNumber(buf, valueStart, valueEnd);
+            //重复的Content-Length必须相同
+            if (length < 0 || contentLength >= 0 && contentLength != length) {
+                return false;
+            }
+            contentLength = length;
+        } else if (equals(buf, nameStart, nameEnd, TRANSFER_ENCODING, true)) {
+            chunked = containsToken(buf, valueStart, valueEnd, CHUNKED);
+        } else if (equals(buf, nameStart, nameEnd, CONNECTION, true)) {
+            connectionClose |= containsToken(buf, valueStart, valueEnd, CLOSE);
+            connectionKeepAlive |= containsToken(buf, valueStart, valueEnd, KEEP_ALIVE);
+            connectionUpgrade |= containsToken(buf, valueStart, valueEnd, UPGRADE);
+        }
+        return true;
+    }
+
+    protected static int indexOf(ByteBuf buf, int start, int end, byte value) {
+        return start < end ? buf.indexOf(start, end, value) : -1;
+    }
+
+    /**
+     * 十进制数字，不合法时返回-1
+     */
+    protected static long parseNumber(ByteBuf buf, int start, int end) {
+        if (start == end || end - start > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = buf.getByte(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * 比较[start, end)和expected，ignoreCase时expected必须是小写
+     */
+    protected static boolean equals(ByteBuf buf, int start, int end, byte[] expected, boolean ignoreCase) {
+        if (end - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            byte b = buf.getByte(start + i);
+            if (ignoreCase && b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 逗号分隔的值里是否有token，不区分大小写，token必须是小写
+     */
+    private static boolean containsToken(ByteBuf buf, int start, int end, byte[] token) {
+        while (start < end) {
+            int comma = indexOf(buf, start, end, (byte) ',');
+            int tokenEnd = comma < 0 ? end : comma;
+            int s = start;
+            int e = tokenEnd;
+            while (s < e && isOWS(buf.getByte(s))) {
+                s++;
+            }
+            while (e > s && isOWS(buf.getByte(e - 1))) {
+                e--;
+            }
+            if (equals(buf, s, e, token, true)) {
+                return true;
+            }
+            start = tokenEnd + 1;
+        }
+        return false;
+    }
+
+    private static boolean isOWS(byte b) {
+        return b == ' ' || b == '\t';
+    }
+}
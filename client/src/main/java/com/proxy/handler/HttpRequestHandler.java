@@ -1,128 +1,293 @@
 package com.proxy.handler;
 
+import com.proxy.HttpStreamPool;
+import com.proxy.HttpTunnelStream;
 import com.proxy.TcpClient;
+import com.proxy.cache.CacheExchange;
+import com.proxy.cache.HttpCache;
 import com.proxy.util.CommonUtil;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.*;
-import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
-import io.netty.util.internal.AppendableCharSequence;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.nio.charset.StandardCharsets;
-
+/**
+ * http代理的本地连接，一个保持连接的本地连接上可以有多个请求，每个请求按目标地址转发到对应的{@link HttpTunnelStream}，
+ * 响应结束后stream放回{@link HttpStreamPool}给其它请求复用。
+ * <p>
+ * 同一时间只转发一个请求，响应结束前收到的后续请求先缓存。CONNECT请求和协议升级后按tcp转发，使用父类的stream。
+ * 开启{@link HttpCache}时，缓存有效的GET请求直接在本地返回。
+ */
 public class HttpRequestHandler extends TcpRequestHandler {
 
     private static final Logger log = LoggerFactory.getLogger(HttpRequestHandler.class);
 
-    public HttpRequestHandler(TcpClient websocketClient) {
+    /**
+     * 等待响应时最多缓存的后续请求字节数
+     */
+    private static final int MAX_PENDING = 1024 * 1024;
+
+    private final HttpStreamPool pool;
+
+    /**
+     * 没有开启缓存时为null
+     */
+    private final HttpCache cache;
+
+    private final HttpRequestParser parser = new HttpRequestParser();
+
+    private final HttpBodyParser body = new HttpBodyParser();
+
+    private ChannelHandlerContext ctx;
+
+    /**
+     * 请求不完整或者等待响应时缓存收到的数据
+     */
+    private ByteBuf pending;
+
+    /**
+     * 正在转发的请求使用的stream，没有请求时为null
+     */
+    private HttpTunnelStream current;
+
+    /**
+     * 当前请求已经全部发出
+     */
+    private boolean requestComplete;
+
+    /**
+     * 当前请求要求响应后关闭连接
+     */
+    private boolean closeAfterResponse;
+
+    public HttpRequestHandler(TcpClient websocketClient, HttpStreamPool pool, HttpCache cache) {
         super(websocketClient);
+        this.pool = pool;
+        this.cache = cache;
     }
 
     @Override
     public void channelActive(ChannelHandlerContext ctx) {
-        Channel proxy = websocketClient.getProxy();
+        this.ctx = ctx;
+        Channel proxy = tunnel();
         //客户端发给服务器的
         if (proxy == null || !proxy.isActive()) {
             ctx.channel().close();
         }
     }
 
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        releasePending();
+        if (current != null) {
+            //响应没有结束，stream不能再复用
+            current.discard();
+            current = null;
+        }
+        super.channelInactive(ctx);
+    }
+
     @Override
     public void channelRead0(ChannelHandlerContext ctx, ByteBuf in) {
-        Channel proxy = websocketClient.getProxy();
-        //客户端发给服务器的
-        if (proxy == null || !proxy.isActive()) {
-            ctx.close();
+        if (stream != null) {
+            //CONNECT或者协议升级之后
+            if (log.isDebugEnabled()) {
+                log.debug("received msg from client, length: {}B, channelId: {}", in.readableBytes(), ctx.channel().id());
+            }
+            stream.write(in);
             return;
         }
-        String clientId = ctx.channel().id().asShortText();
-        byte[] idBytes = clientId.getBytes(StandardCharsets.UTF_8);
-        int index = in.readerIndex();
-        AppendableCharSequence sb = new AppendableCharSequence(HttpObjectDecoder.DEFAULT_MAX_HEADER_SIZE);
-        char b;
-        while (index < in.readableBytes() && index < HttpObjectDecoder.DEFAULT_INITIAL_BUFFER_SIZE
-                && (b = (char) (in.getByte(index) & 0xFF)) != HttpConstants.LF) {
-            sb.append(b);
-            index++;
-        }
-        String line = sb.toString().trim();
-        if (line.startsWith(HttpMethod.CONNECT.name())) {
-            String[] initialLine = CommonUtil.splitInitialLine(sb);
-            String[] hostSplit = initialLine[1].split(":");
-            String ip = hostSplit[0];
-            int port;
-            if (hostSplit.length > 1) {
-                port = Integer.parseInt(hostSplit[1]);
-            } else {
-                port = 443;
+        //直接在in上处理，剩下不完整的请求或者后续的请求才复制到pending
+        ByteBuf buf = in;
+        if (pending != null) {
+            buf = pending.writeBytes(in);
+        }
+        process(buf);
+        if (buf == in && in.isReadable() && ctx.channel().isActive()) {
+            pending = ctx.alloc().buffer(in.readableBytes() * 2).writeBytes(in);
+        } else if (pending != null && !pending.isReadable()) {
+            releasePending();
+        }
+        if (pending != null && pending.readableBytes() > MAX_PENDING) {
+            log.info("too many pipelined http requests, channelId: {}", ctx.channel().id());
+            ctx.channel().close();
+        }
+    }
+
+    private void process(ByteBuf buf) {
+        while (buf.isReadable() && stream == null && ctx.channel().isActive()) {
+            if (current == null) {
+                HttpRequestParser.State state = parser.parse(buf);
+                if (state == HttpRequestParser.State.INVALID) {
+                    //请求行或者host不合法，或者请求头太长
+                    log.info("invalid http proxy request, channelId: {}", ctx.channel().id());
+                    ctx.channel().close();
+                    return;
+                }
+                if (state != HttpRequestParser.State.COMPLETE) {
+                    return;
+                }
+                ByteBuf requestHead = buf.readSlice(parser.headLength());
+                if (parser.isConnect()) {
+                    connect(buf);
+                    return;
+                }
+                CacheExchange exchange = cache == null ? null : cache.lookup(parser.host(), parser.port(), requestHead,
+                        parser.contentLength() > 0 || parser.isChunked(), parser.isKeepAlive());
+                if (exchange != null && exchange.isFresh()) {
+                    cached(buf, exchange);
+                    continue;
+                }
+                if (!request(requestHead, exchange)) {
+                    return;
+                }
             }
-            log.debug("received connect from client, channelId:{}", clientId);
-            ByteBuf byteBuf = proxy.alloc().buffer().writeBytes(idBytes).writeInt(0).writeByte(ip.length())
-                    .writeBytes(ip.getBytes(StandardCharsets.UTF_8)).writeShort(port);
-            byte seed = CommonUtil.getSeed(idBytes);
-            for (int i = TcpClient.LENGTH_FIELD_OFFSET + 4; i < byteBuf.readableBytes(); i++) {
-                byteBuf.setByte(i, byteBuf.getByte(i) ^ seed);
+            if (requestComplete) {
+                //上一个请求的响应还没有结束
+                return;
             }
-            proxy.writeAndFlush(new BinaryWebSocketFrame(byteBuf));
-            websocketClient.getChannelMap().put(ctx.channel().id().asShortText(), ctx.channel());
-            ByteBuf byteBuf1 = ctx.alloc().buffer();
-            HttpResponse connectedResponse = new DefaultHttpResponse(HttpVersion.HTTP_1_1,
-                    new HttpResponseStatus(200, "Connection Established"));
-            CommonUtil.encodeCommandResponse(connectedResponse, byteBuf1);
-            ctx.writeAndFlush(byteBuf1);
-        } else {
-            boolean connected = false;
-            Channel channel = websocketClient.getChannelMap().get(clientId);
-            if (channel != null && channel.isActive()) {
-                byte seed = CommonUtil.getSeed(idBytes);
-                for (int i = in.readerIndex(); i < in.readableBytes(); i++) {
-                    in.setByte(i, in.getByte(i) ^ seed);
-                }
-                log.debug("received msg from client, length: {}B, channelId: {}", in.readableBytes(), clientId);
-                writeMsgSplit(proxy, idBytes, in);
-                connected = true;
+            int n = body.consume(buf);
+            if (body.isInvalid()) {
+                log.info("invalid http request body, channelId: {}", ctx.channel().id());
+                ctx.channel().close();
+                return;
             }
-            if (!connected) {
-                //还没有建立连接 就发送get或post等方法
-                sb = new AppendableCharSequence(HttpObjectDecoder.DEFAULT_MAX_HEADER_SIZE);
-                while (index < in.readableBytes() && index < HttpObjectDecoder.DEFAULT_MAX_INITIAL_LINE_LENGTH) {
-                    if ((b = (char) (in.getByte(index) & 0xFF)) != HttpConstants.LF) {
-                        sb.append(b);
-                    } else {
-                        if (sb.toString().toLowerCase().startsWith("host")) {
-                            String host = CommonUtil.splitHeader(sb);
-                            String[] hostSplit = host.split(":");
-                            String ip = hostSplit[0];
-                            int port;
-                            if (hostSplit.length > 1) {
-                                port = Integer.parseInt(hostSplit[1]);
-                            } else {
-                                port = 80;
-                            }
-                            log.debug("received connect from client, channelId:{}", clientId);
-                            ByteBuf byteBuf = proxy.alloc().buffer().writeBytes(idBytes).writeInt(0).writeByte(ip.length())
-                                    .writeBytes(ip.getBytes(StandardCharsets.UTF_8)).writeShort(port);
-                            byte seed = CommonUtil.getSeed(idBytes);
-                            for (int i = TcpClient.LENGTH_FIELD_OFFSET + 4; i < byteBuf.readableBytes(); i++) {
-                                byteBuf.setByte(i, byteBuf.getByte(i) ^ seed);
-                            }
-                            proxy.writeAndFlush(new BinaryWebSocketFrame(byteBuf));
-                            websocketClient.getChannelMap().put(ctx.channel().id().asShortText(), ctx.channel());
-                            for (int i = in.readerIndex(); i < in.readableBytes(); i++) {
-                                in.setByte(i, in.getByte(i) ^ seed);
-                            }
-                            writeMsgSplit(proxy, idBytes, in);
-                            return;
-                        }
-                    }
-                    index++;
-                }
-                //如果header没找到host那么,返回失败吧。
+            if (n > 0) {
+                current.write(buf.readSlice(n));
+            }
+            requestComplete = body.isComplete();
+        }
+    }
+
+    /**
+     * 请求头解析完成，选择stream并发出请求头
+     */
+    private boolean request(ByteBuf requestHead, CacheExchange exchange) {
+        String host = parser.host();
+        int port = parser.port();
+        HttpTunnelStream s = pool.acquire(host, port);
+        boolean open = s == null;
+        if (open) {
+            Channel proxy = websocketClient.nextTunnel();
+            if (proxy == null || !proxy.isActive()) {
                 ctx.channel().close();
+                return false;
             }
+            log.debug("open http stream to {}:{}, channelId: {}", host, port, ctx.channel().id());
+            s = new HttpTunnelStream(websocketClient.nextStreamId(proxy), ctx.channel(), proxy, websocketClient, pool,
+                    HttpStreamPool.key(host, port));
+            websocketClient.putStream(s);
+            pool.opened();
+        }
+        current = s;
+        closeAfterResponse = !parser.isKeepAlive();
+        s.bind(this, ctx.channel(), parser.isHead(), exchange);
+        body.reset(parser.contentLength(), parser.isChunked());
+        requestComplete = body.isComplete();
+        parser.reset();
+        ByteBuf head = exchange == null ? requestHead : exchange.request(requestHead);
+        if (open) {
+            //请求头放在打开报文里，服务端连接成功后立即发出
+            s.open(host, port, head);
+        } else {
+            s.write(head);
+        }
+        return true;
+    }
+
+    /**
+     * 缓存命中，不经过隧道直接返回
+     */
+    private void cached(ByteBuf buf, CacheExchange exchange) {
+        log.debug("http cache hit, channelId: {}", ctx.channel().id());
+        boolean close = !parser.isKeepAlive();
+        parser.reset();
+        ctx.writeAndFlush(exchange.response());
+        if (close) {
+            buf.skipBytes(buf.readableBytes());
+            closeAfterFlush();
+        }
+    }
+
+    /**
+     * CONNECT请求本身不转发，回复200后按tcp转发，请求头之后的数据属于隧道
+     */
+    private void connect(ByteBuf buf) {
+        Channel proxy = tunnel();
+        if (proxy == null || !proxy.isActive()) {
+            ctx.channel().close();
+            return;
+        }
+        log.debug("received connect from client, channelId:{}", ctx.channel().id());
+        openStream(ctx, proxy, parser.host(), parser.port());
+        ByteBuf response = ctx.alloc().buffer();
+        HttpResponse connectedResponse = new DefaultHttpResponse(HttpVersion.HTTP_1_1,
+                new HttpResponseStatus(200, "Connection Established"));
+        CommonUtil.encodeCommandResponse(connectedResponse, response);
+        ctx.writeAndFlush(response);
+        if (buf.isReadable()) {
+            stream.write(buf);
+        }
+    }
+
+    /**
+     * 响应结束，在本地连接的event loop中调用，keepAlive表示服务端会保持连接
+     */
+    public void responseComplete(HttpTunnelStream s, boolean keepAlive) {
+        current = null;
+        //请求体没有发完时服务端已经响应，后面的数据无法分辨请求边界
+        boolean reusable = keepAlive && requestComplete && !closeAfterResponse;
+        if (!reusable || !pool.release(s)) {
+            s.discard();
+        }
+        //这个本地连接不再受stream窗口的限制
+        ctx.channel().config().setAutoRead(true);
+        if (!reusable) {
+            closeAfterFlush();
+            return;
+        }
+        if (pending != null) {
+            process(pending);
+            if (pending != null && !pending.isReadable()) {
+                releasePending();
+            }
+        }
+    }
+
+    /**
+     * 101响应之后按tcp转发，缓存的数据直接发出
+     */
+    public void upgraded(HttpTunnelStream s) {
+        current = null;
+        stream = s;
+        if (pending != null) {
+            if (pending.isReadable()) {
+                s.write(pending);
+            }
+            releasePending();
+        }
+    }
+
+    /**
+     * 目标服务关闭了连接，或者响应不合法
+     */
+    public void upstreamClosed() {
+        current = null;
+        closeAfterFlush();
+    }
+
+    private void closeAfterFlush() {
+        ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    private void releasePending() {
+        if (pending != null) {
+            pending.release();
+            pending = null;
         }
     }
 }
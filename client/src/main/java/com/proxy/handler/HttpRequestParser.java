@@ -0,0 +1,155 @@
+package com.proxy.handler;
+
+import io.netty.buffer.ByteBuf;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * http代理请求头的增量解析，取出请求的目标地址和消息边界。
+ * <p>
+ * CONNECT的目标在请求行里；其它请求优先使用绝对地址形式的请求行里的host，这时忽略Host头（RFC 7230 5.4），
+ * 请求行不是绝对地址时使用Host头。
+ */
+public class HttpRequestParser extends HttpHeadParser {
+
+    private static final byte[] CONNECT = "CONNECT".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] HEAD = "HEAD".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] HTTP_SCHEME = "http://".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] HOST = "host".getBytes(StandardCharsets.US_ASCII);
+
+    private boolean connect;
+
+    private boolean head;
+
+    /**
+     * 请求行里的目标地址，相对于readerIndex，没有时start为-1
+     */
+    private int authorityStart = -1;
+
+    private int authorityEnd;
+
+    /**
+     * Host头的值，相对于readerIndex，没有时start为-1
+     */
+    private int hostStart = -1;
+
+    private int hostEnd;
+
+    private String host;
+
+    private int port;
+
+    public boolean isConnect() {
+        return connect;
+    }
+
+    /**
+     * HEAD请求的响应没有body
+     */
+    public boolean isHead() {
+        return head;
+    }
+
+    public String host() {
+        return host;
+    }
+
+    public int port() {
+        return port;
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        connect = false;
+        head = false;
+        authorityStart = -1;
+        hostStart = -1;
+        host = null;
+        port = 0;
+    }
+
+    @Override
+    protected boolean startLine(ByteBuf buf, int base, int start, int end) {
+        int methodEnd = indexOf(buf, start, end, (byte) ' ');
+        int uriStart = methodEnd + 1;
+        int uriEnd = methodEnd < 0 ? -1 : indexOf(buf, uriStart, end, (byte) ' ');
+        if (uriEnd <= uriStart) {
+            return false;
+        }
+        http10 = equals(buf, uriEnd + 1, end, HTTP_1_0, false);
+        connect = equals(buf, start, methodEnd, CONNECT, false);
+        head = equals(buf, start, methodEnd, HEAD, false);
+        if (connect) {
+            authorityStart = uriStart - base;
+            authorityEnd = uriEnd - base;
+        } else if (uriEnd - uriStart > HTTP_SCHEME.length
+                && equals(buf, uriStart, uriStart + HTTP_SCHEME.length, HTTP_SCHEME, true)) {
+            int authority = uriStart + HTTP_SCHEME.length;
+            int slash = indexOf(buf, authority, uriEnd, (byte) '/');
+            authorityStart = authority - base;
+            authorityEnd = (slash < 0 ? uriEnd : slash) - base;
+        }
+        return true;
+    }
+
+    @Override
+    protected boolean header(ByteBuf buf, int base, int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        if (equals(buf, nameStart, nameEnd, HOST, true)) {
+            hostStart = valueStart - base;
+            hostEnd = valueEnd - base;
+            return true;
+        }
+        return super.header(buf, base, nameStart, nameEnd, valueStart, valueEnd);
+    }
+
+    @Override
+    protected boolean headComplete(ByteBuf buf, int base) {
+        if (connect) {
+            return address(buf, base + authorityStart, base + authorityEnd, 443);
+        }
+        if (authorityStart >= 0) {
+            return address(buf, base + authorityStart, base + authorityEnd, 80);
+        }
+        return hostStart >= 0 && address(buf, base + hostStart, base + hostEnd, 80);
+    }
+
+    /**
+     * 解析host[:port]，ipv6地址带方括号
+     */
+    private boolean address(ByteBuf buf, int start, int end, int defaultPort) {
+        if (start >= end) {
+            return false;
+        }
+        int hostStart = start;
+        int hostEnd = end;
+        int portStart = -1;
+        if (buf.getByte(start) == '[') {
+            int bracket = indexOf(buf, start, end, (byte) ']');
+            if (bracket < 0) {
+                return false;
+            }
+            hostStart = start + 1;
+            hostEnd = bracket;
+            if (bracket + 1 < end && buf.getByte(bracket + 1) == ':') {
+                portStart = bracket + 2;
+            }
+        } else {
+            int colon = indexOf(buf, start, end, (byte) ':');
+            if (colon >= 0) {
+                hostEnd = colon;
+                portStart = colon + 1;
+            }
+        }
+        long port = portStart < 0 ? defaultPort : parseNumber(buf, portStart, end);
+        if (port < 0 || port > 0xFFFF || hostStart == hostEnd) {
+            return false;
+        }
+        this.host = buf.toString(hostStart, hostEnd - hostStart, StandardCharsets.US_ASCII);
+        this.port = (int) port;
+        return true;
+    }
+}
@@ -0,0 +1,42 @@
+package com.proxy.handler;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * 目标服务响应头的增量解析，取出状态码和消息边界
+ */
+public class HttpResponseParser extends HttpHeadParser {
+
+    private int status;
+
+    public int status() {
+        return status;
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        status = 0;
+    }
+
+    @Override
+    protected boolean startLine(ByteBuf buf, int base, int start, int end) {
+        //HTTP/1.1 200 OK
+        int versionEnd = indexOf(buf, start, end, (byte) ' ');
+        if (versionEnd < 0 || end - versionEnd < 4) {
+            return false;
+        }
+        http10 = equals(buf, start, versionEnd, HTTP_1_0, false);
+        long code = parseNumber(buf, versionEnd + 1, versionEnd + 4);
+        if (code < 100 || code > 999) {
+            return false;
+        }
+        status = (int) code;
+        return true;
+    }
+
+    @Override
+    protected boolean headComplete(ByteBuf buf, int base) {
+        return true;
+    }
+}
@@ -1,16 +1,16 @@
 package com.proxy.handler;
 
 import com.proxy.TcpClient;
-import com.proxy.util.CommonUtil;
+import com.proxy.TunnelStream;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
 
 public class TcpRequestHandler extends SimpleChannelInboundHandler<ByteBuf> {
 
@@ -18,27 +18,19 @@ public class TcpRequestHandler extends SimpleChannelInboundHandler<ByteBuf> {
 
     protected final TcpClient websocketClient;
 
+    protected TunnelStream stream;
+
     public TcpRequestHandler(TcpClient websocketClient) {
         this.websocketClient = websocketClient;
     }
 
     @Override
     public void channelActive(ChannelHandlerContext ctx) {
-        Channel proxy = websocketClient.getProxy();
+        Channel proxy = tunnel();
         //客户端发给服务器的
         if (proxy != null && proxy.isActive()) {
-            websocketClient.getChannelMap().put(ctx.channel().id().asShortText(), ctx.channel());
-            String ip = websocketClient.getServerHost();
-            String id = ctx.channel().id().asShortText();
-            log.debug("received connect from client, channelId:{}", id);
-            byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
-            ByteBuf byteBuf = proxy.alloc().buffer().writeBytes(idBytes).writeInt(0).writeByte(ip.length())
-                    .writeBytes(ip.getBytes(StandardCharsets.UTF_8)).writeShort(websocketClient.getServerPort());
-            byte seed = CommonUtil.getSeed(idBytes);
-            for (int i = TcpClient.LENGTH_FIELD_OFFSET + 4; i < byteBuf.readableBytes(); i++) {
-                byteBuf.setByte(i, byteBuf.getByte(i) ^ seed);
-            }
-            proxy.writeAndFlush(new BinaryWebSocketFrame(byteBuf));
+            log.debug("received connect from client, channelId:{}", ctx.channel().id());
+            openStream(ctx, proxy, websocketClient.getServerHost(), websocketClient.getServerPort());
         } else {
             ctx.channel().close();
         }
@@ -46,47 +38,41 @@ public class TcpRequestHandler extends SimpleChannelInboundHandler<ByteBuf> {
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) {
-        websocketClient.getChannelMap().remove(ctx.channel().id().asShortText());
-        Channel proxy = websocketClient.getProxy();
-        //客户端发给服务器的
-        if (proxy != null && proxy.isActive()) {
-            ByteBuf byteBuf = ctx.alloc().buffer().writeBytes(ctx.channel().id().asShortText()
-                    .getBytes(StandardCharsets.UTF_8)).writeInt(2).writeShort(0);
-            ctx.writeAndFlush(new BinaryWebSocketFrame(byteBuf));
+        if (stream != null && !stream.close()) {
+            websocketClient.removeStream(stream);
         }
     }
 
     @Override
     public void channelRead0(ChannelHandlerContext ctx, ByteBuf in) {
-        Channel proxy = websocketClient.getProxy();
-        //客户端发给服务器的
-        if (proxy == null || !proxy.isActive()) {
+        //客户端发给服务器的，隧道断开等待恢复时数据先保存在重发缓冲区里
+        if (stream == null || !stream.isAttached()) {
             ByteBuf byteBuf = ctx.alloc().buffer().writeBytes("channel is not connected.".getBytes(StandardCharsets.UTF_8));
             ctx.writeAndFlush(byteBuf);
             ctx.channel().close();
             log.info("client proxy is not connected, disconnect current client.");
             return;
         }
-        String id = ctx.channel().id().asShortText();
-        log.debug("received msg from client, length: {}B >>> transfer to proxy, channelId:{}.", in.readableBytes(), id);
-        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
-        //扰乱
-        byte seed = CommonUtil.getSeed(idBytes);
-        for (int i = in.readerIndex(); i < in.readableBytes(); i++) {
-            in.setByte(i, in.getByte(i) ^ seed);
+        if (log.isDebugEnabled()) {
+            log.debug("received msg from client, length: {}B >>> transfer to proxy, channelId:{}.", in.readableBytes(), ctx.channel().id());
         }
-        writeMsgSplit(proxy, idBytes, in);
+        stream.write(in);
     }
 
-    protected void writeMsgSplit(Channel proxy, byte[] idBytes, ByteBuf in) {
-        // tomcat websocket 配置org.apache.tomcat.websocket.DEFAULT_BUFFER_SIZE默认最大8192
-        int writeSize = 8192 - idBytes.length - 4;
-        while (in.readableBytes() > writeSize) {
-            ByteBuf byteBuf = proxy.alloc().buffer(8096)
-                    .writeBytes(idBytes).writeInt(in.readableBytes()).writeBytes(in, writeSize);
-            proxy.writeAndFlush(new BinaryWebSocketFrame(byteBuf));
-        }
-        ByteBuf byteBuf = proxy.alloc().buffer().writeBytes(idBytes).writeInt(in.readableBytes()).writeBytes(in);
-        proxy.writeAndFlush(new BinaryWebSocketFrame(byteBuf));
+    /**
+     * 已经打开stream时返回stream所在的隧道，否则从隧道池里选一个
+     */
+    protected Channel tunnel() {
+        return stream != null ? stream.getTunnel() : websocketClient.nextTunnel();
+    }
+
+    protected void openStream(ChannelHandlerContext ctx, Channel proxy, String host, int port) {
+        TunnelStream s = new TunnelStream(websocketClient.nextStreamId(proxy), ctx.channel(), proxy);
+        stream = s;
+        websocketClient.putStream(s);
+        //本地连接已经到达的数据（tcp fast open或者accept之前就发出的）在下一轮事件循环读到，和打开报文合并成一个报文；
+        //服务端先发数据的协议只多等一轮事件循环
+        s.openLater(host, port);
+        ctx.executor().schedule(s::flushOpen, 0, TimeUnit.MILLISECONDS);
     }
 }
@@ -0,0 +1,169 @@
+package com.proxy.handler;
+
+import com.proxy.common.FairScheduler;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.DefaultByteBufHolder;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.util.concurrent.PromiseNotifier;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 把写入隧道的报文(ByteBuf)编码成websocket二进制消息
+ * <p>
+ * 服务端支持批量时，多个报文合并到一个消息里，达到maxMessageSize或者flush时发出；flush推迟到event loop当前的任务之后执行，
+ * 同一轮里各个stream写入的小报文会合并成一个消息，减少websocket帧和write系统调用。其它消息（ping等）直接透传。
+ * <p>
+ * stream的报文以{@link StreamRecord}写入，先进入{@link FairScheduler}，flush时按deficit round robin轮流取出，
+ * 隧道不可写时停止，积压留在调度器里，恢复可写后继续；直接写入的ByteBuf（窗口更新、ping）不经过调度器，优先发送。
+ */
+public class TunnelRecordEncoder extends ChannelDuplexHandler {
+
+    /**
+     * 一个stream的报文，同一个stream的报文按写入的顺序发出
+     */
+    public static final class StreamRecord extends DefaultByteBufHolder {
+
+        private final FairScheduler.Flow flow;
+
+        public StreamRecord(FairScheduler.Flow flow, ByteBuf record) {
+            super(record);
+            this.flow = flow;
+        }
+    }
+
+    private final boolean batch;
+
+    private final int maxMessageSize;
+
+    private final FairScheduler scheduler;
+
+    private final List<ChannelPromise> promises = new ArrayList<>();
+
+    private ByteBuf pending;
+
+    private boolean flushScheduled;
+
+    public TunnelRecordEncoder(boolean batch, int maxMessageSize, FairScheduler scheduler) {
+        this.batch = batch;
+        this.maxMessageSize = maxMessageSize;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * 创建连接到port的stream的发送队列，任何线程都可以调用，onWritable在隧道的event loop中调用
+     */
+    public FairScheduler.Flow newFlow(int port, Runnable onWritable) {
+        return scheduler.newFlow(port, onWritable);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        if (msg instanceof StreamRecord) {
+            //进入调度器就算写入完成，stream的报文都使用voidPromise
+            StreamRecord record = (StreamRecord) msg;
+            scheduler.offer(record.flow, record.content());
+            promise.trySuccess();
+            return;
+        }
+        if (!(msg instanceof ByteBuf)) {
+            writePending(ctx);
+            ctx.write(msg, promise);
+            return;
+        }
+        writeRecord(ctx, (ByteBuf) msg, promise);
+    }
+
+    private void writeRecord(ChannelHandlerContext ctx, ByteBuf record, ChannelPromise promise) {
+        if (!batch) {
+            ctx.write(new BinaryWebSocketFrame(record), promise);
+            return;
+        }
+        if (pending != null && pending.readableBytes() + record.readableBytes() > maxMessageSize) {
+            writePending(ctx);
+        }
+        if (pending == null) {
+            pending = ctx.alloc().directBuffer(Math.max(maxMessageSize, record.readableBytes()));
+        }
+        pending.writeBytes(record);
+        record.release();
+        if (!promise.isVoid()) {
+            promises.add(promise);
+        }
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) {
+        if (!batch) {
+            drain(ctx);
+            ctx.flush();
+            return;
+        }
+        scheduleFlush(ctx);
+    }
+
+    /**
+     * 隧道恢复可写，继续发送调度器里的报文
+     */
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (ctx.channel().isWritable() && !scheduler.isEmpty()) {
+            scheduleFlush(ctx);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    private void scheduleFlush(ChannelHandlerContext ctx) {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            ctx.executor().execute(() -> {
+                flushScheduled = false;
+                drain(ctx);
+                writePending(ctx);
+                ctx.flush();
+            });
+        }
+    }
+
+    /**
+     * 从调度器取出报文，直到隧道不可写
+     */
+    private void drain(ChannelHandlerContext ctx) {
+        ByteBuf record;
+        while (ctx.channel().isWritable() && (record = scheduler.poll()) != null) {
+            writeRecord(ctx, record, ctx.voidPromise());
+        }
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        if (pending != null) {
+            pending.release();
+            pending = null;
+        }
+        scheduler.clear();
+        for (ChannelPromise promise : promises) {
+            promise.tryFailure(new IllegalStateException("tunnel closed"));
+        }
+        promises.clear();
+    }
+
+    private void writePending(ChannelHandlerContext ctx) {
+        if (pending == null) {
+            return;
+        }
+        BinaryWebSocketFrame frame = new BinaryWebSocketFrame(pending);
+        pending = null;
+        if (promises.isEmpty()) {
+            ctx.write(frame, ctx.voidPromise());
+        } else {
+            ChannelPromise[] notify = promises.toArray(new ChannelPromise[0]);
+            promises.clear();
+            ctx.write(frame).addListener(new PromiseNotifier<>(notify));
+        }
+    }
+}
@@ -1,9 +1,12 @@
 package com.proxy.handler;
 
+import com.proxy.ServerEndpoint;
 import com.proxy.TcpClient;
-import com.proxy.util.CommonUtil;
+import com.proxy.TunnelStream;
+import com.proxy.common.RecordCodec;
+import com.proxy.common.TunnelOptions;
+import com.proxy.common.TunnelProtocol;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.websocketx.*;
@@ -11,19 +14,38 @@ import io.netty.util.CharsetUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Map;
-import java.util.concurrent.TimeUnit;
+import java.nio.channels.ClosedChannelException;
 
 public class WebSocketHandler extends SimpleChannelInboundHandler<Object> {
     private static final Logger log = LoggerFactory.getLogger(WebSocketHandler.class);
     private ChannelPromise handShakeFuture;
     private final WebSocketClientHandshaker handShaker;
     private final TcpClient client;
+    private final int index;
+    /**
+     * 隧道连接的服务端地址，ping的往返时间记在上面
+     */
+    private final ServerEndpoint endpoint;
+    private final int maxMissedPings;
+    /**
+     * 上次收到消息后发出的ping数，在隧道的event loop中更新
+     */
+    private volatile int missedPings;
+    /**
+     * 握手完成后按协商的版本设置
+     */
+    private RecordCodec codec = RecordCodec.V1;
+    private Channel tunnel;
+    private final RecordCodec.Handler recordHandler = this::handleRecord;
 
-    public WebSocketHandler(WebSocketClientHandshaker handShaker, TcpClient client) {
+    public WebSocketHandler(WebSocketClientHandshaker handShaker, TcpClient client, int index,
+                            ServerEndpoint endpoint, int maxMissedPings) {
         super(false);
         this.handShaker = handShaker;
         this.client = client;
+        this.index = index;
+        this.endpoint = endpoint;
+        this.maxMissedPings = maxMissedPings;
     }
 
     public ChannelFuture handshakeFuture() {
@@ -43,8 +65,128 @@ public class WebSocketHandler extends SimpleChannelInboundHandler<Object> {
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) {
-        log.info("disconnected from proxy, reconnect after 30 seconds.");
-        ctx.executor().schedule(client::connectProxy, 30, TimeUnit.SECONDS);
+        if (!handShakeFuture.isDone()) {
+            handShakeFuture.setFailure(new ClosedChannelException());
+        } else {
+            client.tunnelClosed(index, ctx.channel());
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        for (TunnelStream stream : client.streams(index)) {
+            if (stream.getTunnel() == ctx.channel()) {
+                stream.getChannel().eventLoop().execute(stream::updateAutoRead);
+            }
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    private void handleRecord(int type, long channelId, ByteBuf data) {
+        if (type == TunnelProtocol.TYPE_PING) {
+            handlePing(data);
+            return;
+        }
+        if (type == TunnelProtocol.TYPE_RESUME) {
+            client.resumed(index, tunnel, RecordCodec.parseResume(data));
+            return;
+        }
+        TunnelStream stream = client.getStream(index, channelId);
+        if (stream == null) {
+            return;
+        }
+        if (!stream.isActive()) {
+            //本地连接已经关闭，可以恢复的stream等服务端回复关闭报文再移除
+            if (!stream.isClosing() || type == TunnelProtocol.TYPE_CLOSE || type == TunnelProtocol.TYPE_RESET) {
+                client.removeStream(index, channelId);
+            }
+            return;
+        }
+        switch (type) {
+            case TunnelProtocol.TYPE_DATA:
+            case TunnelProtocol.TYPE_DEFLATE:
+                if (log.isDebugEnabled()) {
+                    log.debug("received msg from proxy, length: {}B >>> transfer to client, channelId:{}", data.readableBytes(), stream.getChannel().id());
+                }
+                stream.onData(data, type == TunnelProtocol.TYPE_DEFLATE);
+                break;
+            case TunnelProtocol.TYPE_WINDOW_UPDATE:
+                stream.onWindowUpdate(data.readInt());
+                break;
+            case TunnelProtocol.TYPE_CLOSE:
+                //目标服务器关闭连接，可以恢复的隧道上回复关闭报文
+                client.removeStream(index, channelId);
+                stream.acknowledgeClose();
+                stream.onClose();
+                break;
+            case TunnelProtocol.TYPE_RESET:
+                //目标服务器连接失败或者异常断开
+                client.removeStream(index, channelId);
+                stream.onReset();
+                break;
+            default:
+                log.debug("unknown record type: {}, channelId: {}", type, channelId);
+        }
+    }
+
+    /**
+     * 服务端的ping请求原样回复，回复是{@link #ping}发出的请求带回的发送时间
+     */
+    private void handlePing(ByteBuf data) {
+        if (!data.isReadable()) {
+            return;
+        }
+        if (data.readByte() == 0) {
+            ByteBuf pong = codec.ping(tunnel.alloc(), true, data);
+            if (pong != null) {
+                tunnel.writeAndFlush(pong);
+            }
+        } else {
+            pong(data);
+        }
+    }
+
+    private void pong(ByteBuf data) {
+        if (data.readableBytes() < 8) {
+            return;
+        }
+        long rtt = System.nanoTime() - data.readLong();
+        endpoint.onRtt(rtt);
+        if (log.isDebugEnabled()) {
+            log.debug("tunnel {} ping rtt: {}us, server: {}", index, rtt / 1000, endpoint);
+        }
+    }
+
+    /**
+     * 由{@link TcpClient}定时在隧道的event loop中调用：连续maxMissedPings次ping之间没有收到任何消息时关闭隧道，
+     * 由重连换到其它地址；否则发送带发送时间的ping，v2用ping报文，v1用websocket ping
+     */
+    public void ping() {
+        if (tunnel == null || !tunnel.isActive()) {
+            return;
+        }
+        if (missedPings >= maxMissedPings) {
+            log.warn("no response from server in {} pings, tunnel: {}, server: {}", missedPings, index, endpoint);
+            endpoint.onFailure();
+            tunnel.close();
+            return;
+        }
+        missedPings++;
+        ByteBuf time = tunnel.alloc().buffer(8).writeLong(System.nanoTime());
+        ByteBuf ping = codec.ping(tunnel.alloc(), false, time);
+        if (ping != null) {
+            time.release();
+            tunnel.writeAndFlush(ping);
+        } else {
+            tunnel.writeAndFlush(new PingWebSocketFrame(time));
+        }
+    }
+
+    /**
+     * 上次发出的ping还没有收到回复，新的连接尽量不选这个隧道
+     */
+    public boolean isSuspect() {
+        return missedPings > 1;
     }
 
     @Override
@@ -56,6 +198,12 @@ public class WebSocketHandler extends SimpleChannelInboundHandler<Object> {
                 response = (FullHttpResponse) msg;
                 //握手协议返回，设置结束握手
                 this.handShaker.finishHandshake(ch, response);
+                TunnelOptions options = TunnelOptions.fromHeaders(response.headers()::get);
+                ch.attr(TunnelOptions.KEY).set(options);
+                codec = options.codec();
+                tunnel = ch;
+                ch.pipeline().addLast(new TunnelRecordEncoder(options.isBatch(), options.messageSizeLimit(),
+                        client.newScheduler()));
                 //设置成功
                 this.handShakeFuture.setSuccess();
                 response.release();
@@ -70,43 +218,20 @@ public class WebSocketHandler extends SimpleChannelInboundHandler<Object> {
             throw new IllegalStateException("Unexpected FullHttpResponse (getStatus=" + response.status() + ", content=" + response.content().toString(CharsetUtil.UTF_8) + ')');
         } else {
             WebSocketFrame frame = (WebSocketFrame) msg;
+            //收到任何消息都说明服务端还在
+            missedPings = 0;
             if (frame instanceof TextWebSocketFrame) {
                 // TextWebSocketFrame textFrame = (TextWebSocketFrame) frame;
                 System.out.println("TextWebSocketFrame");
             } else if (frame instanceof BinaryWebSocketFrame) {
                 BinaryWebSocketFrame binFrame = (BinaryWebSocketFrame) frame;
                 ByteBuf in = binFrame.content();
-                byte[] idBytes = new byte[TcpClient.LENGTH_FIELD_OFFSET];
-                in.readBytes(idBytes);//读取channel id
-                int dataSize = in.readInt();//读取data长度
-                String channelId = new String(idBytes);
-                Map<String, Channel> clientMap = client.getChannelMap();
-                Channel channel = clientMap.get(channelId);
-                if (channel != null) {
-                    if (!channel.isActive()) {
-                        clientMap.remove(channelId);
-                    } else {
-                        if (dataSize == 2 && in.getShort(in.readerIndex()) == 0) {
-                            //目标服务器关闭连接
-                            clientMap.remove(channelId);
-                            channel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
-                        } else {
-                            log.debug("received msg from proxy, length: {}B >>> transfer to client, channelId:{}", in.readableBytes(), channelId);
-                            byte seed = CommonUtil.getSeed(idBytes);
-                            int index = in.readerIndex();
-                            while (index < in.writerIndex()) {
-                                in.setByte(index, in.getByte(index) ^ seed);
-                                index++;
-                            }
-                            channel.writeAndFlush(in);
-                            return;
-                        }
-                    }
-                }
+                //服务端会把多个报文合并到一个消息里
+                codec.decode(in, recordHandler);
             } else if (frame instanceof PingWebSocketFrame) {
                 log.debug("WebSocket Client receive ping frame");
             } else if (frame instanceof PongWebSocketFrame) {
-                log.debug("WebSocket Client receive pong frame");
+                pong(frame.content());
             } else if (frame instanceof CloseWebSocketFrame) {
                 log.warn("WebSocket Client receive close frame: {}", ((CloseWebSocketFrame) frame).reasonText());
                 ch.close();
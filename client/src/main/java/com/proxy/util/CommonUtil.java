@@ -3,7 +3,6 @@ package com.proxy.util;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufUtil;
 import io.netty.handler.codec.http.HttpResponse;
-import io.netty.util.internal.AppendableCharSequence;
 
 import java.nio.charset.StandardCharsets;
 
@@ -20,126 +19,17 @@ public class CommonUtil {
         ByteBufUtil.writeShortBE(buf, (CR << 8) | LF);
     }
 
-    public static byte getSeed(byte[] bytes) {
-        return bytes[3];
-    }
-
-    public static String[] splitInitialLine(AppendableCharSequence sb) {
-        int aStart;
-        int aEnd;
-        int bStart;
-        int bEnd;
-        int cStart;
-        int cEnd;
-
-        aStart = findNonSPLenient(sb, 0);
-        aEnd = findSPLenient(sb, aStart);
-
-        bStart = findNonSPLenient(sb, aEnd);
-        bEnd = findSPLenient(sb, bStart);
-
-        cStart = findNonSPLenient(sb, bEnd);
-        cEnd = findEndOfString(sb);
-
-        return new String[]{
-                sb.subStringUnsafe(aStart, aEnd),
-                sb.subStringUnsafe(bStart, bEnd),
-                cStart < cEnd ? sb.subStringUnsafe(cStart, cEnd) : ""};
-    }
-
-    public static int findNonSPLenient(AppendableCharSequence sb, int offset) {
-        for (int result = offset; result < sb.length(); ++result) {
-            char c = sb.charAtUnsafe(result);
-            // See https://tools.ietf.org/html/rfc7230#section-3.5
-            if (isSPLenient(c)) {
-                continue;
-            }
-            if (Character.isWhitespace(c)) {
-                // Any other whitespace delimiter is invalid
-                throw new IllegalArgumentException("Invalid separator");
-            }
-            return result;
-        }
-        return sb.length();
-    }
-
-    public static int findSPLenient(AppendableCharSequence sb, int offset) {
-        for (int result = offset; result < sb.length(); ++result) {
-            if (isSPLenient(sb.charAtUnsafe(result))) {
-                return result;
-            }
-        }
-        return sb.length();
-    }
-
-    public static boolean isSPLenient(char c) {
-        // See https://tools.ietf.org/html/rfc7230#section-3.5
-        return c == ' ' || c == (char) 0x09 || c == (char) 0x0B || c == (char) 0x0C || c == (char) 0x0D;
-    }
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
 
-    public static int findEndOfString(AppendableCharSequence sb) {
-        for (int result = sb.length() - 1; result > 0; --result) {
-            if (!Character.isWhitespace(sb.charAtUnsafe(result))) {
-                return result + 1;
-            }
+    /**
+     * 把序号打散后编码成8个十六进制字符，按大端读成long，乘以奇数在2^32内是一一映射，不会重复
+     */
+    public static long newStreamId(int sequence) {
+        int value = sequence * 0x9E3779B9;
+        long id = 0;
+        for (int shift = 28; shift >= 0; shift -= 4) {
+            id = id << 8 | HEX[value >>> shift & 0xF];
         }
-        return 0;
+        return id;
     }
-
-    public static String splitHeader(AppendableCharSequence sb) {
-        final int length = sb.length();
-        int nameStart;
-        int nameEnd;
-        int colonEnd;
-        int valueStart;
-        int valueEnd;
-
-        nameStart = findNonWhitespace(sb, 0, false);
-        for (nameEnd = nameStart; nameEnd < length; nameEnd++) {
-            char ch = sb.charAtUnsafe(nameEnd);
-            if (ch == ':') {
-                break;
-            }
-        }
-
-        if (nameEnd == length) {
-            // There was no colon present at all.
-            throw new IllegalArgumentException("No colon found");
-        }
-
-        for (colonEnd = nameEnd; colonEnd < length; colonEnd++) {
-            if (sb.charAtUnsafe(colonEnd) == ':') {
-                colonEnd++;
-                break;
-            }
-        }
-
-        // name = sb.subStringUnsafe(nameStart, nameEnd);
-        valueStart = findNonWhitespace(sb, colonEnd, true);
-        if (valueStart == length) {
-            return "";
-        } else {
-            valueEnd = findEndOfString(sb);
-            return sb.subStringUnsafe(valueStart, valueEnd);
-        }
-    }
-
-    public static int findNonWhitespace(AppendableCharSequence sb, int offset, boolean validateOWS) {
-        for (int result = offset; result < sb.length(); ++result) {
-            char c = sb.charAtUnsafe(result);
-            if (!Character.isWhitespace(c)) {
-                return result;
-            } else if (validateOWS && !isOWS(c)) {
-                // Only OWS is supported for whitespace
-                throw new IllegalArgumentException("Invalid separator, only a single space or horizontal tab allowed," +
-                        " but received a '" + c + "' (0x" + Integer.toHexString(c) + ")");
-            }
-        }
-        return sb.length();
-    }
-
-    public static boolean isOWS(char ch) {
-        return ch == ' ' || ch == (char) 0x09;
-    }
-
 }
@@ -0,0 +1,73 @@
+package com.proxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 服务端地址的选择：可用的地址里往返时间最短的优先，没有测量过的排在后面，失败的地址暂时不选，都不可用时选最早恢复的
+ */
+class ServerEndpointTest {
+
+    @Test
+    void parseUsesTheDefaultPort() {
+        List<ServerEndpoint> endpoints = ServerEndpoint.parse(" a:81, b ,,c:82", 80);
+        assertEquals(3, endpoints.size());
+        assertEquals("a", endpoints.get(0).getHost());
+        assertEquals(81, endpoints.get(0).getPort());
+        assertEquals("b", endpoints.get(1).getHost());
+        assertEquals(80, endpoints.get(1).getPort());
+        assertEquals(82, endpoints.get(2).getPort());
+        assertThrows(IllegalArgumentException.class, () -> ServerEndpoint.parse(" , ", 80));
+    }
+
+    @Test
+    void unmeasuredEndpointsKeepListOrder() {
+        List<ServerEndpoint> endpoints = ServerEndpoint.parse("a,b,c", 80);
+        assertSame(endpoints.get(0), ServerEndpoint.select(endpoints));
+    }
+
+    @Test
+    void lowestRttWinsAndMeasuredBeatsUnmeasured() {
+        List<ServerEndpoint> endpoints = ServerEndpoint.parse("a,b,c", 80);
+        endpoints.get(2).onRtt(5_000_000);
+        assertSame(endpoints.get(2), ServerEndpoint.select(endpoints));
+        endpoints.get(1).onRtt(1_000_000);
+        assertSame(endpoints.get(1), ServerEndpoint.select(endpoints));
+        //平滑后b还是比c快，一个很慢的样本不会马上换掉它
+        endpoints.get(1).onRtt(9_000_000);
+        assertEquals(2_000_000, endpoints.get(1).getRtt());
+        assertSame(endpoints.get(1), ServerEndpoint.select(endpoints));
+    }
+
+    @Test
+    void failedEndpointIsSkippedUntilItAnswersAgain() {
+        List<ServerEndpoint> endpoints = ServerEndpoint.parse("a,b", 80);
+        endpoints.get(0).onRtt(1_000_000);
+        endpoints.get(1).onRtt(5_000_000);
+        endpoints.get(0).onFailure();
+        assertFalse(endpoints.get(0).isHealthy());
+        assertSame(endpoints.get(1), ServerEndpoint.select(endpoints));
+        //探测或者ping成功后恢复
+        endpoints.get(0).onRtt(1_000_000);
+        assertTrue(endpoints.get(0).isHealthy());
+        assertSame(endpoints.get(0), ServerEndpoint.select(endpoints));
+    }
+
+    @Test
+    void allDownPicksTheEarliestRecovery() {
+        List<ServerEndpoint> endpoints = Arrays.asList(new ServerEndpoint("a", 80), new ServerEndpoint("b", 80));
+        //a连续失败两次，恢复时间比b晚
+        endpoints.get(0).onFailure();
+        endpoints.get(0).onFailure();
+        endpoints.get(1).onFailure();
+        assertSame(endpoints.get(1), ServerEndpoint.select(endpoints));
+    }
+}
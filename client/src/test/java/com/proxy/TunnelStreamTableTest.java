@@ -0,0 +1,121 @@
+package com.proxy;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * 每个隧道的stream表只在隧道的event loop中读写：其它线程加入和移除的stream在隧道的event loop上可见，
+ * 收到报文时按id查找stream不分配内存
+ */
+class TunnelStreamTableTest {
+
+    private static final int STREAMS = 1000;
+
+    private TcpClient client;
+
+    private Channel tunnel;
+
+    @BeforeEach
+    void setUp() {
+        System.setProperty("proxy.tunnels", "2");
+        System.setProperty("proxy.transport", "nio");
+        try {
+            client = new TcpClient("127.0.0.1", 22, "127.0.0.1", 80);
+        } finally {
+            System.clearProperty("proxy.tunnels");
+            System.clearProperty("proxy.transport");
+        }
+        tunnel = new EmbeddedChannel();
+        tunnel.attr(TcpClient.TUNNEL_INDEX).set(1);
+    }
+
+    @AfterEach
+    void tearDown() {
+        client.worker.shutdownGracefully(0, 0, TimeUnit.SECONDS).syncUninterruptibly();
+    }
+
+    @Test
+    void tunnelsArePinnedToEventLoops() {
+        assertNotSame(client.tunnelLoop(0), client.tunnelLoop(1));
+    }
+
+    @Test
+    void streamsAddedFromAnotherThreadAreVisibleOnTheTunnelLoop() throws Exception {
+        List<TunnelStream> streams = putStreams();
+        EventLoop loop = client.tunnelLoop(1);
+        loop.submit(() -> {
+            for (TunnelStream stream : streams) {
+                assertSame(stream, client.getStream(1, stream.getId()));
+                assertNull(client.getStream(0, stream.getId()));
+            }
+            assertEquals(STREAMS, client.streams(1).size());
+            assertTrue(client.streams(0).isEmpty());
+        }).get();
+
+        TunnelStream removed = streams.get(0);
+        client.removeStream(removed);
+        loop.submit(() -> {
+            assertNull(client.getStream(1, removed.getId()));
+            assertEquals(STREAMS - 1, client.streams(1).size());
+        }).get();
+    }
+
+    @Test
+    void lookupDoesNotAllocate() throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        List<TunnelStream> streams = putStreams();
+        long[] ids = new long[streams.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = streams.get(i).getId();
+        }
+        int lookups = 1_000_000;
+        long allocated = client.tunnelLoop(1).submit(() -> {
+            long thread = Thread.currentThread().getId();
+            int found = lookup(ids, lookups);
+            long before = threads.getThreadAllocatedBytes(thread);
+            found += lookup(ids, lookups);
+            long after = threads.getThreadAllocatedBytes(thread);
+            assertEquals(2 * lookups, found);
+            return after - before;
+        }).get();
+        //测量本身可能分配几十个字节，和查找次数无关
+        assertTrue(allocated < 1024, () -> allocated + " bytes allocated by " + lookups + " lookups");
+    }
+
+    private int lookup(long[] ids, int lookups) {
+        int found = 0;
+        for (int i = 0; i < lookups; i++) {
+            if (client.getStream(1, ids[i % ids.length]) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    private List<TunnelStream> putStreams() {
+        List<TunnelStream> streams = new ArrayList<>();
+        for (int i = 0; i < STREAMS; i++) {
+            TunnelStream stream = new TunnelStream(client.nextStreamId(tunnel), new EmbeddedChannel(), tunnel);
+            client.putStream(stream);
+            streams.add(stream);
+        }
+        return streams;
+    }
+}
@@ -0,0 +1,224 @@
+package com.proxy.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 缓存的查找、条件请求和304替换、Vary匹配，内存淘汰到磁盘后再读回内存
+ */
+class HttpCacheTest {
+
+    private static final String HOST = "origin.test";
+
+    private File dir;
+
+    private HttpCache cache;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        dir = Files.createTempDirectory("http-cache").toFile();
+    }
+
+    @AfterEach
+    void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    void freshResponseIsServedLocally() {
+        cache = new HttpCache(1 << 20, 0, 1 << 20, null);
+        assertFalse(lookup("/a").isFresh());
+        store("/a", "hello", "Cache-Control: max-age=60", "Connection: keep-alive");
+        CacheExchange hit = lookup("/a");
+        assertTrue(hit.isFresh());
+        String response = text(hit.response());
+        assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"), response);
+        assertTrue(response.contains("\r\nAge: 0\r\n"), response);
+        //逐跳的头不缓存
+        assertFalse(response.contains("Connection"), response);
+        assertTrue(response.endsWith("\r\n\r\nhello"), response);
+        //客户端要求重新验证时不直接返回
+        CacheExchange noCache = lookup("/a", "Cache-Control: no-cache");
+        assertFalse(noCache.isFresh());
+        assertFalse(noCache.isRevalidation());
+    }
+
+    @Test
+    void etagRevalidationSwapsTheNotModifiedResponse() {
+        cache = new HttpCache(1 << 20, 0, 1 << 20, null);
+        store("/e", "etag body", "Cache-Control: max-age=0", "ETag: \"v1\"");
+        CacheExchange stale = lookup("/e");
+        assertFalse(stale.isFresh());
+        assertTrue(stale.isRevalidation());
+        String request = text(stale.request(request("/e")));
+        assertTrue(request.endsWith("\r\nIf-None-Match: \"v1\"\r\n\r\n"), request);
+        assertFalse(request.contains("If-Modified-Since"), request);
+
+        String swapped = text(stale.notModified(buf("HTTP/1.1 304 Not Modified\r\nETag: \"v1\"\r\n"
+                + "Cache-Control: max-age=60\r\n\r\n")));
+        assertTrue(swapped.startsWith("HTTP/1.1 200 OK\r\n"), swapped);
+        assertTrue(swapped.endsWith("\r\n\r\netag body"), swapped);
+        //304带来的新有效期生效
+        assertTrue(lookup("/e").isFresh());
+        assertTrue(cache.summary().contains("revalidated: 1"), cache.summary());
+    }
+
+    @Test
+    void lastModifiedRevalidationKeepsTheOldLifetime() {
+        cache = new HttpCache(1 << 20, 0, 1 << 20, null);
+        String lastModified = "Tue, 01 Jan 2030 00:00:00 GMT";
+        store("/m", "modified body", "Last-Modified: " + lastModified, "Date: " + lastModified);
+        CacheExchange stale = lookup("/m");
+        assertTrue(stale.isRevalidation());
+        String request = text(stale.request(request("/m")));
+        assertTrue(request.endsWith("\r\nIf-Modified-Since: " + lastModified + "\r\n\r\n"), request);
+        assertFalse(request.contains("If-None-Match"), request);
+        String swapped = text(stale.notModified(buf("HTTP/1.1 304 Not Modified\r\n\r\n")));
+        assertTrue(swapped.endsWith("\r\n\r\nmodified body"), swapped);
+        //304没有新的有效期，仍然需要验证
+        assertTrue(lookup("/m").isRevalidation());
+    }
+
+    @Test
+    void responseWithoutValidatorOrLifetimeIsNotStored() {
+        cache = new HttpCache(1 << 20, 0, 1 << 20, null);
+        store("/n", "nothing", "Content-Type: text/plain");
+        CacheExchange miss = lookup("/n");
+        assertFalse(miss.isFresh());
+        assertFalse(miss.isRevalidation());
+        //客户端自己的条件请求直接转发
+        assertEquals(null, cache.lookup(HOST, 80, request("/n", "If-None-Match: \"x\""), false, true));
+    }
+
+    @Test
+    void varyMatchesTheStoredRequestHeaders() {
+        cache = new HttpCache(1 << 20, 0, 1 << 20, null);
+        store("/v", "gzip body", new String[]{"Accept-Encoding: gzip"},
+                "Cache-Control: max-age=60", "Vary: Accept-Encoding");
+        assertTrue(lookup("/v", "Accept-Encoding: gzip").isFresh());
+        assertTrue(lookup("/v", "accept-encoding: gzip").isFresh());
+        CacheExchange other = lookup("/v", "Accept-Encoding: br");
+        assertFalse(other.isFresh());
+        assertFalse(other.isRevalidation());
+        CacheExchange missing = lookup("/v");
+        assertFalse(missing.isFresh());
+        //Vary: *的响应不缓存
+        store("/star", "star", "Cache-Control: max-age=60", "Vary: *");
+        assertFalse(lookup("/star").isFresh());
+    }
+
+    @Test
+    void unsafeMethodInvalidates() {
+        cache = new HttpCache(1 << 20, 0, 1 << 20, null);
+        store("/p", "post target", "Cache-Control: max-age=60");
+        assertTrue(lookup("/p").isFresh());
+        assertEquals(null, cache.lookup(HOST, 80, buf("POST /p HTTP/1.1\r\nHost: " + HOST + "\r\n\r\n"), true, true));
+        assertFalse(lookup("/p").isFresh());
+    }
+
+    @Test
+    void evictedEntryIsPromotedFromDisk() {
+        //内存只放得下一个响应
+        cache = new HttpCache(1000, 64 * 1024, 1000, new File(dir, "cache"));
+        String first = repeat('a', 600);
+        String second = repeat('b', 600);
+        store("/1", first, "Cache-Control: max-age=60");
+        store("/2", second, "Cache-Control: max-age=60");
+        assertTrue(cache.summary().contains("memory: 1 entries"), cache.summary());
+        assertTrue(cache.summary().contains("disk: 1 entries"), cache.summary());
+
+        CacheExchange promoted = lookup("/1");
+        assertTrue(promoted.isFresh());
+        assertTrue(text(promoted.response()).endsWith("\r\n\r\n" + first));
+        //读回内存后/2被淘汰到磁盘
+        assertTrue(cache.summary().contains("disk hits: 1"), cache.summary());
+        assertTrue(cache.summary().contains("memory: 1 entries"), cache.summary());
+        assertTrue(cache.summary().contains("disk: 1 entries"), cache.summary());
+        assertTrue(text(lookup("/2").response()).endsWith("\r\n\r\n" + second));
+        assertTrue(cache.summary().contains("disk hits: 2"), cache.summary());
+    }
+
+    @Test
+    void revalidatedEntryReplacesTheDiskCopy() {
+        cache = new HttpCache(1000, 64 * 1024, 1000, new File(dir, "cache"));
+        store("/1", repeat('a', 600), "Cache-Control: max-age=0", "ETag: \"1\"");
+        store("/2", repeat('b', 600), "Cache-Control: max-age=60");
+        CacheExchange stale = lookup("/1");
+        assertTrue(stale.isRevalidation());
+        text(stale.notModified(buf("HTTP/1.1 304 Not Modified\r\nCache-Control: max-age=60\r\n\r\n")));
+        assertTrue(lookup("/1").isFresh());
+        //磁盘上只剩下/2，替换后的/1只在内存中
+        assertTrue(cache.summary().contains("memory: 1 entries"), cache.summary());
+        assertTrue(cache.summary().contains("disk: 1 entries"), cache.summary());
+        assertTrue(lookup("/2").isFresh());
+    }
+
+    private CacheExchange lookup(String path, String... headers) {
+        return cache.lookup(HOST, 80, request(path, headers), false, true);
+    }
+
+    /**
+     * 按请求和响应走一遍没有命中的流程，body一次收到
+     */
+    private void store(String path, String body, String... responseHeaders) {
+        store(path, body, new String[0], responseHeaders);
+    }
+
+    private void store(String path, String body, String[] requestHeaders, String... responseHeaders) {
+        CacheExchange exchange = lookup(path, requestHeaders);
+        StringBuilder head = new StringBuilder("HTTP/1.1 200 OK\r\n");
+        for (String header : responseHeaders) {
+            head.append(header).append("\r\n");
+        }
+        head.append("Content-Length: ").append(body.length()).append("\r\n\r\n");
+        exchange.head(200, buf(head.toString()), body.length(), true);
+        exchange.body(buf(body));
+        exchange.complete();
+    }
+
+    private static ByteBuf request(String path, String... headers) {
+        StringBuilder sb = new StringBuilder("GET ").append(path).append(" HTTP/1.1\r\nHost: ").append(HOST).append("\r\n");
+        for (String header : headers) {
+            sb.append(header).append("\r\n");
+        }
+        return buf(sb.append("\r\n").toString());
+    }
+
+    private static ByteBuf buf(String s) {
+        return Unpooled.wrappedBuffer(s.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static String text(ByteBuf buf) {
+        try {
+            return buf.toString(StandardCharsets.ISO_8859_1);
+        } finally {
+            buf.release();
+        }
+    }
+
+    private static String repeat(char c, int n) {
+        StringBuilder sb = new StringBuilder(n);
+        for (int i = 0; i < n; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
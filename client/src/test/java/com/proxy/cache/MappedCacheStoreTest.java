@@ -0,0 +1,124 @@
+package com.proxy.cache;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 磁盘层的环形写入：写到末尾后从头覆盖，被覆盖的响应按写入顺序淘汰，替换和移除留下的旧位置不影响新的响应
+ */
+class MappedCacheStoreTest {
+
+    private static final int CAPACITY = 1000;
+
+    private File file;
+
+    private MappedCacheStore store;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        file = Files.createTempFile("mapped-cache", ".bin").toFile();
+        store = new MappedCacheStore(file, CAPACITY);
+    }
+
+    @AfterEach
+    void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    void wrapAroundEvictsInWriteOrder() {
+        assertTrue(store.put(entry("a", 300)));
+        assertTrue(store.put(entry("b", 300)));
+        assertTrue(store.put(entry("c", 300)));
+        assertEquals(3, store.size());
+        assertEquals(900, store.bytes());
+        //末尾只剩100字节，从头写，覆盖a
+        assertTrue(store.put(entry("d", 300)));
+        assertNull(store.take("a"));
+        assertEquals(3, store.size());
+        assertEquals(900, store.bytes());
+        //接着覆盖b
+        assertTrue(store.put(entry("e", 250)));
+        assertNull(store.take("b"));
+        assertEquals(850, store.bytes());
+        assertData("c", 300, store.take("c"));
+        assertData("d", 300, store.take("d"));
+        assertData("e", 250, store.take("e"));
+        assertEquals(0, store.size());
+        assertEquals(0, store.bytes());
+    }
+
+    @Test
+    void replacedEntryKeepsItsNewCopy() {
+        store.put(entry("a", 300));
+        store.put(entry("b", 300));
+        //替换a，新的a写在600，旧位置0留在队列里
+        store.put(entry("a", 200, (byte) 7));
+        assertEquals(2, store.size());
+        assertEquals(500, store.bytes());
+        //转回开头覆盖旧的a时不能移除新的a
+        store.put(entry("c", 250));
+        assertEquals(3, store.size());
+        assertData("a", 200, (byte) 7, store.take("a"));
+        //c从0开始写，覆盖了旧a的位置，b还在
+        assertData("b", 300, store.take("b"));
+        assertData("c", 250, store.take("c"));
+    }
+
+    @Test
+    void removedSpaceIsReusedOnTheNextLap() {
+        store.put(entry("a", 400));
+        store.put(entry("b", 400));
+        store.remove("a");
+        assertEquals(1, store.size());
+        assertEquals(400, store.bytes());
+        //末尾200字节放不下，a的空间等写入位置转回来时复用，b没有被覆盖
+        store.put(entry("c", 350));
+        assertEquals(2, store.size());
+        assertEquals(750, store.bytes());
+        assertData("b", 400, store.take("b"));
+        assertData("c", 350, store.take("c"));
+    }
+
+    @Test
+    void entryLargerThanTheFileIsRejected() {
+        store.put(entry("a", 300));
+        assertFalse(store.put(entry("huge", CAPACITY + 1)));
+        assertEquals(1, store.size());
+        assertTrue(store.put(entry("full", CAPACITY)));
+        assertNull(store.take("a"));
+        assertData("full", CAPACITY, store.take("full"));
+    }
+
+    private static CacheEntry entry(String key, int length) {
+        return entry(key, length, (byte) key.charAt(0));
+    }
+
+    private static CacheEntry entry(String key, int length, byte seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (seed + i);
+        }
+        return new CacheEntry(key, data, length, 0, new String[0], new String[0], null, null, 0, 0, 0);
+    }
+
+    private static void assertData(String key, int length, CacheEntry taken) {
+        assertData(key, length, (byte) key.charAt(0), taken);
+    }
+
+    private static void assertData(String key, int length, byte seed, CacheEntry taken) {
+        assertEquals(key, taken == null ? null : taken.key);
+        assertArrayEquals(entry(key, length, seed).data, taken.data);
+    }
+}
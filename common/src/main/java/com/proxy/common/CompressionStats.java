@@ -0,0 +1,57 @@
+package com.proxy.common;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 压缩的统计，进程内所有stream共用
+ */
+public final class CompressionStats {
+
+    /**
+     * 尝试压缩的原始字节数
+     */
+    static final LongAdder attemptedBytes = new LongAdder();
+
+    /**
+     * 压缩后发送的报文，压缩前和压缩后的字节数
+     */
+    static final LongAdder rawBytes = new LongAdder();
+
+    static final LongAdder compressedBytes = new LongAdder();
+
+    static final LongAdder compressNanos = new LongAdder();
+
+    static final LongAdder decompressNanos = new LongAdder();
+
+    /**
+     * 采样后判断不值得压缩的stream数
+     */
+    static final LongAdder skippedStreams = new LongAdder();
+
+    private CompressionStats() {
+    }
+
+    public static long savedBytes() {
+        return rawBytes.sum() - compressedBytes.sum();
+    }
+
+    public static Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("attemptedBytes", attemptedBytes.sum());
+        map.put("rawBytes", rawBytes.sum());
+        map.put("compressedBytes", compressedBytes.sum());
+        map.put("savedBytes", savedBytes());
+        map.put("compressMillis", compressNanos.sum() / 1000000);
+        map.put("decompressMillis", decompressNanos.sum() / 1000000);
+        map.put("skippedStreams", skippedStreams.sum());
+        return map;
+    }
+
+    public static String summary() {
+        return "compression saved " + savedBytes() + " of " + attemptedBytes.sum() + " bytes, compress "
+                + compressNanos.sum() / 1000000 + "ms, decompress " + decompressNanos.sum() / 1000000
+                + "ms, skipped streams " + skippedStreams.sum();
+    }
+}
@@ -0,0 +1,204 @@
+package com.proxy.common;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 多个stream共用一个隧道时的发送调度，deficit round robin：有报文排队的stream轮流发送，每轮最多发送quantum * 权重个字节，
+ * 一个stream的大量数据不会让其它stream（比如交互的ssh）的报文排在后面等很久。同一个stream的报文按加入的顺序发出。
+ * <p>
+ * 权重按目标端口配置，没有配置的端口为1。一个stream排队的字节数超过上限后{@link Flow#isWritable()}变为false，
+ * 调用方暂停读取这个stream的数据源，降到一半以下时调用创建时传入的回调。
+ * <p>
+ * 不是线程安全的，只在隧道的发送线程中使用；{@link #newFlow}和{@link Flow#isWritable()}可以在其它线程调用。
+ */
+public class FairScheduler {
+
+    /**
+     * 一个stream的发送队列
+     */
+    public static final class Flow {
+
+        private final ArrayDeque<ByteBuf> queue = new ArrayDeque<>();
+
+        private final int quantum;
+
+        private final Runnable onWritable;
+
+        private int deficit;
+
+        private long queuedBytes;
+
+        private boolean active;
+
+        private volatile boolean writable = true;
+
+        private Flow(int quantum, Runnable onWritable) {
+            this.quantum = quantum;
+            this.onWritable = onWritable;
+        }
+
+        /**
+         * 排队的字节数没有超过上限
+         */
+        public boolean isWritable() {
+            return writable;
+        }
+    }
+
+    private final ArrayDeque<Flow> active = new ArrayDeque<>();
+
+    private final int quantum;
+
+    private final long maxFlowBytes;
+
+    private final Map<Integer, Integer> weights;
+
+    private long queuedBytes;
+
+    /**
+     * @param quantum      权重为1的stream每轮可以发送的字节数
+     * @param maxFlowBytes 一个stream最多排队的字节数
+     * @param weights      目标端口对应的权重
+     */
+    public FairScheduler(int quantum, long maxFlowBytes, Map<Integer, Integer> weights) {
+        this.quantum = quantum;
+        this.maxFlowBytes = maxFlowBytes;
+        this.weights = weights;
+    }
+
+    /**
+     * 解析权重配置，格式为 端口=权重,端口=权重，比如 22=4,3389=4，空字符串表示都为1
+     */
+    public static Map<Integer, Integer> parseWeights(String spec) {
+        if (spec == null || spec.trim().isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<Integer, Integer> weights = new HashMap<>();
+        for (String item : spec.split(",")) {
+            String[] pair = item.trim().split("=");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("invalid stream weight: " + item);
+            }
+            weights.put(Integer.parseInt(pair[0].trim()), Math.max(1, Integer.parseInt(pair[1].trim())));
+        }
+        return weights;
+    }
+
+    /**
+     * 创建连接到port的stream的发送队列，onWritable在发送线程中调用
+     */
+    public Flow newFlow(int port, Runnable onWritable) {
+        return new Flow(quantum * weights.getOrDefault(port, 1), onWritable);
+    }
+
+    /**
+     * 报文加入stream的队列，record的所有权转移给调度器
+     */
+    public void offer(Flow flow, ByteBuf record) {
+        int size = record.readableBytes();
+        flow.queue.add(record);
+        flow.queuedBytes += size;
+        queuedBytes += size;
+        if (!flow.active) {
+            //新加入的stream带着一轮的额度排在最后，轮到时可以立即发送
+            flow.active = true;
+            flow.deficit = flow.quantum;
+            active.addLast(flow);
+        }
+        if (flow.writable && flow.queuedBytes > maxFlowBytes) {
+            flow.writable = false;
+        }
+    }
+
+    /**
+     * 下一个要发送的报文，不出队，没有排队的报文时返回null
+     */
+    public ByteBuf peek() {
+        Flow flow = next();
+        return flow == null ? null : flow.queue.peek();
+    }
+
+    /**
+     * 取出下一个要发送的报文，没有排队的报文时返回null
+     */
+    public ByteBuf poll() {
+        Flow flow = next();
+        if (flow == null) {
+            return null;
+        }
+        ByteBuf record = flow.queue.poll();
+        int size = record.readableBytes();
+        flow.deficit -= size;
+        flow.queuedBytes -= size;
+        queuedBytes -= size;
+        if (flow.queue.isEmpty()) {
+            //没有报文的stream不保留额度
+            active.pollFirst();
+            flow.active = false;
+            flow.deficit = 0;
+        }
+        if (!flow.writable && flow.queuedBytes <= maxFlowBytes / 2) {
+            flow.writable = true;
+            flow.onWritable.run();
+        }
+        return record;
+    }
+
+    /**
+     * 队首stream的额度不够发送它的下一个报文时补充一轮额度，排到最后，直到找到可以发送的stream
+     */
+    private Flow next() {
+        Flow flow;
+        while ((flow = active.peekFirst()) != null) {
+            if (flow.queue.peek().readableBytes() <= flow.deficit) {
+                return flow;
+            }
+            active.pollFirst();
+            flow.deficit += flow.quantum;
+            active.addLast(flow);
+        }
+        return null;
+    }
+
+    public boolean isEmpty() {
+        return active.isEmpty();
+    }
+
+    /**
+     * 所有stream排队的字节数
+     */
+    public long queuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * 有报文排队的stream数
+     */
+    public int activeFlows() {
+        return active.size();
+    }
+
+    /**
+     * 隧道关闭后释放所有排队的报文，返回释放的报文数
+     */
+    public int clear() {
+        int count = 0;
+        Flow flow;
+        while ((flow = active.pollFirst()) != null) {
+            ByteBuf record;
+            while ((record = flow.queue.poll()) != null) {
+                record.release();
+                count++;
+            }
+            flow.active = false;
+            flow.queuedBytes = 0;
+        }
+        queuedBytes = 0;
+        return count;
+    }
+}
@@ -0,0 +1,310 @@
+package com.proxy.common;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.util.collection.LongObjectHashMap;
+import io.netty.util.collection.LongObjectMap;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 隧道报文的编码和解析，{@link #V1}是最初的定长报文头，{@link #V2}是带类型的varint报文头，见{@link TunnelProtocol}
+ * <p>
+ * 编码出的报文都已经对body做了异或混淆；解析时body原样交给{@link Handler}，由调用方按stream去掉混淆。
+ * 一个websocket消息里可以有多个报文，解析时按顺序读一遍。
+ */
+public abstract class RecordCodec {
+
+    public static final RecordCodec V1 = new V1();
+
+    public static final RecordCodec V2 = new V2();
+
+    /**
+     * 解析出的一个报文，body是消息的slice，只在回调期间有效
+     */
+    public interface Handler {
+        void onRecord(int type, long streamId, ByteBuf body);
+    }
+
+    public static RecordCodec of(int version) {
+        return version >= TunnelProtocol.VERSION_2 ? V2 : V1;
+    }
+
+    public abstract int version();
+
+    /**
+     * 报文头的长度
+     */
+    public abstract int headerLength(long streamId, int length);
+
+    /**
+     * 把报文头写在index处，返回写入的字节数，不改变读写索引
+     */
+    public abstract int setHeader(ByteBuf buf, int index, int type, long streamId, int length);
+
+    /**
+     * 依次解析消息里的报文，不完整的部分丢弃
+     */
+    public abstract void decode(ByteBuf message, Handler handler);
+
+    /**
+     * 在写索引处写报文头
+     */
+    public ByteBuf writeHeader(ByteBuf buf, int type, long streamId, int length) {
+        int header = headerLength(streamId, length);
+        buf.ensureWritable(header);
+        setHeader(buf, buf.writerIndex(), type, streamId, length);
+        return buf.writerIndex(buf.writerIndex() + header);
+    }
+
+    /**
+     * 复制data生成一个数据报文，data的readerIndex不变
+     */
+    public ByteBuf data(ByteBufAllocator alloc, long streamId, ByteBuf data) {
+        int length = data.readableBytes();
+        int header = headerLength(streamId, length);
+        ByteBuf record = writeHeader(alloc.buffer(header + length), TunnelProtocol.TYPE_DATA, streamId, length)
+                .writeBytes(data, data.readerIndex(), length);
+        XorCodec.xor(record, header, length, XorCodec.getSeed(streamId));
+        return record;
+    }
+
+    /**
+     * 通知对方连接目标服务，body是地址长度(1 byte) + 地址 + 端口(2 bytes)
+     */
+    public ByteBuf open(ByteBufAllocator alloc, long streamId, String host, int port) {
+        return open(alloc, streamId, host, port, Unpooled.EMPTY_BUFFER);
+    }
+
+    /**
+     * 打开连接的报文带上第一段数据，跟在端口后面，对方连接成功后立即写入目标服务，省掉一个数据报文。
+     * 只有{@link #openCarriesData()}时data可以不为空，data的readerIndex不变
+     */
+    public ByteBuf open(ByteBufAllocator alloc, long streamId, String host, int port, ByteBuf data) {
+        byte[] hostBytes = host.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + hostBytes.length + 2 + data.readableBytes();
+        int header = headerLength(streamId, length);
+        ByteBuf record = writeHeader(alloc.buffer(header + length), TunnelProtocol.TYPE_OPEN, streamId, length)
+                .writeByte(hostBytes.length).writeBytes(hostBytes).writeShort(port)
+                .writeBytes(data, data.readerIndex(), data.readableBytes());
+        XorCodec.xor(record, header, length, XorCodec.getSeed(streamId));
+        return record;
+    }
+
+    /**
+     * 打开连接的报文能不能带数据，v1按地址长度确定报文结束的位置，不能带
+     */
+    public boolean openCarriesData() {
+        return version() >= TunnelProtocol.VERSION_2;
+    }
+
+    public abstract ByteBuf close(ByteBufAllocator alloc, long streamId);
+
+    /**
+     * 连接失败或者异常断开，v1没有这个类型，按关闭发送
+     */
+    public abstract ByteBuf reset(ByteBufAllocator alloc, long streamId);
+
+    public ByteBuf windowUpdate(ByteBufAllocator alloc, long streamId, int increment) {
+        return writeHeader(alloc.buffer(TunnelProtocol.HEADER_LENGTH + 4), TunnelProtocol.TYPE_WINDOW_UPDATE, streamId, 4)
+                .writeInt(increment);
+    }
+
+    /**
+     * ping请求或者回复，data原样带回，v1不支持时返回null
+     */
+    public abstract ByteBuf ping(ByteBufAllocator alloc, boolean ack, ByteBuf data);
+
+    /**
+     * 恢复会话的报文，received按stream id、收到的字节数交替排列，v1不支持时返回null
+     */
+    public abstract ByteBuf resume(ByteBufAllocator alloc, long[] received);
+
+    /**
+     * 解析恢复会话的报文，返回stream id到对方已经收到的字节数，不完整的部分丢弃
+     */
+    public static LongObjectMap<Long> parseResume(ByteBuf body) {
+        LongObjectMap<Long> received = new LongObjectHashMap<>();
+        while (body.isReadable()) {
+            long streamId = readVarint(body);
+            long offset = readVarint(body);
+            if (streamId < 0 || offset < 0) {
+                break;
+            }
+            received.put(streamId, Long.valueOf(offset));
+        }
+        return received;
+    }
+
+    /**
+     * 读一个varint，数据不完整或者超过63位时返回-1
+     */
+    private static long readVarint(ByteBuf buf) {
+        long value = 0;
+        for (int shift = 0; shift < 63; shift += 7) {
+            if (!buf.isReadable()) {
+                return -1;
+            }
+            int b = buf.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+
+    private static final class V1 extends RecordCodec {
+
+        @Override
+        public int version() {
+            return TunnelProtocol.VERSION_1;
+        }
+
+        @Override
+        public int headerLength(long streamId, int length) {
+            return TunnelProtocol.HEADER_LENGTH;
+        }
+
+        /**
+         * 打开连接的报文length为0，地址和端口跟在报文头后面；关闭报文见{@link #close}
+         */
+        @Override
+        public int setHeader(ByteBuf buf, int index, int type, long streamId, int length) {
+            int lengthField = type == TunnelProtocol.TYPE_OPEN ? 0 : TunnelProtocol.lengthField(type, length);
+            buf.setLong(index, streamId).setInt(index + 8, lengthField);
+            return TunnelProtocol.HEADER_LENGTH;
+        }
+
+        @Override
+        public void decode(ByteBuf message, Handler handler) {
+            while (message.readableBytes() >= TunnelProtocol.HEADER_LENGTH) {
+                long streamId = message.readLong();
+                int lengthField = message.readInt();
+                int type = TunnelProtocol.type(lengthField);
+                int length = TunnelProtocol.length(lengthField);
+                if (type == TunnelProtocol.TYPE_DATA && length == 0) {
+                    //打开连接的报文body长度为0，地址和端口跟在后面，按地址长度确定报文的结束位置
+                    if (!message.isReadable()) {
+                        return;
+                    }
+                    int hostLength = (message.getByte(message.readerIndex()) ^ XorCodec.getSeed(streamId)) & 0xFF;
+                    length = Math.min(message.readableBytes(), 1 + hostLength + 2);
+                    type = TunnelProtocol.TYPE_OPEN;
+                } else if (length > message.readableBytes()) {
+                    return;
+                } else if (type == TunnelProtocol.TYPE_DATA && length == 2
+                        && message.getShort(message.readerIndex()) == 0) {
+                    //和2个字节0的数据无法区分，v1的限制
+                    type = TunnelProtocol.TYPE_CLOSE;
+                }
+                handler.onRecord(type, streamId, message.readSlice(length));
+            }
+        }
+
+        @Override
+        public ByteBuf close(ByteBufAllocator alloc, long streamId) {
+            return alloc.buffer(TunnelProtocol.HEADER_LENGTH + 2).writeLong(streamId).writeInt(2).writeShort(0);
+        }
+
+        @Override
+        public ByteBuf reset(ByteBufAllocator alloc, long streamId) {
+            return close(alloc, streamId);
+        }
+
+        @Override
+        public ByteBuf ping(ByteBufAllocator alloc, boolean ack, ByteBuf data) {
+            return null;
+        }
+
+        @Override
+        public ByteBuf resume(ByteBufAllocator alloc, long[] received) {
+            return null;
+        }
+    }
+
+    private static final class V2 extends RecordCodec {
+
+        @Override
+        public int version() {
+            return TunnelProtocol.VERSION_2;
+        }
+
+        @Override
+        public int headerLength(long streamId, int length) {
+            return 1 + varintLength(streamId) + varintLength(length);
+        }
+
+        @Override
+        public int setHeader(ByteBuf buf, int index, int type, long streamId, int length) {
+            int start = index;
+            buf.setByte(index++, type);
+            index = setVarint(buf, index, streamId);
+            index = setVarint(buf, index, length);
+            return index - start;
+        }
+
+        @Override
+        public void decode(ByteBuf message, Handler handler) {
+            while (message.isReadable()) {
+                int type = message.readUnsignedByte();
+                long streamId = readVarint(message);
+                long length = readVarint(message);
+                if (streamId < 0 || length < 0 || length > message.readableBytes()) {
+                    message.skipBytes(message.readableBytes());
+                    return;
+                }
+                handler.onRecord(type, streamId, message.readSlice((int) length));
+            }
+        }
+
+        @Override
+        public ByteBuf close(ByteBufAllocator alloc, long streamId) {
+            return writeHeader(alloc.buffer(TunnelProtocol.HEADER_LENGTH), TunnelProtocol.TYPE_CLOSE, streamId, 0);
+        }
+
+        @Override
+        public ByteBuf reset(ByteBufAllocator alloc, long streamId) {
+            return writeHeader(alloc.buffer(TunnelProtocol.HEADER_LENGTH), TunnelProtocol.TYPE_RESET, streamId, 0);
+        }
+
+        @Override
+        public ByteBuf ping(ByteBufAllocator alloc, boolean ack, ByteBuf data) {
+            int length = 1 + data.readableBytes();
+            return writeHeader(alloc.buffer(3 + length), TunnelProtocol.TYPE_PING, 0, length)
+                    .writeByte(ack ? 1 : 0).writeBytes(data, data.readerIndex(), data.readableBytes());
+        }
+
+        @Override
+        public ByteBuf resume(ByteBufAllocator alloc, long[] received) {
+            int length = 0;
+            for (long value : received) {
+                length += varintLength(value);
+            }
+            ByteBuf record = writeHeader(alloc.buffer(TunnelProtocol.HEADER_LENGTH + length), TunnelProtocol.TYPE_RESUME,
+                    0, length);
+            for (long value : received) {
+                record.writerIndex(setVarint(record, record.writerIndex(), value));
+            }
+            return record;
+        }
+
+        private static int varintLength(long value) {
+            int length = 1;
+            while ((value >>>= 7) != 0) {
+                length++;
+            }
+            return length;
+        }
+
+        private static int setVarint(ByteBuf buf, int index, long value) {
+            while ((value & ~0x7FL) != 0) {
+                buf.setByte(index++, (int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf.setByte(index++, (int) value);
+            return index;
+        }
+    }
+}
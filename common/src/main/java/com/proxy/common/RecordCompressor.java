@@ -0,0 +1,181 @@
+package com.proxy.common;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 一个stream的数据压缩，每个报文单独压缩成{@link TunnelProtocol#TYPE_DEFLATE}报文，body是原始长度(4 bytes) + raw deflate数据
+ * <p>
+ * 前几个报文采样压缩率，压缩不到原来的90%就不再压缩这个stream（TLS等已经加密或压缩过的数据）；
+ * 之后连续几个报文压缩后没有变小也停止压缩。只在stream自己的event loop中调用。
+ */
+public class RecordCompressor {
+
+    /**
+     * 太小的报文压缩不划算
+     */
+    private static final int MIN_LENGTH = 256;
+
+    private static final int SAMPLE_RECORDS = 4;
+
+    private static final double MAX_RATIO = 0.9;
+
+    private static final int MAX_INFLATED_LENGTH = 0xFFFFFF;
+
+    private static final FastThreadLocal<Deflater> DEFLATER = new FastThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED, true);
+        }
+
+        @Override
+        protected void onRemoval(Deflater value) {
+            value.end();
+        }
+    };
+
+    private static final FastThreadLocal<Inflater> INFLATER = new FastThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+
+        @Override
+        protected void onRemoval(Inflater value) {
+            value.end();
+        }
+    };
+
+    private static final FastThreadLocal<byte[][]> SCRATCH = new FastThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+            return new byte[2][];
+        }
+    };
+
+    private int sampled;
+
+    private long sampledRaw;
+
+    private long sampledCompressed;
+
+    private int misses;
+
+    private boolean disabled;
+
+    /**
+     * 把data压缩成一个完整的报文（已经做了异或混淆），不值得压缩时返回null，调用方按普通报文发送。data的readerIndex不变
+     */
+    public ByteBuf encode(ByteBufAllocator alloc, RecordCodec codec, long streamId, ByteBuf data) {
+        int length = data.readableBytes();
+        if (disabled || length < MIN_LENGTH) {
+            return null;
+        }
+        long start = System.nanoTime();
+        byte[][] scratch = SCRATCH.get();
+        byte[] input;
+        int offset;
+        if (data.hasArray()) {
+            input = data.array();
+            offset = data.arrayOffset() + data.readerIndex();
+        } else {
+            input = scratch[0] = scratch(scratch[0], length);
+            data.getBytes(data.readerIndex(), input, 0, length);
+            offset = 0;
+        }
+        //压缩后必须比原来小，输出缓冲区只给原始长度
+        byte[] output = scratch[1] = scratch(scratch[1], length);
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(input, offset, length);
+        deflater.finish();
+        int compressed = deflater.deflate(output, 0, length);
+        boolean smaller = deflater.finished() && compressed + 4 < length;
+        CompressionStats.compressNanos.add(System.nanoTime() - start);
+        CompressionStats.attemptedBytes.add(length);
+        sample(length, smaller ? compressed + 4 : length);
+        if (!smaller) {
+            return null;
+        }
+        CompressionStats.rawBytes.add(length);
+        CompressionStats.compressedBytes.add(compressed + 4);
+        int header = codec.headerLength(streamId, compressed + 4);
+        ByteBuf record = codec.writeHeader(alloc.buffer(header + 4 + compressed), TunnelProtocol.TYPE_DEFLATE,
+                        streamId, compressed + 4)
+                .writeInt(length)
+                .writeBytes(output, 0, compressed);
+        XorCodec.xor(record, header, compressed + 4, XorCodec.getSeed(streamId));
+        return record;
+    }
+
+    private void sample(int raw, int sent) {
+        if (sampled < SAMPLE_RECORDS) {
+            sampled++;
+            sampledRaw += raw;
+            sampledCompressed += sent;
+            if (sampled == SAMPLE_RECORDS && sampledCompressed > sampledRaw * MAX_RATIO) {
+                disable();
+            }
+        } else if (sent < raw) {
+            misses = 0;
+        } else if (++misses >= SAMPLE_RECORDS) {
+            disable();
+        }
+    }
+
+    private void disable() {
+        disabled = true;
+        CompressionStats.skippedStreams.increment();
+    }
+
+    /**
+     * 解压{@link TunnelProtocol#TYPE_DEFLATE}报文的body（已经去掉异或混淆），返回新的ByteBuf
+     */
+    public static ByteBuf decode(ByteBufAllocator alloc, ByteBuf body) {
+        long start = System.nanoTime();
+        int length = body.readInt();
+        if (length < 0 || length > MAX_INFLATED_LENGTH) {
+            throw new IllegalArgumentException("invalid inflated length: " + length);
+        }
+        int compressed = body.readableBytes();
+        byte[] input;
+        int offset;
+        if (body.hasArray()) {
+            input = body.array();
+            offset = body.arrayOffset() + body.readerIndex();
+        } else {
+            byte[][] scratch = SCRATCH.get();
+            input = scratch[0] = scratch(scratch[0], compressed);
+            body.getBytes(body.readerIndex(), input, 0, compressed);
+            offset = 0;
+        }
+        body.skipBytes(compressed);
+        ByteBuf out = alloc.heapBuffer(length, length);
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(input, offset, compressed);
+        int n;
+        try {
+            n = inflater.inflate(out.array(), out.arrayOffset(), length);
+        } catch (DataFormatException e) {
+            out.release();
+            throw new IllegalArgumentException("invalid deflate record: " + e.getMessage(), e);
+        } finally {
+            CompressionStats.decompressNanos.add(System.nanoTime() - start);
+        }
+        if (n != length || !inflater.finished()) {
+            out.release();
+            throw new IllegalArgumentException("inflated " + n + " bytes, expected " + length);
+        }
+        return out.writerIndex(length);
+    }
+
+    private static byte[] scratch(byte[] bytes, int length) {
+        return bytes != null && bytes.length >= length ? bytes : new byte[Math.max(length, 8192)];
+    }
+}
@@ -0,0 +1,133 @@
+package com.proxy.common;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+
+/**
+ * 一个stream发给对方、对方还没有确认的数据，会话断开后从对方已经收到的位置重发。
+ * <p>
+ * 位置从stream打开时开始按数据字节计数（压缩前），对方的窗口更新就是确认，所以保存的字节数不会超过流控窗口。
+ * 数据复制到固定大小的块里，不持有读缓冲区。不是线程安全的，只在stream自己的event loop中使用。
+ */
+public class ReplayBuffer {
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private final ByteBufAllocator alloc;
+
+    private final ArrayDeque<ByteBuf> chunks = new ArrayDeque<>();
+
+    /**
+     * 第一个保存的字节的位置，之前的都已经确认
+     */
+    private long start;
+
+    /**
+     * 已经发出的字节数
+     */
+    private long end;
+
+    private boolean released;
+
+    public ReplayBuffer(ByteBufAllocator alloc) {
+        this.alloc = alloc;
+    }
+
+    /**
+     * 复制data追加到末尾，data的readerIndex不变
+     */
+    public void append(ByteBuf data) {
+        int length = data.readableBytes();
+        end += length;
+        if (released) {
+            return;
+        }
+        int index = data.readerIndex();
+        while (length > 0) {
+            ByteBuf tail = chunks.peekLast();
+            if (tail == null || !tail.isWritable()) {
+                tail = alloc.buffer(CHUNK_SIZE, CHUNK_SIZE);
+                chunks.addLast(tail);
+            }
+            int n = Math.min(length, tail.writableBytes());
+            tail.writeBytes(data, index, n);
+            index += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * 对方确认收到了offset之前的数据
+     */
+    public void ack(long offset) {
+        offset = Math.min(offset, end);
+        long n = offset - start;
+        if (n <= 0) {
+            return;
+        }
+        start = offset;
+        ByteBuf head;
+        while (n > 0 && (head = chunks.peekFirst()) != null) {
+            int readable = head.readableBytes();
+            if (readable <= n) {
+                chunks.pollFirst().release();
+                n -= readable;
+            } else {
+                head.skipBytes((int) n);
+                n = 0;
+            }
+        }
+    }
+
+    /**
+     * 从offset开始重发需要的数据还在，offset之前的确认后可以调用{@link #forEach}
+     */
+    public boolean canReplay(long offset) {
+        return !released && offset >= start && offset <= end;
+    }
+
+    /**
+     * 按顺序遍历保存的数据，每段不超过maxLength，data只在回调期间有效
+     */
+    public void forEach(int maxLength, Consumer<ByteBuf> consumer) {
+        for (ByteBuf chunk : chunks) {
+            int index = chunk.readerIndex();
+            int remaining = chunk.readableBytes();
+            while (remaining > 0) {
+                int n = Math.min(remaining, maxLength);
+                consumer.accept(chunk.slice(index, n));
+                index += n;
+                remaining -= n;
+            }
+        }
+    }
+
+    public long start() {
+        return start;
+    }
+
+    public long end() {
+        return end;
+    }
+
+    /**
+     * 还没有确认的字节数
+     */
+    public long size() {
+        return end - start;
+    }
+
+    /**
+     * stream移除后释放保存的数据，之后只记录位置
+     */
+    public void release() {
+        released = true;
+        ByteBuf chunk;
+        while ((chunk = chunks.pollFirst()) != null) {
+            chunk.release();
+        }
+    }
+}
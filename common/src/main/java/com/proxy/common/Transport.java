@@ -0,0 +1,294 @@
+package com.proxy.common;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.util.Locale;
+
+/**
+ * netty传输层的选择，nio在所有平台可用，linux上可以使用epoll，classpath里有netty incubator的io_uring jar时可以使用io_uring。
+ * <p>
+ * auto优先使用epoll，指定的传输不可用时回退到nio。tcp的扩展参数（quickack、fastopen、busy poll、notsent lowat）只在epoll和io_uring上生效，
+ * 没有配置的参数保持系统默认值。
+ */
+public class Transport {
+
+    private static final InternalLogger log = InternalLoggerFactory.getInstance(Transport.class);
+
+    private static final String IO_URING_PACKAGE = "io.netty.incubator.channel.uring.";
+
+    public enum Type {
+        AUTO, NIO, EPOLL, IO_URING
+    }
+
+    private final Type type;
+
+    private final Class<? extends SocketChannel> socketChannel;
+
+    private final Class<? extends ServerSocketChannel> serverChannel;
+
+    private final Class<? extends DatagramChannel> datagramChannel;
+
+    /**
+     * 扩展参数所在的类，nio没有
+     */
+    private final Class<?> optionClass;
+
+    /**
+     * 收到数据后立即回复ack，不等延迟ack
+     */
+    private boolean quickAck;
+
+    /**
+     * 连接目标服务和代理服务端时使用tcp fast open
+     */
+    private boolean fastOpenConnect;
+
+    /**
+     * 监听端口的fast open队列长度，0表示不启用
+     */
+    private int fastOpen;
+
+    /**
+     * 读socket时忙等的微秒数，0表示不启用
+     */
+    private int busyPoll;
+
+    /**
+     * 内核发送队列里还没有发出的字节数达到这个值后socket不可写，积压留在应用层按stream调度，0表示不启用
+     */
+    private int notSentLowat;
+
+    private Transport(Type type, Class<? extends SocketChannel> socketChannel,
+                      Class<? extends ServerSocketChannel> serverChannel,
+                      Class<? extends DatagramChannel> datagramChannel, Class<?> optionClass) {
+        this.type = type;
+        this.socketChannel = socketChannel;
+        this.serverChannel = serverChannel;
+        this.datagramChannel = datagramChannel;
+        this.optionClass = optionClass;
+    }
+
+    /**
+     * 按名字选择传输，名字不区分大小写，io_uring也可以写成io-uring，空字符串等同于auto
+     */
+    public static Transport select(String name) {
+        Type type = name == null || name.trim().isEmpty() ? Type.AUTO
+                : Type.valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        switch (type) {
+            case IO_URING:
+                Transport uring = ioUring();
+                if (uring != null) {
+                    return uring;
+                }
+                break;
+            case EPOLL:
+                if (Epoll.isAvailable()) {
+                    return epoll();
+                }
+                log.warn("epoll transport not available, fall back to nio: {}", Epoll.unavailabilityCause().toString());
+                break;
+            case AUTO:
+                if (Epoll.isAvailable()) {
+                    return epoll();
+                }
+                break;
+            default:
+        }
+        return new Transport(Type.NIO, NioSocketChannel.class, NioServerSocketChannel.class, NioDatagramChannel.class, null);
+    }
+
+    private static Transport epoll() {
+        return new Transport(Type.EPOLL, EpollSocketChannel.class, EpollServerSocketChannel.class,
+                EpollDatagramChannel.class, EpollChannelOption.class);
+    }
+
+    /**
+     * io_uring不是netty-all的一部分，通过反射加载，jar不在classpath里或内核不支持时返回null
+     */
+    @SuppressWarnings("unchecked")
+    private static Transport ioUring() {
+        try {
+            Class<?> uring = Class.forName(IO_URING_PACKAGE + "IOUring");
+            if (!(Boolean) uring.getMethod("isAvailable").invoke(null)) {
+                log.warn("io_uring transport not available, fall back to nio: {}", uring.getMethod("unavailabilityCause").invoke(null));
+                return null;
+            }
+            return new Transport(Type.IO_URING,
+                    (Class<? extends SocketChannel>) Class.forName(IO_URING_PACKAGE + "IOUringSocketChannel"),
+                    (Class<? extends ServerSocketChannel>) Class.forName(IO_URING_PACKAGE + "IOUringServerSocketChannel"),
+                    (Class<? extends DatagramChannel>) Class.forName(IO_URING_PACKAGE + "IOUringDatagramChannel"),
+                    Class.forName(IO_URING_PACKAGE + "IOUringChannelOption"));
+        } catch (ReflectiveOperationException | LinkageError e) {
+            log.warn("io_uring transport not found in classpath, fall back to nio: {}", e.toString());
+            return null;
+        }
+    }
+
+    public Type type() {
+        return type;
+    }
+
+    public Transport setQuickAck(boolean quickAck) {
+        this.quickAck = quickAck;
+        return this;
+    }
+
+    public Transport setFastOpenConnect(boolean fastOpenConnect) {
+        this.fastOpenConnect = fastOpenConnect;
+        return this;
+    }
+
+    public Transport setFastOpen(int fastOpen) {
+        this.fastOpen = fastOpen;
+        return this;
+    }
+
+    public Transport setBusyPoll(int busyPoll) {
+        this.busyPoll = busyPoll;
+        return this;
+    }
+
+    public Transport setNotSentLowat(int notSentLowat) {
+        this.notSentLowat = notSentLowat;
+        return this;
+    }
+
+    /**
+     * threads为0时使用netty的默认线程数
+     */
+    public EventLoopGroup newEventLoopGroup(int threads) {
+        switch (type) {
+            case EPOLL:
+                return new EpollEventLoopGroup(threads);
+            case IO_URING:
+                try {
+                    return (EventLoopGroup) Class.forName(IO_URING_PACKAGE + "IOUringEventLoopGroup")
+                            .getConstructor(int.class).newInstance(threads);
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException("create io_uring event loop group failed", e);
+                }
+            default:
+                return new NioEventLoopGroup(threads);
+        }
+    }
+
+    public Class<? extends SocketChannel> socketChannel() {
+        return socketChannel;
+    }
+
+    public Class<? extends ServerSocketChannel> serverChannel() {
+        return serverChannel;
+    }
+
+    public Class<? extends DatagramChannel> datagramChannel() {
+        return datagramChannel;
+    }
+
+    /**
+     * 设置客户端连接的channel类型和扩展参数
+     */
+    public Bootstrap configure(Bootstrap bootstrap) {
+        bootstrap.channel(socketChannel);
+        if (quickAck) {
+            setOption(bootstrap, "TCP_QUICKACK", true);
+        }
+        if (fastOpenConnect) {
+            setOption(bootstrap, "TCP_FASTOPEN_CONNECT", true);
+        }
+        if (busyPoll > 0) {
+            setOption(bootstrap, "SO_BUSY_POLL", busyPoll);
+        }
+        if (notSentLowat > 0) {
+            setOption(bootstrap, "TCP_NOTSENT_LOWAT", (long) notSentLowat);
+        }
+        return bootstrap;
+    }
+
+    /**
+     * 设置监听端口的channel类型和扩展参数，quickack、busy poll和notsent lowat作用在接受的连接上
+     */
+    public ServerBootstrap configure(ServerBootstrap bootstrap) {
+        bootstrap.channel(serverChannel);
+        if (fastOpen > 0) {
+            ChannelOption<Integer> option = option("TCP_FASTOPEN");
+            if (option != null) {
+                bootstrap.option(option, fastOpen);
+            }
+        }
+        if (quickAck) {
+            ChannelOption<Boolean> option = option("TCP_QUICKACK");
+            if (option != null) {
+                bootstrap.childOption(option, true);
+            }
+        }
+        if (busyPoll > 0) {
+            ChannelOption<Integer> option = option("SO_BUSY_POLL");
+            if (option != null) {
+                bootstrap.childOption(option, busyPoll);
+            }
+        }
+        if (notSentLowat > 0) {
+            ChannelOption<Long> option = option("TCP_NOTSENT_LOWAT");
+            if (option != null) {
+                bootstrap.childOption(option, (long) notSentLowat);
+            }
+        }
+        return bootstrap;
+    }
+
+    /**
+     * 监听端口设置SO_REUSEPORT，同一个端口可以绑定多次，由内核把新连接分散到各个监听channel，nio不支持时返回false
+     */
+    public boolean reusePort(ServerBootstrap bootstrap) {
+        ChannelOption<Boolean> option = option("SO_REUSEPORT");
+        if (option == null) {
+            return false;
+        }
+        bootstrap.option(option, true);
+        return true;
+    }
+
+    private <T> void setOption(Bootstrap bootstrap, String name, T value) {
+        ChannelOption<T> option = option(name);
+        if (option != null) {
+            bootstrap.option(option, value);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> ChannelOption<T> option(String name) {
+        if (optionClass != null) {
+            try {
+                return (ChannelOption<T>) optionClass.getField(name).get(null);
+            } catch (ReflectiveOperationException e) {
+                //io_uring没有SO_BUSY_POLL
+            }
+        }
+        log.debug("{} is not supported by {} transport, ignored", name, type);
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return type.name().toLowerCase(Locale.ROOT) + "{quickAck=" + quickAck + ", fastOpenConnect=" + fastOpenConnect
+                + ", fastOpen=" + fastOpen + ", busyPoll=" + busyPoll + ", notSentLowat=" + notSentLowat + '}';
+    }
+}
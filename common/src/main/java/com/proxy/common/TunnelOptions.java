@@ -0,0 +1,202 @@
+package com.proxy.common;
+
+import io.netty.util.AttributeKey;
+
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * websocket握手时协商的隧道参数，客户端在请求头里带上自己支持的值，服务端在响应头里返回双方都接受的值。
+ * 没有带对应请求头的旧客户端和不认识这些请求头的旧服务端都按原来的方式工作。
+ */
+public class TunnelOptions {
+
+    public static final AttributeKey<TunnelOptions> KEY = AttributeKey.valueOf(TunnelOptions.class.getName());
+
+    public static final String WINDOW_HEADER = "X-Proxy-Window";
+
+    public static final String BATCH_HEADER = "X-Proxy-Batch";
+
+    public static final String MAX_MESSAGE_HEADER = "X-Proxy-Max-Message";
+
+    public static final String COMPRESS_HEADER = "X-Proxy-Compress";
+
+    public static final String VERSION_HEADER = "X-Proxy-Version";
+
+    public static final String SESSION_HEADER = "X-Proxy-Session";
+
+    /**
+     * 客户端请求一个新的可以恢复的会话
+     */
+    public static final String NEW_SESSION = "new";
+
+    /**
+     * 每个stream的流控窗口，0表示不做流控
+     */
+    private int window;
+
+    /**
+     * 客户端是否可以把多个报文合并到一个websocket消息里发送
+     */
+    private boolean batch;
+
+    /**
+     * 客户端发给服务端的websocket消息的最大长度，0表示没有协商
+     */
+    private int maxMessageSize;
+
+    /**
+     * 是否可以发送压缩的报文，见{@link RecordCompressor}
+     */
+    private boolean compress;
+
+    /**
+     * 报文格式的版本，见{@link TunnelProtocol}，没有协商时为1
+     */
+    private int version = TunnelProtocol.VERSION_1;
+
+    /**
+     * 可以恢复的会话的token，客户端重连时带上，服务端保留着会话时继续使用原来的stream；null表示不恢复。
+     * 客户端请求时是上一个会话的token或者{@link #NEW_SESSION}，由服务端决定，不参与{@link #negotiate}
+     */
+    private String session;
+
+    public int getWindow() {
+        return window;
+    }
+
+    public TunnelOptions setWindow(int window) {
+        this.window = window;
+        return this;
+    }
+
+    public boolean isBatch() {
+        return batch;
+    }
+
+    public TunnelOptions setBatch(boolean batch) {
+        this.batch = batch;
+        return this;
+    }
+
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    public TunnelOptions setMaxMessageSize(int maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+        return this;
+    }
+
+    public boolean isCompress() {
+        return compress;
+    }
+
+    public TunnelOptions setCompress(boolean compress) {
+        this.compress = compress;
+        return this;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public TunnelOptions setVersion(int version) {
+        this.version = Math.max(TunnelProtocol.VERSION_1, version);
+        return this;
+    }
+
+    public String getSession() {
+        return session;
+    }
+
+    public TunnelOptions setSession(String session) {
+        this.session = session;
+        return this;
+    }
+
+    /**
+     * 协商的版本对应的报文编码
+     */
+    public RecordCodec codec() {
+        return RecordCodec.of(version);
+    }
+
+    /**
+     * 协商了压缩时为每个stream创建一个压缩器，否则返回null
+     */
+    public RecordCompressor newCompressor() {
+        return compress ? new RecordCompressor() : null;
+    }
+
+    /**
+     * 客户端实际使用的消息长度上限，没有协商时按旧服务端的限制
+     */
+    public int messageSizeLimit() {
+        return maxMessageSize > 0 ? maxMessageSize : TunnelProtocol.DEFAULT_MAX_MESSAGE_SIZE;
+    }
+
+    public static TunnelOptions fromHeaders(Function<String, String> headers) {
+        return new TunnelOptions().setWindow(parseInt(headers.apply(WINDOW_HEADER)))
+                .setBatch(parseInt(headers.apply(BATCH_HEADER)) > 0)
+                .setMaxMessageSize(parseInt(headers.apply(MAX_MESSAGE_HEADER)))
+                .setCompress(parseInt(headers.apply(COMPRESS_HEADER)) > 0)
+                .setVersion(parseInt(headers.apply(VERSION_HEADER)))
+                .setSession(headers.apply(SESSION_HEADER));
+    }
+
+    public void toHeaders(BiConsumer<String, String> headers) {
+        if (window > 0) {
+            headers.accept(WINDOW_HEADER, String.valueOf(window));
+        }
+        if (batch) {
+            headers.accept(BATCH_HEADER, "1");
+        }
+        if (maxMessageSize > 0) {
+            headers.accept(MAX_MESSAGE_HEADER, String.valueOf(maxMessageSize));
+        }
+        if (compress) {
+            headers.accept(COMPRESS_HEADER, "1");
+        }
+        if (version > TunnelProtocol.VERSION_1) {
+            headers.accept(VERSION_HEADER, String.valueOf(version));
+        }
+        if (session != null) {
+            headers.accept(SESSION_HEADER, session);
+        }
+    }
+
+    /**
+     * 服务端用自己的配置和客户端请求的参数协商
+     */
+    public TunnelOptions negotiate(TunnelOptions remote) {
+        TunnelOptions options = new TunnelOptions();
+        if (window > 0 && remote.window > 0) {
+            options.window = Math.min(window, remote.window);
+        }
+        options.batch = batch && remote.batch;
+        options.compress = compress && remote.compress;
+        if (maxMessageSize > 0 && remote.maxMessageSize > 0) {
+            options.maxMessageSize = Math.min(maxMessageSize, remote.maxMessageSize);
+        }
+        options.version = Math.min(version, remote.version);
+        return options;
+    }
+
+    private static int parseInt(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TunnelOptions{window=" + window + ", batch=" + batch + ", maxMessageSize=" + maxMessageSize
+                + ", compress=" + compress + ", version=" + version + ", resumable=" + (session != null) + '}';
+    }
+}
@@ -0,0 +1,86 @@
+package com.proxy.common;
+
+/**
+ * 隧道报文结构，握手时协商版本，编码和解析见{@link RecordCodec}
+ * <p>
+ * v1: stream id(8 bytes) + type(1 byte) + body length(3 bytes) + body(x bytes)。
+ * type为0时和最初的格式一致: length为0是打开连接，length为2且body为0x0000是关闭连接，其它是数据。
+ * 其它type只有在握手时协商过才会发送。
+ * <p>
+ * v2: type(1 byte) + stream id(varint) + body length(varint) + body(x bytes)，打开、关闭等都有自己的type，
+ * 数据报文不会被误认为关闭。stream id是递增的序号，小报文的报文头一般只有3个字节。
+ */
+public final class TunnelProtocol {
+
+    /**
+     * v1的报文头长度，也是v2报文头长度的上限（stream id小于2^35），预留报文头位置和拆分报文时按这个长度计算
+     */
+    public static final int HEADER_LENGTH = 12;
+
+    public static final int VERSION_1 = 1;
+
+    public static final int VERSION_2 = 2;
+
+    /**
+     * 没有协商时客户端发送的websocket消息的最大长度，tomcat websocket 配置org.apache.tomcat.websocket.DEFAULT_BUFFER_SIZE默认最大8192
+     */
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 8192;
+
+    public static final int TYPE_DATA = 0;
+
+    /**
+     * 流控窗口更新，body是4 bytes的增量
+     */
+    public static final int TYPE_WINDOW_UPDATE = 1;
+
+    /**
+     * 压缩的数据，body是原始长度(4 bytes) + raw deflate数据，见{@link RecordCompressor}
+     */
+    public static final int TYPE_DEFLATE = 2;
+
+    /**
+     * 打开连接，body是地址长度(1 byte) + 地址 + 端口(2 bytes)。v1里是type为0、length为0的报文；
+     * v2的端口后面可以跟着第一段数据，等同于紧跟着的一个数据报文
+     */
+    public static final int TYPE_OPEN = 3;
+
+    /**
+     * 正常关闭，没有body。v1里是body为0x0000的数据报文
+     */
+    public static final int TYPE_CLOSE = 4;
+
+    /**
+     * 连接失败或者异常断开，不再发送剩余的数据，只有v2发送，v1按关闭发送
+     */
+    public static final int TYPE_RESET = 5;
+
+    /**
+     * stream id为0，body是flag(1 byte，0为请求，1为回复) + 任意数据，收到请求后原样回复，只有v2发送
+     */
+    public static final int TYPE_PING = 6;
+
+    /**
+     * 恢复会话，stream id为0，body是多组stream id(varint) + 这个stream已经收到的数据字节数(varint)，
+     * 重连后客户端先发，服务端回复，双方从对方收到的位置重发数据。只有v2、握手时协商了会话时发送
+     */
+    public static final int TYPE_RESUME = 7;
+
+    private static final int TYPE_SHIFT = 24;
+
+    private static final int LENGTH_MASK = 0xFFFFFF;
+
+    private TunnelProtocol() {
+    }
+
+    public static int type(int lengthField) {
+        return lengthField >>> TYPE_SHIFT;
+    }
+
+    public static int length(int lengthField) {
+        return lengthField & LENGTH_MASK;
+    }
+
+    public static int lengthField(int type, int length) {
+        return type << TYPE_SHIFT | length;
+    }
+}
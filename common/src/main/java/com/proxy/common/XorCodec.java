@@ -0,0 +1,82 @@
+package com.proxy.common;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.internal.PlatformDependent;
+
+/**
+ * 报文body的异或混淆，客户端和服务端共用。异或是对称的，编码和解码是同一个操作。
+ * <p>
+ * 按8字节一组处理，direct buffer和heap buffer在支持非对齐访问时直接读写内存，其它buffer走getLong/setLong
+ */
+public final class XorCodec {
+
+    private static final long BROADCAST = 0x0101010101010101L;
+
+    private static final boolean UNSAFE = PlatformDependent.hasUnsafe() && PlatformDependent.isUnaligned();
+
+    private XorCodec() {
+    }
+
+    /**
+     * 混淆种子，stream id的第4个字节；v2的stream id是小于2^32的序号，这个字节为0，改用序号打散后的最高字节，不会为0
+     */
+    public static byte getSeed(long streamId) {
+        byte seed = (byte) (streamId >>> 32);
+        return seed != 0 ? seed : (byte) ((int) streamId * 0x9E3779B9 >>> 24 | 1);
+    }
+
+    /**
+     * 对buf的可读区域做混淆，不改变读写索引
+     */
+    public static void xor(ByteBuf buf, byte seed) {
+        xor(buf, buf.readerIndex(), buf.readableBytes(), seed);
+    }
+
+    public static void xor(ByteBuf buf, int index, int length, byte seed) {
+        if (index < 0 || length < 0 || index > buf.capacity() - length) {
+            throw new IndexOutOfBoundsException("index: " + index + ", length: " + length + ", capacity: " + buf.capacity());
+        }
+        if (seed == 0 || length == 0) {
+            return;
+        }
+        long mask = (seed & 0xFFL) * BROADCAST;
+        if (UNSAFE && buf.hasMemoryAddress()) {
+            xorAddress(buf.memoryAddress() + index, length, mask);
+        } else if (UNSAFE && buf.hasArray()) {
+            xorArray(buf.array(), buf.arrayOffset() + index, length, mask);
+        } else {
+            int end = index + length;
+            int longEnd = index + (length & ~7);
+            for (; index < longEnd; index += 8) {
+                buf.setLong(index, buf.getLong(index) ^ mask);
+            }
+            for (; index < end; index++) {
+                buf.setByte(index, buf.getByte(index) ^ seed);
+            }
+        }
+    }
+
+    private static void xorAddress(long address, int length, long mask) {
+        long end = address + length;
+        long longEnd = address + (length & ~7);
+        for (; address < longEnd; address += 8) {
+            PlatformDependent.putLong(address, PlatformDependent.getLong(address) ^ mask);
+        }
+        byte seed = (byte) mask;
+        for (; address < end; address++) {
+            PlatformDependent.putByte(address, (byte) (PlatformDependent.getByte(address) ^ seed));
+        }
+    }
+
+    private static void xorArray(byte[] array, int index, int length, long mask) {
+        int end = index + length;
+        int longEnd = index + (length & ~7);
+        for (; index < longEnd; index += 8) {
+            PlatformDependent.putLong(array, index, PlatformDependent.getLong(array, index) ^ mask);
+        }
+        byte seed = (byte) mask;
+        for (; index < end; index++) {
+            array[index] ^= seed;
+        }
+    }
+}
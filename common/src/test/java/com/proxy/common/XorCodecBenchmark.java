@@ -0,0 +1,71 @@
+package com.proxy.common;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 按8字节处理的异或和逐字节异或的对比，heap和direct buffer，64B到64KB。
+ * <p>
+ * mvn -pl common test -Dtest=XorCodecBenchmark -DfailIfNoTests=false
+ */
+class XorCodecBenchmark {
+
+    private static final long BYTES_PER_CASE = 512L << 20;
+
+    @Test
+    void throughput() {
+        System.out.printf("%6s %8s %12s %12s%n", "size", "buffer", "word MB/s", "byte MB/s");
+        for (int size : new int[]{64, 512, 4096, 65536}) {
+            for (boolean direct : new boolean[]{false, true}) {
+                ByteBuf buf = direct ? Unpooled.directBuffer(size) : Unpooled.buffer(size);
+                byte[] data = new byte[size];
+                ThreadLocalRandom.current().nextBytes(data);
+                buf.writeBytes(data);
+                byte seed = XorCodec.getSeed(0x1234_5678L);
+                //两种做法的结果一致
+                XorCodec.xor(buf, seed);
+                byteLoop(buf, seed);
+                assertEquals(Unpooled.wrappedBuffer(data), buf);
+                int rounds = (int) (BYTES_PER_CASE / size);
+                double word = measure(buf, seed, rounds, true);
+                double bytes = measure(buf, seed, rounds, false);
+                System.out.printf("%6d %8s %12.0f %12.0f%n", size, direct ? "direct" : "heap", word, bytes);
+                buf.release();
+            }
+        }
+    }
+
+    private static double measure(ByteBuf buf, byte seed, int rounds, boolean word) {
+        for (int i = 0; i < rounds / 4; i++) {
+            run(buf, seed, word);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            run(buf, seed, word);
+        }
+        long elapsed = System.nanoTime() - start;
+        return (double) rounds * buf.readableBytes() / (1 << 20) / (elapsed / 1e9);
+    }
+
+    private static void run(ByteBuf buf, byte seed, boolean word) {
+        if (word) {
+            XorCodec.xor(buf, seed);
+        } else {
+            byteLoop(buf, seed);
+        }
+    }
+
+    /**
+     * 原来的做法：逐字节读出、异或、写回
+     */
+    private static void byteLoop(ByteBuf buf, byte seed) {
+        for (int i = buf.readerIndex(); i < buf.writerIndex(); i++) {
+            buf.setByte(i, buf.getByte(i) ^ seed);
+        }
+    }
+}
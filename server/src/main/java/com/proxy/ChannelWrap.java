@@ -0,0 +1,242 @@
+package com.proxy;
+
+import com.proxy.common.FairScheduler;
+import com.proxy.common.RecordCompressor;
+import com.proxy.common.ReplayBuffer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+
+/**
+ * 客户端的一个stream和目标服务连接的对应关系
+ * <p>
+ * 协商了流控窗口时，发给客户端的每个字节消耗一个字节的窗口，窗口用完或者会话不可写时暂停读取目标服务；
+ * 客户端发来的数据写入目标服务后才归还窗口。目标服务的连接注册在会话的event loop上，窗口和读取状态只在这个线程中修改。
+ * 发给客户端的报文在会话的调度器里排队，排队的字节数超过每个stream的上限时也暂停读取。
+ * <p>
+ * 可以恢复的会话里，发给客户端的数据同时保存在重发缓冲区里，客户端的窗口更新确认后释放；
+ * 目标服务关闭后stream先保留，客户端回复关闭报文后才移除，断开时丢失的关闭报文恢复后重发。
+ */
+public class ChannelWrap {
+
+    /**
+     * 重发时每个数据报文的最大长度
+     */
+    private static final int REPLAY_RECORD_SIZE = 16 * 1024;
+
+    /**
+     * 所在的会话，恢复时换成接管它的会话
+     */
+    private TunnelSession session;
+
+    private final long clientId;
+
+    /**
+     * 目标服务的端口，按端口确定调度的权重
+     */
+    private final int port;
+
+    private final int window;
+
+    /**
+     * 没有协商压缩时为null
+     */
+    private final RecordCompressor compressor;
+
+    /**
+     * 这个stream在会话调度器中的发送队列，权重按目标端口确定
+     */
+    private FairScheduler.Flow flow;
+
+    /**
+     * 会话不能恢复时为null
+     */
+    private final ReplayBuffer replay;
+
+    private ChannelFuture channelFuture;
+
+    /**
+     * 目标服务连接的空闲检查，连接关闭时取消
+     */
+    private IdleTimer.Watch idle = IdleTimer.Watch.NONE;
+
+    private int sendWindow;
+
+    /**
+     * 写入目标服务、还没有归还给客户端的字节数，恢复后可能为负数：客户端按它收到的位置重新计算窗口
+     */
+    private int consumed;
+
+    private long consumedTotal;
+
+    /**
+     * 从客户端收到的数据字节数
+     */
+    private long received;
+
+    /**
+     * 目标服务已经关闭，等客户端的关闭报文
+     */
+    private boolean closing;
+
+    public ChannelWrap(TunnelSession session, long clientId, int port) {
+        this.session = session;
+        this.clientId = clientId;
+        this.port = port;
+        this.window = session.getOptions().getWindow();
+        this.sendWindow = window;
+        this.compressor = session.getOptions().newCompressor();
+        this.flow = session.newFlow(port, this::updateAutoRead);
+        this.replay = session.isResumable() ? new ReplayBuffer(ByteBufAllocator.DEFAULT) : null;
+    }
+
+    TunnelSession session() {
+        return session;
+    }
+
+    /**
+     * 恢复的会话接管这个stream，之后的报文进入新会话的调度器
+     */
+    void rebind(TunnelSession session) {
+        this.session = session;
+        this.flow = session.newFlow(port, this::updateAutoRead);
+    }
+
+    public ChannelFuture getChannelFuture() {
+        return channelFuture;
+    }
+
+    void setChannelFuture(ChannelFuture channelFuture) {
+        this.channelFuture = channelFuture;
+    }
+
+    IdleTimer.Watch idle() {
+        return idle;
+    }
+
+    void setIdle(IdleTimer.Watch idle) {
+        this.idle = idle;
+    }
+
+    public long getClientId() {
+        return clientId;
+    }
+
+    public Channel channel() {
+        return channelFuture.channel();
+    }
+
+    /**
+     * 发送这个stream的数据或者关闭报文，和之前的报文保持顺序
+     */
+    void send(ByteBuf record) {
+        session.sendRecord(flow, record);
+    }
+
+    /**
+     * 目标服务返回的数据在编码前保存到重发缓冲区
+     */
+    void record(ByteBuf data) {
+        if (replay != null) {
+            replay.append(data);
+        }
+    }
+
+    boolean isClosing() {
+        return closing;
+    }
+
+    void setClosing() {
+        closing = true;
+    }
+
+    long received() {
+        return received;
+    }
+
+    /**
+     * 收到客户端的bytes个字节
+     */
+    void received(int bytes) {
+        received += bytes;
+    }
+
+    /**
+     * 客户端从offset开始没有收到，重发缓冲区里还有这些数据
+     */
+    boolean canResume(long offset) {
+        return replay != null && replay.canReplay(offset);
+    }
+
+    /**
+     * 会话恢复：客户端已经收到offset之前的数据，重发之后的数据，目标服务已经关闭时再发关闭报文。
+     * 客户端按服务端报告的{@link #received()}重新计算窗口，这里也按同一个位置归还
+     */
+    void resume(long offset) {
+        consumed = (int) (consumedTotal - received);
+        replay.ack(offset);
+        sendWindow = (int) (window - replay.size());
+        replay.forEach(REPLAY_RECORD_SIZE,
+                data -> send(session.codec().data(ByteBufAllocator.DEFAULT, clientId, data)));
+        if (closing) {
+            send(session.codec().close(ByteBufAllocator.DEFAULT, clientId));
+        } else {
+            updateAutoRead();
+        }
+    }
+
+    /**
+     * 从会话中移除后释放重发缓冲区
+     */
+    void removed() {
+        if (replay != null) {
+            replay.release();
+        }
+    }
+
+    /**
+     * 尝试把目标服务返回的数据压缩成一个报文，不压缩时返回null
+     */
+    ByteBuf compress(ByteBufAllocator alloc, ByteBuf data) {
+        return compressor == null ? null : compressor.encode(alloc, session.codec(), clientId, data);
+    }
+
+    /**
+     * 发给客户端bytes个字节后调用
+     */
+    void dataSent(int bytes) {
+        sendWindow -= bytes;
+        updateAutoRead();
+    }
+
+    /**
+     * 客户端发来的bytes个字节写入目标服务后调用，攒够半个窗口再归还，减少窗口更新报文
+     */
+    void consumed(int bytes) {
+        if (window == 0) {
+            return;
+        }
+        consumedTotal += bytes;
+        consumed += bytes;
+        if (consumed >= window / 2) {
+            session.sendMessage(session.codec().windowUpdate(ByteBufAllocator.DEFAULT, clientId, consumed));
+            consumed = 0;
+        }
+    }
+
+    void onWindowUpdate(int increment) {
+        sendWindow += increment;
+        if (replay != null) {
+            replay.ack(replay.start() + increment);
+        }
+        updateAutoRead();
+    }
+
+    /**
+     * 根据会话的可写状态、排队的字节数和剩余窗口决定是否读取目标服务，在会话的event loop中调用
+     */
+    void updateAutoRead() {
+        channel().config().setAutoRead(session.isWritable() && flow.isWritable() && (window == 0 || sendWindow > 0));
+    }
+}
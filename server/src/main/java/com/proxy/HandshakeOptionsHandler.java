@@ -0,0 +1,44 @@
+package com.proxy;
+
+import com.proxy.common.TunnelOptions;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+/**
+ * netty websocket握手时协商隧道参数，放在{@link io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler}前面，
+ * 协商结果设置到channel的{@link TunnelOptions#KEY}属性并写入101响应头，握手完成后移除自己
+ */
+public class HandshakeOptionsHandler extends ChannelDuplexHandler {
+
+    private final TunnelService tunnelService;
+
+    public HandshakeOptionsHandler(TunnelService tunnelService) {
+        this.tunnelService = tunnelService;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof FullHttpRequest) {
+            FullHttpRequest request = (FullHttpRequest) msg;
+            ctx.channel().attr(TunnelOptions.KEY).set(tunnelService.negotiate(request.headers()::get));
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof HttpResponse
+                && ((HttpResponse) msg).status().code() == HttpResponseStatus.SWITCHING_PROTOCOLS.code()) {
+            TunnelOptions options = ctx.channel().attr(TunnelOptions.KEY).get();
+            if (options != null) {
+                options.toHeaders(((HttpResponse) msg).headers()::add);
+            }
+            ctx.pipeline().remove(this);
+        }
+        super.write(ctx, msg, promise);
+    }
+}
@@ -0,0 +1,99 @@
+package com.proxy;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.AdaptiveRecvByteBufAllocator;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.RecvByteBufAllocator;
+import io.netty.util.UncheckedBooleanSupplier;
+
+/**
+ * 目标服务连接的读缓冲区分配，按{@link AdaptiveRecvByteBufAllocator}估算大小，在缓冲区前面预留headroom个字节。
+ * <p>
+ * {@link Server2ClientHandler}把报文头写在预留的位置，报文头和读到的数据是一个连续的buffer，直接交给发送队列，不再复制body。
+ * handle实现{@link RecvByteBufAllocator.ExtendedHandle}，epoll和io_uring的channel要求这个接口
+ */
+public class HeadroomRecvByteBufAllocator implements RecvByteBufAllocator {
+
+    private final RecvByteBufAllocator delegate = new AdaptiveRecvByteBufAllocator();
+
+    private final int headroom;
+
+    public HeadroomRecvByteBufAllocator(int headroom) {
+        this.headroom = headroom;
+    }
+
+    //RecvByteBufAllocator.Handle在netty 4.1里标记为过时，接口方法的返回类型仍然是它
+    @SuppressWarnings("deprecation")
+    @Override
+    public Handle newHandle() {
+        return new HeadroomHandle((ExtendedHandle) delegate.newHandle());
+    }
+
+    private final class HeadroomHandle implements ExtendedHandle {
+
+        private final ExtendedHandle handle;
+
+        HeadroomHandle(ExtendedHandle handle) {
+            this.handle = handle;
+        }
+
+        /**
+         * 容量是估算的大小加上headroom，读和写索引都从headroom开始，可以读的空间和估算的一样，不影响大小的调整
+         */
+        @Override
+        public ByteBuf allocate(ByteBufAllocator alloc) {
+            return alloc.ioBuffer(handle.guess() + headroom).setIndex(headroom, headroom);
+        }
+
+        @Override
+        public int guess() {
+            return handle.guess();
+        }
+
+        @Override
+        public void reset(ChannelConfig config) {
+            handle.reset(config);
+        }
+
+        @Override
+        public void incMessagesRead(int numMessages) {
+            handle.incMessagesRead(numMessages);
+        }
+
+        @Override
+        public void lastBytesRead(int bytes) {
+            handle.lastBytesRead(bytes);
+        }
+
+        @Override
+        public int lastBytesRead() {
+            return handle.lastBytesRead();
+        }
+
+        @Override
+        public void attemptedBytesRead(int bytes) {
+            handle.attemptedBytesRead(bytes);
+        }
+
+        @Override
+        public int attemptedBytesRead() {
+            return handle.attemptedBytesRead();
+        }
+
+        @Override
+        public boolean continueReading() {
+            return handle.continueReading();
+        }
+
+        @Override
+        public boolean continueReading(UncheckedBooleanSupplier maybeMoreDataSupplier) {
+            return handle.continueReading(maybeMoreDataSupplier);
+        }
+
+        @Override
+        public void readComplete() {
+            handle.readComplete();
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.proxy;
+
+import io.netty.channel.EventLoop;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 会话和stream的空闲超时，读、写、读写三种分别配置，0表示不检查
+ * <p>
+ * 所有超时挂在一个{@link HashedWheelTimer}上，添加和取消都是O(1)，每一格只处理到期的超时，不再定时遍历所有会话和stream。
+ * 读写时只记录时间，超时到期后在对象自己的event loop中检查，还没有空闲够就按剩余的时间重新挂上，连接关闭时立即取消。
+ */
+@Component
+public class IdleTimer implements DisposableBean {
+
+    private static final Logger log = LoggerFactory.getLogger(IdleTimer.class);
+
+    private final HashedWheelTimer timer;
+
+    private final Limits stream;
+
+    private final Limits session;
+
+    private final LongAdder streamsExpired = new LongAdder();
+
+    private final LongAdder sessionsExpired = new LongAdder();
+
+    public IdleTimer(@Value("${proxy.idle.tick-ms:100}") long tickMillis,
+                     @Value("${proxy.idle.stream.read:0}") int streamRead,
+                     @Value("${proxy.idle.stream.write:0}") int streamWrite,
+                     @Value("${proxy.idle.stream.all:0}") int streamAll,
+                     @Value("${proxy.idle.session.read:0}") int sessionRead,
+                     @Value("${proxy.idle.session.write:0}") int sessionWrite,
+                     @Value("${proxy.idle.session.all:0}") int sessionAll) {
+        this.timer = new HashedWheelTimer(new DefaultThreadFactory("idle-timer", true), tickMillis, TimeUnit.MILLISECONDS);
+        this.stream = new Limits(streamRead, streamWrite, streamAll);
+        this.session = new Limits(sessionRead, sessionWrite, sessionAll);
+        log.info("idle timeout(s), stream: {}, session: {}", stream, session);
+    }
+
+    /**
+     * 目标服务连接的空闲检查，读写指目标服务连接上的读写
+     */
+    public Watch watchStream(EventLoop loop, Runnable onIdle) {
+        return watch(stream, streamsExpired, loop, onIdle);
+    }
+
+    /**
+     * websocket会话的空闲检查，读写指收到和发出的websocket消息
+     */
+    public Watch watchSession(EventLoop loop, Runnable onIdle) {
+        return watch(session, sessionsExpired, loop, onIdle);
+    }
+
+    private Watch watch(Limits limits, LongAdder expired, EventLoop loop, Runnable onIdle) {
+        if (!limits.enabled()) {
+            return Watch.NONE;
+        }
+        Watch watch = new Watch(timer, limits, expired, loop, onIdle);
+        watch.schedule(limits.min());
+        return watch;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("stream", stream.toString());
+        map.put("session", session.toString());
+        map.put("streamsExpired", streamsExpired.sum());
+        map.put("sessionsExpired", sessionsExpired.sum());
+        return map;
+    }
+
+    @Override
+    public void destroy() {
+        timer.stop();
+    }
+
+    /**
+     * 空闲时间的上限，单位纳秒，0表示不检查
+     */
+    private static final class Limits {
+
+        private final long read;
+
+        private final long write;
+
+        private final long all;
+
+        Limits(int read, int write, int all) {
+            this.read = TimeUnit.SECONDS.toNanos(Math.max(0, read));
+            this.write = TimeUnit.SECONDS.toNanos(Math.max(0, write));
+            this.all = TimeUnit.SECONDS.toNanos(Math.max(0, all));
+        }
+
+        boolean enabled() {
+            return read > 0 || write > 0 || all > 0;
+        }
+
+        long min() {
+            long now = System.nanoTime();
+            return remaining(now, now, now);
+        }
+
+        /**
+         * 距离最早到期的那种超时还有多久，小于等于0表示已经空闲
+         */
+        long remaining(long now, long lastRead, long lastWrite) {
+            long delay = Long.MAX_VALUE;
+            if (read > 0) {
+                delay = Math.min(delay, lastRead + read - now);
+            }
+            if (write > 0) {
+                delay = Math.min(delay, lastWrite + write - now);
+            }
+            if (all > 0) {
+                delay = Math.min(delay, Math.max(lastRead, lastWrite) + all - now);
+            }
+            return delay;
+        }
+
+        @Override
+        public String toString() {
+            return "read=" + TimeUnit.NANOSECONDS.toSeconds(read) + ", write=" + TimeUnit.NANOSECONDS.toSeconds(write)
+                    + ", all=" + TimeUnit.NANOSECONDS.toSeconds(all);
+        }
+    }
+
+    /**
+     * 一个会话或者stream的空闲检查，{@link #onRead()}和{@link #onWrite()}在对象的event loop中调用，{@link #cancel()}任何线程都可以调用
+     */
+    public static final class Watch implements TimerTask {
+
+        /**
+         * 没有配置超时时使用，不记录时间也不会到期
+         */
+        static final Watch NONE = new Watch(null, null, null, null, null);
+
+        private final HashedWheelTimer timer;
+
+        private final Limits limits;
+
+        private final LongAdder expired;
+
+        private final EventLoop loop;
+
+        private final Runnable onIdle;
+
+        private long lastRead;
+
+        private long lastWrite;
+
+        private volatile Timeout timeout;
+
+        private volatile boolean cancelled;
+
+        private Watch(HashedWheelTimer timer, Limits limits, LongAdder expired, EventLoop loop, Runnable onIdle) {
+            this.timer = timer;
+            this.limits = limits;
+            this.expired = expired;
+            this.loop = loop;
+            this.onIdle = onIdle;
+            this.lastRead = this.lastWrite = System.nanoTime();
+        }
+
+        public void onRead() {
+            if (limits != null) {
+                lastRead = System.nanoTime();
+            }
+        }
+
+        public void onWrite() {
+            if (limits != null) {
+                lastWrite = System.nanoTime();
+            }
+        }
+
+        public void cancel() {
+            cancelled = true;
+            Timeout t = timeout;
+            if (t != null) {
+                t.cancel();
+            }
+        }
+
+        private void schedule(long delay) {
+            timeout = timer.newTimeout(this, delay, TimeUnit.NANOSECONDS);
+            if (cancelled) {
+                timeout.cancel();
+            }
+        }
+
+        @Override
+        public void run(Timeout timeout) {
+            if (!cancelled) {
+                loop.execute(this::check);
+            }
+        }
+
+        private void check() {
+            if (cancelled) {
+                return;
+            }
+            long delay = limits.remaining(System.nanoTime(), lastRead, lastWrite);
+            if (delay > 0) {
+                schedule(delay);
+                return;
+            }
+            cancelled = true;
+            expired.increment();
+            onIdle.run();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.proxy;
+
+import com.proxy.common.TunnelOptions;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * netty websocket握手完成后处理二进制报文，ping/pong和close由{@link WebSocketServerProtocolHandler}处理
+ */
+public class NettyTunnelHandler extends SimpleChannelInboundHandler<BinaryWebSocketFrame> {
+
+    private static final Logger log = LoggerFactory.getLogger(NettyTunnelHandler.class);
+
+    private final TunnelService tunnelService;
+
+    private TunnelSession session;
+
+    public NettyTunnelHandler(TunnelService tunnelService) {
+        this.tunnelService = tunnelService;
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof WebSocketServerProtocolHandler.HandshakeComplete) {
+            TunnelOptions options = ctx.channel().attr(TunnelOptions.KEY).get();
+            session = tunnelService.newSession(ctx.channel(), options == null ? new TunnelOptions() : options);
+            tunnelService.sessionOpened(session);
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, BinaryWebSocketFrame frame) {
+        TunnelSession s = session;
+        if (s.eventLoop().inEventLoop()) {
+            tunnelService.handleMessage(s, frame.content());
+            return;
+        }
+        //恢复的会话在原来的event loop上
+        ByteBuf message = frame.content().retain();
+        s.eventLoop().execute(() -> {
+            try {
+                tunnelService.handleMessage(s, message);
+            } finally {
+                message.release();
+            }
+        });
+    }
+
+    /**
+     * 发送缓冲区降到低水位以下，继续发送调度器里的报文
+     */
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (session != null && ctx.channel().isWritable()) {
+            session.eventLoop().execute(session::drain);
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (session != null) {
+            log.info("ConnectionClosed: {}", ctx.channel());
+            tunnelService.sessionClosed(session);
+        }
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        log.error(cause.getMessage() + ctx.channel().remoteAddress(), cause);
+        ctx.close();
+    }
+}
@@ -0,0 +1,73 @@
+package com.proxy;
+
+import com.proxy.common.FairScheduler;
+import com.proxy.common.TunnelOptions;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketCloseStatus;
+
+/**
+ * netty websocket会话，新的会话使用websocket连接的event loop，目标服务的连接和发送队列也在这个event loop上处理；
+ * 恢复的会话沿用原来的event loop，收到的消息由{@link NettyTunnelHandler}转到这个event loop
+ */
+public class NettyTunnelSession extends TunnelSession {
+
+    private final Channel channel;
+
+    public NettyTunnelSession(Channel channel, EventLoop loop, TunnelOptions options, FairScheduler scheduler,
+                              long maxQueuedBytes, int maxMessageSize) {
+        super(loop, options, scheduler, maxQueuedBytes, maxMessageSize);
+        this.channel = channel;
+    }
+
+    Channel channel() {
+        return channel;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isActive();
+    }
+
+    @Override
+    public void goingAway() {
+        channel.writeAndFlush(new CloseWebSocketFrame(WebSocketCloseStatus.ENDPOINT_UNAVAILABLE))
+                .addListener(ChannelFutureListener.CLOSE);
+    }
+
+    /**
+     * 连接的发送缓冲区超过高水位时停止，剩下的报文留在调度器里，由{@link NettyTunnelHandler}在连接恢复可写时继续
+     */
+    @Override
+    protected void drain() {
+        while (channel.isWritable()) {
+            ByteBuf message = pollMessage(channel.alloc());
+            if (message == null) {
+                channel.flush();
+                drainComplete();
+                return;
+            }
+            int bytes = message.readableBytes();
+            channel.write(new BinaryWebSocketFrame(message)).addListener(future -> messageWritten(bytes));
+        }
+        channel.flush();
+    }
+
+    /**
+     * 释放发送队列并关闭websocket连接，连接已经关闭时什么都不做
+     */
+    @Override
+    public void close() {
+        super.close();
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return channel.toString();
+    }
+}
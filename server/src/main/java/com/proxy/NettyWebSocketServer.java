@@ -0,0 +1,77 @@
+package com.proxy;
+
+import com.proxy.common.Transport;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * netty websocket入口，proxy.tunnel=netty时启用，websocket连接和目标服务连接共用{@link TunnelService}的event loop
+ */
+@Component
+@ConditionalOnProperty(name = "proxy.tunnel", havingValue = "netty")
+public class NettyWebSocketServer implements DisposableBean, InitializingBean {
+
+    private final Logger log = LoggerFactory.getLogger(NettyWebSocketServer.class);
+
+    private final TunnelService tunnelService;
+
+    private final int port;
+
+    private final String path;
+
+    private final Transport transport;
+
+    private final EventLoopGroup boss;
+
+    private Channel serverChannel;
+
+    public NettyWebSocketServer(Transport transport, TunnelService tunnelService,
+                                @Value("${proxy.netty.port:8082}") int port,
+                                @Value("${proxy.netty.path:/temp/ws}") String path) {
+        this.transport = transport;
+        this.boss = transport.newEventLoopGroup(1);
+        this.tunnelService = tunnelService;
+        this.port = port;
+        this.path = path;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws InterruptedException {
+        serverChannel = transport.configure(new ServerBootstrap().group(boss, tunnelService.getLoopGroup()))
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.config().setKeepAlive(true);
+                        ChannelPipeline p = ch.pipeline();
+                        p.addLast(new HttpServerCodec());
+                        p.addLast(new HttpObjectAggregator(65536));
+                        p.addLast(new HandshakeOptionsHandler(tunnelService));
+                        p.addLast(new WebSocketServerProtocolHandler(path, null, true, tunnelService.getMaxClientMessageSize()));
+                        p.addLast(new NettyTunnelHandler(tunnelService));
+                    }
+                }).bind(port).sync().channel();
+        log.info("netty websocket started successfully at port: {}, path: {}.", port, path);
+    }
+
+    @Override
+    public void destroy() {
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+        boss.shutdownGracefully();
+    }
+}
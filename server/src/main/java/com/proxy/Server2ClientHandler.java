@@ -0,0 +1,96 @@
+package com.proxy;
+
+import com.proxy.common.RecordCodec;
+import com.proxy.common.TunnelProtocol;
+import com.proxy.common.XorCodec;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.RecvByteBufAllocator;
+import io.netty.channel.SimpleChannelInboundHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 目标服务返回的数据转发给websocket客户端
+ */
+public class Server2ClientHandler extends SimpleChannelInboundHandler<ByteBuf> {
+
+    private static final Logger log = LoggerFactory.getLogger(Server2ClientHandler.class);
+
+    /**
+     * 目标服务连接的读缓冲区在前面预留报文头的位置，建立连接时设置到{@link io.netty.channel.ChannelOption#RCVBUF_ALLOCATOR}
+     */
+    static final RecvByteBufAllocator RECV_ALLOCATOR = new HeadroomRecvByteBufAllocator(TunnelProtocol.HEADER_LENGTH);
+
+    private final ChannelWrap wrap;
+
+    private final long clientId;
+
+    /**
+     * stream所在的会话在恢复时会换，每次从wrap取
+     */
+    public Server2ClientHandler(ChannelWrap wrap) {
+        this.wrap = wrap;
+        this.clientId = wrap.getClientId();
+    }
+
+    @Override
+    public void channelRead0(ChannelHandlerContext ctx2, ByteBuf in) {
+        if (log.isDebugEnabled()) {
+            log.debug("received msg from target server: [{}], length: {}B, clientChannelId: {}", ctx2.channel().remoteAddress(), in.readableBytes(), clientId);
+        }
+        int length = in.readableBytes();
+        wrap.idle().onRead();
+        //编码会在原地混淆，先保存原始数据
+        wrap.record(in);
+        ByteBuf res = wrap.compress(ctx2.alloc(), in);
+        if (res == null) {
+            RecordCodec codec = wrap.session().codec();
+            int header = in.readerIndex() - codec.headerLength(clientId, length);
+            if (header >= 0) {
+                //报文头写在读缓冲区预留的位置，原地混淆后整个buffer交给发送队列
+                XorCodec.xor(in, XorCodec.getSeed(clientId));
+                codec.setHeader(in, header, TunnelProtocol.TYPE_DATA, clientId, length);
+                res = in.readerIndex(header).retain();
+            } else {
+                res = codec.data(ctx2.alloc(), clientId, in);
+            }
+        }
+        wrap.send(res);
+        //发送队列满了或者窗口用完时暂停读取，会话恢复可写或者收到窗口更新时重新打开
+        wrap.dataSent(length);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx2) {
+        upstreamClosed(ctx2.channel());
+    }
+
+    /**
+     * 目标服务连接关闭，通知客户端
+     */
+    void upstreamClosed(Channel channel) {
+        TunnelSession session = wrap.session();
+        if (session.isResumable()) {
+            //客户端回复关闭报文后再移除，断开时丢失的数据和关闭报文恢复后重发
+            if (session.getStream(clientId) == wrap && !wrap.isClosing()) {
+                log.debug("target server {} disconnected, clientChannelId: {}", channel, clientId);
+                wrap.setClosing();
+                wrap.send(session.codec().close(channel.alloc(), clientId));
+            }
+            return;
+        }
+        //客户端可能已经用同一个id重新打开了连接，只移除自己
+        if (session.removeStream(clientId, wrap)) {
+            log.debug("target server {} disconnected, clientChannelId: {}", channel, clientId);
+            //排在这个stream已经排队的数据后面
+            wrap.send(session.codec().close(channel.alloc(), clientId));
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        log.error(cause.getMessage() + ctx.channel().remoteAddress(), cause);
+    }
+}
@@ -0,0 +1,330 @@
+package com.proxy;
+
+import com.proxy.common.TunnelOptions;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpUpgradeHandler;
+import javax.servlet.http.WebConnection;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * tomcat入口握手之后的websocket连接，由{@link TomcatTunnelServlet}升级得到，tomcat用无参构造方法创建。
+ * <p>
+ * 在tomcat线程中用非阻塞的servlet输入流把数据直接读进池化的heap buffer，原地去掉掩码，
+ * 每个完整的消息是这个buffer的一个slice，交给会话的event loop处理，不再像jsr356的实现那样为每个消息复制一次。
+ * 客户端的ping在这里回复，close帧回复后关闭连接。
+ */
+public class TomcatTunnelHandler implements HttpUpgradeHandler, ReadListener {
+
+    private static final Logger log = LoggerFactory.getLogger(TomcatTunnelHandler.class);
+
+    /**
+     * 读缓冲区的默认大小，放不下一个帧时按帧的大小分配
+     */
+    private static final int READ_BUFFER_SIZE = 32768;
+
+    /**
+     * 客户端的帧都有掩码，帧头最长14 bytes
+     */
+    private static final int MAX_FRAME_HEADER = 14;
+
+    private static final int OPCODE_CONTINUATION = 0x0;
+
+    private static final int OPCODE_TEXT = 0x1;
+
+    private static final int OPCODE_PING = 0x9;
+
+    private static final int CLOSE_PROTOCOL_ERROR = 1002;
+
+    private static final int CLOSE_TOO_BIG = 1009;
+
+    private TunnelService tunnelService;
+
+    private TunnelOptions options;
+
+    private String remote;
+
+    private TomcatTunnelSession session;
+
+    private ServletInputStream in;
+
+    private final AtomicBoolean ended = new AtomicBoolean();
+
+    /**
+     * 读缓冲区，已经交出去的消息是它的slice，只在tomcat线程中使用
+     */
+    private ByteBuf buffer;
+
+    /**
+     * 分片消息已经收到的部分，没有分片时为null
+     */
+    private CompositeByteBuf fragments;
+
+    /**
+     * 当前消息是文本消息，隧道不使用，丢弃
+     */
+    private boolean text;
+
+    /**
+     * 握手的请求里调用，init之前设置
+     */
+    void setup(TunnelService tunnelService, TunnelOptions options, String remote) {
+        this.tunnelService = tunnelService;
+        this.options = options;
+        this.remote = remote;
+    }
+
+    @Override
+    public void init(WebConnection connection) {
+        try {
+            session = tunnelService.newSession(connection, remote, options, this::end);
+            in = connection.getInputStream();
+        } catch (IOException e) {
+            log.error("init tomcat websocket {} failed: {}", remote, e.getMessage());
+            try {
+                connection.close();
+            } catch (Exception ignored) {
+            }
+            return;
+        }
+        buffer = ByteBufAllocator.DEFAULT.heapBuffer(READ_BUFFER_SIZE);
+        tunnelService.sessionOpened(session);
+        in.setReadListener(this);
+    }
+
+    @Override
+    public void onDataAvailable() throws IOException {
+        while (buffer != null && in.isReady()) {
+            if (!buffer.isWritable()) {
+                ensureWritable();
+            }
+            int n = in.read(buffer.array(), buffer.arrayOffset() + buffer.writerIndex(), buffer.writableBytes());
+            if (n < 0) {
+                end();
+                return;
+            }
+            if (n == 0) {
+                break;
+            }
+            buffer.writerIndex(buffer.writerIndex() + n);
+            if (!decode()) {
+                return;
+            }
+            if (!buffer.isReadable() && buffer.refCnt() == 1) {
+                buffer.clear();
+            }
+        }
+    }
+
+    /**
+     * 读缓冲区满了：消息都已经处理完时把剩下的半个帧移到开头，否则移到新的缓冲区，放不下一个帧时按帧的大小分配
+     */
+    private void ensureWritable() {
+        int required = Math.max(READ_BUFFER_SIZE, pendingFrameSize());
+        if (buffer.refCnt() == 1 && buffer.capacity() >= required) {
+            buffer.discardReadBytes();
+            return;
+        }
+        ByteBuf next = ByteBufAllocator.DEFAULT.heapBuffer(required);
+        next.writeBytes(buffer);
+        buffer.release();
+        buffer = next;
+    }
+
+    /**
+     * 缓冲区开头不完整的帧需要的总字节数，帧头还不完整时按最长的帧头算
+     */
+    private int pendingFrameSize() {
+        int readable = buffer.readableBytes();
+        if (readable < 2) {
+            return MAX_FRAME_HEADER;
+        }
+        int index = buffer.readerIndex();
+        int len = buffer.getByte(index + 1) & 0x7F;
+        int header = len == 126 ? 8 : len == 127 ? 14 : 6;
+        if (readable < header) {
+            return MAX_FRAME_HEADER;
+        }
+        long payload = len == 126 ? buffer.getUnsignedShort(index + 2) : len == 127 ? buffer.getLong(index + 2) : len;
+        return (int) (header + payload);
+    }
+
+    /**
+     * 解析缓冲区中完整的帧，连接需要关闭时返回false
+     */
+    private boolean decode() {
+        while (buffer.readableBytes() >= 2) {
+            int index = buffer.readerIndex();
+            int b0 = buffer.getByte(index);
+            int b1 = buffer.getByte(index + 1);
+            boolean fin = (b0 & 0x80) != 0;
+            int opcode = b0 & 0x0F;
+            int len = b1 & 0x7F;
+            if ((b1 & 0x80) == 0 || (b0 & 0x70) != 0) {
+                //客户端的帧必须有掩码，没有协商扩展时rsv必须为0
+                return protocolError(CLOSE_PROTOCOL_ERROR, "invalid frame header");
+            }
+            int header = len == 126 ? 8 : len == 127 ? 14 : 6;
+            if (buffer.readableBytes() < header) {
+                return true;
+            }
+            long payload = len == 126 ? buffer.getUnsignedShort(index + 2) : len == 127 ? buffer.getLong(index + 2) : len;
+            int pending = fragments == null ? 0 : fragments.readableBytes();
+            if (payload < 0 || payload + pending > tunnelService.getMaxClientMessageSize()) {
+                return protocolError(CLOSE_TOO_BIG, "message too big: " + (payload + pending));
+            }
+            if (buffer.readableBytes() < header + payload) {
+                return true;
+            }
+            int mask = buffer.getInt(index + header - 4);
+            int start = index + header;
+            int length = (int) payload;
+            unmask(buffer.array(), buffer.arrayOffset() + start, length, mask);
+            buffer.readerIndex(start + length);
+            if ((opcode & 0x08) != 0) {
+                if (!fin || length > 125) {
+                    return protocolError(CLOSE_PROTOCOL_ERROR, "invalid control frame");
+                }
+                if (!control(opcode, start, length)) {
+                    return false;
+                }
+            } else if (!data(opcode, fin, start, length)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean control(int opcode, int start, int length) {
+        byte[] payload = new byte[length];
+        buffer.getBytes(start, payload);
+        if (opcode == TomcatTunnelSession.OPCODE_CLOSE) {
+            //回复客户端的状态码，发出后关闭连接
+            session.closeWith(length >= 2 ? new byte[]{payload[0], payload[1]} : new byte[0]);
+            release();
+            return false;
+        }
+        if (opcode == OPCODE_PING) {
+            session.sendControl(TomcatTunnelSession.OPCODE_PONG, payload);
+        }
+        return true;
+    }
+
+    private boolean data(int opcode, boolean fin, int start, int length) {
+        boolean continuation = opcode == OPCODE_CONTINUATION;
+        if (continuation != (fragments != null || text)) {
+            return protocolError(CLOSE_PROTOCOL_ERROR, "unexpected frame, opcode: " + opcode);
+        }
+        if (opcode == OPCODE_TEXT || continuation && text) {
+            text = !fin;
+            return true;
+        }
+        if (!continuation && opcode != TomcatTunnelSession.OPCODE_BINARY) {
+            return protocolError(CLOSE_PROTOCOL_ERROR, "unknown opcode: " + opcode);
+        }
+        ByteBuf slice = buffer.retainedSlice(start, length);
+        if (!fin) {
+            if (fragments == null) {
+                fragments = ByteBufAllocator.DEFAULT.compositeHeapBuffer(Integer.MAX_VALUE);
+            }
+            fragments.addComponent(true, slice);
+            return true;
+        }
+        ByteBuf message = slice;
+        if (fragments != null) {
+            message = fragments.addComponent(true, slice);
+            fragments = null;
+        }
+        dispatch(message);
+        return true;
+    }
+
+    /**
+     * 消息交给会话的event loop处理，处理完释放
+     */
+    private void dispatch(ByteBuf message) {
+        TomcatTunnelSession s = session;
+        s.eventLoop().execute(() -> {
+            try {
+                tunnelService.handleMessage(s, message);
+            } finally {
+                message.release();
+            }
+        });
+    }
+
+    /**
+     * 去掉掩码，按4字节一组处理
+     */
+    private static void unmask(byte[] array, int index, int length, int mask) {
+        byte m0 = (byte) (mask >>> 24);
+        byte m1 = (byte) (mask >>> 16);
+        byte m2 = (byte) (mask >>> 8);
+        byte m3 = (byte) mask;
+        int end = index + length;
+        int intEnd = index + (length & ~3);
+        for (; index < intEnd; index += 4) {
+            array[index] ^= m0;
+            array[index + 1] ^= m1;
+            array[index + 2] ^= m2;
+            array[index + 3] ^= m3;
+        }
+        for (int shift = 24; index < end; index++, shift -= 8) {
+            array[index] ^= (byte) (mask >>> shift);
+        }
+    }
+
+    private boolean protocolError(int code, String reason) {
+        log.warn("tomcat websocket {} protocol error: {}", session, reason);
+        session.closeWith(new byte[]{(byte) (code >>> 8), (byte) code});
+        release();
+        return false;
+    }
+
+    @Override
+    public void onAllDataRead() {
+        end();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        log.debug("tomcat websocket {} read failed: {}", session, t.getMessage());
+        end();
+    }
+
+    /**
+     * 连接结束，通知{@link TunnelService}关闭会话，只执行一次
+     */
+    private void end() {
+        if (ended.compareAndSet(false, true)) {
+            log.info("ConnectionClosed: {}", session);
+            tunnelService.sessionClosed(session);
+        }
+    }
+
+    private void release() {
+        if (buffer != null) {
+            buffer.release();
+            buffer = null;
+        }
+        if (fragments != null) {
+            fragments.release();
+            fragments = null;
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (session != null) {
+            end();
+        }
+        release();
+    }
+}
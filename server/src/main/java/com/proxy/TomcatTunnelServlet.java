@@ -0,0 +1,91 @@
+package com.proxy;
+
+import com.proxy.common.TunnelOptions;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.servlet.ServletRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * tomcat websocket入口，proxy.tunnel=tomcat时启用（默认），地址是server.port + /temp/ws。
+ * <p>
+ * 按RFC 6455完成握手，协商隧道参数后把连接升级给{@link TomcatTunnelHandler}，
+ * 不经过jsr356的websocket实现，收到的数据直接读进netty的buffer。
+ */
+@Configuration
+@ConditionalOnProperty(name = "proxy.tunnel", havingValue = "tomcat", matchIfMissing = true)
+public class TomcatTunnelServlet extends HttpServlet {
+
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    private static final String VERSION = "13";
+
+    private final transient TunnelService tunnelService;
+
+    public TomcatTunnelServlet(TunnelService tunnelService) {
+        this.tunnelService = tunnelService;
+    }
+
+    @Bean
+    public ServletRegistrationBean<TomcatTunnelServlet> tunnelServlet() {
+        return new ServletRegistrationBean<>(this, "/ws");
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws IOException, ServletException {
+        String key = request.getHeader("Sec-WebSocket-Key");
+        if (!contains(request.getHeader("Upgrade"), "websocket") || !contains(request.getHeader("Connection"), "upgrade")
+                || key == null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Can \"Upgrade\" only to \"WebSocket\".");
+            return;
+        }
+        if (!VERSION.equals(request.getHeader("Sec-WebSocket-Version"))) {
+            response.setHeader("Sec-WebSocket-Version", VERSION);
+            response.sendError(426, "Unsupported websocket version");
+            return;
+        }
+        TunnelOptions options = tunnelService.negotiate(request::getHeader);
+        response.setHeader("Upgrade", "websocket");
+        response.setHeader("Connection", "upgrade");
+        response.setHeader("Sec-WebSocket-Accept", accept(key.trim()));
+        options.toHeaders(response::addHeader);
+        TomcatTunnelHandler handler = request.upgrade(TomcatTunnelHandler.class);
+        handler.setup(tunnelService, options, request.getRemoteAddr() + ':' + request.getRemotePort());
+    }
+
+    /**
+     * 逗号分隔的头部值里有token，不区分大小写
+     */
+    private static boolean contains(String header, String token) {
+        if (header == null) {
+            return false;
+        }
+        for (String value : header.split(",")) {
+            if (value.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String accept(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.ISO_8859_1));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.proxy;
+
+import com.proxy.common.FairScheduler;
+import com.proxy.common.TunnelOptions;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.EventLoop;
+import io.netty.util.internal.PlatformDependent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.WebConnection;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * tomcat websocket会话，在会话的event loop中用非阻塞的servlet输出流直接写websocket帧。
+ * <p>
+ * 帧头和消息复制到会话自己的数组里，一次write交给tomcat；tomcat写不完时{@link ServletOutputStream#isReady()}返回false，
+ * 等{@link #onWritePossible()}再继续，所以tomcat里最多只有一个没有写完的消息。
+ * drain可以重复进入，ping的回复和关闭帧也通过它发送。
+ */
+public class TomcatTunnelSession extends TunnelSession implements WriteListener {
+
+    private static final Logger log = LoggerFactory.getLogger(TomcatTunnelSession.class);
+
+    /**
+     * 服务端发出的帧不加掩码，帧头最长10 bytes
+     */
+    private static final int MAX_FRAME_HEADER = 10;
+
+    static final int OPCODE_BINARY = 0x2;
+
+    static final int OPCODE_CLOSE = 0x8;
+
+    static final int OPCODE_PONG = 0xA;
+
+    private static final int CLOSE_GOING_AWAY = 1001;
+
+    private final WebConnection connection;
+
+    private final ServletOutputStream out;
+
+    /**
+     * ping的回复和关闭帧，优先于消息发送
+     */
+    private final Queue<byte[]> controlFrames = PlatformDependent.newMpscQueue();
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private volatile boolean closing;
+
+    /**
+     * 发送失败或者关闭帧发出后调用，由handler通知{@link TunnelService#sessionClosed}
+     */
+    private final Runnable onClosed;
+
+    private final String remote;
+
+    /**
+     * 组装帧的数组，按最大的消息扩大，只在event loop中使用
+     */
+    private byte[] frame;
+
+    public TomcatTunnelSession(WebConnection connection, String remote, EventLoop loop, TunnelOptions options,
+                               FairScheduler scheduler, long maxQueuedBytes, int maxMessageSize, Runnable onClosed)
+            throws IOException {
+        super(loop, options, scheduler, maxQueuedBytes, maxMessageSize);
+        this.connection = connection;
+        this.remote = remote;
+        this.out = connection.getOutputStream();
+        this.onClosed = onClosed;
+        this.frame = new byte[maxMessageSize + MAX_FRAME_HEADER];
+        out.setWriteListener(this);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed.get();
+    }
+
+    /**
+     * 发送一个控制帧，payload不超过125 bytes，任何线程都可以调用
+     */
+    void sendControl(int opcode, byte[] payload) {
+        byte[] control = new byte[2 + payload.length];
+        control[0] = (byte) (0x80 | opcode);
+        control[1] = (byte) payload.length;
+        System.arraycopy(payload, 0, control, 2, payload.length);
+        controlFrames.offer(control);
+        eventLoop().execute(this::drain);
+    }
+
+    /**
+     * 回复关闭帧，发出后关闭连接
+     */
+    void closeWith(byte[] payload) {
+        closing = true;
+        sendControl(OPCODE_CLOSE, payload);
+    }
+
+    /**
+     * 连接的两个流关闭后tomcat要等下一次读事件才关闭socket，先发关闭帧，客户端的回复会触发这次读事件
+     */
+    @Override
+    public void goingAway() {
+        closeWith(new byte[]{(byte) (CLOSE_GOING_AWAY >>> 8), (byte) CLOSE_GOING_AWAY});
+    }
+
+    @Override
+    protected void drain() {
+        if (!isOpen()) {
+            return;
+        }
+        try {
+            while (out.isReady()) {
+                byte[] control = controlFrames.poll();
+                if (control != null) {
+                    out.write(control);
+                    if (control[0] == (byte) (0x80 | OPCODE_CLOSE)) {
+                        out.flush();
+                        onClosed.run();
+                        return;
+                    }
+                    continue;
+                }
+                if (closing) {
+                    return;
+                }
+                ByteBuf message = pollMessage(ByteBufAllocator.DEFAULT);
+                if (message == null) {
+                    out.flush();
+                    drainComplete();
+                    return;
+                }
+                int bytes = message.readableBytes();
+                try {
+                    //encode可能换成更大的数组，先编码再取frame
+                    int length = encode(message);
+                    out.write(frame, 0, length);
+                } finally {
+                    message.release();
+                    messageWritten(bytes);
+                }
+            }
+        } catch (IOException | IllegalStateException e) {
+            sendFailed(e);
+        }
+    }
+
+    /**
+     * 帧头和消息复制到frame里，返回帧的长度
+     */
+    private int encode(ByteBuf message) {
+        int length = message.readableBytes();
+        if (frame.length < length + MAX_FRAME_HEADER) {
+            frame = new byte[length + MAX_FRAME_HEADER];
+        }
+        int header;
+        frame[0] = (byte) (0x80 | OPCODE_BINARY);
+        if (length < 126) {
+            frame[1] = (byte) length;
+            header = 2;
+        } else if (length < 65536) {
+            frame[1] = 126;
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+            header = 4;
+        } else {
+            frame[1] = 127;
+            for (int i = 0; i < 8; i++) {
+                frame[2 + i] = (byte) (i < 4 ? 0 : length >>> (8 * (7 - i)));
+            }
+            header = 10;
+        }
+        message.getBytes(message.readerIndex(), frame, header, length);
+        return header + length;
+    }
+
+    @Override
+    public void onWritePossible() {
+        eventLoop().execute(this::drain);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        sendFailed(t);
+    }
+
+    private void sendFailed(Throwable cause) {
+        if (isOpen()) {
+            log.error("send message to session {} failed: {}", this, cause.getMessage());
+        }
+        onClosed.run();
+    }
+
+    /**
+     * 释放发送队列并关闭连接，只执行一次。连接的两个流都关闭后tomcat在下一次读事件时关闭socket
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        super.close();
+        try {
+            connection.close();
+        } catch (Exception e) {
+            log.debug("close session {} failed: {}", this, e.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "[tomcat, R:" + remote + "]";
+    }
+}
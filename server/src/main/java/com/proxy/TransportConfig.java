@@ -0,0 +1,30 @@
+package com.proxy;
+
+import com.proxy.common.Transport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * netty传输层配置，netty websocket入口、目标服务连接、dns解析使用同一种传输
+ */
+@Configuration
+public class TransportConfig {
+
+    private static final Logger log = LoggerFactory.getLogger(TransportConfig.class);
+
+    @Bean
+    public Transport transport(@Value("${proxy.transport.type:auto}") String type,
+                               @Value("${proxy.transport.quick-ack:false}") boolean quickAck,
+                               @Value("${proxy.transport.fast-open-connect:false}") boolean fastOpenConnect,
+                               @Value("${proxy.transport.fast-open:0}") int fastOpen,
+                               @Value("${proxy.transport.busy-poll:0}") int busyPoll,
+                               @Value("${proxy.transport.notsent-lowat:0}") int notSentLowat) {
+        Transport transport = Transport.select(type).setQuickAck(quickAck).setFastOpenConnect(fastOpenConnect)
+                .setFastOpen(fastOpen).setBusyPoll(busyPoll).setNotSentLowat(notSentLowat);
+        log.info("netty transport: {}", transport);
+        return transport;
+    }
+}
@@ -0,0 +1,518 @@
+package com.proxy;
+
+import com.proxy.common.CompressionStats;
+import com.proxy.common.FairScheduler;
+import com.proxy.common.RecordCodec;
+import com.proxy.common.RecordCompressor;
+import com.proxy.common.Transport;
+import com.proxy.common.TunnelOptions;
+import com.proxy.common.TunnelProtocol;
+import com.proxy.common.XorCodec;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.*;
+import io.netty.util.collection.LongObjectMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.servlet.http.WebConnection;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * 隧道报文处理，tomcat和netty两种websocket入口共用
+ * <p>
+ * proxy.resume.grace大于0时会话可以恢复：握手时给客户端一个token，连接断开后会话保留grace秒，
+ * 目标服务连接不关闭；客户端带着token重连后新的会话接管原来的stream，双方按恢复报文里的位置重发数据。
+ */
+@Component
+public class TunnelService implements DisposableBean, InitializingBean {
+
+    private final Logger log = LoggerFactory.getLogger(TunnelService.class);
+
+    private final Set<TunnelSession> sessions = ConcurrentHashMap.newKeySet();
+
+    /**
+     * token到当前持有这个token的会话，包括断开后等待恢复的
+     */
+    private final Map<String, TunnelSession> resumable = new ConcurrentHashMap<>();
+
+    private final SecureRandom random = new SecureRandom();
+
+    private final Transport transport;
+
+    private final EventLoopGroup loopGroup;
+
+    private final UpstreamResolver resolver;
+
+    private final UpstreamPool upstreamPool;
+
+    private final IdleTimer idleTimer;
+
+    private final long maxQueuedBytes;
+
+    private final int maxMessageSize;
+
+    /**
+     * 每个会话的stream调度参数，见{@link FairScheduler}
+     */
+    private final int scheduleQuantum;
+
+    private final int maxStreamQueuedBytes;
+
+    private final Map<Integer, Integer> streamWeights;
+
+    /**
+     * 服务端支持的参数，和客户端请求的参数协商后得到每个会话的参数
+     */
+    private final TunnelOptions options;
+
+    /**
+     * 客户端发来的websocket消息的最大长度，websocket入口的接收缓冲区按这个大小配置
+     */
+    private final int maxClientMessageSize;
+
+    /**
+     * 断开的会话等待恢复的秒数，0表示不支持恢复
+     */
+    private final int resumeGrace;
+
+    public TunnelService(Transport transport, UpstreamResolver resolver, UpstreamPool upstreamPool, IdleTimer idleTimer,
+                         @Value("${proxy.session.max-queued-bytes:4194304}") long maxQueuedBytes,
+                         @Value("${proxy.session.max-message-size:65536}") int maxMessageSize,
+                         @Value("${proxy.session.max-client-message-size:262144}") int maxClientMessageSize,
+                         @Value("${proxy.flow.window:262144}") int window,
+                         @Value("${proxy.compress.enabled:true}") boolean compress,
+                         @Value("${proxy.protocol.version:2}") int version,
+                         @Value("${proxy.schedule.quantum:16384}") int scheduleQuantum,
+                         @Value("${proxy.schedule.max-stream-queued-bytes:131072}") int maxStreamQueuedBytes,
+                         @Value("${proxy.schedule.weights:}") String streamWeights,
+                         @Value("${proxy.resume.grace:0}") int resumeGrace) {
+        this.transport = transport;
+        this.loopGroup = transport.newEventLoopGroup(0);
+        this.resolver = resolver;
+        this.upstreamPool = upstreamPool;
+        this.idleTimer = idleTimer;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.maxMessageSize = maxMessageSize;
+        this.maxClientMessageSize = maxClientMessageSize;
+        this.scheduleQuantum = scheduleQuantum;
+        this.maxStreamQueuedBytes = maxStreamQueuedBytes;
+        this.streamWeights = FairScheduler.parseWeights(streamWeights);
+        this.resumeGrace = resumeGrace;
+        //服务端总是支持一个消息里有多个报文
+        this.options = new TunnelOptions().setWindow(window).setBatch(true).setMaxMessageSize(maxClientMessageSize)
+                .setCompress(compress).setVersion(version);
+    }
+
+    public EventLoopGroup getLoopGroup() {
+        return loopGroup;
+    }
+
+    /**
+     * 当前的会话
+     */
+    Collection<TunnelSession> sessions() {
+        return Collections.unmodifiableSet(sessions);
+    }
+
+    public int getMaxClientMessageSize() {
+        return maxClientMessageSize;
+    }
+
+    /**
+     * 握手时根据客户端的请求头协商参数
+     */
+    public TunnelOptions negotiate(Function<String, String> headers) {
+        TunnelOptions remote = TunnelOptions.fromHeaders(headers);
+        TunnelOptions negotiated = options.negotiate(remote);
+        //恢复依赖窗口确认释放重发缓冲区，还需要v2的恢复报文
+        String requested = remote.getSession();
+        if (resumeGrace > 0 && requested != null && negotiated.getWindow() > 0
+                && negotiated.getVersion() >= TunnelProtocol.VERSION_2) {
+            negotiated.setSession(resumable.containsKey(requested) ? requested : newToken());
+        }
+        return negotiated;
+    }
+
+    private String newToken() {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    /**
+     * 恢复的会话使用原来的event loop，目标服务的连接注册在上面
+     */
+    private EventLoop loopFor(TunnelOptions options, EventLoop fallback) {
+        TunnelSession previous = options.getSession() == null ? null : resumable.get(options.getSession());
+        return previous != null ? previous.eventLoop() : fallback;
+    }
+
+    /**
+     * tomcat入口升级后的连接，onClosed在连接需要关闭时调用
+     */
+    public TomcatTunnelSession newSession(WebConnection connection, String remote, TunnelOptions options,
+                                          Runnable onClosed) throws IOException {
+        return new TomcatTunnelSession(connection, remote, loopFor(options, loopGroup.next()), options, newScheduler(),
+                maxQueuedBytes, maxMessageSize, onClosed);
+    }
+
+    public TunnelSession newSession(Channel channel, TunnelOptions options) {
+        return new NettyTunnelSession(channel, loopFor(options, channel.eventLoop()), options, newScheduler(),
+                maxQueuedBytes, maxMessageSize);
+    }
+
+    private FairScheduler newScheduler() {
+        return new FairScheduler(scheduleQuantum, maxStreamQueuedBytes, streamWeights);
+    }
+
+    public void sessionOpened(TunnelSession session) {
+        session.setRecordHandler((type, clientId, body) -> handleRecord(session, type, clientId, body));
+        sessions.add(session);
+        session.setIdle(idleTimer.watchSession(session.eventLoop(), () -> {
+            log.info("session {} idle timeout", session);
+            session.goingAway();
+        }));
+        if (session.isResumable()) {
+            TunnelSession previous = resumable.put(session.token(), session);
+            if (previous != null && session.eventLoop().inEventLoop()) {
+                adopt(session, previous);
+            } else if (previous != null) {
+                //在客户端的恢复报文之前接管，新连接的消息排在这个任务后面
+                session.eventLoop().execute(() -> adopt(session, previous));
+            }
+        }
+    }
+
+    /**
+     * 新的会话带着token连上来，接管上一个会话的stream；上一个会话的连接可能还没有发现断开，这里关闭它
+     */
+    private void adopt(TunnelSession session, TunnelSession previous) {
+        sessionClosed(previous);
+        if (previous.eventLoop() != session.eventLoop()) {
+            //选择event loop之后token又换了会话，不能接管
+            previous.eventLoop().execute(() -> closeChannels(previous));
+            return;
+        }
+        session.adopt(previous);
+        log.info("session {} resumed from {}, streams: {}", session, previous, session.streamCount());
+    }
+
+    /**
+     * 会话关闭，可以重复调用，只处理第一次。可以恢复的会话保留stream和目标服务连接，grace秒内没有恢复再关闭
+     */
+    public void sessionClosed(TunnelSession session) {
+        if (!sessions.remove(session)) {
+            return;
+        }
+        session.idle().cancel();
+        session.close();
+        String token = session.token();
+        if (token != null && resumable.get(token) == session) {
+            log.info("session {} disconnected, keep {} streams for {}s", session, session.streamCount(), resumeGrace);
+            session.eventLoop().schedule(() -> {
+                if (resumable.remove(token, session)) {
+                    log.info("session {} not resumed in {}s, close {} streams", session, resumeGrace,
+                            session.streamCount());
+                    closeChannels(session);
+                }
+            }, resumeGrace, TimeUnit.SECONDS);
+            return;
+        }
+        if (token != null) {
+            resumable.remove(token, session);
+        }
+        session.eventLoop().execute(() -> closeChannels(session));
+    }
+
+    /**
+     * 每个会话的发送队列深度
+     */
+    public List<Map<String, Object>> stats() {
+        List<Map<String, Object>> list = new ArrayList<>();
+        for (TunnelSession session : sessions) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("session", session.toString());
+            map.put("streams", session.streamCount());
+            map.put("queuedMessages", session.getQueuedMessages());
+            map.put("queuedBytes", session.getQueuedBytes());
+            map.put("scheduledStreams", session.getScheduledStreams());
+            map.put("writable", session.isWritable());
+            list.add(map);
+        }
+        return list;
+    }
+
+    /**
+     * 空闲超时的配置、关闭的数量和当前的会话、stream数
+     */
+    public Map<String, Object> idleStats() {
+        Map<String, Object> map = idleTimer.stats();
+        map.put("sessions", sessions.size());
+        map.put("resumableSessions", resumable.size());
+        map.put("streams", TunnelSession.liveStreams());
+        return map;
+    }
+
+    public Map<String, Object> poolStats() {
+        return upstreamPool.stats();
+    }
+
+    /**
+     * 所有会话的压缩统计
+     */
+    public Map<String, Object> compressionStats() {
+        return CompressionStats.toMap();
+    }
+
+    /**
+     * 处理客户端发来的一个消息，新版本的客户端会把多个报文合并到一个消息里，在会话的event loop中调用。
+     * payload在返回前由调用方持有，报文的数据在原来的位置解码后直接写入目标服务
+     */
+    public void handleMessage(TunnelSession session, ByteBuf payload) {
+        session.idle().onRead();
+        session.codec().decode(payload, session.recordHandler());
+    }
+
+    private void handleRecord(TunnelSession session, int type, long clientId, ByteBuf payload) {
+        switch (type) {
+            case TunnelProtocol.TYPE_DATA:
+            case TunnelProtocol.TYPE_DEFLATE:
+                handleData(session, clientId, type, payload);
+                break;
+            case TunnelProtocol.TYPE_OPEN:
+                openStream(session, clientId, payload);
+                break;
+            case TunnelProtocol.TYPE_WINDOW_UPDATE:
+                ChannelWrap stream = session.getStream(clientId);
+                if (stream != null) {
+                    stream.onWindowUpdate(payload.readInt());
+                }
+                break;
+            case TunnelProtocol.TYPE_CLOSE:
+            case TunnelProtocol.TYPE_RESET:
+                ChannelWrap closed = session.removeStream(clientId);
+                if (closed != null && !closed.isClosing()) {
+                    closed.getChannelFuture().channel().close();
+                    if (session.isResumable()) {
+                        //客户端收到回复后才移除自己的stream
+                        closed.send(session.codec().close(ByteBufAllocator.DEFAULT, clientId));
+                    }
+                }
+                break;
+            case TunnelProtocol.TYPE_RESUME:
+                resume(session, payload);
+                break;
+            case TunnelProtocol.TYPE_PING:
+                //请求原样回复
+                if (payload.isReadable() && payload.readByte() == 0) {
+                    ByteBuf pong = session.codec().ping(ByteBufAllocator.DEFAULT, true, payload);
+                    if (pong != null) {
+                        session.sendMessage(pong);
+                    }
+                }
+                break;
+            default:
+                //不认识的类型跳过，以后的版本可以增加类型
+                log.debug("unknown record type: {}, clientChannelId: {}", type, clientId);
+        }
+    }
+
+    /**
+     * 客户端重连后报告各stream收到的位置：客户端已经没有的stream关闭，其它的回复服务端收到的位置后从客户端的位置重发
+     */
+    private void resume(TunnelSession session, ByteBuf payload) {
+        LongObjectMap<Long> offsets = RecordCodec.parseResume(payload);
+        List<ChannelWrap> resumed = new ArrayList<>();
+        int closed = 0;
+        for (ChannelWrap wrap : session.streams()) {
+            Long offset = offsets.get(wrap.getClientId());
+            if (offset == null || !wrap.canResume(offset)) {
+                session.removeStream(wrap.getClientId());
+                wrap.channel().close();
+                closed++;
+            } else {
+                resumed.add(wrap);
+            }
+        }
+        long[] received = new long[resumed.size() * 2];
+        for (int i = 0; i < resumed.size(); i++) {
+            received[2 * i] = resumed.get(i).getClientId();
+            received[2 * i + 1] = resumed.get(i).received();
+        }
+        //控制报文优先发送，客户端先收到回复再收到重发的数据
+        session.sendMessage(session.codec().resume(ByteBufAllocator.DEFAULT, received));
+        session.synced();
+        for (ChannelWrap wrap : resumed) {
+            wrap.resume(offsets.get(wrap.getClientId()));
+        }
+        log.info("session {} resumed {} streams, closed {}", session, resumed.size(), closed);
+    }
+
+    private void handleData(TunnelSession session, long clientId, int type, ByteBuf payload) {
+        ChannelWrap wrap = session.getStream(clientId);
+        if (wrap != null) {
+            writeUpstream(wrap, decode(clientId, type, payload));
+        }
+    }
+
+    /**
+     * 在消息的缓冲区上原地解码，返回的buffer持有消息的引用，目标服务还没有连接成功时保留到连接完成
+     */
+    private ByteBuf decode(long clientId, int type, ByteBuf payload) {
+        XorCodec.xor(payload, XorCodec.getSeed(clientId));
+        if (type != TunnelProtocol.TYPE_DEFLATE) {
+            return payload.retain();
+        }
+        return RecordCompressor.decode(ByteBufAllocator.DEFAULT, payload);
+    }
+
+    /**
+     * 读取地址长度(1 byte) + 地址 + 端口(2 bytes)，连接目标服务，后面还有数据时按数据报文处理
+     */
+    private void openStream(TunnelSession session, long clientId, ByteBuf payload) {
+        int se = XorCodec.getSeed(clientId);
+        int i = (payload.readByte() ^ se) & 0xFF;
+        byte[] addressBytes = new byte[i];
+        for (int i1 = 0; i1 < i; i1++) {
+            addressBytes[i1] = (byte) (payload.readByte() ^ se);
+        }
+        byte[] portBytes = new byte[2];
+        portBytes[0] = (byte) (payload.readByte() ^ se);
+        portBytes[1] = (byte) (payload.readByte() ^ se);
+        //连接服务
+        String address = new String(addressBytes);
+        int port = (portBytes[0] & 0xFF) << 8 | portBytes[1] & 0xFF;
+        ByteBuf initial = payload.isReadable() ? decode(clientId, TunnelProtocol.TYPE_DATA, payload) : null;
+        ChannelWrap wrap = new ChannelWrap(session, clientId, port);
+        Server2ClientHandler handler = new Server2ClientHandler(wrap);
+        Channel warm = upstreamPool.acquire(address, port, session.eventLoop());
+        if (warm != null) {
+            //使用连接池中预先建立的连接
+            wrap.setChannelFuture(warm.newSucceededFuture());
+            putStream(session, wrap);
+            watch(session, wrap);
+            upstreamPool.attach(warm, handler);
+            if (initial != null) {
+                writeUpstream(wrap, initial);
+            }
+            return;
+        }
+        ChannelFuture channelFuture = transport.configure(new Bootstrap().group(session.eventLoop()))
+                .option(ChannelOption.RCVBUF_ALLOCATOR, Server2ClientHandler.RECV_ALLOCATOR)
+                .resolver(resolver.group())
+                .handler(handler)
+                .connect(address, port);
+        wrap.setChannelFuture(channelFuture);
+        putStream(session, wrap);
+        watch(session, wrap);
+        if (initial != null) {
+            writeUpstream(wrap, initial);
+        }
+        channelFuture.addListener((ChannelFutureListener) future -> {
+            if (future != null && future.isSuccess()) {
+                log.debug("target server: {} connect success, clientChannelId: {}", future.channel().remoteAddress(), clientId);
+                //连接期间写入的数据，fast open时已经随SYN发出
+                future.channel().flush();
+            } else {
+                log.info("target server connect failed: {}:{}", address, port);
+                //连接期间会话可能已经恢复到新的连接上
+                TunnelSession current = wrap.session();
+                current.sendMessage(current.codec().reset(ByteBufAllocator.DEFAULT, clientId));
+                current.removeStream(clientId, wrap);
+            }
+        });
+    }
+
+    private void putStream(TunnelSession session, ChannelWrap wrap) {
+        ChannelWrap old = session.putStream(wrap.getClientId(), wrap);
+        if (old != null) {
+            old.getChannelFuture().channel().close();
+        }
+    }
+
+    /**
+     * 目标服务连接空闲超时后关闭，由{@link Server2ClientHandler}通知客户端；连接关闭（包括连接失败）时立即取消检查
+     */
+    private void watch(TunnelSession session, ChannelWrap wrap) {
+        Channel channel = wrap.channel();
+        IdleTimer.Watch watch = idleTimer.watchStream(session.eventLoop(), () -> {
+            log.debug("stream {} idle timeout, clientChannelId: {}", channel, wrap.getClientId());
+            channel.close();
+        });
+        wrap.setIdle(watch);
+        channel.closeFuture().addListener(future -> watch.cancel());
+    }
+
+    /**
+     * 目标服务还在连接时只写入channel的发送缓冲区，不flush：启用了fast open时netty把它放在SYN里发出，
+     * 否则连接成功后立即flush，不用等连接完成再回调。连接失败时netty释放缓冲区里的数据
+     */
+    private void writeUpstream(ChannelWrap wrap, ByteBuf byteBuf) {
+        int length = byteBuf.readableBytes();
+        //恢复时按收到的位置重发，写不进去的也算收到
+        wrap.received(length);
+        ChannelFuture channelFuture = wrap.getChannelFuture();
+        if (channelFuture.isDone() && !channelFuture.isSuccess()) {
+            byteBuf.release();
+            return;
+        }
+        wrap.idle().onWrite();
+        if (log.isDebugEnabled()) {
+            log.debug("received msg from client: {}, length: {}", wrap.channel(), length);
+        }
+        Channel channel = wrap.channel();
+        //写入目标服务后归还客户端的窗口
+        ChannelFuture write = channelFuture.isDone() ? channel.writeAndFlush(byteBuf) : channel.write(byteBuf);
+        write.addListener(future -> {
+            if (future.isSuccess()) {
+                wrap.consumed(length);
+            }
+        });
+    }
+
+    /**
+     * 会话关闭后关闭所有目标服务连接，还在连接的也取消，stream在各自的连接关闭时移除
+     */
+    private void closeChannels(TunnelSession session) {
+        for (ChannelWrap value : session.streams()) {
+            if (value.isClosing()) {
+                //目标服务已经关闭，等待客户端确认的stream
+                session.removeStream(value.getClientId(), value);
+            }
+            value.channel().close();
+        }
+    }
+
+    @Override
+    public void destroy() {
+        sessions.clear();
+        resumable.clear();
+        loopGroup.shutdownGracefully();
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        resolver.preload(loopGroup.next());
+        upstreamPool.start(loopGroup);
+        //会话和stream在关闭时移除，空闲的由IdleTimer关闭，这里只输出计数
+        loopGroup.scheduleAtFixedRate(() -> {
+            long queuedBytes = 0;
+            for (TunnelSession session : sessions) {
+                queuedBytes += session.getQueuedBytes();
+            }
+            log.info("connected websocket size: {}, connected server size: {}, queued bytes: {}, {}",
+                    sessions.size(), TunnelSession.liveStreams(), queuedBytes, CompressionStats.summary());
+        }, 5, 5, TimeUnit.MINUTES);
+    }
+}
@@ -0,0 +1,399 @@
+package com.proxy;
+
+import com.proxy.common.FairScheduler;
+import com.proxy.common.RecordCodec;
+import com.proxy.common.TunnelOptions;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.EventLoop;
+import io.netty.util.collection.LongObjectHashMap;
+import io.netty.util.collection.LongObjectMap;
+import io.netty.util.internal.PlatformDependent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一个websocket隧道会话，屏蔽tomcat和netty两种websocket实现的差异
+ * <p>
+ * 每个会话固定使用一个event loop：客户端发来的消息在这里处理，目标服务的连接也注册在这里，
+ * 所以stream表、窗口和读取状态都只在这个线程中访问，不需要加锁，同一个stream的报文也按收到的顺序写入目标服务。
+ * <p>
+ * 发给客户端的报文先进入无锁的发送队列，由writer线程单独发送，多个报文会合并成一个websocket消息。
+ * 队列中的字节数超过上限后会话变为不可写，目标服务的连接暂停读取，降到一半以下后恢复。
+ * <p>
+ * stream的数据和关闭报文进入{@link FairScheduler}，各个stream按权重轮流发送；窗口更新、ping等控制报文不排队，优先发送。
+ * 连接写不下时停止从调度器取报文，积压留在调度器里，交互的stream不用排在大量数据后面。
+ * <p>
+ * 握手时协商了会话token的会话可以恢复：连接断开后stream和目标服务连接保留一段时间，客户端带着token重连后，
+ * 新的会话接管这些stream（两个会话使用同一个event loop），交换恢复报文之前不发送stream的报文。
+ */
+public abstract class TunnelSession {
+
+    /**
+     * 所有会话的stream总数，增删stream时更新，统计时不用遍历
+     */
+    private static final AtomicInteger liveStreams = new AtomicInteger();
+
+    /**
+     * key为客户端的stream id（8 bytes按long读取），收到客户端报文时直接按id查找，只在会话的event loop中读写
+     */
+    private final LongObjectMap<ChannelWrap> clientMap = new LongObjectHashMap<>();
+
+    /**
+     * stream数量，给其它线程的统计使用
+     */
+    private volatile int streamCount;
+
+    private final EventLoop loop;
+
+    private final Queue<ByteBuf> outbound = PlatformDependent.newMpscQueue();
+
+    /**
+     * stream报文的调度，只在会话的event loop中访问
+     */
+    private final FairScheduler scheduler;
+
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    private final AtomicInteger queuedMessages = new AtomicInteger();
+
+    /**
+     * 已经提交但还没有写完的字节数，包括正在发送的消息
+     */
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    private final long maxQueuedBytes;
+
+    protected final int maxMessageSize;
+
+    private volatile boolean writable = true;
+
+    private final TunnelOptions options;
+
+    /**
+     * 协商的版本对应的报文编码
+     */
+    private final RecordCodec codec;
+
+    /**
+     * 处理客户端报文的回调，会话打开时设置，解析每个消息时使用同一个对象
+     */
+    private RecordCodec.Handler recordHandler;
+
+    /**
+     * 会话的空闲检查，收到和发出消息时记录时间
+     */
+    private volatile IdleTimer.Watch idle = IdleTimer.Watch.NONE;
+
+    /**
+     * 可以恢复的会话的token，没有协商时为null
+     */
+    private final String token;
+
+    /**
+     * 接管了上一个会话的stream，还没有收到客户端的恢复报文时为false，只在会话的event loop中访问
+     */
+    private boolean synced = true;
+
+    protected TunnelSession(EventLoop loop, TunnelOptions options, FairScheduler scheduler, long maxQueuedBytes,
+                            int maxMessageSize) {
+        this.loop = loop;
+        this.scheduler = scheduler;
+        this.options = options;
+        this.codec = options.codec();
+        this.token = options.getSession();
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    public ChannelWrap getStream(long clientId) {
+        return clientMap.get(clientId);
+    }
+
+    public ChannelWrap putStream(long clientId, ChannelWrap wrap) {
+        ChannelWrap old = clientMap.put(clientId, wrap);
+        streamCount = clientMap.size();
+        if (old == null) {
+            liveStreams.incrementAndGet();
+        }
+        return old;
+    }
+
+    public ChannelWrap removeStream(long clientId) {
+        ChannelWrap wrap = clientMap.remove(clientId);
+        streamCount = clientMap.size();
+        if (wrap != null) {
+            liveStreams.decrementAndGet();
+            wrap.removed();
+        }
+        return wrap;
+    }
+
+    /**
+     * 只有当前映射的是wrap时才移除
+     */
+    public boolean removeStream(long clientId, ChannelWrap wrap) {
+        if (clientMap.get(clientId) == wrap) {
+            removeStream(clientId);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 所有stream的副本，遍历时可以移除
+     */
+    public List<ChannelWrap> streams() {
+        return new ArrayList<>(clientMap.values());
+    }
+
+    public int streamCount() {
+        return streamCount;
+    }
+
+    /**
+     * 接管断开的上一个会话的所有stream，在会话的event loop中调用，两个会话必须使用同一个event loop。
+     * 客户端的恢复报文到达之前stream的报文只保存在各自的重发缓冲区里
+     */
+    void adopt(TunnelSession previous) {
+        synced = false;
+        for (ChannelWrap wrap : previous.clientMap.values()) {
+            wrap.rebind(this);
+            clientMap.put(wrap.getClientId(), wrap);
+        }
+        previous.clientMap.clear();
+        previous.streamCount = 0;
+        streamCount = clientMap.size();
+    }
+
+    /**
+     * 收到客户端的恢复报文，开始发送stream的报文
+     */
+    void synced() {
+        synced = true;
+    }
+
+    /**
+     * 可以恢复的会话的token，不能恢复时为null
+     */
+    public String token() {
+        return token;
+    }
+
+    public boolean isResumable() {
+        return token != null;
+    }
+
+    public static int liveStreams() {
+        return liveStreams.get();
+    }
+
+    IdleTimer.Watch idle() {
+        return idle;
+    }
+
+    void setIdle(IdleTimer.Watch idle) {
+        this.idle = idle;
+    }
+
+    /**
+     * 会话使用的event loop，处理客户端的消息、连接目标服务和发送队列都在这里
+     */
+    public EventLoop eventLoop() {
+        return loop;
+    }
+
+    /**
+     * 握手时协商的参数
+     */
+    public TunnelOptions getOptions() {
+        return options;
+    }
+
+    public RecordCodec codec() {
+        return codec;
+    }
+
+    RecordCodec.Handler recordHandler() {
+        return recordHandler;
+    }
+
+    void setRecordHandler(RecordCodec.Handler recordHandler) {
+        this.recordHandler = recordHandler;
+    }
+
+    public boolean isWritable() {
+        return writable;
+    }
+
+    /**
+     * 创建连接到port的stream的发送队列，队列降到上限的一半以下时调用onWritable
+     */
+    public FairScheduler.Flow newFlow(int port, Runnable onWritable) {
+        return scheduler.newFlow(port, onWritable);
+    }
+
+    /**
+     * 有报文在调度器中排队的stream数，给统计使用
+     */
+    public int getScheduledStreams() {
+        return scheduler.activeFlows();
+    }
+
+    public int getQueuedMessages() {
+        return queuedMessages.get();
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    public abstract boolean isOpen();
+
+    /**
+     * 服务端主动关闭会话：发送状态码1001的关闭帧，发出后关闭连接，任何线程都可以调用
+     */
+    public abstract void goingAway();
+
+    /**
+     * 发送一个控制报文给客户端，不经过调度器，调用后buf的所有权转移给会话，任何线程都可以调用，不会阻塞
+     */
+    public void sendMessage(ByteBuf buf) {
+        if (!isOpen()) {
+            buf.release();
+            return;
+        }
+        queued(buf.readableBytes());
+        outbound.offer(buf);
+        scheduleDrain();
+    }
+
+    /**
+     * 发送一个stream的报文，和这个stream之前的报文保持顺序，多个stream之间按权重轮流发送。
+     * 调用后record的所有权转移给会话，在会话的event loop中调用
+     */
+    public void sendRecord(FairScheduler.Flow flow, ByteBuf record) {
+        //连接断开或者还没有恢复时丢弃，可以恢复的stream恢复后从重发缓冲区重发
+        if (!isOpen() || !synced) {
+            record.release();
+            return;
+        }
+        queued(record.readableBytes());
+        scheduler.offer(flow, record);
+        scheduleDrain();
+    }
+
+    private void queued(int bytes) {
+        //先更新计数再入队，保证writer减计数时能看到不可写的状态
+        if (queuedBytes.addAndGet(bytes) > maxQueuedBytes) {
+            writable = false;
+        }
+        queuedMessages.incrementAndGet();
+    }
+
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            loop.execute(this::drain);
+        }
+    }
+
+    /**
+     * 在会话的event loop中执行，发送队列中的消息，队列空了时调用{@link #drainComplete()}；
+     * 连接写不下时直接返回，等连接可写后再调用
+     */
+    protected abstract void drain();
+
+    protected void drainComplete() {
+        draining.set(false);
+        if ((!outbound.isEmpty() || !scheduler.isEmpty()) && draining.compareAndSet(false, true)) {
+            loop.execute(this::drain);
+        }
+    }
+
+    /**
+     * 取出下一个消息，连续的报文合并成一个，不超过maxMessageSize
+     */
+    protected ByteBuf pollMessage(ByteBufAllocator alloc) {
+        ByteBuf first = peekRecord();
+        if (first == null) {
+            return null;
+        }
+        pollRecord(first);
+        ByteBuf next = peekRecord();
+        if (next == null || first.readableBytes() + next.readableBytes() > maxMessageSize) {
+            return first;
+        }
+        ByteBuf message = alloc.directBuffer(maxMessageSize);
+        message.writeBytes(first);
+        first.release();
+        while ((next = peekRecord()) != null && message.readableBytes() + next.readableBytes() <= maxMessageSize) {
+            pollRecord(next);
+            message.writeBytes(next);
+            next.release();
+        }
+        return message;
+    }
+
+    /**
+     * 控制报文优先，然后是调度器选出的stream报文
+     */
+    private ByteBuf peekRecord() {
+        ByteBuf control = outbound.peek();
+        return control != null ? control : scheduler.peek();
+    }
+
+    /**
+     * 取出peekRecord返回的报文；peek之后其它线程可能又加入了控制报文，按来源取
+     */
+    private void pollRecord(ByteBuf record) {
+        if (outbound.peek() == record) {
+            outbound.poll();
+        } else {
+            scheduler.poll();
+        }
+        queuedMessages.decrementAndGet();
+    }
+
+    /**
+     * 消息写完后调用，降到上限的一半以下时恢复目标服务的读取
+     */
+    protected void messageWritten(int bytes) {
+        idle.onWrite();
+        if (queuedBytes.addAndGet(-bytes) < maxQueuedBytes / 2 && !writable) {
+            writable = true;
+            if (loop.inEventLoop()) {
+                resumeReading();
+            } else {
+                loop.execute(this::resumeReading);
+            }
+        }
+    }
+
+    private void resumeReading() {
+        for (ChannelWrap wrap : clientMap.values()) {
+            wrap.updateAutoRead();
+        }
+    }
+
+    /**
+     * 会话关闭后释放队列中的消息
+     */
+    public void close() {
+        loop.execute(() -> {
+            ByteBuf buf;
+            while ((buf = outbound.poll()) != null) {
+                queuedMessages.decrementAndGet();
+                queuedBytes.addAndGet(-buf.readableBytes());
+                buf.release();
+            }
+            long scheduled = scheduler.queuedBytes();
+            queuedMessages.addAndGet(-scheduler.clear());
+            queuedBytes.addAndGet(-scheduled);
+        });
+    }
+}
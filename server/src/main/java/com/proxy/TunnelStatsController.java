@@ -0,0 +1,37 @@
+package com.proxy;
+
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+import java.util.Map;
+
+@RestController
+public class TunnelStatsController {
+
+    private final TunnelService tunnelService;
+
+    public TunnelStatsController(TunnelService tunnelService) {
+        this.tunnelService = tunnelService;
+    }
+
+    @GetMapping("/stats")
+    public List<Map<String, Object>> stats() {
+        return tunnelService.stats();
+    }
+
+    @GetMapping("/stats/pool")
+    public Map<String, Object> poolStats() {
+        return tunnelService.poolStats();
+    }
+
+    @GetMapping("/stats/idle")
+    public Map<String, Object> idleStats() {
+        return tunnelService.idleStats();
+    }
+
+    @GetMapping("/stats/compression")
+    public Map<String, Object> compressionStats() {
+        return tunnelService.compressionStats();
+    }
+}
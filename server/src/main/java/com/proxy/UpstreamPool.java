@@ -0,0 +1,337 @@
+package com.proxy;
+
+import com.proxy.common.Transport;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.*;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 预先连接好的目标服务连接池，按(host, port)分组，proxy.pool.enabled=true时启用
+ * <p>
+ * 每秒统计一次每个目标的打开频率（指数平均），空闲连接数按频率调整，不超过max-idle；频率降下来后不再补充。
+ * 空闲连接一直在读，对方关闭后立即从池中移除，先发来的数据（比如ssh的banner）缓存起来，被取走后再交给新的handler；
+ * 空闲超过idle-timeout的连接关闭后重新建立，避免拿到被对方超时关闭的连接。
+ * <p>
+ * 会话只使用注册在自己event loop上的空闲连接，这个event loop上的取完后马上在这里补充一个。
+ */
+@Component
+public class UpstreamPool {
+
+    private static final Logger log = LoggerFactory.getLogger(UpstreamPool.class);
+
+    private static final String IDLE_HANDLER = "idle";
+
+    /**
+     * 打开频率低于这个值(次/秒)时不保留空闲连接
+     */
+    private static final double MIN_RATE = 0.2;
+
+    private static final double ALPHA = 0.3;
+
+    private final boolean enabled;
+
+    private final int maxIdle;
+
+    private final long idleTimeoutNanos;
+
+    private final int maxTargets;
+
+    private final Transport transport;
+
+    private final UpstreamResolver resolver;
+
+    private final Map<String, Target> targets = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private EventLoopGroup group;
+
+    public UpstreamPool(Transport transport, UpstreamResolver resolver,
+                        @Value("${proxy.pool.enabled:false}") boolean enabled,
+                        @Value("${proxy.pool.max-idle:8}") int maxIdle,
+                        @Value("${proxy.pool.idle-timeout:30}") int idleTimeout,
+                        @Value("${proxy.pool.max-targets:64}") int maxTargets) {
+        this.transport = transport;
+        this.resolver = resolver;
+        this.enabled = enabled;
+        this.maxIdle = maxIdle;
+        this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(idleTimeout);
+        this.maxTargets = maxTargets;
+    }
+
+    /**
+     * 在{@link TunnelService}的线程组上建立连接和定时调整
+     */
+    public void start(EventLoopGroup group) {
+        if (!enabled) {
+            return;
+        }
+        this.group = group;
+        group.scheduleAtFixedRate(this::adjust, 1, 1, TimeUnit.SECONDS);
+        log.info("upstream pool enabled, max idle: {}, idle timeout: {}s", maxIdle, TimeUnit.NANOSECONDS.toSeconds(idleTimeoutNanos));
+    }
+
+    /**
+     * 取一个注册在loop上的空闲连接，没有时返回null，调用方自己建立连接。取到的连接要调用{@link #attach}
+     */
+    public Channel acquire(String host, int port, EventLoop loop) {
+        if (group == null) {
+            return null;
+        }
+        String key = host + ':' + port;
+        if (targets.size() >= maxTargets && !targets.containsKey(key)) {
+            return null;
+        }
+        Target target = targets.computeIfAbsent(key, k -> new Target(host, port));
+        target.opens.incrementAndGet();
+        Channel channel = target.poll(loop);
+        if (channel == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        if (!target.hasIdle(loop)) {
+            //马上在这个event loop上补充，不等下一次调整
+            loop.execute(() -> target.fill(1, loop));
+        }
+        return channel;
+    }
+
+    /**
+     * 把取到的连接交给handler，缓存的数据重新发给handler；连接在这之前已经关闭时通知handler
+     */
+    public void attach(Channel channel, Server2ClientHandler handler) {
+        channel.eventLoop().execute(() -> {
+            IdleHandler idle = (IdleHandler) channel.pipeline().get(IDLE_HANDLER);
+            if (idle == null || !channel.isActive()) {
+                handler.upstreamClosed(channel);
+                return;
+            }
+            List<ByteBuf> received = new ArrayList<>(idle.received);
+            idle.received.clear();
+            channel.pipeline().replace(IDLE_HANDLER, null, handler);
+            for (ByteBuf buf : received) {
+                channel.pipeline().fireChannelRead(buf);
+            }
+        });
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("enabled", group != null);
+        map.put("hits", hits.sum());
+        map.put("misses", misses.sum());
+        List<Map<String, Object>> list = new ArrayList<>();
+        for (Target target : targets.values()) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("target", target.host + ':' + target.port);
+            item.put("rate", Math.round(target.rate * 100) / 100.0);
+            item.put("idle", target.idleCount());
+            item.put("connecting", target.connecting.get());
+            list.add(item);
+        }
+        map.put("targets", list);
+        return map;
+    }
+
+    private void adjust() {
+        for (Iterator<Target> it = targets.values().iterator(); it.hasNext(); ) {
+            Target target = it.next();
+            target.rate = target.rate * (1 - ALPHA) + target.opens.getAndSet(0) * ALPHA;
+            int desired = target.rate < MIN_RATE ? 0 : Math.min(maxIdle, (int) Math.ceil(target.rate));
+            target.expire(desired);
+            if (desired == 0 && target.idleCount() == 0 && target.connecting.get() == 0) {
+                it.remove();
+            } else {
+                target.fill(desired - target.idleCount() - target.connecting.get());
+            }
+        }
+    }
+
+    private class Target {
+
+        private final String host;
+
+        private final int port;
+
+        private final AtomicInteger opens = new AtomicInteger();
+
+        private final AtomicInteger connecting = new AtomicInteger();
+
+        /**
+         * 空闲连接和放入的时间，先进先出，读写都加锁
+         */
+        private final ArrayDeque<IdleHandler> idle = new ArrayDeque<>();
+
+        private volatile double rate;
+
+        private volatile boolean failing;
+
+        Target(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        Channel poll(EventLoop loop) {
+            synchronized (idle) {
+                for (Iterator<IdleHandler> it = idle.iterator(); it.hasNext(); ) {
+                    IdleHandler handler = it.next();
+                    if (!handler.channel.isActive()) {
+                        it.remove();
+                    } else if (handler.channel.eventLoop() == loop) {
+                        it.remove();
+                        return handler.channel;
+                    }
+                }
+                return null;
+            }
+        }
+
+        boolean hasIdle(EventLoop loop) {
+            synchronized (idle) {
+                for (IdleHandler handler : idle) {
+                    if (handler.channel.eventLoop() == loop) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }
+
+        int idleCount() {
+            synchronized (idle) {
+                return idle.size();
+            }
+        }
+
+        void remove(IdleHandler handler) {
+            synchronized (idle) {
+                idle.remove(handler);
+            }
+        }
+
+        /**
+         * 关闭超时的和超过需要数量的空闲连接
+         */
+        void expire(int desired) {
+            List<IdleHandler> expired = new ArrayList<>();
+            long now = System.nanoTime();
+            synchronized (idle) {
+                for (Iterator<IdleHandler> it = idle.iterator(); it.hasNext(); ) {
+                    IdleHandler handler = it.next();
+                    if (now - handler.since > idleTimeoutNanos || idle.size() > desired) {
+                        it.remove();
+                        expired.add(handler);
+                    }
+                }
+            }
+            for (IdleHandler handler : expired) {
+                handler.channel.close();
+            }
+        }
+
+        void fill(int count) {
+            fill(count, group);
+        }
+
+        /**
+         * 在group上建立count个连接，group是{@link TunnelService}的线程组时连接轮流分配到各个event loop
+         */
+        void fill(int count, EventLoopGroup group) {
+            //上一次连接失败的目标等到下一次调整再试
+            if (failing) {
+                failing = false;
+                return;
+            }
+            for (int i = 0; i < count; i++) {
+                connecting.incrementAndGet();
+                IdleHandler handler = new IdleHandler(this);
+                transport.configure(new Bootstrap().group(group))
+                        .option(ChannelOption.RCVBUF_ALLOCATOR, Server2ClientHandler.RECV_ALLOCATOR)
+                        .resolver(resolver.group())
+                        .handler(new ChannelInitializer<Channel>() {
+                            @Override
+                            protected void initChannel(Channel ch) {
+                                ch.pipeline().addLast(IDLE_HANDLER, handler);
+                            }
+                        })
+                        .connect(host, port).addListener((ChannelFutureListener) future -> {
+                            connecting.decrementAndGet();
+                            if (future.isSuccess()) {
+                                handler.since = System.nanoTime();
+                                synchronized (idle) {
+                                    idle.addLast(handler);
+                                }
+                            } else {
+                                failing = true;
+                                log.debug("upstream pool connect {}:{} failed: {}", host, port, future.cause().getMessage());
+                            }
+                        });
+            }
+        }
+    }
+
+    /**
+     * 空闲连接的handler，缓存对方先发来的数据，连接关闭时从池中移除
+     */
+    private static class IdleHandler extends ChannelInboundHandlerAdapter {
+
+        private final Target target;
+
+        private final List<ByteBuf> received = new ArrayList<>();
+
+        private Channel channel;
+
+        private long since;
+
+        IdleHandler(Target target) {
+            this.target = target;
+        }
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            channel = ctx.channel();
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            received.add((ByteBuf) msg);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            target.remove(this);
+            release();
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) {
+            release();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+
+        private void release() {
+            for (ByteBuf buf : received) {
+                ReferenceCountUtil.release(buf);
+            }
+            received.clear();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.proxy;
+
+import com.proxy.common.Transport;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.dns.DnsRecord;
+import io.netty.resolver.AddressResolverGroup;
+import io.netty.resolver.DefaultAddressResolverGroup;
+import io.netty.resolver.HostsFileEntriesResolver;
+import io.netty.resolver.ResolvedAddressTypes;
+import io.netty.resolver.dns.*;
+import io.netty.util.NetUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+
+/**
+ * 连接目标服务使用的非阻塞dns解析，代替jdk在event loop上的阻塞解析
+ * <p>
+ * 解析结果按ttl缓存（限制ttl范围和最大域名数），解析失败也缓存一段时间；同一个域名同时只有一个查询，
+ * 其它连接等待这个查询的结果。可以配置固定的域名解析，也可以在启动时预先解析。
+ */
+@Component
+public class UpstreamResolver implements DisposableBean {
+
+    private static final Logger log = LoggerFactory.getLogger(UpstreamResolver.class);
+
+    private final AddressResolverGroup<InetSocketAddress> group;
+
+    private final String[] preload;
+
+    public UpstreamResolver(Transport transport,
+                            @Value("${proxy.dns.enabled:true}") boolean enabled,
+                            @Value("${proxy.dns.servers:}") String[] servers,
+                            @Value("${proxy.dns.max-entries:4096}") int maxEntries,
+                            @Value("${proxy.dns.min-ttl:0}") int minTtl,
+                            @Value("${proxy.dns.max-ttl:300}") int maxTtl,
+                            @Value("${proxy.dns.negative-ttl:10}") int negativeTtl,
+                            @Value("${proxy.dns.pinned:}") String[] pinned,
+                            @Value("${proxy.dns.preload:}") String[] preload) {
+        this.preload = preload;
+        if (!enabled) {
+            this.group = DefaultAddressResolverGroup.INSTANCE;
+            return;
+        }
+        DnsNameResolverBuilder builder = new DnsNameResolverBuilder()
+                .channelType(transport.datagramChannel())
+                .resolveCache(new BoundedDnsCache(new DefaultDnsCache(minTtl, maxTtl, negativeTtl), maxEntries))
+                .hostsFileEntriesResolver(new PinnedHostsResolver(pinned));
+        if (servers.length > 0) {
+            List<InetSocketAddress> addresses = new ArrayList<>();
+            for (String server : servers) {
+                addresses.add(parseServer(server.trim()));
+            }
+            builder.nameServerProvider(new SequentialDnsServerAddressStreamProvider(addresses));
+        }
+        //DnsAddressResolverGroup会合并同一个域名的并发查询，每个event loop的解析器共用一个缓存
+        this.group = new DnsAddressResolverGroup(builder);
+        log.info("dns resolver: servers: {}, ttl: {}-{}s, negative ttl: {}s, max entries: {}, pinned: {}",
+                servers.length > 0 ? Arrays.toString(servers) : "system", minTtl, maxTtl, negativeTtl, maxEntries, pinned.length);
+    }
+
+    public AddressResolverGroup<InetSocketAddress> group() {
+        return group;
+    }
+
+    /**
+     * 预先解析配置的域名，结果进入缓存
+     */
+    public void preload(EventLoop loop) {
+        for (String host : preload) {
+            String name = host.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            group.getResolver(loop).resolve(InetSocketAddress.createUnresolved(name, 0)).addListener(future -> {
+                if (future.isSuccess()) {
+                    log.info("dns preload {}: {}", name, future.getNow());
+                } else {
+                    log.warn("dns preload {} failed: {}", name, future.cause().getMessage());
+                }
+            });
+        }
+    }
+
+    @Override
+    public void destroy() {
+        group.close();
+    }
+
+    private static InetSocketAddress parseServer(String server) {
+        int index = server.lastIndexOf(':');
+        if (index > 0 && server.indexOf(':') == index) {
+            return new InetSocketAddress(server.substring(0, index), Integer.parseInt(server.substring(index + 1)));
+        }
+        return new InetSocketAddress(server, 53);
+    }
+
+    /**
+     * 限制缓存的域名数，超过后淘汰最久没有使用的域名；过期由{@link DefaultDnsCache}处理
+     */
+    private static class BoundedDnsCache implements DnsCache {
+
+        private final DnsCache delegate;
+
+        private final Map<String, Boolean> hostnames;
+
+        BoundedDnsCache(DnsCache delegate, int maxEntries) {
+            this.delegate = delegate;
+            this.hostnames = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    if (size() > maxEntries) {
+                        delegate.clear(eldest.getKey());
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        @Override
+        public void clear() {
+            synchronized (hostnames) {
+                hostnames.clear();
+            }
+            delegate.clear();
+        }
+
+        @Override
+        public boolean clear(String hostname) {
+            synchronized (hostnames) {
+                hostnames.remove(hostname);
+            }
+            return delegate.clear(hostname);
+        }
+
+        @Override
+        public List<? extends DnsCacheEntry> get(String hostname, DnsRecord[] additionals) {
+            List<? extends DnsCacheEntry> entries = delegate.get(hostname, additionals);
+            if (entries != null) {
+                synchronized (hostnames) {
+                    hostnames.get(hostname);
+                }
+            }
+            return entries;
+        }
+
+        @Override
+        public DnsCacheEntry cache(String hostname, DnsRecord[] additionals, InetAddress address, long originalTtl, EventLoop loop) {
+            DnsCacheEntry entry = delegate.cache(hostname, additionals, address, originalTtl, loop);
+            synchronized (hostnames) {
+                hostnames.put(hostname, Boolean.TRUE);
+            }
+            return entry;
+        }
+
+        @Override
+        public DnsCacheEntry cache(String hostname, DnsRecord[] additionals, Throwable cause, EventLoop loop) {
+            DnsCacheEntry entry = delegate.cache(hostname, additionals, cause, loop);
+            synchronized (hostnames) {
+                hostnames.put(hostname, Boolean.TRUE);
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * 配置的固定解析(host=ip)优先，然后是系统的hosts文件
+     */
+    private static class PinnedHostsResolver implements HostsFileEntriesResolver {
+
+        private final Map<String, InetAddress> pinned = new HashMap<>();
+
+        PinnedHostsResolver(String[] entries) {
+            for (String entry : entries) {
+                int index = entry.indexOf('=');
+                if (index <= 0) {
+                    continue;
+                }
+                String host = entry.substring(0, index).trim().toLowerCase(Locale.ENGLISH);
+                String ip = entry.substring(index + 1).trim();
+                byte[] bytes = NetUtil.createByteArrayFromIpAddressString(ip);
+                if (bytes == null) {
+                    throw new IllegalArgumentException("invalid pinned dns entry: " + entry);
+                }
+                try {
+                    pinned.put(host, InetAddress.getByAddress(host, bytes));
+                } catch (UnknownHostException e) {
+                    throw new IllegalArgumentException("invalid pinned dns entry: " + entry, e);
+                }
+            }
+        }
+
+        @Override
+        public InetAddress address(String inetHost, ResolvedAddressTypes resolvedAddressTypes) {
+            InetAddress address = pinned.get(inetHost.toLowerCase(Locale.ENGLISH));
+            return address != null ? address : HostsFileEntriesResolver.DEFAULT.address(inetHost, resolvedAddressTypes);
+        }
+    }
+}
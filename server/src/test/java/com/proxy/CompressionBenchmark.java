@@ -0,0 +1,124 @@
+package com.proxy;
+
+import com.proxy.common.CompressionStats;
+import io.netty.channel.Channel;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 压缩对混合流量的效果：一个stream传输16MB的json文本，同时另一个stream传输16MB的随机数据，
+ * 两端都开启和都关闭压缩时隧道上的字节数和用时。
+ * <p>
+ * mvn -pl server -am test -Dtest=CompressionBenchmark -DfailIfNoTests=false
+ */
+class CompressionBenchmark {
+
+    private static final int SIZE = 16 << 20;
+
+    @Test
+    void wireBytes() throws Exception {
+        byte[] text = text();
+        byte[] random = new byte[SIZE];
+        new Random(1).nextBytes(random);
+        Channel echo = TestServers.startEcho();
+        try {
+            for (boolean compress : new boolean[]{false, true}) {
+                TestProxyServer server = new TestProxyServer();
+                server.compress = compress;
+                try (TestProxyServer ignored = server.start(); TcpRelay relay = new TcpRelay(server.port())) {
+                    Map<String, String> properties = new HashMap<>();
+                    properties.put("proxy.transport", "nio");
+                    properties.put("proxy.compress", String.valueOf(compress));
+                    TcpClient client = TestServers.newClient(properties,
+                            () -> new TcpClient("127.0.0.1", TestServers.port(echo), relay.address(), 0));
+                    int port = TestServers.startClient(client);
+                    try {
+                        long saved = CompressionStats.savedBytes();
+                        long start = System.nanoTime();
+                        ExecutorService executor = Executors.newFixedThreadPool(2);
+                        try {
+                            Future<?> a = executor.submit(() -> echo(port, text));
+                            Future<?> b = executor.submit(() -> echo(port, random));
+                            a.get();
+                            b.get();
+                        } finally {
+                            executor.shutdownNow();
+                        }
+                        long elapsed = System.nanoTime() - start;
+                        double payload = 4.0 * SIZE / (1 << 20);
+                        double wire = (relay.upstreamBytes.get() + relay.downstreamBytes.get()) / (1024.0 * 1024.0);
+                        System.out.printf("compress %-5s: payload %.0f MB, on the wire %.1f MB (%.0f%%), saved %.1f MB, %d ms%n",
+                                compress, payload, wire, 100 * wire / payload,
+                                (CompressionStats.savedBytes() - saved) / (1024.0 * 1024.0), elapsed / 1_000_000);
+                    } finally {
+                        client.close();
+                    }
+                }
+            }
+        } finally {
+            echo.close();
+        }
+    }
+
+    /**
+     * 类似接口响应的json行，内容重复但不完全相同
+     */
+    private static byte[] text() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(SIZE);
+        Random random = new Random(2);
+        for (int i = 0; out.size() < SIZE; i++) {
+            String line = "{\"id\":" + i + ",\"user\":\"user-" + random.nextInt(10000) + "\",\"status\":\""
+                    + (random.nextBoolean() ? "active" : "disabled") + "\",\"score\":" + random.nextInt(1000)
+                    + ",\"tags\":[\"alpha\",\"beta\"]}\n";
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            out.write(bytes, 0, bytes.length);
+        }
+        return Arrays.copyOf(out.toByteArray(), SIZE);
+    }
+
+    private static Void echo(int port, byte[] data) throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(30000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            Thread writer = new Thread(() -> {
+                try {
+                    for (int i = 0; i < data.length; i += 16384) {
+                        out.write(data, i, Math.min(16384, data.length - i));
+                    }
+                } catch (Exception ignored) {
+                    //读的一侧会发现数据不完整
+                }
+            });
+            writer.setDaemon(true);
+            writer.start();
+            byte[] buf = new byte[16384];
+            for (int read = 0; read < data.length; ) {
+                int n = in.read(buf);
+                if (n < 0) {
+                    throw new IllegalStateException("closed after " + read + " bytes");
+                }
+                for (int i = 0; i < n; i++) {
+                    if (buf[i] != data[read + i]) {
+                        throw new IllegalStateException("corrupt byte at offset " + (read + i));
+                    }
+                }
+                read += n;
+            }
+            writer.join();
+        }
+        return null;
+    }
+}
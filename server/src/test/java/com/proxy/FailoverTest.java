@@ -0,0 +1,150 @@
+package com.proxy;
+
+import com.proxy.handler.WebSocketHandler;
+import io.netty.channel.Channel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 客户端配置两个服务端地址，各自经过{@link TcpRelay}：一个服务端停掉后隧道重连到另一个；一个服务端没有响应但连接还在时，
+ * 有ping没有回复的隧道不再分配新的stream，连续没有回复后关闭并换到另一个服务端
+ */
+class FailoverTest {
+
+    private static final int PING_INTERVAL = 200;
+
+    private static final int MAX_MISSED = 10;
+
+    private Channel echo;
+
+    private TestProxyServer serverA;
+
+    private TestProxyServer serverB;
+
+    private TcpRelay relayA;
+
+    private TcpRelay relayB;
+
+    private TcpClient client;
+
+    private int port;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        echo = TestServers.startEcho();
+        serverA = new TestProxyServer().start();
+        serverB = new TestProxyServer().start();
+        relayA = new TcpRelay(serverA.port());
+        relayB = new TcpRelay(serverB.port());
+        Map<String, String> properties = new HashMap<>();
+        properties.put("proxy.transport", "nio");
+        properties.put("proxy.tunnels", "2");
+        properties.put("proxy.ping.interval", String.valueOf(PING_INTERVAL));
+        properties.put("proxy.ping.max-missed", String.valueOf(MAX_MISSED));
+        properties.put("proxy.connect.timeout", "500");
+        properties.put("proxy.reconnect.min", "50");
+        properties.put("proxy.reconnect.max", "200");
+        properties.put("proxy.probe.interval", "0");
+        client = TestServers.newClient(properties, () -> new TcpClient("127.0.0.1", TestServers.port(echo),
+                relayA.address() + "," + relayB.address(), 0));
+        port = TestServers.startClient(client);
+        //都没有测量过往返时间，两个隧道都连第一个地址
+        await(() -> serverA.service().sessions().size() == 2, "both tunnels on server A");
+        assertTrue(serverB.service().sessions().isEmpty());
+    }
+
+    @AfterEach
+    void tearDown() {
+        client.close();
+        for (AutoCloseable closeable : new AutoCloseable[]{relayA, relayB, serverA, serverB}) {
+            try {
+                if (closeable != null) {
+                    closeable.close();
+                }
+            } catch (Exception ignored) {
+            }
+        }
+        echo.close();
+    }
+
+    @Test
+    void killedServerMovesTunnelsToTheOther() throws Exception {
+        relayA.close();
+        serverA.close();
+        relayA = null;
+        serverA = null;
+        await(() -> serverB.service().sessions().size() == 2, "both tunnels reconnected to server B");
+        long before = relayB.upstreamBytes.get();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(TestServers.echoOnce(port, 2000) > 0, "echo " + i);
+        }
+        assertTrue(relayB.upstreamBytes.get() > before);
+        assertFalse(client.endpoints().get(0).isHealthy(), "server A should be marked down");
+    }
+
+    @Test
+    void newTunnelGoesToTheLowestRtt() throws Exception {
+        moveTunnelToB(1);
+        assertEquals(1, serverA.service().sessions().size());
+        assertEquals(1, serverB.service().sessions().size());
+    }
+
+    @Test
+    void stalledServerIsSuspectedThenAbandoned() throws Exception {
+        moveTunnelToB(1);
+        Channel stalled = client.tunnel(0);
+        WebSocketHandler handler = stalled.pipeline().get(WebSocketHandler.class);
+        relayA.setBlackhole(true);
+        //两次ping没有回复后隧道0成为suspect，但还要等到MAX_MISSED次才关闭
+        await(handler::isSuspect, "tunnel 0 suspect");
+        long beforeA = relayA.upstreamBytes.get();
+        long beforeB = relayB.upstreamBytes.get();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(TestServers.echoOnce(port, 2000) > 0, "echo " + i + " went to the stalled tunnel");
+        }
+        assertSame(stalled, client.tunnel(0), "stalled tunnel should still be open");
+        assertTrue(stalled.isActive());
+        assertEquals(beforeA, relayA.upstreamBytes.get());
+        assertTrue(relayB.upstreamBytes.get() > beforeB);
+
+        //连续没有回复后关闭，服务端A标记为不可用，重连到B
+        await(() -> !stalled.isActive(), "stalled tunnel closed after " + MAX_MISSED + " missed pings");
+        await(() -> serverB.service().sessions().size() == 2, "tunnel 0 reconnected to server B");
+        for (int i = 0; i < 10; i++) {
+            assertTrue(TestServers.echoOnce(port, 2000) > 0, "echo after failover " + i);
+        }
+    }
+
+    /**
+     * 让B的往返时间最短，再断开第index个隧道，重连时按往返时间选中B
+     */
+    private void moveTunnelToB(int index) throws Exception {
+        client.endpoints().get(1).onRtt(1);
+        Channel previous = client.tunnel(index);
+        previous.close();
+        await(() -> client.tunnel(index) != null && client.tunnel(index) != previous
+                && client.tunnel(index).isActive(), "tunnel " + index + " reconnected");
+        await(() -> serverB.service().sessions().size() == 1, "tunnel " + index + " on server B");
+    }
+
+    private static void await(BooleanSupplier condition, String message) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("timed out waiting for " + message);
+            }
+            Thread.sleep(10);
+        }
+    }
+}
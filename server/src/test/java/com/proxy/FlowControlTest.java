@@ -0,0 +1,151 @@
+package com.proxy;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 目标服务尽快发送、本地连接读得很慢时，服务端的发送队列和客户端写给本地连接的缓冲都不超过stream的窗口，
+ * 读完后数据完整
+ */
+class FlowControlTest {
+
+    private static final int WINDOW = 256 * 1024;
+
+    private static final long TOTAL = 32L << 20;
+
+    @Test
+    void slowReaderKeepsQueuesWithinWindow() throws Exception {
+        Channel origin = new ServerBootstrap().group(TestServers.GROUP).channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new Flood());
+                    }
+                }).bind("127.0.0.1", 0).sync().channel();
+        TestProxyServer server = new TestProxyServer();
+        server.window = WINDOW;
+        server.compress = false;
+        try (TestProxyServer ignored = server.start()) {
+            TcpClient client = TestServers.newClient(Collections.singletonMap("proxy.window", String.valueOf(WINDOW)),
+                    () -> new TcpClient("127.0.0.1", TestServers.port(origin), server.address(), 0));
+            int port = TestServers.startClient(client);
+            try (Socket socket = new Socket()) {
+                socket.setReceiveBufferSize(16 * 1024);
+                socket.connect(new InetSocketAddress("127.0.0.1", port));
+                socket.setSoTimeout(30000);
+                InputStream in = socket.getInputStream();
+                byte[] buf = new byte[4096];
+                long read = 0;
+                long maxServerQueued = 0;
+                long maxClientPending = 0;
+                long slowUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+                while (System.nanoTime() < slowUntil) {
+                    read = verify(in, buf, read);
+                    maxServerQueued = Math.max(maxServerQueued, serverQueued(server));
+                    maxClientPending = Math.max(maxClientPending, clientPending(client));
+                    Thread.sleep(10);
+                }
+                assertTrue(read < TOTAL / 4, "reader should still be behind the origin: " + read);
+                assertTrue(maxServerQueued <= WINDOW, () -> "server queued " + serverQueued(server));
+                final long pending = maxClientPending;
+                assertTrue(pending <= WINDOW, () -> "client pending " + pending);
+                while (read < TOTAL) {
+                    read = verify(in, buf, read);
+                }
+                assertEquals(TOTAL, read);
+                System.out.printf("slow reader: server queued max %d B, client pending max %d B, window %d B%n",
+                        maxServerQueued, maxClientPending, WINDOW);
+            } finally {
+                client.close();
+            }
+        } finally {
+            origin.close();
+        }
+    }
+
+    private static long verify(InputStream in, byte[] buf, long offset) throws Exception {
+        int n = in.read(buf);
+        if (n < 0) {
+            throw new IllegalStateException("closed after " + offset + " bytes");
+        }
+        for (int i = 0; i < n; i++) {
+            assertEquals(TestServers.pattern(offset + i), buf[i], "offset " + (offset + i));
+        }
+        return offset + n;
+    }
+
+    private static long serverQueued(TestProxyServer server) {
+        long queued = 0;
+        for (Map<String, Object> session : server.service().stats()) {
+            queued += (Long) session.get("queuedBytes");
+        }
+        return queued;
+    }
+
+    /**
+     * 客户端已经收到、还没有写进本地连接的字节数
+     */
+    private static long clientPending(TcpClient client) throws Exception {
+        return client.tunnelLoop(0).submit(() -> {
+            long pending = 0;
+            for (TunnelStream stream : client.streams(0)) {
+                ChannelOutboundBuffer buffer = stream.getChannel().unsafe().outboundBuffer();
+                pending += buffer == null ? 0 : buffer.totalPendingWriteBytes();
+            }
+            return pending;
+        }).get();
+    }
+
+    /**
+     * 连接后按规律的数据尽快写{@link #TOTAL}字节，只在连接可写时写
+     */
+    private static final class Flood extends ChannelInboundHandlerAdapter {
+
+        private long sent;
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            write(ctx);
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            write(ctx);
+        }
+
+        private void write(ChannelHandlerContext ctx) {
+            while (ctx.channel().isWritable() && sent < TOTAL) {
+                int n = (int) Math.min(16384, TOTAL - sent);
+                ByteBuf chunk = ctx.alloc().buffer(n);
+                for (int i = 0; i < n; i++) {
+                    chunk.writeByte(TestServers.pattern(sent + i));
+                }
+                sent += n;
+                ctx.writeAndFlush(chunk);
+            }
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ((ByteBuf) msg).release();
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.proxy;
+
+import io.netty.util.concurrent.EventExecutor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.proxy.TestHttp.ascii;
+import static com.proxy.TestHttp.get;
+import static com.proxy.TestHttp.ok;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * http代理模式经过隧道访问本机的目标服务：保持连接时复用stream，按绝对地址里的host转发，各种响应的消息边界，
+ * 开启缓存时的本地命中和304替换
+ */
+class HttpProxyTest {
+
+    private TestProxyServer server;
+
+    private HttpClient client;
+
+    private int port;
+
+    private final List<TestHttp.Origin> origins = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = new TestProxyServer().start();
+        client = TestServers.newClient(Collections.singletonMap("proxy.transport", "nio"),
+                () -> new HttpClient(server.address(), 0));
+        port = TestServers.startClient(client);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        client.close();
+        server.close();
+        for (TestHttp.Origin origin : origins) {
+            origin.close();
+        }
+    }
+
+    @Test
+    void keepAliveReusesTheUpstreamConnection() throws Exception {
+        TestHttp.Origin origin = origin("origin");
+        String host = "127.0.0.1:" + origin.port();
+        try (Socket socket = connect()) {
+            for (int i = 0; i < 5; i++) {
+                socket.getOutputStream().write(get("/hello/" + i, host));
+                TestHttp.Response response = TestHttp.readResponse(socket.getInputStream(), false);
+                assertEquals(200, response.status);
+                assertEquals("origin /hello/" + i, response.text());
+            }
+        }
+        assertEquals(1, origin.connections.get());
+        //本地连接关闭后stream回到所在event loop的池里，之后的本地连接在同一个event loop上时继续使用
+        int loops = 0;
+        for (EventExecutor ignored : client.worker) {
+            loops++;
+        }
+        for (int i = 0; i < 10; i++) {
+            try (Socket socket = connect()) {
+                socket.getOutputStream().write(get("/again/" + i, host));
+                assertEquals("origin /again/" + i, TestHttp.readResponse(socket.getInputStream(), false).text());
+            }
+        }
+        int connections = origin.connections.get();
+        assertTrue(connections <= loops, connections + " upstream connections for " + loops + " event loops");
+        assertEquals(15, origin.requests.size());
+    }
+
+    @Test
+    void absoluteUriHostWinsOverHostHeader() throws Exception {
+        TestHttp.Origin a = origin("a");
+        TestHttp.Origin b = origin("b");
+        String hostA = "127.0.0.1:" + a.port();
+        String hostB = "127.0.0.1:" + b.port();
+        try (Socket socket = connect()) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            out.write(get("http://" + hostB + "/path", hostA));
+            assertEquals("b /path", TestHttp.readResponse(in, false).text());
+            out.write(get("/path", hostA));
+            assertEquals("a /path", TestHttp.readResponse(in, false).text());
+            out.write(get("http://" + hostA + "/other", hostB));
+            assertEquals("a /other", TestHttp.readResponse(in, false).text());
+        }
+        assertEquals(1, a.connections.get());
+        assertEquals(1, b.connections.get());
+    }
+
+    @Test
+    void responseFramingOnOneConnection() throws Exception {
+        byte[] large = new byte[300_000];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = TestServers.pattern(i);
+        }
+        TestHttp.Origin origin = new TestHttp.Origin(request -> {
+            switch (request.path()) {
+                case "/len":
+                    return Collections.singletonList(ok("0123456789"));
+                case "/large":
+                    return Arrays.asList(ascii("HTTP/1.1 200 OK\r\nContent-Length: " + large.length + "\r\n\r\n"),
+                            large);
+                case "/chunked":
+                    return Arrays.asList(ascii("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n"),
+                            ascii("1;ext=1\r\n \r\n6\r\nworld!\r\n"),
+                            ascii("0\r\nX-Trailer: t\r\n\r\n"));
+                case "/head":
+                    //HEAD的响应带着GET时的Content-Length，但是没有body
+                    return Collections.singletonList(ascii("HTTP/1.1 200 OK\r\nContent-Length: 1000\r\n\r\n"));
+                case "/204":
+                    return Collections.singletonList(ascii("HTTP/1.1 204 No Content\r\n\r\n"));
+                case "/304":
+                    return Collections.singletonList(ascii("HTTP/1.1 304 Not Modified\r\nContent-Length: 50\r\n\r\n"));
+                case "/interim":
+                    return Arrays.asList(ascii("HTTP/1.1 100 Continue\r\n\r\n"),
+                            ascii("HTTP/1.1 103 Early Hints\r\nLink: </a.css>; rel=preload\r\n\r\n"),
+                            ok("final"));
+                default:
+                    return Collections.singletonList(ascii("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n"));
+            }
+        });
+        origins.add(origin);
+        String host = "127.0.0.1:" + origin.port();
+        try (Socket socket = connect()) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+
+            out.write(get("/len", host));
+            assertEquals("0123456789", TestHttp.readResponse(in, false).text());
+
+            out.write(get("/large", host));
+            assertArrayEquals(large, TestHttp.readResponse(in, false).body);
+
+            out.write(get("/chunked", host));
+            assertEquals("hello world!", TestHttp.readResponse(in, false).text());
+
+            out.write(ascii("HEAD /head HTTP/1.1\r\nHost: " + host + "\r\n\r\n"));
+            TestHttp.Response head = TestHttp.readResponse(in, true);
+            assertEquals(200, head.status);
+            assertEquals("1000", head.header("Content-Length"));
+
+            out.write(get("/204", host));
+            assertEquals(204, TestHttp.readResponse(in, false).status);
+
+            out.write(get("/304", host));
+            assertEquals(304, TestHttp.readResponse(in, false).status);
+
+            out.write(ascii("POST /interim HTTP/1.1\r\nHost: " + host + "\r\nExpect: 100-continue\r\n"
+                    + "Content-Length: 4\r\n\r\nbody"));
+            TestHttp.Response interim = TestHttp.readResponse(in, false);
+            assertEquals(Arrays.asList(100, 103), interim.interim);
+            assertEquals("final", interim.text());
+
+            //前面的响应都按边界结束，没有多读或者少读，最后一个请求的响应完整
+            out.write(get("/len", host));
+            assertEquals("0123456789", TestHttp.readResponse(in, false).text());
+        }
+        assertEquals(1, origin.connections.get());
+        assertEquals(8, origin.requests.size());
+        assertEquals("body", new String(last(origin, "/interim").body));
+    }
+
+    @Test
+    void responseHeadSplitAcrossReads() throws Exception {
+        TestHttp.Origin origin = new TestHttp.Origin(request -> "/split".equals(request.path())
+                ? Arrays.asList(ascii("HTTP/1.1 200 OK\r\nConte"), ascii("nt-Length: 5\r\nX-Split: yes\r"),
+                ascii("\n\r"), ascii("\nhel"), ascii("lo"))
+                : Collections.singletonList(ok("next")));
+        origin.pauseMillis = 50;
+        origins.add(origin);
+        String host = "127.0.0.1:" + origin.port();
+        try (Socket socket = connect()) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            out.write(get("/split", host));
+            TestHttp.Response split = TestHttp.readResponse(in, false);
+            assertEquals("yes", split.header("X-Split"));
+            assertEquals("hello", split.text());
+            out.write(get("/next", host));
+            assertEquals("next", TestHttp.readResponse(in, false).text());
+        }
+        assertEquals(1, origin.connections.get());
+    }
+
+    @Test
+    void cacheSwapsNotModifiedForTheStoredResponse() throws Exception {
+        TestHttp.Origin origin = new TestHttp.Origin(request -> {
+            if ("/fresh".equals(request.path())) {
+                return Collections.singletonList(ok("fresh body", "Cache-Control: max-age=60"));
+            }
+            if ("\"v1\"".equals(request.header("If-None-Match"))) {
+                return Collections.singletonList(ascii("HTTP/1.1 304 Not Modified\r\nETag: \"v1\"\r\n\r\n"));
+            }
+            return Collections.singletonList(ok("etag body", "Cache-Control: max-age=0", "ETag: \"v1\""));
+        });
+        origins.add(origin);
+        Map<String, String> properties = new HashMap<>();
+        properties.put("proxy.transport", "nio");
+        properties.put("proxy.http.cache", "true");
+        properties.put("proxy.http.cache.disk", "0");
+        HttpClient cached = TestServers.newClient(properties, () -> new HttpClient(server.address(), 0));
+        int cachedPort = TestServers.startClient(cached);
+        String host = "127.0.0.1:" + origin.port();
+        try (Socket socket = new Socket("127.0.0.1", cachedPort)) {
+            socket.setSoTimeout(10000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            for (int i = 0; i < 3; i++) {
+                out.write(get("/etag", host));
+                TestHttp.Response response = TestHttp.readResponse(in, false);
+                //304换成缓存的200
+                assertEquals(200, response.status);
+                assertEquals("etag body", response.text());
+            }
+            for (int i = 0; i < 3; i++) {
+                out.write(get("/fresh", host));
+                assertEquals("fresh body", TestHttp.readResponse(in, false).text());
+            }
+        } finally {
+            cached.close();
+        }
+        List<String> seen = new ArrayList<>();
+        for (TestHttp.Request request : origin.requests) {
+            seen.add(request.path() + " " + request.header("If-None-Match"));
+        }
+        //有效期内的/fresh不再经过隧道
+        assertEquals(Arrays.asList("/etag null", "/etag \"v1\"", "/etag \"v1\"", "/fresh null"), seen);
+    }
+
+    /**
+     * 返回"名字 路径"的目标服务
+     */
+    private TestHttp.Origin origin(String name) throws Exception {
+        TestHttp.Origin origin = new TestHttp.Origin(request -> Collections.singletonList(ok(name + " " + request.path())));
+        origins.add(origin);
+        return origin;
+    }
+
+    private Socket connect() throws Exception {
+        Socket socket = new Socket("127.0.0.1", port);
+        socket.setSoTimeout(10000);
+        return socket;
+    }
+
+    private static TestHttp.Request last(TestHttp.Origin origin, String path) {
+        TestHttp.Request found = null;
+        for (TestHttp.Request request : origin.requests) {
+            if (path.equals(request.path())) {
+                found = request;
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,230 @@
+package com.proxy;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 同一个隧道上有大量传输时交互stream的延迟：一个stream持续下载或者上传，另一个stream每5ms发64字节等echo回来，
+ * 比较默认的调度参数和相当于按顺序发送的参数（quantum和单个stream的排队上限都是64MB，大量传输的报文排完才轮到交互stream）。
+ * 客户端经过限速的{@link TcpRelay}连接服务端，隧道成为瓶颈。内核发送缓冲区自动增长时积压都在内核里，调度器排不上，
+ * 所以再用固定的小SO_SNDBUF跑一遍，相当于nio上的proxy.transport.notsent-lowat（只有epoll支持），积压留在调度器里。
+ * <p>
+ * mvn -pl server -am test -Dtest=InteractiveLatencyBenchmark -DfailIfNoTests=false [-Dbench.samples=400]
+ * [-Dbench.rate=8388608] [-Dbench.window=262144] [-Dbench.sndbuf=16384]
+ */
+class InteractiveLatencyBenchmark {
+
+    private static final int FIFO = 64 << 20;
+
+    @Test
+    void latency() throws Exception {
+        int samples = Integer.getInteger("bench.samples", 400);
+        long rate = Long.getLong("bench.rate", 8L << 20);
+        int window = Integer.getInteger("bench.window", 262144);
+        int sndbuf = Integer.getInteger("bench.sndbuf", 16384);
+        Channel origin = new ServerBootstrap().group(TestServers.GROUP).channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new Origin());
+                    }
+                }).bind("127.0.0.1", 0).sync().channel();
+        try {
+            System.out.printf("link %.1f MB/s, window %d B%n", rate / (1024.0 * 1024.0), window);
+            System.out.printf("%-8s %-10s %-10s %10s %10s %10s %12s%n", "sndbuf", "scheduler", "bulk", "p50 ms",
+                    "p99 ms", "max ms", "bulk MB/s");
+            for (int buffer : new int[]{0, sndbuf}) {
+                for (boolean fair : new boolean[]{true, false}) {
+                    for (char bulk : new char[]{0, 'D', 'U'}) {
+                        run(TestServers.port(origin), rate, window, buffer, fair, bulk, samples);
+                    }
+                }
+            }
+        } finally {
+            origin.close();
+        }
+    }
+
+    private static void run(int originPort, long rate, int window, int sndbuf, boolean fair, char bulk,
+                            int samples) throws Exception {
+        TestProxyServer server = new TestProxyServer();
+        server.compress = false;
+        server.window = window;
+        Map<String, String> properties = new HashMap<>();
+        properties.put("proxy.transport", "nio");
+        properties.put("proxy.compress", "false");
+        properties.put("proxy.window", String.valueOf(window));
+        if (!fair) {
+            server.scheduleQuantum = FIFO;
+            server.maxStreamQueuedBytes = FIFO;
+            properties.put("proxy.schedule.quantum", String.valueOf(FIFO));
+            properties.put("proxy.schedule.max-stream-queued-bytes", String.valueOf(FIFO));
+        }
+        try (TestProxyServer ignored = server.start(); TcpRelay relay = new TcpRelay(server.port())) {
+            relay.setRate(rate);
+            TcpClient client = TestServers.newClient(properties,
+                    () -> new TcpClient("127.0.0.1", originPort, relay.address(), 0));
+            int port = TestServers.startClient(client);
+            if (sndbuf > 0) {
+                pinSendBuffers(client, server, sndbuf);
+            }
+            AtomicBoolean stop = new AtomicBoolean();
+            AtomicLong bulkBytes = new AtomicLong();
+            Thread bulkThread = null;
+            try (Socket interactive = new Socket("127.0.0.1", port)) {
+                if (bulk != 0) {
+                    bulkThread = new Thread(() -> bulk(port, bulk, stop, bulkBytes), "test-bulk");
+                    bulkThread.setDaemon(true);
+                    bulkThread.start();
+                    //等大量传输把队列填满
+                    Thread.sleep(500);
+                }
+                interactive.setTcpNoDelay(true);
+                interactive.setSoTimeout(10000);
+                OutputStream out = interactive.getOutputStream();
+                InputStream in = interactive.getInputStream();
+                out.write('E');
+                byte[] ping = new byte[64];
+                byte[] pong = new byte[64];
+                long[] rtt = new long[samples];
+                long bulkStart = bulkBytes.get();
+                long start = System.nanoTime();
+                for (int i = -20; i < samples; i++) {
+                    long sent = System.nanoTime();
+                    out.write(ping);
+                    for (int n = 0; n < pong.length; ) {
+                        int r = in.read(pong, n, pong.length - n);
+                        if (r < 0) {
+                            throw new IllegalStateException("interactive stream closed");
+                        }
+                        n += r;
+                    }
+                    if (i >= 0) {
+                        rtt[i] = System.nanoTime() - sent;
+                    }
+                    Thread.sleep(5);
+                }
+                double mbps = TestServers.throughput(bulkBytes.get() - bulkStart, System.nanoTime() - start);
+                Arrays.sort(rtt);
+                System.out.printf("%-8s %-10s %-10s %10.1f %10.1f %10.1f %12.1f%n",
+                        sndbuf > 0 ? String.valueOf(sndbuf) : "auto", fair ? "fair" : "fifo",
+                        bulk == 0 ? "none" : bulk == 'D' ? "download" : "upload", rtt[samples / 2] / 1e6,
+                        rtt[samples * 99 / 100] / 1e6, rtt[samples - 1] / 1e6, mbps);
+            } finally {
+                stop.set(true);
+                if (bulkThread != null) {
+                    bulkThread.join(10000);
+                }
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * 隧道两端的连接都设置固定的发送缓冲区，内核不再自动增长
+     */
+    private static void pinSendBuffers(TcpClient client, TestProxyServer server, int sndbuf) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (client.tunnel(0) == null || server.service().sessions().isEmpty()) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("tunnel not connected");
+            }
+            Thread.sleep(10);
+        }
+        client.tunnel(0).config().setOption(ChannelOption.SO_SNDBUF, sndbuf);
+        for (TunnelSession session : server.service().sessions()) {
+            ((NettyTunnelSession) session).channel().config().setOption(ChannelOption.SO_SNDBUF, sndbuf);
+        }
+    }
+
+    /**
+     * 大量传输的stream，下载时尽快读，上传时尽快写，直到stop
+     */
+    private static void bulk(int port, char mode, AtomicBoolean stop, AtomicLong bytes) {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(10000);
+            OutputStream out = socket.getOutputStream();
+            out.write(mode);
+            byte[] buf = new byte[65536];
+            while (!stop.get()) {
+                if (mode == 'D') {
+                    int n = socket.getInputStream().read(buf);
+                    if (n < 0) {
+                        return;
+                    }
+                    bytes.addAndGet(n);
+                } else {
+                    out.write(buf);
+                    bytes.addAndGet(buf.length);
+                }
+            }
+        } catch (IOException e) {
+            if (!stop.get()) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * 目标服务，第一个字节决定这个连接的行为：D一直发送数据，U丢弃收到的数据，E原样返回
+     */
+    private static final class Origin extends ChannelInboundHandlerAdapter {
+
+        private char mode;
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ByteBuf buf = (ByteBuf) msg;
+            if (mode == 0 && buf.isReadable()) {
+                mode = (char) buf.readByte();
+                if (mode == 'D') {
+                    flood(ctx);
+                }
+            }
+            if (mode == 'E' && buf.isReadable()) {
+                ctx.writeAndFlush(buf);
+                return;
+            }
+            buf.release();
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            if (mode == 'D') {
+                flood(ctx);
+            }
+        }
+
+        private void flood(ChannelHandlerContext ctx) {
+            while (ctx.channel().isActive() && ctx.channel().isWritable()) {
+                ByteBuf chunk = ctx.alloc().buffer(16384);
+                chunk.writerIndex(16384);
+                ctx.writeAndFlush(chunk);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+}
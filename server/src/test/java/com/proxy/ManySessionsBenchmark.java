@@ -0,0 +1,195 @@
+package com.proxy;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.EventExecutor;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 多个会话同时传输时的总吞吐量和服务端event loop线程上的锁竞争：1、4、16个客户端各用一个隧道，
+ * 每个隧道4个stream各向echo服务传输数据。传输过程中检查每个会话的目标连接都注册在会话的event loop上。
+ * 客户端、echo服务和服务端在同一个进程里，共用netty的PooledByteBufAllocator，arena的锁竞争也会算进来，
+ * 按阻塞时持有的对象分类列出。
+ * <p>
+ * mvn -pl server -am test -Dtest=ManySessionsBenchmark -DfailIfNoTests=false [-Dbench.bytes=8388608]
+ */
+class ManySessionsBenchmark {
+
+    private static final int STREAMS = 4;
+
+    @Test
+    void throughput() throws Exception {
+        long bytes = Long.getLong("bench.bytes", 8L << 20);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads.isThreadContentionMonitoringSupported()) {
+            threads.setThreadContentionMonitoringEnabled(true);
+        }
+        Channel echo = TestServers.startEcho();
+        try (TestProxyServer server = new TestProxyServer().start()) {
+            long[] loopThreads = loopThreads(server);
+            System.out.printf("%8s %8s %10s %14s %14s %10s  %s%n", "sessions", "streams", "MB/s", "blocked count",
+                    "blocked ms", "off-loop", "blocked samples by monitor");
+            for (int sessions : new int[]{1, 4, 16}) {
+                List<TcpClient> clients = new ArrayList<>();
+                List<Integer> ports = new ArrayList<>();
+                try {
+                    for (int i = 0; i < sessions; i++) {
+                        Map<String, String> properties = new HashMap<>();
+                        properties.put("proxy.transport", "nio");
+                        properties.put("proxy.tunnels", "1");
+                        TcpClient client = TestServers.newClient(properties,
+                                () -> new TcpClient("127.0.0.1", TestServers.port(echo), server.address(), 0));
+                        clients.add(client);
+                        ports.add(TestServers.startClient(client));
+                    }
+                    run(ports, 4L << 20, null);
+                    long[] before = blocked(threads, loopThreads);
+                    int[] offLoop = new int[1];
+                    Sampler sampler = new Sampler(threads, loopThreads);
+                    double mbps = run(ports, bytes, () -> offLoop[0] += offLoop(server));
+                    sampler.interrupt();
+                    long[] after = blocked(threads, loopThreads);
+                    System.out.printf("%8d %8d %10.0f %14d %14d %10d  %s%n", sessions, sessions * STREAMS, mbps,
+                            after[0] - before[0], after[1] < 0 ? -1 : after[1] - before[1], offLoop[0],
+                            sampler.monitors);
+                    assertEquals(0, offLoop[0], "upstream channels registered outside their session's event loop");
+                } finally {
+                    for (TcpClient client : clients) {
+                        client.close();
+                    }
+                }
+            }
+        } finally {
+            echo.close();
+        }
+    }
+
+    /**
+     * 每个本地端口开STREAMS个stream，全部同时传输，第一个stream传到一半时调用midway，返回总的吞吐量（MB/s）
+     */
+    private static double run(List<Integer> ports, long bytes, Runnable midway) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(ports.size() * STREAMS);
+        try {
+            long start = System.nanoTime();
+            List<Future<Long>> futures = new ArrayList<>();
+            for (int port : ports) {
+                for (int i = 0; i < STREAMS; i++) {
+                    Runnable m = futures.isEmpty() ? midway : null;
+                    futures.add(executor.submit(() -> TestServers.transfer(port, bytes, m)));
+                }
+            }
+            for (Future<Long> future : futures) {
+                future.get();
+            }
+            return TestServers.throughput(bytes * futures.size(), System.nanoTime() - start);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 服务端event loop的线程id
+     */
+    private static long[] loopThreads(TestProxyServer server) throws Exception {
+        List<Long> ids = new ArrayList<>();
+        for (EventExecutor executor : server.service().getLoopGroup()) {
+            ids.add(executor.submit(() -> Thread.currentThread().getId()).get());
+        }
+        long[] result = new long[ids.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ids.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * event loop线程等待进入synchronized的次数和时间（毫秒，不支持时为-1）
+     */
+    private static long[] blocked(ThreadMXBean threads, long[] ids) {
+        long count = 0;
+        long millis = threads.isThreadContentionMonitoringEnabled() ? 0 : -1;
+        for (ThreadInfo info : threads.getThreadInfo(ids)) {
+            if (info != null) {
+                count += info.getBlockedCount();
+                if (millis >= 0) {
+                    millis += info.getBlockedTime();
+                }
+            }
+        }
+        return new long[]{count, millis};
+    }
+
+    /**
+     * 每毫秒查看一次event loop线程，记录阻塞在哪一类对象的synchronized上
+     */
+    private static final class Sampler extends Thread {
+
+        final Map<String, Integer> monitors = new ConcurrentHashMap<>();
+
+        private final ThreadMXBean threads;
+
+        private final long[] ids;
+
+        Sampler(ThreadMXBean threads, long[] ids) {
+            super("test-blocked-sampler");
+            this.threads = threads;
+            this.ids = ids;
+            setDaemon(true);
+            start();
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                for (ThreadInfo info : threads.getThreadInfo(ids)) {
+                    if (info != null && info.getThreadState() == Thread.State.BLOCKED && info.getLockInfo() != null) {
+                        monitors.merge(info.getLockInfo().getClassName(), 1, Integer::sum);
+                    }
+                }
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 不在会话的event loop上的目标连接数
+     */
+    private static int offLoop(TestProxyServer server) {
+        int count = 0;
+        for (TunnelSession session : server.service().sessions()) {
+            EventLoop loop = session.eventLoop();
+            try {
+                count += loop.submit(() -> {
+                    int n = 0;
+                    for (ChannelWrap wrap : session.streams()) {
+                        if (wrap.getChannelFuture() != null && wrap.channel().eventLoop() != loop) {
+                            n++;
+                        }
+                    }
+                    return n;
+                }).get();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return count;
+    }
+}
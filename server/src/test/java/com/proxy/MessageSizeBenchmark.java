@@ -0,0 +1,50 @@
+package com.proxy;
+
+import io.netty.channel.Channel;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 协商的客户端最大消息长度对大流量传输的影响：proxy.max-message和服务端接受的长度都为8KB、64KB、256KB时，
+ * 单个stream向echo服务传输64MB，客户端发出的每MB的websocket帧数和吞吐量。
+ * <p>
+ * mvn -pl server -am test -Dtest=MessageSizeBenchmark -DfailIfNoTests=false
+ */
+class MessageSizeBenchmark {
+
+    private static final long TOTAL = 64L << 20;
+
+    @Test
+    void throughput() throws Exception {
+        Channel echo = TestServers.startEcho();
+        try {
+            for (int size : new int[]{8 * 1024, 64 * 1024, 256 * 1024}) {
+                TestProxyServer server = new TestProxyServer();
+                server.maxClientMessageSize = size;
+                try (TestProxyServer ignored = server.start(); TcpRelay relay = new TcpRelay(server.port())) {
+                    Map<String, String> properties = new HashMap<>();
+                    properties.put("proxy.transport", "nio");
+                    properties.put("proxy.max-message", String.valueOf(size));
+                    TcpClient client = TestServers.newClient(properties,
+                            () -> new TcpClient("127.0.0.1", TestServers.port(echo), relay.address(), 0));
+                    int port = TestServers.startClient(client);
+                    try {
+                        TestServers.transfer(port, 16L << 20, null);
+                        long up = relay.upstreamFrames.get();
+                        double first = TestServers.throughput(TOTAL, TestServers.transfer(port, TOTAL, null));
+                        double second = TestServers.throughput(TOTAL, TestServers.transfer(port, TOTAL, null));
+                        double mb = 2.0 * TOTAL / (1 << 20);
+                        System.out.printf("max message %3d KB: %.0f / %.0f MB/s, client->server frames per MB %.1f%n",
+                                size / 1024, first, second, (relay.upstreamFrames.get() - up) / mb);
+                    } finally {
+                        client.close();
+                    }
+                }
+            }
+        } finally {
+            echo.close();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.proxy;
+
+import io.netty.channel.Channel;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.proxy.TestHttp.get;
+import static com.proxy.TestHttp.ok;
+
+/**
+ * 新stream的首字节时间：打开报文带着第一段数据（v2）和打开报文、数据分成两个报文（-Dproxy.protocol=1）对比。
+ * http模式每个请求都打开新的stream（proxy.http.max-idle=0），从写出请求到读到响应的第一个字节；
+ * tcp模式每次新建本地连接，从写出数据到echo回来。客户端经过{@link TcpRelay}连接服务端，同时统计每个请求客户端发出的websocket帧数。
+ * <p>
+ * mvn -pl server -am test -Dtest=OpenPayloadBenchmark -DfailIfNoTests=false [-Dbench.requests=500]
+ */
+class OpenPayloadBenchmark {
+
+    @Test
+    void firstByte() throws Exception {
+        int requests = Integer.getInteger("bench.requests", 500);
+        TestHttp.Origin origin = new TestHttp.Origin(request -> Collections.singletonList(ok("hello")));
+        Channel echo = TestServers.startEcho();
+        try (TestProxyServer server = new TestProxyServer().start(); TcpRelay relay = new TcpRelay(server.port())) {
+            System.out.printf("%-5s %-8s %10s %10s %10s %14s%n", "mode", "protocol", "p50 us", "p99 us", "mean us",
+                    "frames/request");
+            //交替跑两轮，减少预热和机器状态的影响
+            for (int round = 0; round < 2; round++) {
+                for (int protocol : new int[]{2, 1}) {
+                    http(relay, origin, protocol, requests, round > 0);
+                    tcp(relay, TestServers.port(echo), protocol, requests, round > 0);
+                }
+            }
+        } finally {
+            origin.close();
+            echo.close();
+        }
+    }
+
+    private static void http(TcpRelay relay, TestHttp.Origin origin, int protocol, int requests, boolean print)
+            throws Exception {
+        Map<String, String> properties = properties(protocol);
+        properties.put("proxy.http.max-idle", "0");
+        HttpClient client = TestServers.newClient(properties, () -> new HttpClient("127.0.0.1:" + relay.port(), 0));
+        int port = TestServers.startClient(client);
+        byte[] request = get("/", "127.0.0.1:" + origin.port(), "Connection: close");
+        long[] samples = new long[requests];
+        long frames;
+        try {
+            long before = relay.upstreamFrames.get();
+            for (int i = 0; i < requests; i++) {
+                try (Socket socket = new Socket("127.0.0.1", port)) {
+                    socket.setSoTimeout(10000);
+                    socket.setTcpNoDelay(true);
+                    InputStream in = socket.getInputStream();
+                    long start = System.nanoTime();
+                    socket.getOutputStream().write(request);
+                    if (in.read() < 0) {
+                        throw new IllegalStateException("no response");
+                    }
+                    samples[i] = System.nanoTime() - start;
+                    TestHttp.readResponse(in, false);
+                }
+            }
+            frames = relay.upstreamFrames.get() - before;
+        } finally {
+            client.close();
+        }
+        if (print) {
+            print("http", protocol, samples, frames);
+        }
+    }
+
+    private static void tcp(TcpRelay relay, int echoPort, int protocol, int requests, boolean print)
+            throws Exception {
+        TcpClient client = TestServers.newClient(properties(protocol),
+                () -> new TcpClient("127.0.0.1", echoPort, "127.0.0.1:" + relay.port(), 0));
+        int port = TestServers.startClient(client);
+        long[] samples = new long[requests];
+        long frames;
+        try {
+            long before = relay.upstreamFrames.get();
+            for (int i = 0; i < requests; i++) {
+                samples[i] = TestServers.echoOnce(port, 10000);
+                if (samples[i] < 0) {
+                    throw new IllegalStateException("echo failed");
+                }
+            }
+            frames = relay.upstreamFrames.get() - before;
+        } finally {
+            client.close();
+        }
+        if (print) {
+            print("tcp", protocol, samples, frames);
+        }
+    }
+
+    private static Map<String, String> properties(int protocol) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("proxy.transport", "nio");
+        properties.put("proxy.protocol", String.valueOf(protocol));
+        return properties;
+    }
+
+    private static void print(String mode, int protocol, long[] samples, long frames) {
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        double mean = Arrays.stream(sorted).average().orElse(0);
+        System.out.printf("%-5s v%-7d %10.0f %10.0f %10.0f %14.2f%n", mode, protocol, sorted[sorted.length / 2] / 1e3,
+                sorted[sorted.length * 99 / 100] / 1e3, mean / 1e3, (double) frames / samples.length);
+    }
+}
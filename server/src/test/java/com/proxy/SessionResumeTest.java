@@ -0,0 +1,114 @@
+package com.proxy;
+
+import io.netty.channel.Channel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 传输过程中断开隧道：双方都开启会话恢复时客户端重连后从断开的位置继续，本地连接收到的数据逐字节一致；
+ * 默认不恢复，断开即关闭本地连接
+ */
+class SessionResumeTest {
+
+    private static final long TOTAL = 16L << 20;
+
+    private Channel echo;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        echo = TestServers.startEcho();
+    }
+
+    @AfterEach
+    void tearDown() {
+        echo.close();
+    }
+
+    @Test
+    void cutMidTransferResumesByteExact() throws Exception {
+        TestProxyServer server = new TestProxyServer();
+        server.resumeGrace = 30;
+        try (TestProxyServer ignored = server.start(); TcpRelay relay = new TcpRelay(server.port())) {
+            TcpClient client = newClient(relay, 30);
+            int port = TestServers.startClient(client);
+            try {
+                TestServers.transfer(port, TOTAL, relay::cut);
+                assertTrue(relay.connections.get() >= 2, "client should have reconnected");
+                assertEquals(1, server.service().sessions().size());
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    void repeatedCutsWithConcurrentStreams() throws Exception {
+        TestProxyServer server = new TestProxyServer();
+        server.resumeGrace = 30;
+        try (TestProxyServer ignored = server.start(); TcpRelay relay = new TcpRelay(server.port())) {
+            TcpClient client = newClient(relay, 30);
+            int port = TestServers.startClient(client);
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<Long>> futures = new ArrayList<>();
+                //第一个stream传到一半时断开，其它stream同时在传输
+                futures.add(executor.submit(() -> TestServers.transfer(port, TOTAL, relay::cut)));
+                for (int i = 0; i < 3; i++) {
+                    futures.add(executor.submit(() -> TestServers.transfer(port, TOTAL, null)));
+                }
+                //再断开一次，这时可能正在交换恢复报文
+                Thread.sleep(100);
+                relay.cut();
+                for (Future<Long> future : futures) {
+                    future.get();
+                }
+                assertTrue(relay.connections.get() >= 3, "client should have reconnected after each cut");
+            } finally {
+                executor.shutdownNow();
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    void cutClosesLocalConnectionsByDefault() throws Exception {
+        try (TestProxyServer server = new TestProxyServer().start(); TcpRelay relay = new TcpRelay(server.port())) {
+            TcpClient client = TestServers.newClient(properties(),
+                    () -> new TcpClient("127.0.0.1", TestServers.port(echo), relay.address(), 0));
+            int port = TestServers.startClient(client);
+            try {
+                assertThrows(Exception.class, () -> TestServers.transfer(port, TOTAL, relay::cut));
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    private TcpClient newClient(TcpRelay relay, int grace) throws Exception {
+        Map<String, String> properties = properties();
+        properties.put("proxy.resume.grace", String.valueOf(grace));
+        return TestServers.newClient(properties,
+                () -> new TcpClient("127.0.0.1", TestServers.port(echo), relay.address(), 0));
+    }
+
+    private static Map<String, String> properties() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("proxy.transport", "nio");
+        properties.put("proxy.reconnect.min", "50");
+        properties.put("proxy.reconnect.max", "200");
+        return properties;
+    }
+}
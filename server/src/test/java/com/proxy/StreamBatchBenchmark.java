@@ -0,0 +1,100 @@
+package com.proxy;
+
+import io.netty.channel.Channel;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 很多小stream同时收发时合并报文的效果：64个本地连接各发送500次100字节并等待echo，
+ * proxy.batch为true和false时，隧道上两个方向的websocket帧数、中转读到的次数和用时。
+ * <p>
+ * mvn -pl server -am test -Dtest=StreamBatchBenchmark -DfailIfNoTests=false
+ */
+class StreamBatchBenchmark {
+
+    private static final int STREAMS = 64;
+
+    private static final int ROUNDS = 500;
+
+    private static final int SIZE = 100;
+
+    @Test
+    void frames() throws Exception {
+        Channel echo = TestServers.startEcho();
+        try (TestProxyServer server = new TestProxyServer().start()) {
+            for (boolean batch : new boolean[]{false, true}) {
+                try (TcpRelay relay = new TcpRelay(server.port())) {
+                    Map<String, String> properties = new HashMap<>();
+                    properties.put("proxy.transport", "nio");
+                    properties.put("proxy.batch", String.valueOf(batch));
+                    TcpClient client = TestServers.newClient(properties,
+                            () -> new TcpClient("127.0.0.1", TestServers.port(echo), relay.address(), 0));
+                    int port = TestServers.startClient(client);
+                    try {
+                        pingPong(port);
+                        long upFrames = relay.upstreamFrames.get();
+                        long downFrames = relay.downstreamFrames.get();
+                        long reads = relay.upstreamReads.get();
+                        long start = System.nanoTime();
+                        pingPong(port);
+                        long elapsed = System.nanoTime() - start;
+                        long messages = (long) STREAMS * ROUNDS;
+                        System.out.printf("batch %-5s: client->server %.2f frames/msg, server->client %.2f frames/msg, "
+                                        + "relay reads %.2f/msg, %d ms%n", batch,
+                                (double) (relay.upstreamFrames.get() - upFrames) / messages,
+                                (double) (relay.downstreamFrames.get() - downFrames) / messages,
+                                (double) (relay.upstreamReads.get() - reads) / messages, elapsed / 1_000_000);
+                    } finally {
+                        client.close();
+                    }
+                }
+            }
+        } finally {
+            echo.close();
+        }
+    }
+
+    private static void pingPong(int port) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(STREAMS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < STREAMS; i++) {
+                futures.add(executor.submit(() -> {
+                    try (Socket socket = new Socket("127.0.0.1", port)) {
+                        socket.setTcpNoDelay(true);
+                        socket.setSoTimeout(30000);
+                        OutputStream out = socket.getOutputStream();
+                        InputStream in = socket.getInputStream();
+                        byte[] buf = new byte[SIZE];
+                        for (int round = 0; round < ROUNDS; round++) {
+                            out.write(buf);
+                            for (int n = 0; n < SIZE; ) {
+                                int r = in.read(buf, n, SIZE - n);
+                                if (r < 0) {
+                                    throw new IllegalStateException("closed");
+                                }
+                                n += r;
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.proxy;
+
+import com.proxy.common.FairScheduler;
+import com.proxy.common.RecordCodec;
+import com.proxy.common.TunnelOptions;
+import com.proxy.common.TunnelProtocol;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 收到客户端报文时查找stream的开销：解析一个带64条DATA报文的消息并逐条查找，会话里分别有10、1000、10000个stream，
+ * 和原来遍历会话里所有stream比较id的做法对比。
+ * <p>
+ * mvn -pl server -am test -Dtest=StreamLookupBenchmark -DfailIfNoTests=false
+ */
+class StreamLookupBenchmark {
+
+    private static final int RECORDS = 64;
+
+    @Test
+    void lookup() {
+        for (int streams : new int[]{10, 1000, 10000}) {
+            EmbeddedChannel channel = new EmbeddedChannel();
+            TunnelSession session = new NettyTunnelSession(channel, channel.eventLoop(),
+                    new TunnelOptions().setVersion(TunnelProtocol.VERSION_2),
+                    new FairScheduler(16384, 131072, Collections.emptyMap()), 4194304, 65536);
+            List<ChannelWrap> scan = new ArrayList<>();
+            for (long id = 1; id <= streams; id++) {
+                ChannelWrap wrap = new ChannelWrap(session, id, 80);
+                session.putStream(id, wrap);
+                scan.add(wrap);
+            }
+            ByteBuf message = message(session.codec(), streams);
+            Counter byMap = new Counter(session, null);
+            Counter byScan = new Counter(null, scan);
+            int rounds = Math.max(200, 2_000_000 / streams);
+            double map = measure(session.codec(), message, byMap, 200_000);
+            double linear = measure(session.codec(), message, byScan, rounds);
+            System.out.printf("%5d streams: map %.1f ns/record, linear scan %.1f ns/record%n", streams, map, linear);
+            message.release();
+            channel.finishAndReleaseAll();
+        }
+    }
+
+    private static ByteBuf message(RecordCodec codec, int streams) {
+        Random random = new Random(streams);
+        ByteBuf message = Unpooled.buffer();
+        byte[] body = new byte[64];
+        for (int i = 0; i < RECORDS; i++) {
+            codec.writeHeader(message, TunnelProtocol.TYPE_DATA, 1 + random.nextInt(streams), body.length);
+            message.writeBytes(body);
+        }
+        return message;
+    }
+
+    private static double measure(RecordCodec codec, ByteBuf message, Counter counter, int rounds) {
+        for (int i = 0; i < rounds; i++) {
+            codec.decode(message.duplicate(), counter);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            codec.decode(message.duplicate(), counter);
+        }
+        long elapsed = System.nanoTime() - start;
+        if (counter.found != 2L * rounds * RECORDS) {
+            throw new IllegalStateException("lost records: " + counter.found);
+        }
+        return (double) elapsed / rounds / RECORDS;
+    }
+
+    private static final class Counter implements RecordCodec.Handler {
+
+        private final TunnelSession session;
+
+        private final List<ChannelWrap> scan;
+
+        long found;
+
+        Counter(TunnelSession session, List<ChannelWrap> scan) {
+            this.session = session;
+            this.scan = scan;
+        }
+
+        @Override
+        public void onRecord(int type, long streamId, ByteBuf body) {
+            if (session != null) {
+                if (session.getStream(streamId) != null) {
+                    found++;
+                }
+                return;
+            }
+            for (ChannelWrap wrap : scan) {
+                if (wrap.getClientId() == streamId) {
+                    found++;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.proxy;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.traffic.ChannelTrafficShapingHandler;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 客户端和服务端之间的tcp中转，模拟网络故障：{@link #cut}断开当前的连接，{@link #setBlackhole}丢弃所有数据、
+ * 新的连接也不转发（对端没有响应，tcp连接却没有断开），{@link #setRate}模拟慢的链路。
+ * 同时统计两个方向转发的字节数、读到的次数和websocket帧数
+ */
+final class TcpRelay implements AutoCloseable {
+
+    private static final int RATE_LIMITED_BUFFER = 16384;
+
+    private final Set<Channel> channels = ConcurrentHashMap.newKeySet();
+
+    private final Channel server;
+
+    private volatile boolean blackhole;
+
+    private volatile long rate;
+
+    final AtomicLong connections = new AtomicLong();
+
+    final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * 客户端到服务端方向的字节数和读到的次数
+     */
+    final AtomicLong upstreamBytes = new AtomicLong();
+
+    final AtomicLong upstreamReads = new AtomicLong();
+
+    /**
+     * 客户端到服务端方向的websocket帧数（握手之后）
+     */
+    final AtomicLong upstreamFrames = new AtomicLong();
+
+    /**
+     * 服务端到客户端方向的字节数和websocket帧数
+     */
+    final AtomicLong downstreamBytes = new AtomicLong();
+
+    final AtomicLong downstreamFrames = new AtomicLong();
+
+    TcpRelay(int target) throws InterruptedException {
+        server = new ServerBootstrap().group(TestServers.GROUP).channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel in) {
+                        channels.add(in);
+                        connections.incrementAndGet();
+                        if (blackhole) {
+                            in.pipeline().addLast(new Pipe(null, null, null));
+                            return;
+                        }
+                        //连上服务端之前不读客户端的数据
+                        in.config().setAutoRead(false);
+                        long limit = rate;
+                        Bootstrap bootstrap = new Bootstrap().group(in.eventLoop()).channel(NioSocketChannel.class);
+                        if (limit > 0) {
+                            in.pipeline().addLast(new ChannelTrafficShapingHandler(0, limit, 10));
+                            bootstrap.option(ChannelOption.SO_RCVBUF, RATE_LIMITED_BUFFER);
+                        }
+                        Channel out = bootstrap.handler(new ChannelInitializer<SocketChannel>() {
+                                    @Override
+                                    protected void initChannel(SocketChannel ch) {
+                                        if (limit > 0) {
+                                            ch.pipeline().addLast(new ChannelTrafficShapingHandler(0, limit, 10));
+                                        }
+                                        ch.pipeline().addLast(new Pipe(in, downstreamBytes,
+                                                new FrameCounter(downstreamFrames)));
+                                    }
+                                })
+                                .connect("127.0.0.1", target).addListener((ChannelFutureListener) future -> {
+                                    if (future.isSuccess()) {
+                                        in.config().setAutoRead(true);
+                                    } else {
+                                        in.close();
+                                    }
+                                }).channel();
+                        channels.add(out);
+                        in.pipeline().addLast(new Pipe(out, upstreamBytes, new FrameCounter(upstreamFrames)));
+                    }
+                }).bind("127.0.0.1", 0).sync().channel();
+    }
+
+    int port() {
+        return TestServers.port(server);
+    }
+
+    String address() {
+        return "127.0.0.1:" + port();
+    }
+
+    void setBlackhole(boolean blackhole) {
+        this.blackhole = blackhole;
+    }
+
+    /**
+     * 之后的连接每个方向每秒最多读bytesPerSecond个字节，0表示不限制
+     */
+    void setRate(long bytesPerSecond) {
+        this.rate = bytesPerSecond;
+        if (bytesPerSecond > 0) {
+            //接收缓冲区小，数据积压在发送方而不是中转的内核缓冲区里；要在握手之前设置，所以设置在监听的socket上
+            server.config().setOption(ChannelOption.SO_RCVBUF, RATE_LIMITED_BUFFER);
+        }
+    }
+
+    /**
+     * 断开所有经过中转的连接
+     */
+    void cut() {
+        for (Channel channel : channels) {
+            channel.close();
+        }
+        channels.clear();
+    }
+
+    @Override
+    public void close() {
+        cut();
+        server.close();
+    }
+
+    private final class Pipe extends ChannelInboundHandlerAdapter {
+
+        private final Channel peer;
+
+        private final AtomicLong bytes;
+
+        private final FrameCounter frames;
+
+        Pipe(Channel peer, AtomicLong bytes, FrameCounter frames) {
+            this.peer = peer;
+            this.bytes = bytes;
+            this.frames = frames;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            int length = ((ByteBuf) msg).readableBytes();
+            if (blackhole || peer == null || !peer.isActive()) {
+                dropped.addAndGet(length);
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+            bytes.addAndGet(length);
+            frames.update((ByteBuf) msg);
+            if (bytes == upstreamBytes) {
+                upstreamReads.incrementAndGet();
+            }
+            peer.writeAndFlush(msg);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            if (peer != null) {
+                peer.close();
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+
+    /**
+     * 跳过http握手（到第一个空行），之后按websocket帧头计数，帧可以跨多次读取
+     */
+    private static final class FrameCounter {
+
+        private final AtomicLong frames;
+
+        private final byte[] header = new byte[14];
+
+        private int headerLength;
+
+        /**
+         * 握手结束的空行已经匹配的字节数，4表示握手已经结束
+         */
+        private int handshake;
+
+        private long skip;
+
+        FrameCounter(AtomicLong frames) {
+            this.frames = frames;
+        }
+
+        void update(ByteBuf buf) {
+            int i = buf.readerIndex();
+            int end = buf.writerIndex();
+            while (i < end && handshake < 4) {
+                byte b = buf.getByte(i++);
+                handshake = b == (handshake % 2 == 0 ? '\r' : '\n') ? handshake + 1 : (b == '\r' ? 1 : 0);
+            }
+            while (i < end) {
+                if (skip > 0) {
+                    int n = (int) Math.min(skip, end - i);
+                    skip -= n;
+                    i += n;
+                    continue;
+                }
+                header[headerLength++] = buf.getByte(i++);
+                int required = required();
+                if (headerLength == required) {
+                    skip = payloadLength();
+                    headerLength = 0;
+                    frames.incrementAndGet();
+                }
+            }
+        }
+
+        /**
+         * 当前已知的帧头长度
+         */
+        private int required() {
+            if (headerLength < 2) {
+                return 2;
+            }
+            int length = header[1] & 0x7f;
+            int mask = (header[1] & 0x80) != 0 ? 4 : 0;
+            return 2 + mask + (length == 126 ? 2 : length == 127 ? 8 : 0);
+        }
+
+        private long payloadLength() {
+            int length = header[1] & 0x7f;
+            if (length < 126) {
+                return length;
+            }
+            long value = 0;
+            for (int i = 0; i < (length == 126 ? 2 : 8); i++) {
+                value = value << 8 | (header[2 + i] & 0xff);
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package com.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * http测试的公共部分：阻塞io的本机目标服务，记录收到的请求和连接数；按http/1.1的消息边界读取响应
+ */
+final class TestHttp {
+
+    private TestHttp() {
+    }
+
+    static final class Request {
+
+        final int connection;
+
+        final String method;
+
+        final String target;
+
+        final Map<String, String> headers;
+
+        final byte[] body;
+
+        Request(int connection, String method, String target, Map<String, String> headers, byte[] body) {
+            this.connection = connection;
+            this.method = method;
+            this.target = target;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        /**
+         * 去掉绝对地址形式里的scheme和host
+         */
+        String path() {
+            if (target.startsWith("http://")) {
+                int slash = target.indexOf('/', "http://".length());
+                return slash < 0 ? "/" : target.substring(slash);
+            }
+            return target;
+        }
+
+        String header(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    static final class Response {
+
+        final int status;
+
+        final Map<String, String> headers;
+
+        final byte[] body;
+
+        /**
+         * 最终响应之前收到的1xx响应的状态码
+         */
+        final List<Integer> interim;
+
+        Response(int status, Map<String, String> headers, byte[] body, List<Integer> interim) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+            this.interim = interim;
+        }
+
+        String header(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        String text() {
+            return new String(body, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * 目标服务：每个连接一个线程，连接上依次处理请求。handler返回的每一段分别写出并flush，段之间停顿pauseMillis，
+     * 用来把响应拆到多次读里；handler返回null时关闭连接
+     */
+    static final class Origin implements AutoCloseable {
+
+        final AtomicInteger connections = new AtomicInteger();
+
+        final ConcurrentLinkedQueue<Request> requests = new ConcurrentLinkedQueue<>();
+
+        private final ServerSocket socket;
+
+        private final Function<Request, List<byte[]>> handler;
+
+        volatile int pauseMillis;
+
+        Origin(Function<Request, List<byte[]>> handler) throws IOException {
+            this.handler = handler;
+            this.socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            Thread acceptor = new Thread(this::accept, "test-origin-" + socket.getLocalPort());
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int port() {
+            return socket.getLocalPort();
+        }
+
+        private void accept() {
+            while (!socket.isClosed()) {
+                try {
+                    Socket s = socket.accept();
+                    int id = connections.incrementAndGet();
+                    Thread thread = new Thread(() -> serve(s, id), "test-origin-conn-" + id);
+                    thread.setDaemon(true);
+                    thread.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void serve(Socket s, int id) {
+            try (Socket ignored = s) {
+                InputStream in = s.getInputStream();
+                OutputStream out = s.getOutputStream();
+                while (true) {
+                    String head = readHead(in);
+                    if (head == null) {
+                        return;
+                    }
+                    String[] lines = head.split("\r\n");
+                    String[] start = lines[0].split(" ");
+                    Map<String, String> headers = headers(lines);
+                    String length = headers.get("content-length");
+                    byte[] body = readFully(in, length == null ? 0 : Integer.parseInt(length));
+                    Request request = new Request(id, start[0], start[1], headers, body);
+                    requests.add(request);
+                    List<byte[]> parts = handler.apply(request);
+                    if (parts == null) {
+                        return;
+                    }
+                    for (int i = 0; i < parts.size(); i++) {
+                        if (i > 0 && pauseMillis > 0) {
+                            Thread.sleep(pauseMillis);
+                        }
+                        out.write(parts.get(i));
+                        out.flush();
+                    }
+                }
+            } catch (IOException e) {
+                //客户端关闭了连接
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * 带Content-Length的200响应
+     */
+    static byte[] ok(String body, String... headers) {
+        StringBuilder sb = new StringBuilder("HTTP/1.1 200 OK\r\n");
+        for (String header : headers) {
+            sb.append(header).append("\r\n");
+        }
+        return ascii(sb.append("Content-Length: ").append(body.length()).append("\r\n\r\n").append(body).toString());
+    }
+
+    static byte[] get(String target, String host, String... headers) {
+        StringBuilder sb = new StringBuilder("GET ").append(target).append(" HTTP/1.1\r\nHost: ").append(host)
+                .append("\r\n");
+        for (String header : headers) {
+            sb.append(header).append("\r\n");
+        }
+        return ascii(sb.append("\r\n").toString());
+    }
+
+    /**
+     * 读取一个响应，1xx响应记录后继续读；HEAD请求、204和304的响应没有body
+     */
+    static Response readResponse(InputStream in, boolean head) throws IOException {
+        List<Integer> interim = new ArrayList<>();
+        while (true) {
+            String text = readHead(in);
+            if (text == null) {
+                throw new IOException("connection closed before the response");
+            }
+            String[] lines = text.split("\r\n");
+            int status = Integer.parseInt(lines[0].split(" ")[1]);
+            Map<String, String> headers = headers(lines);
+            if (status >= 100 && status < 200) {
+                interim.add(status);
+                continue;
+            }
+            byte[] body;
+            String length = headers.get("content-length");
+            if (head || status == 204 || status == 304) {
+                body = new byte[0];
+            } else if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+                body = readChunked(in);
+            } else if (length != null) {
+                body = readFully(in, Integer.parseInt(length));
+            } else {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buf = new byte[4096];
+                for (int n; (n = in.read(buf)) >= 0; ) {
+                    out.write(buf, 0, n);
+                }
+                body = out.toByteArray();
+            }
+            return new Response(status, headers, body, interim);
+        }
+    }
+
+    private static byte[] readChunked(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (true) {
+            String line = readLine(in);
+            int size = Integer.parseInt(line.split(";")[0].trim(), 16);
+            if (size == 0) {
+                //trailer
+                while (!readLine(in).isEmpty()) {
+                }
+                return out.toByteArray();
+            }
+            out.write(readFully(in, size));
+            readLine(in);
+        }
+    }
+
+    /**
+     * 读到空行为止，返回不含空行的头部；连接在头部开始前关闭时返回null
+     */
+    private static String readHead(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            String line = readLine(in);
+            if (line == null) {
+                if (sb.length() == 0) {
+                    return null;
+                }
+                throw new IOException("connection closed inside a message head");
+            }
+            if (line.isEmpty()) {
+                if (sb.length() == 0) {
+                    continue;
+                }
+                return sb.toString();
+            }
+            sb.append(sb.length() == 0 ? "" : "\r\n").append(line);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                return sb.length() == 0 ? null : sb.toString();
+            }
+            if (b == '\n') {
+                int n = sb.length();
+                return n > 0 && sb.charAt(n - 1) == '\r' ? sb.substring(0, n - 1) : sb.toString();
+            }
+            sb.append((char) b);
+        }
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] buf = new byte[length];
+        for (int n = 0; n < length; ) {
+            int r = in.read(buf, n, length - n);
+            if (r < 0) {
+                throw new IOException("connection closed after " + n + " of " + length + " bytes");
+            }
+            n += r;
+        }
+        return buf;
+    }
+
+    private static Map<String, String> headers(String[] lines) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT), lines[i].substring(colon + 1).trim());
+        }
+        return headers;
+    }
+}
@@ -0,0 +1,136 @@
+package com.proxy;
+
+import com.proxy.common.Transport;
+import org.apache.catalina.Context;
+import org.apache.catalina.startup.Tomcat;
+
+import java.nio.file.Files;
+
+/**
+ * 测试用的代理服务端，监听本机的随机端口。参数的默认值和application.yml一致（入口除外），start之前可以修改
+ */
+final class TestProxyServer implements AutoCloseable {
+
+    /**
+     * 隧道入口：netty 或 tomcat（内嵌的tomcat，和spring boot里一样挂在/temp/ws）
+     */
+    String entry = "netty";
+
+    String transport = "nio";
+
+    long maxQueuedBytes = 4194304;
+
+    int maxMessageSize = 65536;
+
+    int maxClientMessageSize = 262144;
+
+    int window = 262144;
+
+    boolean compress = true;
+
+    int version = 2;
+
+    int scheduleQuantum = 16384;
+
+    int maxStreamQueuedBytes = 131072;
+
+    String streamWeights = "";
+
+    int resumeGrace;
+
+    boolean pool;
+
+    int streamIdleSeconds;
+
+    /**
+     * 上游dns服务器（ip:port），为null时使用jdk的解析
+     */
+    String dnsServer;
+
+    int dnsNegativeTtl = 10;
+
+    private UpstreamResolver resolver;
+
+    private UpstreamPool upstreamPool;
+
+    private IdleTimer idleTimer;
+
+    private TunnelService service;
+
+    private NettyWebSocketServer server;
+
+    private Tomcat tomcat;
+
+    private int port;
+
+    TestProxyServer start() throws Exception {
+        Transport t = Transport.select(transport);
+        resolver = new UpstreamResolver(t, dnsServer != null,
+                dnsServer == null ? new String[0] : new String[]{dnsServer}, 4096, 0, 300, dnsNegativeTtl,
+                new String[0], new String[0]);
+        upstreamPool = new UpstreamPool(t, resolver, pool, 8, 30, 64);
+        idleTimer = new IdleTimer(100, 0, 0, streamIdleSeconds, 0, 0, 0);
+        service = new TunnelService(t, resolver, upstreamPool, idleTimer, maxQueuedBytes, maxMessageSize,
+                maxClientMessageSize, window, compress, version, scheduleQuantum, maxStreamQueuedBytes, streamWeights,
+                resumeGrace);
+        service.afterPropertiesSet();
+        port = TestServers.freePort();
+        if ("tomcat".equals(entry)) {
+            tomcat = new Tomcat();
+            tomcat.setBaseDir(Files.createTempDirectory("tomcat").toString());
+            tomcat.setPort(port);
+            tomcat.getConnector();
+            Context context = tomcat.addContext("/temp", null);
+            Tomcat.addServlet(context, "tunnel", new TomcatTunnelServlet(service));
+            context.addServletMappingDecoded("/ws", "tunnel");
+            tomcat.start();
+        } else {
+            server = new NettyWebSocketServer(t, service, port, "/temp/ws");
+            server.afterPropertiesSet();
+        }
+        return this;
+    }
+
+    int port() {
+        return port;
+    }
+
+    /**
+     * 客户端的serverHost参数
+     */
+    String address() {
+        return "127.0.0.1:" + port;
+    }
+
+    TunnelService service() {
+        return service;
+    }
+
+    UpstreamPool upstreamPool() {
+        return upstreamPool;
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.destroy();
+        }
+        if (tomcat != null) {
+            try {
+                tomcat.stop();
+                tomcat.destroy();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        if (service != null) {
+            service.destroy();
+        }
+        if (idleTimer != null) {
+            idleTimer.destroy();
+        }
+        if (resolver != null) {
+            resolver.destroy();
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.proxy;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 端到端测试的公共部分：本机的目标服务、启动客户端、按规律生成和校验的数据
+ */
+final class TestServers {
+
+    /**
+     * 测试里的目标服务和中转共用，daemon线程，不需要关闭
+     */
+    static final EventLoopGroup GROUP = new NioEventLoopGroup(2, new DefaultThreadFactory("test-server", true));
+
+    private TestServers() {
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    static int port(Channel channel) {
+        return ((InetSocketAddress) channel.localAddress()).getPort();
+    }
+
+    /**
+     * 原样返回收到的数据的目标服务，返回监听的channel
+     */
+    static Channel startEcho() throws InterruptedException {
+        return new ServerBootstrap().group(GROUP).channel(NioServerSocketChannel.class)
+                .childHandler(new Echo()).bind("127.0.0.1", 0).sync().channel();
+    }
+
+    @ChannelHandler.Sharable
+    private static final class Echo extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ctx.writeAndFlush(msg);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+
+    /**
+     * 客户端的参数都是系统属性，在构造方法里读取；设置properties后创建客户端，再恢复原来的值
+     */
+    static <T extends TcpClient> T newClient(Map<String, String> properties, Callable<T> factory) throws Exception {
+        Map<String, String> previous = new HashMap<>();
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+            previous.put(entry.getKey(), System.getProperty(entry.getKey()));
+            System.setProperty(entry.getKey(), entry.getValue());
+        }
+        try {
+            return factory.call();
+        } finally {
+            for (Map.Entry<String, String> entry : previous.entrySet()) {
+                if (entry.getValue() == null) {
+                    System.clearProperty(entry.getKey());
+                } else {
+                    System.setProperty(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * 在后台线程里启动客户端，等到本地端口可以连接，返回本地端口
+     */
+    static int startClient(TcpClient client) throws Exception {
+        int port = freePort();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread thread = new Thread(() -> {
+            try {
+                client.startServer(port);
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        }, "test-client-" + port);
+        thread.setDaemon(true);
+        thread.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (System.nanoTime() < deadline) {
+            if (failure.get() != null) {
+                throw new IllegalStateException("client failed to start", failure.get());
+            }
+            try (Socket ignored = new Socket("127.0.0.1", port)) {
+                return port;
+            } catch (IOException e) {
+                if (!thread.isAlive()) {
+                    throw new IllegalStateException("client could not connect to the proxy server");
+                }
+                Thread.sleep(20);
+            }
+        }
+        throw new IllegalStateException("client did not listen on " + port);
+    }
+
+    /**
+     * 第i个字节的值，校验时能发现错位和重复
+     */
+    static byte pattern(long i) {
+        return (byte) (i * 31 % 251);
+    }
+
+    /**
+     * 通过本地端口向echo目标服务写total个字节，同时读回并逐字节校验，读到一半时调用midway（可以为null），返回用时（纳秒）
+     */
+    static long transfer(int port, long total, Runnable midway) throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(30000);
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            AtomicReference<Throwable> writeFailure = new AtomicReference<>();
+            long start = System.nanoTime();
+            Thread writer = new Thread(() -> {
+                try {
+                    byte[] buf = new byte[16384];
+                    for (long sent = 0; sent < total; ) {
+                        int n = (int) Math.min(buf.length, total - sent);
+                        for (int i = 0; i < n; i++) {
+                            buf[i] = pattern(sent + i);
+                        }
+                        out.write(buf, 0, n);
+                        sent += n;
+                    }
+                } catch (Throwable e) {
+                    writeFailure.set(e);
+                }
+            }, "test-writer-" + port);
+            writer.setDaemon(true);
+            writer.start();
+            byte[] buf = new byte[16384];
+            long read = 0;
+            boolean fired = midway == null;
+            while (read < total) {
+                int n = in.read(buf);
+                if (n < 0) {
+                    throw new IllegalStateException("local connection closed after " + read + " bytes, write failure: "
+                            + writeFailure.get());
+                }
+                for (int i = 0; i < n; i++) {
+                    if (buf[i] != pattern(read + i)) {
+                        throw new IllegalStateException("corrupt byte at offset " + (read + i));
+                    }
+                }
+                read += n;
+                if (!fired && read >= total / 2) {
+                    fired = true;
+                    midway.run();
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            writer.join(10000);
+            return elapsed;
+        }
+    }
+
+    /**
+     * 同时开streams个本地连接，每个向echo目标服务传输bytes个字节并校验，返回总的吞吐量（MB/s）
+     */
+    static double parallel(int port, int streams, long bytes) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(streams);
+        try {
+            long start = System.nanoTime();
+            List<Future<Long>> futures = new ArrayList<>();
+            for (int i = 0; i < streams; i++) {
+                futures.add(executor.submit(() -> transfer(port, bytes, null)));
+            }
+            for (Future<Long> future : futures) {
+                future.get();
+            }
+            return throughput(bytes * streams, System.nanoTime() - start);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 发送一小段数据并等待echo回来，成功返回往返时间（纳秒），失败或者超时返回-1
+     */
+    static long echoOnce(int port, int timeoutMillis) {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(timeoutMillis);
+            socket.setTcpNoDelay(true);
+            long start = System.nanoTime();
+            socket.getOutputStream().write("ping".getBytes());
+            byte[] buf = new byte[4];
+            for (int n = 0; n < 4; ) {
+                int r = socket.getInputStream().read(buf, n, 4 - n);
+                if (r < 0) {
+                    return -1;
+                }
+                n += r;
+            }
+            return "ping".equals(new String(buf)) ? System.nanoTime() - start : -1;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * MB/s
+     */
+    static double throughput(long bytes, long nanos) {
+        return bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+}
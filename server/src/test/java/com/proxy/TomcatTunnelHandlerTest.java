@@ -0,0 +1,402 @@
+package com.proxy;
+
+import com.proxy.common.Transport;
+import com.proxy.common.TunnelOptions;
+import com.proxy.common.TunnelProtocol;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.WebConnection;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * tomcat入口的帧解析：有掩码和没有掩码的帧、分片消息、分片之间的控制帧、超过大小的消息、关闭握手、拆到多次读里的帧。
+ * 用假的WebConnection代替tomcat，收到的消息记录下来，不交给隧道处理
+ */
+class TomcatTunnelHandlerTest {
+
+    private static final int MAX_MESSAGE = 100_000;
+
+    private static final int OPCODE_CONTINUATION = 0x0;
+
+    private static final int OPCODE_TEXT = 0x1;
+
+    private static final int OPCODE_PING = 0x9;
+
+    private IdleTimer idleTimer;
+
+    private RecordingTunnelService service;
+
+    private FakeConnection connection;
+
+    private TomcatTunnelHandler handler;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Transport t = Transport.select("nio");
+        UpstreamResolver resolver = new UpstreamResolver(t, false, new String[0], 4096, 0, 300, 10,
+                new String[0], new String[0]);
+        idleTimer = new IdleTimer(100, 0, 0, 0, 0, 0, 0);
+        service = new RecordingTunnelService(t, resolver, new UpstreamPool(t, resolver, false, 8, 30, 64), idleTimer);
+        connection = new FakeConnection();
+        handler = new TomcatTunnelHandler();
+        handler.setup(service, new TunnelOptions().setVersion(TunnelProtocol.VERSION_2), "test");
+        handler.init(connection);
+    }
+
+    @AfterEach
+    void tearDown() {
+        handler.destroy();
+        service.getLoopGroup().shutdownGracefully(0, 0, TimeUnit.SECONDS);
+        idleTimer.destroy();
+    }
+
+    @Test
+    void maskedBinaryFrames() throws Exception {
+        byte[] small = bytes(100);
+        byte[] medium = bytes(1000);
+        byte[] large = bytes(70_000);
+        read(concat(frame(true, TomcatTunnelSession.OPCODE_BINARY, small, true),
+                frame(true, TomcatTunnelSession.OPCODE_BINARY, medium, true)));
+        //64位长度，比读缓冲区大
+        read(frame(true, TomcatTunnelSession.OPCODE_BINARY, large, true));
+        assertArrayEquals(small, service.nextMessage());
+        assertArrayEquals(medium, service.nextMessage());
+        assertArrayEquals(large, service.nextMessage());
+        assertEquals(0, connection.output().length);
+    }
+
+    @Test
+    void unmaskedFrameIsAProtocolError() throws Exception {
+        read(frame(true, TomcatTunnelSession.OPCODE_BINARY, bytes(10), false));
+        assertClose(1002);
+        assertNull(service.messages.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void fragmentedMessageIsReassembled() throws Exception {
+        byte[] message = bytes(3000);
+        read(concat(frame(false, TomcatTunnelSession.OPCODE_BINARY, Arrays.copyOfRange(message, 0, 1000), true),
+                frame(false, OPCODE_CONTINUATION, Arrays.copyOfRange(message, 1000, 1001), true),
+                frame(true, OPCODE_CONTINUATION, Arrays.copyOfRange(message, 1001, 3000), true)));
+        assertArrayEquals(message, service.nextMessage());
+    }
+
+    @Test
+    void pingBetweenFragmentsIsAnswered() throws Exception {
+        byte[] message = bytes(2000);
+        byte[] ping = "are you there".getBytes(StandardCharsets.US_ASCII);
+        read(concat(frame(false, TomcatTunnelSession.OPCODE_BINARY, Arrays.copyOfRange(message, 0, 700), true),
+                frame(true, OPCODE_PING, ping, true)));
+        byte[] pong = connection.awaitOutput(2 + ping.length);
+        assertEquals((byte) (0x80 | TomcatTunnelSession.OPCODE_PONG), pong[0]);
+        assertEquals(ping.length, pong[1]);
+        assertArrayEquals(ping, Arrays.copyOfRange(pong, 2, pong.length));
+        read(frame(true, OPCODE_CONTINUATION, Arrays.copyOfRange(message, 700, 2000), true));
+        assertArrayEquals(message, service.nextMessage());
+    }
+
+    @Test
+    void textMessagesAreDropped() throws Exception {
+        byte[] binary = bytes(10);
+        read(concat(frame(false, OPCODE_TEXT, bytes(5), true), frame(true, OPCODE_CONTINUATION, bytes(5), true),
+                frame(true, TomcatTunnelSession.OPCODE_BINARY, binary, true)));
+        assertArrayEquals(binary, service.nextMessage());
+        assertNull(service.messages.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void unexpectedContinuationIsAProtocolError() throws Exception {
+        read(frame(true, OPCODE_CONTINUATION, bytes(10), true));
+        assertClose(1002);
+    }
+
+    @Test
+    void oversizeFrameIsRejected() throws Exception {
+        //只需要帧头就能判断
+        read(Arrays.copyOf(frame(true, TomcatTunnelSession.OPCODE_BINARY, bytes(MAX_MESSAGE + 1), true), 14));
+        assertClose(1009);
+    }
+
+    @Test
+    void oversizeFragmentedMessageIsRejected() throws Exception {
+        read(concat(frame(false, TomcatTunnelSession.OPCODE_BINARY, bytes(MAX_MESSAGE / 2), true),
+                frame(false, OPCODE_CONTINUATION, bytes(MAX_MESSAGE / 2), true),
+                frame(true, OPCODE_CONTINUATION, bytes(1), true)));
+        assertClose(1009);
+        assertNull(service.messages.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void closeHandshakeEchoesTheStatus() throws Exception {
+        byte[] status = {(byte) (1000 >>> 8), (byte) (1000 & 0xFF), 'b', 'y', 'e'};
+        read(frame(true, TomcatTunnelSession.OPCODE_CLOSE, status, true));
+        assertClose(1000);
+    }
+
+    @Test
+    void framesSplitAcrossReads() throws Exception {
+        byte[] first = bytes(300);
+        byte[] second = bytes(40_000);
+        byte[] data = concat(frame(true, TomcatTunnelSession.OPCODE_BINARY, first, true),
+                frame(false, TomcatTunnelSession.OPCODE_BINARY, Arrays.copyOfRange(second, 0, 20_000), true),
+                frame(true, OPCODE_PING, new byte[0], true),
+                frame(true, OPCODE_CONTINUATION, Arrays.copyOfRange(second, 20_000, 40_000), true));
+        //前面逐字节读，覆盖帧头的每个切分位置，后面按随机大小读
+        int offset = 0;
+        for (; offset < 400; offset++) {
+            read(new byte[]{data[offset]});
+        }
+        while (offset < data.length) {
+            int n = Math.min(data.length - offset, 1 + ThreadLocalRandom.current().nextInt(5000));
+            read(Arrays.copyOfRange(data, offset, offset + n));
+            offset += n;
+        }
+        assertArrayEquals(first, service.nextMessage());
+        assertArrayEquals(second, service.nextMessage());
+        assertArrayEquals(new byte[]{(byte) (0x80 | TomcatTunnelSession.OPCODE_PONG), 0}, connection.awaitOutput(2));
+    }
+
+    /**
+     * 输出是带状态码的关闭帧，会话随后关闭
+     */
+    private void assertClose(int code) throws Exception {
+        byte[] close = connection.awaitOutput(4);
+        assertEquals((byte) (0x80 | TomcatTunnelSession.OPCODE_CLOSE), close[0]);
+        assertEquals(2, close[1]);
+        assertEquals(code, (close[2] & 0xFF) << 8 | close[3] & 0xFF);
+        assertTrue(service.closed.await(5, TimeUnit.SECONDS), "session not closed");
+    }
+
+    private void read(byte[] data) throws Exception {
+        connection.in.chunks.add(data);
+        handler.onDataAvailable();
+    }
+
+    /**
+     * 客户端的帧，masked为false时不加掩码
+     */
+    private static byte[] frame(boolean fin, int opcode, byte[] payload, boolean masked) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write((fin ? 0x80 : 0) | opcode);
+        int maskBit = masked ? 0x80 : 0;
+        int length = payload.length;
+        if (length < 126) {
+            out.write(maskBit | length);
+        } else if (length < 65536) {
+            out.write(maskBit | 126);
+            out.write(length >>> 8);
+            out.write(length);
+        } else {
+            out.write(maskBit | 127);
+            for (int i = 7; i >= 0; i--) {
+                out.write(i < 4 ? length >>> (8 * i) : 0);
+            }
+        }
+        byte[] mask = new byte[4];
+        if (masked) {
+            ThreadLocalRandom.current().nextBytes(mask);
+            out.write(mask, 0, 4);
+        }
+        for (int i = 0; i < length; i++) {
+            out.write(payload[i] ^ mask[i & 3]);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = TestServers.pattern(i);
+        }
+        return bytes;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 记录交给会话处理的消息和会话的关闭，不解析报文
+     */
+    private static final class RecordingTunnelService extends TunnelService {
+
+        final BlockingQueue<byte[]> messages = new LinkedBlockingQueue<>();
+
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        RecordingTunnelService(Transport transport, UpstreamResolver resolver, UpstreamPool pool, IdleTimer idleTimer) {
+            super(transport, resolver, pool, idleTimer, 4194304, 65536, MAX_MESSAGE, 262144, false,
+                    TunnelProtocol.VERSION_2, 16384, 131072, "", 0);
+        }
+
+        @Override
+        public void handleMessage(TunnelSession session, ByteBuf payload) {
+            messages.add(ByteBufUtil.getBytes(payload));
+        }
+
+        @Override
+        public void sessionClosed(TunnelSession session) {
+            super.sessionClosed(session);
+            closed.countDown();
+        }
+
+        byte[] nextMessage() throws InterruptedException {
+            byte[] message = messages.poll(5, TimeUnit.SECONDS);
+            if (message == null) {
+                throw new AssertionError("no message");
+            }
+            return message;
+        }
+    }
+
+    private static final class FakeConnection implements WebConnection {
+
+        final FakeInput in = new FakeInput();
+
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+        private int consumed;
+
+        private final ServletOutputStream out = new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener listener) {
+            }
+
+            @Override
+            public void write(int b) {
+                synchronized (written) {
+                    written.write(b);
+                    written.notifyAll();
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                synchronized (written) {
+                    written.write(b, off, len);
+                    written.notifyAll();
+                }
+            }
+        };
+
+        @Override
+        public ServletInputStream getInputStream() {
+            return in;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        /**
+         * 所有写出的数据
+         */
+        byte[] output() {
+            synchronized (written) {
+                return written.toByteArray();
+            }
+        }
+
+        /**
+         * 等待并取出接下来写出的n个字节
+         */
+        byte[] awaitOutput(int n) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            synchronized (written) {
+                while (written.size() - consumed < n) {
+                    long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (left <= 0) {
+                        throw new AssertionError("expected " + n + " bytes, written " + (written.size() - consumed));
+                    }
+                    written.wait(left);
+                }
+                byte[] all = written.toByteArray();
+                byte[] result = Arrays.copyOfRange(all, consumed, consumed + n);
+                consumed += n;
+                return result;
+            }
+        }
+    }
+
+    /**
+     * 每次onDataAvailable之前放入一段数据，读完后isReady返回false
+     */
+    private static final class FakeInput extends ServletInputStream {
+
+        final Queue<byte[]> chunks = new ArrayDeque<>();
+
+        private int offset;
+
+        @Override
+        public boolean isFinished() {
+            return false;
+        }
+
+        @Override
+        public boolean isReady() {
+            return !chunks.isEmpty();
+        }
+
+        @Override
+        public void setReadListener(ReadListener listener) {
+        }
+
+        @Override
+        public int read() {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            byte[] chunk = chunks.peek();
+            if (chunk == null) {
+                return 0;
+            }
+            int n = Math.min(len, chunk.length - offset);
+            System.arraycopy(chunk, offset, b, off, n);
+            offset += n;
+            if (offset == chunk.length) {
+                chunks.poll();
+                offset = 0;
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.proxy;
+
+import com.proxy.common.Transport;
+import io.netty.channel.Channel;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+
+/**
+ * 不同传输层的吞吐量：客户端和服务端都使用nio、epoll、io_uring时，单个stream和8个并发stream向echo服务传输数据。
+ * 不可用的传输层回退到nio，输出里是实际使用的传输层。
+ * <p>
+ * mvn -pl server -am test -Dtest=TransportBenchmark -DfailIfNoTests=false
+ */
+class TransportBenchmark {
+
+    @Test
+    void throughput() throws Exception {
+        Channel echo = TestServers.startEcho();
+        try {
+            for (String transport : new String[]{"nio", "epoll", "io_uring"}) {
+                TestProxyServer server = new TestProxyServer();
+                server.transport = transport;
+                try (TestProxyServer ignored = server.start()) {
+                    TcpClient client = TestServers.newClient(Collections.singletonMap("proxy.transport", transport),
+                            () -> new TcpClient("127.0.0.1", TestServers.port(echo), server.address(), 0));
+                    int port = TestServers.startClient(client);
+                    try {
+                        TestServers.transfer(port, 16L << 20, null);
+                        double single = TestServers.throughput(64L << 20, TestServers.transfer(port, 64L << 20, null));
+                        double parallel = TestServers.parallel(port, 8, 16L << 20);
+                        System.out.printf("%-8s (using %s): single stream %.0f MB/s, 8 streams %.0f MB/s%n", transport,
+                                Transport.select(transport).type(), single, parallel);
+                    } finally {
+                        client.close();
+                    }
+                }
+            }
+        } finally {
+            echo.close();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.proxy;
+
+import io.netty.channel.Channel;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * netty入口和tomcat入口的本机吞吐量对比：客户端经过隧道连接echo服务，单个stream和8个并发stream各传输一遍。
+ * <p>
+ * mvn -pl server -am test -Dtest=TunnelEntryBenchmark -DfailIfNoTests=false [-Dbench.entries=netty,tomcat]
+ */
+class TunnelEntryBenchmark {
+
+    private static final long SINGLE = 64L << 20;
+
+    private static final long PARALLEL = 16L << 20;
+
+    private static final int STREAMS = 8;
+
+    @Test
+    void throughput() throws Exception {
+        Channel echo = TestServers.startEcho();
+        try {
+            for (String entry : System.getProperty("bench.entries", "netty,tomcat").split(",")) {
+                run(entry.trim(), TestServers.port(echo));
+            }
+        } finally {
+            echo.close();
+        }
+    }
+
+    private void run(String entry, int echoPort) throws Exception {
+        TestProxyServer server = new TestProxyServer();
+        server.entry = entry;
+        try (TestProxyServer ignored = server.start()) {
+            TcpClient client = TestServers.newClient(Collections.singletonMap("proxy.transport", "nio"),
+                    () -> new TcpClient("127.0.0.1", echoPort, server.address(), 0));
+            int port = TestServers.startClient(client);
+            try {
+                TestServers.transfer(port, 16L << 20, null);
+                List<Double> single = new ArrayList<>();
+                for (int i = 0; i < 3; i++) {
+                    single.add(TestServers.throughput(SINGLE, TestServers.transfer(port, SINGLE, null)));
+                }
+                ExecutorService executor = Executors.newFixedThreadPool(STREAMS);
+                try {
+                    long start = System.nanoTime();
+                    List<Future<Long>> futures = new ArrayList<>();
+                    for (int i = 0; i < STREAMS; i++) {
+                        futures.add(executor.submit(() -> TestServers.transfer(port, PARALLEL, null)));
+                    }
+                    for (Future<Long> future : futures) {
+                        future.get();
+                    }
+                    double parallel = TestServers.throughput(PARALLEL * STREAMS, System.nanoTime() - start);
+                    System.out.printf("%-6s single stream: %s MB/s, %d streams: %.0f MB/s%n", entry,
+                            format(single), STREAMS, parallel);
+                } finally {
+                    executor.shutdownNow();
+                }
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    private static String format(List<Double> values) {
+        StringBuilder sb = new StringBuilder();
+        for (double value : values) {
+            sb.append(sb.length() == 0 ? "" : " / ").append(String.format("%.0f", value));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,40 @@
+package com.proxy;
+
+import io.netty.channel.Channel;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 隧道数量对吞吐量的影响：proxy.tunnels为1、2、4时，8个并发stream各向echo服务传输16MB。
+ * <p>
+ * mvn -pl server -am test -Dtest=TunnelPoolBenchmark -DfailIfNoTests=false
+ */
+class TunnelPoolBenchmark {
+
+    @Test
+    void throughput() throws Exception {
+        Channel echo = TestServers.startEcho();
+        try (TestProxyServer server = new TestProxyServer().start()) {
+            for (int tunnels : new int[]{1, 2, 4}) {
+                Map<String, String> properties = new HashMap<>();
+                properties.put("proxy.transport", "nio");
+                properties.put("proxy.tunnels", String.valueOf(tunnels));
+                TcpClient client = TestServers.newClient(properties,
+                        () -> new TcpClient("127.0.0.1", TestServers.port(echo), server.address(), 0));
+                int port = TestServers.startClient(client);
+                try {
+                    TestServers.parallel(port, 8, 4L << 20);
+                    double first = TestServers.parallel(port, 8, 16L << 20);
+                    double second = TestServers.parallel(port, 8, 16L << 20);
+                    System.out.printf("tunnels %d: 8 streams %.0f / %.0f MB/s%n", tunnels, first, second);
+                } finally {
+                    client.close();
+                }
+            }
+        } finally {
+            echo.close();
+        }
+    }
+}
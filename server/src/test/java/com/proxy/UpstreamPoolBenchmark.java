@@ -0,0 +1,95 @@
+package com.proxy;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.jupiter.api.Test;
+
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 预先连接的目标服务连接池对打开stream到收到第一个字节的延迟的影响。目标服务在连接建立20毫秒后才发出banner，
+ * 代表tcp/tls握手或者服务端先发数据的协议；以每秒20个的频率打开连接，先预热3秒，再测量200次。
+ * <p>
+ * mvn -pl server -am test -Dtest=UpstreamPoolBenchmark -DfailIfNoTests=false
+ */
+class UpstreamPoolBenchmark {
+
+    private static final int BANNER_DELAY_MILLIS = 20;
+
+    @Test
+    void firstByteLatency() throws Exception {
+        Channel origin = new ServerBootstrap().group(TestServers.GROUP).channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new Banner());
+                    }
+                }).bind("127.0.0.1", 0).sync().channel();
+        try {
+            for (boolean pool : new boolean[]{false, true}) {
+                TestProxyServer server = new TestProxyServer();
+                server.pool = pool;
+                try (TestProxyServer ignored = server.start()) {
+                    TcpClient client = TestServers.newClient(Collections.singletonMap("proxy.transport", "nio"),
+                            () -> new TcpClient("127.0.0.1", TestServers.port(origin), server.address(), 0));
+                    int port = TestServers.startClient(client);
+                    try {
+                        long warmUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(3);
+                        while (System.nanoTime() < warmUntil) {
+                            firstByte(port);
+                            Thread.sleep(50);
+                        }
+                        long[] samples = new long[200];
+                        for (int i = 0; i < samples.length; i++) {
+                            samples[i] = firstByte(port);
+                            Thread.sleep(50);
+                        }
+                        Arrays.sort(samples);
+                        System.out.printf("pool %-5s: open to first byte p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, %s%n",
+                                pool, samples[100] / 1e6, samples[180] / 1e6, samples[198] / 1e6,
+                                server.upstreamPool().stats());
+                    } finally {
+                        client.close();
+                    }
+                }
+            }
+        } finally {
+            origin.close();
+        }
+    }
+
+    private static long firstByte(int port) throws Exception {
+        long start = System.nanoTime();
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(5000);
+            if (socket.getInputStream().read() < 0) {
+                throw new IllegalStateException("closed before the banner");
+            }
+            return System.nanoTime() - start;
+        }
+    }
+
+    private static final class Banner extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            ctx.executor().schedule(() -> ctx.writeAndFlush(Unpooled.wrappedBuffer("SSH-2.0-test\r\n".getBytes())),
+                    BANNER_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+}
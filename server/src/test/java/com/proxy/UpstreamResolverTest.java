@@ -0,0 +1,232 @@
+package com.proxy;
+
+import com.proxy.common.Transport;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.handler.codec.dns.DatagramDnsQuery;
+import io.netty.handler.codec.dns.DatagramDnsQueryDecoder;
+import io.netty.handler.codec.dns.DatagramDnsResponse;
+import io.netty.handler.codec.dns.DatagramDnsResponseEncoder;
+import io.netty.handler.codec.dns.DefaultDnsQuestion;
+import io.netty.handler.codec.dns.DefaultDnsRawRecord;
+import io.netty.handler.codec.dns.DnsQuestion;
+import io.netty.handler.codec.dns.DnsRecordType;
+import io.netty.handler.codec.dns.DnsResponseCode;
+import io.netty.handler.codec.dns.DnsSection;
+import io.netty.util.concurrent.Future;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 用本机的dns服务器代替真实的解析：*.ok.test解析到127.0.0.1，其它域名返回NXDOMAIN，每个回复延迟100毫秒，
+ * 统计每个域名和类型收到的查询次数
+ */
+class UpstreamResolverTest {
+
+    private static final int TTL = 2;
+
+    private final Map<String, AtomicInteger> queries = new ConcurrentHashMap<>();
+
+    private Channel dns;
+
+    @BeforeEach
+    void setUp() throws InterruptedException {
+        dns = new Bootstrap().group(TestServers.GROUP).channel(NioDatagramChannel.class)
+                .handler(new ChannelInitializer<DatagramChannel>() {
+                    @Override
+                    protected void initChannel(DatagramChannel ch) {
+                        ch.pipeline().addLast(new DatagramDnsQueryDecoder(), new DatagramDnsResponseEncoder(),
+                                new StandIn());
+                    }
+                }).bind("127.0.0.1", 0).sync().channel();
+    }
+
+    @AfterEach
+    void tearDown() {
+        dns.close();
+    }
+
+    private String dnsServer() {
+        return "127.0.0.1:" + TestServers.port(dns);
+    }
+
+    private int queries(String name, DnsRecordType type) {
+        AtomicInteger count = queries.get(name + "." + type.name());
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * 1000个本地连接同时打开到同一个域名的stream，只查询一次；ttl过期后再打开时重新查询一次
+     */
+    @Test
+    void oneQueryPerNamePerTtlUnderConcurrentOpens() throws Exception {
+        Channel echo = TestServers.startEcho();
+        TestProxyServer server = new TestProxyServer();
+        server.dnsServer = dnsServer();
+        try (TestProxyServer ignored = server.start()) {
+            TcpClient client = TestServers.newClient(Collections.singletonMap("proxy.transport", "nio"),
+                    () -> new TcpClient("www.ok.test", TestServers.port(echo), server.address(), 0));
+            int port = TestServers.startClient(client);
+            try {
+                echoAll(port, 1000);
+                assertEquals(1, queries("www.ok.test.", DnsRecordType.A));
+                echoAll(port, 100);
+                assertEquals(1, queries("www.ok.test.", DnsRecordType.A));
+                Thread.sleep(TimeUnit.SECONDS.toMillis(TTL) + 500);
+                echoAll(port, 100);
+                assertEquals(2, queries("www.ok.test.", DnsRecordType.A));
+            } finally {
+                client.close();
+            }
+        } finally {
+            echo.close();
+        }
+    }
+
+    /**
+     * 不同event loop上同时解析同一个域名合并成一次查询
+     */
+    @Test
+    void concurrentResolvesOnDifferentLoopsAreCoalesced() throws Exception {
+        EventLoopGroup group = new NioEventLoopGroup(4);
+        UpstreamResolver resolver = resolver(10);
+        try {
+            List<Future<InetSocketAddress>> futures = resolveAll(resolver, group, "api.ok.test", 200);
+            for (Future<InetSocketAddress> future : futures) {
+                InetSocketAddress address = future.syncUninterruptibly().getNow();
+                assertEquals("127.0.0.1", address.getAddress().getHostAddress());
+            }
+            assertEquals(1, queries("api.ok.test.", DnsRecordType.A));
+        } finally {
+            resolver.destroy();
+            group.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 解析失败缓存negative-ttl秒：期间同一个域名不再查询，过期后重新查询
+     */
+    @Test
+    void failuresAreCachedForNegativeTtl() throws Exception {
+        EventLoopGroup group = new NioEventLoopGroup(4);
+        UpstreamResolver resolver = resolver(1);
+        try {
+            for (Future<InetSocketAddress> future : resolveAll(resolver, group, "missing.test", 200)) {
+                future.awaitUninterruptibly();
+                assertFalse(future.isSuccess());
+                assertTrue(future.cause() instanceof UnknownHostException, future.cause().toString());
+            }
+            assertEquals(1, queries("missing.test.", DnsRecordType.A));
+            for (Future<InetSocketAddress> future : resolveAll(resolver, group, "missing.test", 10)) {
+                assertFalse(future.awaitUninterruptibly().isSuccess());
+            }
+            assertEquals(1, queries("missing.test.", DnsRecordType.A));
+            Thread.sleep(1500);
+            assertFalse(resolveAll(resolver, group, "missing.test", 1).get(0).awaitUninterruptibly().isSuccess());
+            assertEquals(2, queries("missing.test.", DnsRecordType.A));
+        } finally {
+            resolver.destroy();
+            group.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+        }
+    }
+
+    private UpstreamResolver resolver(int negativeTtl) {
+        return new UpstreamResolver(Transport.select("nio"), true, new String[]{dnsServer()}, 4096, 0, 300,
+                negativeTtl, new String[0], new String[0]);
+    }
+
+    /**
+     * 在group的各个event loop上同时解析count次
+     */
+    private static List<Future<InetSocketAddress>> resolveAll(UpstreamResolver resolver, EventLoopGroup group,
+                                                              String host, int count) throws Exception {
+        List<Future<Future<InetSocketAddress>>> submitted = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            EventLoop loop = group.next();
+            submitted.add(loop.submit(() -> resolver.group().getResolver(loop)
+                    .resolve(InetSocketAddress.createUnresolved(host, 80))));
+        }
+        List<Future<InetSocketAddress>> futures = new ArrayList<>();
+        for (Future<Future<InetSocketAddress>> future : submitted) {
+            futures.add(future.sync().getNow());
+        }
+        return futures;
+    }
+
+    /**
+     * 同时打开count个本地连接，都发出数据后再逐个等待echo
+     */
+    private static void echoAll(int port, int count) throws Exception {
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                Socket socket = new Socket("127.0.0.1", port);
+                socket.setSoTimeout(10000);
+                sockets.add(socket);
+            }
+            for (Socket socket : sockets) {
+                socket.getOutputStream().write("ping".getBytes());
+            }
+            for (Socket socket : sockets) {
+                InputStream in = socket.getInputStream();
+                byte[] buf = new byte[4];
+                for (int n = 0; n < 4; ) {
+                    int r = in.read(buf, n, 4 - n);
+                    assertTrue(r > 0, "stream closed before echo");
+                    n += r;
+                }
+                assertEquals("ping", new String(buf));
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    private final class StandIn extends SimpleChannelInboundHandler<DatagramDnsQuery> {
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, DatagramDnsQuery query) {
+            DnsQuestion question = query.recordAt(DnsSection.QUESTION);
+            queries.computeIfAbsent(question.name() + "." + question.type().name(), k -> new AtomicInteger())
+                    .incrementAndGet();
+            DatagramDnsResponse response = new DatagramDnsResponse(query.recipient(), query.sender(), query.id());
+            response.setRecursionDesired(query.isRecursionDesired()).setRecursionAvailable(true);
+            response.addRecord(DnsSection.QUESTION, new DefaultDnsQuestion(question.name(), question.type()));
+            if (!question.name().endsWith(".ok.test.")) {
+                response.setCode(DnsResponseCode.NXDOMAIN);
+            } else if (question.type() == DnsRecordType.A) {
+                response.addRecord(DnsSection.ANSWER, new DefaultDnsRawRecord(question.name(), DnsRecordType.A, TTL,
+                        Unpooled.wrappedBuffer(new byte[]{127, 0, 0, 1})));
+            }
+            ctx.executor().schedule(() -> ctx.writeAndFlush(response), 100, TimeUnit.MILLISECONDS);
+        }
+    }
+}